@@ -12,12 +12,15 @@
 #   NOTICE: the execution of this script may take some time.
 #
 
+JAVA_OPTS="--add-modules jdk.incubator.vector"
 KEYS_FILE="data/keys"
 EVENTS_FILE="data/events"
 FILTER_SIZE=8192
+FILTER_FORMAT="standard" # Use "blocked" for cache line-blocked filters.
+TOPICS="" # Use "topics" if the events file includes indexed topics.
 
 # Build standard filters.
-java -cp "bin:lib/*" skip.BloomFilterBuilder ${KEYS_FILE} data/filters_8K ${FILTER_SIZE}
+java ${JAVA_OPTS} -cp "bin:lib/*" skip.BloomFilterBuilder ${KEYS_FILE} data/filters_8K ${FILTER_SIZE} ${FILTER_FORMAT}
 
 # Build modified filters.
-java -cp "bin:lib/*" skip.BloomFilterBuilderExt ${KEYS_FILE} ${EVENTS_FILE} data/filters_8K_m ${FILTER_SIZE}
\ No newline at end of file
+java ${JAVA_OPTS} -cp "bin:lib/*" skip.BloomFilterBuilderExt ${KEYS_FILE} ${EVENTS_FILE} data/filters_8K_m ${FILTER_SIZE} ${FILTER_FORMAT} ${TOPICS}
\ No newline at end of file
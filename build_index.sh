@@ -13,10 +13,11 @@
 #
 
 CLASS="skip.ChainIndexBuilder"
+JAVA_OPTS="--add-modules jdk.incubator.vector"
 NUM_ENTRIES=7
 
 # Build index with standard filters.
-java -cp "bin:lib/*" ${CLASS} data/filters_8K data/index_8K_7 ${NUM_ENTRIES}
+java ${JAVA_OPTS} -cp "bin:lib/*" ${CLASS} data/filters_8K data/index_8K_7 ${NUM_ENTRIES}
 
 # Build index with modified filters.
-java -cp "bin:lib/*" ${CLASS} data/filters_8K_m data/index_8K_7_m ${NUM_ENTRIES}
\ No newline at end of file
+java ${JAVA_OPTS} -cp "bin:lib/*" ${CLASS} data/filters_8K_m data/index_8K_7_m ${NUM_ENTRIES}
\ No newline at end of file
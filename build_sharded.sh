@@ -0,0 +1,26 @@
+#!/bin/bash
+#
+#   File:   build_sharded.sh
+#   Author: Matteo Loporchio
+#
+#   Bash script for constructing the sharded BF skip index.
+#   Blocks are split into shards of SHARD_SIZE consecutive blocks, each stored
+#   in a separate LevelDB database with its own BF skip indexes.
+#   Shards are assigned to the directories in SHARD_ROOTS (or SHARD_ROOTS_M) in round-robin order
+#   (e.g., to spread them over several devices).
+#
+#   NOTICE: the execution of this script may take some time.
+#
+
+CLASS="skip.ShardedChainIndexBuilder"
+JAVA_OPTS="--add-modules jdk.incubator.vector"
+NUM_ENTRIES=7
+SHARD_SIZE=1000000
+SHARD_ROOTS="data/sharded_8K_7"
+SHARD_ROOTS_M="data/sharded_8K_7_m"
+
+# Build sharded index with standard filters.
+java ${JAVA_OPTS} -cp "bin:lib/*" ${CLASS} data/filters_8K ${NUM_ENTRIES} ${SHARD_SIZE} ${SHARD_ROOTS}
+
+# Build sharded index with modified filters.
+java ${JAVA_OPTS} -cp "bin:lib/*" ${CLASS} data/filters_8K_m ${NUM_ENTRIES} ${SHARD_SIZE} ${SHARD_ROOTS_M}
@@ -0,0 +1,21 @@
+#!/bin/bash
+#
+#   File:   build_sliced.sh
+#   Author: Matteo Loporchio
+#
+#   Bash script for constructing the bit-sliced index of the block filters.
+#   Filters are grouped into segments of SEGMENT_SIZE consecutive blocks and,
+#   for each segment, the index stores one bitmap for each bit position of the filters.
+#
+#   NOTICE: the execution of this script may take some time.
+#
+
+CLASS="skip.SlicedIndexBuilder"
+JAVA_OPTS="--add-modules jdk.incubator.vector"
+SEGMENT_SIZE=4096
+
+# Build sliced index with standard filters.
+java ${JAVA_OPTS} -cp "bin:lib/*" ${CLASS} data/filters_8K data/sliced_8K ${SEGMENT_SIZE}
+
+# Build sliced index with modified filters.
+java ${JAVA_OPTS} -cp "bin:lib/*" ${CLASS} data/filters_8K_m data/sliced_8K_m ${SEGMENT_SIZE}
@@ -10,7 +10,9 @@
 #
 
 CLASS="skip.ChainStorageBuilder"
+JAVA_OPTS="--add-modules jdk.incubator.vector"
 EVENTS_FILE="data/events"
 STORAGE_DB="data/storage"
+TOPICS="" # Use "topics" if the events file includes indexed topics.
 
-java -cp "bin:lib/*" ${CLASS} ${EVENTS_FILE} ${STORAGE_DB}
\ No newline at end of file
+java ${JAVA_OPTS} -cp "bin:lib/*" ${CLASS} ${EVENTS_FILE} ${STORAGE_DB} ${TOPICS}
\ No newline at end of file
@@ -1,5 +1,7 @@
 package skip;
 
+import java.io.ByteArrayOutputStream;
+
 import com.google.common.io.BaseEncoding;
 import com.google.common.primitives.Longs;
 
@@ -10,6 +12,116 @@ import com.google.common.primitives.Longs;
  * @author Matteo Loporchio
  */
 public final class Bits {
+  /**
+   *  Bit manipulation routines with a SIMD implementation (<code>VectorBits</code>, in <code>src/vector</code>).
+   *  The implementation is compiled separately and loaded by reflection, so that this class
+   *  does not depend on the <code>jdk.incubator.vector</code> module.
+   */
+  interface Kernel {
+    /**
+     *  Returns the number of long lanes of the vectors, i.e., the number of bit positions checked at once.
+     *  @return the number of lanes
+     */
+    int lanes();
+
+    /**
+     *  Checks whether the given bits are all set in a bit array (see {@link Bits#test(long[], Probe)}).
+     *  The words are gathered {@link #lanes()} at a time, so the length of both arrays
+     *  must be a multiple of the number of lanes.
+     *  @param bits the bit array
+     *  @param words indexes of the words of the bit array including each bit
+     *  @param masks masks selecting each bit within its word (zero for padding lanes)
+     *  @return true if and only if all bits are set
+     */
+    boolean test(long[] bits, int[] words, long[] masks);
+
+    /**
+     *  In-place bitwise OR of two arrays of the same length (see {@link Bits#or(long[], long[])}).
+     *  @param dst array to be updated
+     *  @param src array to be merged into <code>dst</code>
+     */
+    void or(long[] dst, long[] src);
+  }
+
+  /**
+   *  The SIMD routines (null if they are not used).
+   */
+  private static final Kernel SIMD = loadKernel();
+
+  /**
+   *  Whether the SIMD implementations are used.
+   *  They are enabled when the <code>jdk.incubator.vector</code> module is available
+   *  (i.e., the JVM has been started with <code>--add-modules jdk.incubator.vector</code>)
+   *  and the vector classes have been compiled (see the makefile),
+   *  unless the <code>skip.vector</code> system property is set to <code>false</code>.
+   *  Otherwise, all methods fall back to scalar loops.
+   */
+  public static final boolean VECTORIZED = (SIMD != null);
+
+  /**
+   *  Loads the SIMD routines, if enabled and available.
+   *  @return the SIMD routines (null if they cannot be used)
+   */
+  private static Kernel loadKernel() {
+    if (!ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent() ||
+      "false".equals(System.getProperty("skip.vector"))) return null;
+    try {
+      return (Kernel) Class.forName("skip.VectorBits").getDeclaredConstructor().newInstance();
+    }
+    catch (ReflectiveOperationException | LinkageError e) {
+      return null;
+    }
+  }
+
+  /**
+   *  Bit positions prepared for being checked against many bit arrays (see {@link #test(long[], Probe)}).
+   *  With the SIMD routines, the positions are split into word indexes and masks, padded to
+   *  a multiple of the number of lanes, so that each test only gathers and compares whole vectors.
+   */
+  public static final class Probe {
+    /**
+     *  Positions of the bits to be checked.
+     */
+    private final int[] positions;
+
+    /**
+     *  Index of the word including each position (null if the SIMD routines are not used).
+     */
+    private final int[] words;
+
+    /**
+     *  Mask selecting each position within its word (null if the SIMD routines are not used).
+     */
+    private final long[] masks;
+
+    /**
+     *  Prepares a set of bit positions.
+     *  @param positions positions of the bits to be checked (e.g., returned by {@link BloomFilter#positions(byte[])})
+     */
+    public Probe(int[] positions) {
+      this.positions = positions;
+      if (SIMD == null) {
+        this.words = null;
+        this.masks = null;
+        return;
+      }
+      int lanes = SIMD.lanes(), padded = Math.max(lanes, ((positions.length + lanes - 1) / lanes) * lanes);
+      this.words = new int[padded];
+      this.masks = new long[padded];
+      for (int i = 0; i < positions.length; i++) {
+        words[i] = positions[i] >>> 6;
+        masks[i] = mask(positions[i]);
+      }
+    }
+
+    /**
+     *  Returns the positions of the bits to be checked.
+     *  @return the positions
+     */
+    public int[] getPositions() {
+      return positions;
+    }
+  }
 
   /**
    *  Converts an array of bytes to a human-readable hexadecimal string.
@@ -41,6 +153,59 @@ public final class Bits {
     return result;
   }
 
+  /**
+   *  Counts the number of bits equal to 1 in the given array of longs.
+   *  @param data the array of longs
+   *  @return number of ones in the array
+   */
+  public static int countOnes(long[] data) {
+    int result = 0;
+    for (int i = 0; i < data.length; i++)
+      result += Long.bitCount(data[i]);
+    return result;
+  }
+
+  /**
+   *  In-place bitwise OR of two arrays of longs.
+   *  NOTICE: the arrays must have the same length.
+   *  @param dst array to be updated
+   *  @param src array to be merged into <code>dst</code>
+   */
+  public static void or(long[] dst, long[] src) {
+    assert dst.length == src.length;
+    if (SIMD != null) {
+      SIMD.or(dst, src);
+      return;
+    }
+    for (int i = 0; i < dst.length; i++) dst[i] |= src[i];
+  }
+
+  /**
+   *  Checks whether the bits of a probe are all set in a bit array.
+   *  Bits are numbered as in {@link BloomFilter}, i.e., starting from the most significant bit of each long.
+   *  With the SIMD routines, the words including the bits are gathered and compared a vector at a time.
+   *  @param bits the bit array
+   *  @param probe the positions to be checked
+   *  @return true if and only if all positions are set
+   */
+  public static boolean test(long[] bits, Probe probe) {
+    if (probe.words != null) return SIMD.test(bits, probe.words, probe.masks);
+    int[] positions = probe.positions;
+    for (int i = 0; i < positions.length; i++) {
+      if ((bits[positions[i] >>> 6] & mask(positions[i])) == 0) return false;
+    }
+    return true;
+  }
+
+  /**
+   *  Returns the mask selecting the given bit position within its long word.
+   *  @param i position of the bit
+   *  @return a long with only the bit of position <code>i</code> set
+   */
+  public static long mask(int i) {
+    return (1L << (Long.SIZE - i - 1));
+  }
+
   /**
    *  Converts an array of longs into an array of bytes.
    *  @param data array of longs
@@ -72,4 +237,32 @@ public final class Bits {
     return result;
   }
 
+  /**
+   *  Writes a non-negative integer using 7 bits per byte (varint encoding).
+   *  @param out the output stream
+   *  @param value the integer
+   */
+  public static void writeVarint(ByteArrayOutputStream out, int value) {
+    while ((value & ~0x7F) != 0) {
+      out.write((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.write(value);
+  }
+
+  /**
+   *  Reads an integer written by {@link #writeVarint}.
+   *  @param data the encoded bytes
+   *  @param pos current position (updated by the method)
+   *  @return the integer
+   */
+  public static int readVarint(byte[] data, int[] pos) {
+    int value = 0;
+    for (int shift = 0; ; shift += 7) {
+      byte b = data[pos[0]++];
+      value |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) return value;
+    }
+  }
+
 }
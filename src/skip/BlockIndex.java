@@ -1,6 +1,12 @@
 package skip;
 
+import java.io.ByteArrayOutputStream;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+import java.util.zip.CRC32;
 
 /**
  * A block index represents the indexing data structures contained
@@ -8,9 +14,84 @@ import java.nio.ByteBuffer;
  * summarizing the events triggered by its transactions and with a BF skip index
  * summarizing the events included in the predecessors.
  * 
+ * Block indexes of standard filters are serialized as two integers (filter size and number 
+ * of skip entries) followed by the raw bytes of the block filter and of all skip entries.
+ * Other filter formats use an extended header, which starts with {@link #MAGIC}
+ * (not a multiple of 8, hence not a valid filter size) and then records the format 
+ * of the filters, a byte of flags, the filter size and the number of skip entries.
+ * If the flag {@link #FLAG_CHECKSUM} is set (for any filter format), the record ends 
+ * with the CRC-32 checksum of all the preceding bytes, which is checked on deserialization.
+ * If the flag {@link #FLAG_SPARSE} is set, each filter is preceded by a byte denoting its encoding:
+ * either the raw bit array ({@link #ENCODING_RAW}) or the list of the positions of its bits set to 1
+ * ({@link #ENCODING_SPARSE}, see {@link SparseBloomFilter}), which is chosen for filters with few bits set.
+ * If the flag {@link #FLAG_DEDUP} is set, the filters are stored separately and identified by their
+ * content hash (see {@link ChainIndex#setDedup(boolean)}): each filter is either a reference to a stored filter
+ * ({@link #ENCODING_REF} followed by its identifier) or an empty filter ({@link #ENCODING_ZERO}).
+ * If the flag {@link #FLAG_SPANS} is set, the header is followed by the distances defining the skip entries
+ * (see {@link Skip#getSpans()}), as <code>numEntries</code> integers (the first distance is always 1);
+ * records without this flag have the default distances (powers of two).
+ * If the flag {@link #FLAG_PREFILTER} is set (only for records of raw filters), the header ends with the size
+ * of the pre-filters and the filters are followed by a pre-filter for each of them, i.e., the filter folded
+ * to that size (see {@link PrefilteredBloomFilter}).
+ * 
  * @author Matteo Loporchio
  */
 public class BlockIndex {
+    /**
+     * Marker of the extended header.
+     */
+    public static final int MAGIC = 0x534B4931;
+
+    /**
+     * Flag of the extended header denoting a record followed by its CRC-32 checksum.
+     */
+    public static final int FLAG_CHECKSUM = 1;
+
+    /**
+     * Flag of the extended header denoting a record where each filter has its own encoding.
+     */
+    public static final int FLAG_SPARSE = 2;
+
+    /**
+     * Encoding of a filter stored as a raw bit array.
+     */
+    public static final int ENCODING_RAW = 0;
+
+    /**
+     * Encoding of a filter stored as a list of positions.
+     */
+    public static final int ENCODING_SPARSE = 1;
+
+    /**
+     * Encoding of an empty filter (i.e., with all bits set to 0), which takes no space.
+     */
+    public static final int ENCODING_ZERO = 2;
+
+    /**
+     * Encoding of a filter stored separately, followed by its identifier (see {@link #filterId}).
+     */
+    public static final int ENCODING_REF = 3;
+
+    /**
+     * Flag of the extended header denoting a record whose filters are stored separately.
+     */
+    public static final int FLAG_DEDUP = 4;
+
+    /**
+     * Length of the identifiers of the filters stored separately (in bytes).
+     */
+    public static final int FILTER_ID_LENGTH = 16;
+
+    /**
+     * Flag of the extended header denoting a record with custom distances between the skip entries.
+     */
+    public static final int FLAG_SPANS = 8;
+
+    /**
+     * Flag of the extended header denoting a record where each filter is followed by a folded pre-filter.
+     */
+    public static final int FLAG_PREFILTER = 16;
+
     /**
      * Bloom filter summarizing the events in the block.
      */
@@ -36,9 +117,31 @@ public class BlockIndex {
      * @return the serialized size of the block index
      */
     public int getSerializedSize() {
+        return getSerializedSize(false);
+    }
+
+    /**
+     * Returns the serialized size of the current block index (in bytes), with all filters stored as raw bit arrays.
+     * @param checksum whether the record includes a checksum
+     * @return the serialized size of the block index
+     */
+    public int getSerializedSize(boolean checksum) {
         int filterSize = filter.getSize();
         int numEntries = skip.getNumEntries(); 
-        return 2 * Integer.BYTES + (1 + numEntries) * filterSize;
+        return getHeaderSize(filter.getFormat(), checksum, skip.getSpans()) + (1 + numEntries) * filterSize + 
+        (checksum ? Integer.BYTES : 0);
+    }
+
+    /**
+     * Returns the size of the header of a serialized block index (in bytes).
+     * @param format format of the filters
+     * @param checksum whether the record includes a checksum
+     * @param spans distances defining the skip entries
+     * @return the size of the header
+     */
+    private static int getHeaderSize(int format, boolean checksum, int[] spans) {
+        if (!Skip.isDefault(spans)) return 3 * Integer.BYTES + 2 + (spans.length - 1) * Integer.BYTES;
+        return (format == BloomFilter.STANDARD && !checksum) ? 2 * Integer.BYTES : 3 * Integer.BYTES + 2;
     }
 
     /**
@@ -47,36 +150,467 @@ public class BlockIndex {
      * @return sequence of bytes representing the descriptor
      */
     public static byte[] serialize(BlockIndex index) {
+        return serialize(index, false);
+    }
+
+    /**
+     * Returns a serialized version of a block index, optionally followed by its checksum.
+     * @param index descriptor to be serialized
+     * @param checksum whether the checksum should be added
+     * @return sequence of bytes representing the descriptor
+     */
+    public static byte[] serialize(BlockIndex index, boolean checksum) {
         int filterSize = index.filter.getSize();
         int numEntries = index.skip.getNumEntries();
-        int totalSize = 2 * Integer.BYTES + (1 + numEntries) * filterSize;
-        ByteBuffer buf = ByteBuffer.allocate(totalSize);
-        buf.putInt(filterSize).putInt(numEntries).put(index.filter.getBytes());
+        int format = index.filter.getFormat();
+        boolean spans = !Skip.isDefault(index.skip.getSpans());
+        ByteBuffer buf = ByteBuffer.allocate(index.getSerializedSize(checksum));
+        if (format != BloomFilter.STANDARD || checksum || spans) 
+            buf.putInt(MAGIC).put((byte) format).put((byte) ((checksum ? FLAG_CHECKSUM : 0) | (spans ? FLAG_SPANS : 0)));
+        buf.putInt(filterSize).putInt(numEntries);
+        if (spans) putSpans(buf, index.skip.getSpans());
+        buf.put(index.filter.getBytes());
         for (int i = 0; i < numEntries; i++) {
             byte[] filterBytes = index.skip.getEntry(i).getBytes();
             buf.put(filterBytes);
         }
+        if (checksum) buf.putInt(crc(buf.array(), buf.position()));
         return buf.array();
     }
 
+    /**
+     * Returns a serialized version of a block index, optionally followed by its checksum.
+     * If <code>sparse</code> is true, each filter with few bits set is stored as a list of positions
+     * (see {@link SparseBloomFilter#isSparse}), while the other filters are stored as raw bit arrays.
+     * @param index descriptor to be serialized
+     * @param checksum whether the checksum should be added
+     * @param sparse whether filters with few bits set should be stored as lists of positions
+     * @return sequence of bytes representing the descriptor
+     */
+    public static byte[] serialize(BlockIndex index, boolean checksum, boolean sparse) {
+        if (!sparse) return serialize(index, checksum);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeHeader(out, index, FLAG_SPARSE | (checksum ? FLAG_CHECKSUM : 0));
+        for (int i = -1; i < index.skip.getNumEntries(); i++) 
+            out.writeBytes(serializeFilter((i < 0) ? index.filter : index.skip.getEntry(i), true));
+        return finish(out, checksum);
+    }
+
+    /**
+     * Returns a serialized version of a block index whose filters are stored separately.
+     * @param index descriptor to be serialized
+     * @param checksum whether the checksum should be added
+     * @param ids identifiers of the block filter and of the skip entries (null for empty filters, see {@link #filterId})
+     * @return sequence of bytes representing the descriptor
+     */
+    public static byte[] serializeDedup(BlockIndex index, boolean checksum, byte[][] ids) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeHeader(out, index, FLAG_DEDUP | (checksum ? FLAG_CHECKSUM : 0));
+        for (byte[] id : ids) {
+            out.write((id != null) ? ENCODING_REF : ENCODING_ZERO);
+            if (id != null) out.writeBytes(id);
+        }
+        return finish(out, checksum);
+    }
+
+    /**
+     * Returns a serialized version of a block index where each filter is followed by a pre-filter,
+     * i.e., the filter folded to the given size (see {@link BloomFilter#fold(int)}).
+     * @param index descriptor to be serialized
+     * @param checksum whether the checksum should be added
+     * @param prefilterSize size of the pre-filters (in bytes)
+     * @return sequence of bytes representing the descriptor
+     * @throws IllegalArgumentException if the filters cannot be folded to the given size
+     */
+    public static byte[] serializePrefiltered(BlockIndex index, boolean checksum, int prefilterSize) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeHeader(out, index, FLAG_PREFILTER | (checksum ? FLAG_CHECKSUM : 0));
+        out.writeBytes(ByteBuffer.allocate(Integer.BYTES).putInt(prefilterSize).array());
+        for (int i = -1; i < index.skip.getNumEntries(); i++) 
+            out.writeBytes(((i < 0) ? index.filter : index.skip.getEntry(i)).getBytes());
+        for (int i = -1; i < index.skip.getNumEntries(); i++) 
+            out.writeBytes(((i < 0) ? index.filter : index.skip.getEntry(i)).fold(prefilterSize).getBytes());
+        return finish(out, checksum);
+    }
+
+    /**
+     * Writes the extended header of a block index.
+     * @param out the output stream
+     * @param index the block index
+     * @param flags flags of the record
+     */
+    private static void writeHeader(ByteArrayOutputStream out, BlockIndex index, int flags) {
+        int[] spans = index.skip.getSpans();
+        if (!Skip.isDefault(spans)) flags |= FLAG_SPANS;
+        ByteBuffer header = ByteBuffer.allocate(getHeaderSize(index.filter.getFormat(), true, spans));
+        header.putInt(MAGIC).put((byte) index.filter.getFormat()).put((byte) flags);
+        header.putInt(index.filter.getSize()).putInt(index.skip.getNumEntries());
+        if ((flags & FLAG_SPANS) != 0) putSpans(header, spans);
+        out.writeBytes(header.array());
+    }
+
+    /**
+     * Writes the distances defining the skip entries (except the first one, which is always 1).
+     * @param buf the output buffer
+     * @param spans the distances
+     */
+    private static void putSpans(ByteBuffer buf, int[] spans) {
+        for (int j = 1; j < spans.length; j++) buf.putInt(spans[j]);
+    }
+
+    /**
+     * Completes a record, optionally adding its checksum.
+     * @param out the output stream containing the record
+     * @param checksum whether the checksum should be added
+     * @return the record
+     */
+    private static byte[] finish(ByteArrayOutputStream out, boolean checksum) {
+        if (checksum) {
+            byte[] data = out.toByteArray();
+            out.writeBytes(ByteBuffer.allocate(Integer.BYTES).putInt(crc(data, data.length)).array());
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Serializes a single filter, preceded by its encoding.
+     * @param bf the filter
+     * @param sparse whether the filter should be stored as a list of positions if it has few bits set
+     * @return the serialized filter
+     */
+    public static byte[] serializeFilter(BloomFilter bf, boolean sparse) {
+        boolean encode = sparse && SparseBloomFilter.isSparse(bf);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(encode ? ENCODING_SPARSE : ENCODING_RAW);
+        out.writeBytes(encode ? SparseBloomFilter.encode(bf) : bf.getBytes());
+        return out.toByteArray();
+    }
+
+    /**
+     * Returns the identifier of a filter, i.e., a prefix of the SHA-256 digest of its bit array.
+     * @param bf the filter
+     * @return the identifier of the filter (null if the filter is empty)
+     */
+    public static byte[] filterId(BloomFilter bf) {
+        if (bf.countOnes() == 0) return null;
+        return Arrays.copyOf(BloomFilter.hf.hashBytes(bf.getBytes()).asBytes(), FILTER_ID_LENGTH);
+    }
+
+    /**
+     * Checks whether a serialized block index includes a checksum.
+     * @param data sequence of bytes representing the index
+     * @return true if and only if the record has the flag {@link #FLAG_CHECKSUM}
+     */
+    public static boolean hasChecksum(byte[] data) {
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        return data.length > 3 * Integer.BYTES + 2 && buf.getInt() == MAGIC && (data[5] & FLAG_CHECKSUM) != 0;
+    }
+
+    /**
+     * Checks whether a serialized block index has filters with their own encoding.
+     * @param data sequence of bytes representing the index
+     * @return true if and only if the record has the flag {@link #FLAG_SPARSE}
+     */
+    public static boolean isSparse(byte[] data) {
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        return data.length > 3 * Integer.BYTES + 2 && buf.getInt() == MAGIC && (data[5] & FLAG_SPARSE) != 0;
+    }
+
+    /**
+     * Returns the size of the pre-filters of a serialized block index.
+     * @param data sequence of bytes representing the index
+     * @return the size of the pre-filters (0 if the record has no pre-filters or is not valid)
+     */
+    public static int prefilterSize(byte[] data) {
+        try {
+            return readHeader(data).prefilterSize;
+        }
+        catch (IllegalArgumentException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Checks whether a serialized block index has filters stored separately.
+     * @param data sequence of bytes representing the index
+     * @return true if and only if the record has the flag {@link #FLAG_DEDUP}
+     */
+    public static boolean isDedup(byte[] data) {
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        return data.length > 3 * Integer.BYTES + 2 && buf.getInt() == MAGIC && (data[5] & FLAG_DEDUP) != 0;
+    }
+
+    /**
+     * Returns the identifiers of the filters referenced by a serialized block index.
+     * @param data sequence of bytes representing the index
+     * @return the identifiers, one for each reference (empty if the filters are not stored separately)
+     * @throws IllegalArgumentException if the record is not valid
+     */
+    public static List<byte[]> filterIds(byte[] data) {
+        Header header = readHeader(data);
+        List<byte[]> ids = new ArrayList<>();
+        if ((header.flags & FLAG_DEDUP) == 0) return ids;
+        int pos = header.offset;
+        for (int i = 0; i <= header.numEntries && pos < header.end; i++) {
+            if (data[pos++] != ENCODING_REF) continue;
+            if (pos + FILTER_ID_LENGTH > header.end) throw new IllegalArgumentException("Truncated block index");
+            ids.add(Arrays.copyOfRange(data, pos, pos + FILTER_ID_LENGTH));
+            pos += FILTER_ID_LENGTH;
+        }
+        return ids;
+    }
+
+    /**
+     * Computes the CRC-32 checksum of a prefix of an array.
+     * @param data the array
+     * @param length length of the prefix
+     * @return the checksum
+     */
+    private static int crc(byte[] data, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Header of a serialized block index.
+     */
+    public static class Header {
+        /**
+         * Format of the filters.
+         */
+        public final int format;
+
+        /**
+         * Flags of the record (see {@link #FLAG_CHECKSUM}, {@link #FLAG_SPARSE}, {@link #FLAG_DEDUP}, {@link #FLAG_SPANS}
+         * and {@link #FLAG_PREFILTER}).
+         */
+        public final int flags;
+
+        /**
+         * Size of the filters (in bytes).
+         */
+        public final int filterSize;
+
+        /**
+         * Number of skip entries.
+         */
+        public final int numEntries;
+
+        /**
+         * Distances defining the skip entries (see {@link Skip#getSpans()}).
+         */
+        public final int[] spans;
+
+        /**
+         * Size of the pre-filters (in bytes, 0 if the record has no pre-filters).
+         */
+        public final int prefilterSize;
+
+        /**
+         * Position of the block filter within the record (the skip entries follow it).
+         */
+        public final int offset;
+
+        /**
+         * Position of the end of the filters (i.e., of the checksum, if any).
+         */
+        public final int end;
+
+        /**
+         * Constructs a new header.
+         * @param format format of the filters
+         * @param flags flags of the record
+         * @param filterSize size of the filters (in bytes)
+         * @param numEntries number of skip entries
+         * @param spans distances defining the skip entries
+         * @param prefilterSize size of the pre-filters (0 if none)
+         * @param offset position of the block filter within the record
+         * @param end position of the end of the filters
+         */
+        public Header(int format, int flags, int filterSize, int numEntries, int[] spans, int prefilterSize,
+        int offset, int end) {
+            this.format = format;
+            this.flags = flags;
+            this.filterSize = filterSize;
+            this.numEntries = numEntries;
+            this.spans = spans;
+            this.prefilterSize = prefilterSize;
+            this.offset = offset;
+            this.end = end;
+        }
+    }
+
+    /**
+     * Reads the header of a serialized block index and validates the record.
+     * @param data sequence of bytes representing the index
+     * @return the header of the record
+     * @throws IllegalArgumentException if the header, the size or the checksum of the record are not valid
+     */
+    public static Header readHeader(byte[] data) {
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        int format = BloomFilter.STANDARD, flags = 0;
+        if (data.length < 2 * Integer.BYTES) throw new IllegalArgumentException("Truncated block index");
+        int filterSize = buf.getInt();
+        if (filterSize % Long.BYTES != 0) {
+            if (filterSize != MAGIC || data.length < 3 * Integer.BYTES + 2) 
+                throw new IllegalArgumentException("Invalid block index header");
+            format = buf.get();
+            flags = buf.get();
+            filterSize = buf.getInt();
+        }
+        int numEntries = buf.getInt();
+        int[] spans;
+        if ((flags & FLAG_SPANS) != 0) {
+            if (numEntries < 0 || (long) numEntries * Integer.BYTES > buf.remaining())
+                throw new IllegalArgumentException("Invalid block index size");
+            spans = new int[numEntries + 1];
+            spans[0] = 1;
+            for (int j = 1; j <= numEntries; j++) spans[j] = buf.getInt();
+            if (!Skip.isValid(spans)) throw new IllegalArgumentException("Invalid skip spans");
+        }
+        else spans = (numEntries >= 0 && numEntries < 31) ? Skip.spans(2, numEntries) : null;
+        int prefilterSize = 0;
+        if ((flags & FLAG_PREFILTER) != 0) {
+            if (buf.remaining() < Integer.BYTES || (flags & (FLAG_SPARSE | FLAG_DEDUP)) != 0) 
+                throw new IllegalArgumentException("Invalid block index header");
+            prefilterSize = buf.getInt();
+            if (!BloomFilter.canFold(filterSize, prefilterSize, format)) 
+                throw new IllegalArgumentException("Invalid pre-filter size");
+        }
+        int checksumSize = ((flags & FLAG_CHECKSUM) != 0) ? Integer.BYTES : 0;
+        // The size of records with sparse or separately stored filters is only known after decoding them.
+        long filtersSize = ((flags & (FLAG_SPARSE | FLAG_DEDUP)) != 0) ? data.length - buf.position() - checksumSize : 
+        (long) (1 + numEntries) * (filterSize + prefilterSize);
+        if (filterSize <= 0 || spans == null || filtersSize < 0 ||
+        (long) buf.position() + filtersSize + checksumSize != data.length)
+            throw new IllegalArgumentException("Invalid block index size");
+        if (checksumSize > 0) {
+            int expected = ByteBuffer.wrap(data, data.length - checksumSize, checksumSize).getInt();
+            if (crc(data, data.length - checksumSize) != expected) 
+                throw new IllegalArgumentException("Block index checksum mismatch");
+        }
+        return new Header(format, flags, filterSize, numEntries, spans, prefilterSize, buf.position(), 
+        data.length - checksumSize);
+    }
+
     /**
      * Constructs a block index from its serialized version.
      * @param data sequence of bytes representing the index
      * @return an index corresponding to the byte sequence
+     * @throws IllegalArgumentException if the header, the size or the checksum of the record are not valid
      */
     public static BlockIndex deserialize(byte[] data) {
+        return deserialize(data, null);
+    }
+
+    /**
+     * Constructs a block index from its serialized version, resolving the references to filters stored separately.
+     * @param data sequence of bytes representing the index
+     * @param filters function returning the filter with a given identifier (null if not existing)
+     * @return an index corresponding to the byte sequence
+     * @throws IllegalArgumentException if the record is not valid or a referenced filter does not exist
+     */
+    public static BlockIndex deserialize(byte[] data, Function<byte[], BloomFilter> filters) {
+        Header header = readHeader(data);
+        int filterSize = header.filterSize, format = header.format;
+        if ((header.flags & (FLAG_SPARSE | FLAG_DEDUP)) != 0) return deserializeEncoded(data, header, filters);
+        if (header.prefilterSize > 0) return deserializePrefiltered(data, header);
         ByteBuffer buf = ByteBuffer.wrap(data);
-        int filterSize = buf.getInt();
-        int numEntries = buf.getInt();
+        buf.position(header.offset);
         byte[] filterBytes = new byte[filterSize];
         buf.get(filterBytes);
-        BloomFilter filter = new BloomFilter(filterBytes);
-        BloomFilter[] entries = new BloomFilter[numEntries];
-        for (int i = 0; i < numEntries; i++) {
+        BloomFilter filter = new BloomFilter(filterBytes, format);
+        BloomFilter[] entries = new BloomFilter[header.numEntries];
+        for (int i = 0; i < entries.length; i++) {
             byte[] entryBytes = new byte[filterSize];
             buf.get(entryBytes);
-            entries[i] = new BloomFilter(entryBytes);
+            entries[i] = new BloomFilter(entryBytes, format);
+        }
+        return new BlockIndex(filter, new Skip(entries, header.spans));
+    }
+
+    /**
+     * Constructs a block index from a serialized record with pre-filters.
+     * The filters read the bits of the full filters in place from the record (see {@link PrefilteredBloomFilter}).
+     * @param data sequence of bytes representing the index
+     * @param header header of the record
+     * @return an index corresponding to the byte sequence
+     */
+    private static BlockIndex deserializePrefiltered(byte[] data, Header header) {
+        int filterSize = header.filterSize, prefilterSize = header.prefilterSize;
+        int prefilters = header.offset + (1 + header.numEntries) * filterSize;
+        BloomFilter[] filters = new BloomFilter[1 + header.numEntries];
+        for (int i = 0; i < filters.length; i++) {
+            int from = prefilters + i * prefilterSize;
+            long[] prefilter = Bits.toLongArray(Arrays.copyOfRange(data, from, from + prefilterSize));
+            filters[i] = new PrefilteredBloomFilter(data, header.offset + i * filterSize, filterSize, header.format, prefilter);
+        }
+        BloomFilter[] entries = Arrays.copyOfRange(filters, 1, filters.length);
+        return new BlockIndex(filters[0], new Skip(entries, header.spans));
+    }
+
+    /**
+     * Constructs a block index from a serialized record where each filter has its own encoding.
+     * @param data sequence of bytes representing the index
+     * @param header header of the record
+     * @param resolver function returning the filter with a given identifier (may be null)
+     * @return an index corresponding to the byte sequence
+     * @throws IllegalArgumentException if the filters are not valid
+     */
+    private static BlockIndex deserializeEncoded(byte[] data, Header header, Function<byte[], BloomFilter> resolver) {
+        BloomFilter[] filters = new BloomFilter[1 + header.numEntries];
+        int[] pos = {header.offset};
+        for (int i = 0; i < filters.length; i++) {
+            filters[i] = deserializeFilter(data, pos, header.end, header.filterSize, header.format, resolver);
+            if (filters[i].getSize() != header.filterSize || filters[i].getFormat() != header.format)
+                throw new IllegalArgumentException("Unexpected filter size or format");
+        }
+        if (pos[0] != header.end) throw new IllegalArgumentException("Invalid block index size");
+        BloomFilter[] entries = new BloomFilter[header.numEntries];
+        System.arraycopy(filters, 1, entries, 0, entries.length);
+        return new BlockIndex(filters[0], new Skip(entries, header.spans));
+    }
+
+    /**
+     * Deserializes a single filter, preceded by its encoding.
+     * @param data the serialized filters
+     * @param pos position of the filter (updated by the method)
+     * @param end position of the end of the filters
+     * @param filterSize size of the filter (in bytes)
+     * @param format format of the filter
+     * @param resolver function returning the filter with a given identifier (may be null)
+     * @return the filter
+     * @throws IllegalArgumentException if the filter is not valid or a referenced filter does not exist
+     */
+    public static BloomFilter deserializeFilter(byte[] data, int[] pos, int end, int filterSize, int format, 
+    Function<byte[], BloomFilter> resolver) {
+        try {
+            int encoding = data[pos[0]++];
+            switch (encoding) {
+                case ENCODING_SPARSE: 
+                    return SparseBloomFilter.decode(data, pos, filterSize, format);
+                case ENCODING_ZERO:
+                    return new BloomFilter(filterSize, format);
+                case ENCODING_RAW: {
+                    if (pos[0] + filterSize > end) throw new IllegalArgumentException("Invalid block index size");
+                    byte[] filterBytes = Arrays.copyOfRange(data, pos[0], pos[0] + filterSize);
+                    pos[0] += filterSize;
+                    return new BloomFilter(filterBytes, format);
+                }
+                case ENCODING_REF: {
+                    if (pos[0] + FILTER_ID_LENGTH > end) throw new IllegalArgumentException("Truncated block index");
+                    byte[] id = Arrays.copyOfRange(data, pos[0], pos[0] + FILTER_ID_LENGTH);
+                    pos[0] += FILTER_ID_LENGTH;
+                    BloomFilter bf = (resolver != null) ? resolver.apply(id) : null;
+                    if (bf == null) throw new IllegalArgumentException("Missing filter " + Bits.toHex(id));
+                    return bf;
+                }
+                default: throw new IllegalArgumentException("Unknown filter encoding: " + encoding);
+            }
+        }
+        catch (ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Truncated block index");
         }
-        return new BlockIndex(filter, new Skip(entries));
     }
 }
@@ -21,9 +21,30 @@ import com.google.common.primitives.Ints;
  * 	</li>
  * </ul>
  * 
+ * The filter also supports a <em>blocked</em> format, where the bit array is split into
+ * blocks of 64 bytes (i.e., one cache line) and all bits of an element fall into the same block.
+ * In this case, the first 32-bit chunk of the digest selects the block and the following three
+ * chunks select the positions within the block. A membership test thus touches a single cache line,
+ * at the price of a slightly higher false positive rate.
+ * 
  * @author Matteo Loporchio
  */
 public class BloomFilter {
+	/**
+	 * Identifier of the standard format.
+	 */
+	public static final int STANDARD = 0;
+
+	/**
+	 * Identifier of the blocked (cache line-aligned) format.
+	 */
+	public static final int BLOCKED = 1;
+
+	/**
+	 * Size of a block in the blocked format (in bytes).
+	 */
+	public static final int BLOCK_SIZE = 64;
+
 	/**
 	 * The hash function used by the Bloom filter.
 	 */
@@ -34,15 +55,20 @@ public class BloomFilter {
 	 */
     private final int size;
 
+	/**
+	 * Format of the filter (either {@link #STANDARD} or {@link #BLOCKED}).
+	 */
+	private final int format;
+
 	/**
 	 * Number of hash functions used by the filter.
 	 */
-    private final int numHash = 3;
+    public static final int NUM_HASH = 3;
 
 	/**
 	 * Maximum size of the output of each hash function.
 	 */
-    private final int chunkSize = Integer.BYTES;
+    private static final int CHUNK_SIZE = Integer.BYTES;
 
 	/**
 	 * Bit array used for representing the filter.
@@ -55,19 +81,54 @@ public class BloomFilter {
      * @param size number of bytes used by the filter
      */
     public BloomFilter(int size) {
-		assert (size % Long.BYTES == 0);
+		this(size, STANDARD);
+    }
+
+    /**
+     * Constructs a new Bloom filter with the given size and format.
+	 * NOTICE: the size must be a multiple of 8 (or of {@link #BLOCK_SIZE} for blocked filters).
+     * @param size number of bytes used by the filter
+     * @param format format of the filter
+     */
+    public BloomFilter(int size, int format) {
+		assert (size % (format == BLOCKED ? BLOCK_SIZE : Long.BYTES) == 0);
         this.size = size;
+        this.format = format;
         this.bits = new long[size / Long.BYTES];
     }
 
+    /**
+     * Constructs a Bloom filter backed by the given array (if any).
+	 * Subclasses passing a null array must override all methods accessing the bits
+	 * (e.g., filters stored outside the Java heap, see {@link MemoryChainIndex}).
+     * @param size number of bytes used by the filter
+     * @param format format of the filter
+     * @param bits backing array of the filter
+     */
+    protected BloomFilter(int size, int format, long[] bits) {
+        this.size = size;
+        this.format = format;
+        this.bits = bits;
+    }
+
     /**
      * Constructs a new Bloom filter from its byte representation.
 	 * NOTICE: the size of the input array must be a multiple of 8.
      * @param data serialized representation of the filter
      */
     public BloomFilter(byte[] data) {
-		assert (data.length % Long.BYTES == 0);
+		this(data, STANDARD);
+    }
+
+    /**
+     * Constructs a new Bloom filter of the given format from its byte representation.
+     * @param data serialized representation of the filter
+     * @param format format of the filter
+     */
+    public BloomFilter(byte[] data, int format) {
+		assert (data.length % (format == BLOCKED ? BLOCK_SIZE : Long.BYTES) == 0);
         this.size = data.length;
+        this.format = format;
         this.bits = Bits.toLongArray(data);
     }
 
@@ -79,6 +140,14 @@ public class BloomFilter {
 		return size;
 	}
 
+	/**
+	 * Returns the format of the current Bloom filter.
+	 * @return either {@link #STANDARD} or {@link #BLOCKED}
+	 */
+	public int getFormat() {
+		return format;
+	}
+
 	/**
 	 * Returns the backing array of the Bloom filter.
 	 * @return the backing array of the Bloom filter
@@ -92,7 +161,7 @@ public class BloomFilter {
 	 * @return all bytes of the backing array of the filter 
 	 */
 	public byte[] getBytes() {
-		return Bits.toByteArray(bits);
+		return Bits.toByteArray(getBitSet());
 	}
 
     /**
@@ -102,10 +171,7 @@ public class BloomFilter {
 	public void put(byte[] data) {
 		//if (data == null) return;
 	    byte[] d = hf.hashBytes(data).asBytes();
-	    for (int i = 0; i < numHash * chunkSize; i += chunkSize) {
-	    	int h = Ints.fromBytes(d[i], d[i+1], d[i+2], d[i+3]);
-	    	set(Integer.remainderUnsigned(h, size * Byte.SIZE));
-	    }
+	    for (int i = 0; i < NUM_HASH; i++) set(position(d, i));
 	}
 
 	/**
@@ -116,29 +182,172 @@ public class BloomFilter {
 	public boolean contains(byte[] data) {
 		//if (data == null) return false;
 		byte[] d = hf.hashBytes(data).asBytes();
-		for (int i = 0; i < numHash * chunkSize; i += chunkSize) {
-			int h = Ints.fromBytes(d[i], d[i+1], d[i+2], d[i+3]);
-			if (!get(Integer.remainderUnsigned(h, size * Byte.SIZE))) return false;
+		for (int i = 0; i < NUM_HASH; i++) {
+			if (!get(position(d, i))) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Checks whether all the given bit positions are set in the filter.
+	 * The positions are those returned by {@link #positions(byte[])}, so this method allows
+	 * testing many filters of the same size and format while hashing each element only once.
+	 * @param positions positions of the bits to be checked
+	 * @return true if and only if all bits are set
+	 */
+	public boolean test(int[] positions) {
+		for (int i = 0; i < positions.length; i++) {
+			if (!get(positions[i])) return false;
 		}
 		return true;
 	}
 
+	/**
+	 * Checks whether all the bit positions of a probe are set in the filter.
+	 * Filters backed by an array of longs are tested with {@link Bits#test(long[], Bits.Probe)},
+	 * which checks a vector of positions at once when the SIMD routines are available;
+	 * the other filters (e.g., sparse or off-heap ones) are tested as in {@link #test(int[])}.
+	 * @param probe positions of the bits to be checked, prepared once for many filters
+	 * @return true if and only if all bits are set
+	 */
+	public boolean test(Bits.Probe probe) {
+		return (bits != null) ? Bits.test(bits, probe) : test(probe.getPositions());
+	}
+
 	/**
 	 * In-place merge of two Bloom filters using bitwise OR.
 	 * @param bf filter to be merged with the current one
 	 */
 	public void merge(BloomFilter bf) {
 		//assert (bf != null && bf.numBits == numBits);
-		long[] bfBitSet = bf.getBitSet();
-		for (int i = 0; i < bits.length; i++) bits[i] |= bfBitSet[i];
+		assert (bf.getFormat() == format);
+		Bits.or(bits, bf.getBitSet());
+	}
+
+	/**
+	 * Folds the filter to a smaller size, i.e., computes the bitwise OR of all its slices of the given size.
+	 * Since bit positions are reduced modulo the size of the filter (and blocks modulo the number of blocks),
+	 * an element added to this filter is also contained in the folded filter, which can thus be tested first
+	 * as a smaller pre-filter (see {@link PrefilteredBloomFilter}).
+	 * @param foldedSize size of the folded filter (in bytes), which must divide the size of this filter
+	 * @return the folded filter
+	 * @throws IllegalArgumentException if the filter cannot be folded to the given size
+	 */
+	public BloomFilter fold(int foldedSize) {
+		if (!canFold(size, foldedSize, format)) 
+			throw new IllegalArgumentException("Cannot fold a filter of " + size + " bytes to " + foldedSize + " bytes");
+		long[] src = getBitSet();
+		long[] folded = new long[foldedSize / Long.BYTES];
+		for (int k = 0; k < src.length; k++) folded[k % folded.length] |= src[k];
+		BloomFilter result = new BloomFilter(foldedSize, format);
+		result.bits = folded;
+		return result;
+	}
+
+	/**
+	 * Checks whether filters with the given size and format can be folded to a smaller size (see {@link #fold(int)}).
+	 * @param size size of the filters (in bytes)
+	 * @param foldedSize size of the folded filters (in bytes)
+	 * @param format format of the filters
+	 * @return true if and only if the folded size is valid for the format and divides the size of the filters
+	 */
+	public static boolean canFold(int size, int foldedSize, int format) {
+		int unit = (format == BLOCKED) ? BLOCK_SIZE : Long.BYTES;
+		return foldedSize > 0 && foldedSize % unit == 0 && size % foldedSize == 0;
+	}
+
+	/**
+	 * Returns the number of bits set in the filter.
+	 * @return number of ones in the backing array
+	 */
+	public int countOnes() {
+		return Bits.countOnes(bits);
+	}
+
+	/**
+	 * Computes the bit positions associated with an element.
+	 * The result can be used to test many filters with {@link #test(int[])} (or {@link #test(Bits.Probe)})
+	 * without hashing the element again for each of them.
+	 * @param data the array of bytes representing the element
+	 * @return positions of the bits checked by {@link #contains(byte[])}
+	 */
+	public int[] positions(byte[] data) {
+		return positions(data, size, format);
+	}
+
+	/**
+	 * Computes the bit positions associated with an element 
+	 * for any filter with the given size and format.
+	 * @param data the array of bytes representing the element
+	 * @param size size of the filter (in bytes)
+	 * @param format format of the filter
+	 * @return positions of the bits associated with the element
+	 */
+	public static int[] positions(byte[] data, int size, int format) {
+		byte[] d = hf.hashBytes(data).asBytes();
+		int[] result = new int[NUM_HASH];
+		for (int i = 0; i < NUM_HASH; i++) result[i] = position(d, i, size, format);
+		return result;
+	}
+
+	/**
+	 * Computes the position of the i-th bit associated with an element.
+	 * @param d digest of the element
+	 * @param i index of the hash function
+	 * @return position of the bit
+	 */
+	private int position(byte[] d, int i) {
+		return position(d, i, size, format);
+	}
+
+	/**
+	 * Computes the position of the i-th bit associated with an element
+	 * in a filter with the given size and format.
+	 * @param d digest of the element
+	 * @param i index of the hash function
+	 * @param size size of the filter (in bytes)
+	 * @param format format of the filter
+	 * @return position of the bit
+	 */
+	private static int position(byte[] d, int i, int size, int format) {
+		if (format == BLOCKED) {
+			int blockBits = BLOCK_SIZE * Byte.SIZE;
+			int block = Integer.remainderUnsigned(chunk(d, 0), size / BLOCK_SIZE);
+			return block * blockBits + Integer.remainderUnsigned(chunk(d, i + 1), blockBits);
+		}
+		return Integer.remainderUnsigned(chunk(d, i), size * Byte.SIZE);
+	}
+
+	/**
+	 * Returns the i-th 32-bit chunk of a digest.
+	 * @param d the digest
+	 * @param i index of the chunk
+	 * @return the integer represented by the chunk
+	 */
+	private static int chunk(byte[] d, int i) {
+		int k = i * CHUNK_SIZE;
+		return Ints.fromBytes(d[k], d[k+1], d[k+2], d[k+3]);
+	}
+
+	/**
+	 * Returns the identifier of a filter format given its name.
+	 * @param name either <code>standard</code> or <code>blocked</code>
+	 * @return the identifier of the format
+	 */
+	public static int parseFormat(String name) {
+		switch (name) {
+			case "standard": return STANDARD;
+			case "blocked": return BLOCKED;
+			default: throw new IllegalArgumentException("Unknown filter format: " + name);
+		}
 	}
 
     /**
 	 * Sets the i-th bit of the Bloom filter.
 	 * @param i position of the bit
 	 */
-	private void set(int i) {
-        bits[i >>> 6] |= (1L << (Long.SIZE - i - 1));
+	protected void set(int i) {
+        bits[i >>> 6] |= Bits.mask(i);
 	}
 
 	/**
@@ -146,7 +355,7 @@ public class BloomFilter {
 	 * @param i position of the bit
 	 * @return value of the bit
 	 */
-	private boolean get(int i) {
-        return ((bits[i >>> 6] & (1L << (Long.SIZE - i - 1))) != 0);
+	protected boolean get(int i) {
+        return ((bits[i >>> 6] & Bits.mask(i)) != 0);
 	}
 }
\ No newline at end of file
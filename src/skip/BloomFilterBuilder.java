@@ -7,6 +7,9 @@ import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
+
+import com.google.common.io.CountingInputStream;
 
 /**
  * This program reads a binary file containing a list of keys 
@@ -19,13 +22,21 @@ import java.io.FileOutputStream;
  * <ol>
  *  <li><code>inputFile</code>: path of the input file (keys file) containing unique block keys.</li>
  *  <li><code>outputFile</code>: path of the output file (filter file) containing Bloom filters for the blocks.</li>
- *  <li><code>filterSize</code>: size of each Bloom filter (expressed in bytes).</li>
+ *  <li><code>filterSize</code>: size of each Bloom filter (expressed in bytes);</li>
+ *  <li><code>format</code> (optional): format of the filters, either <code>standard</code> (default) 
+ *  or <code>blocked</code> (see {@link BloomFilter});</li>
+ *  <li><code>progress=seconds</code> (optional): interval between two progress reports 
+ *  (default: {@link BuildProgress#DEFAULT_REPORT_INTERVAL}, zero to disable them);</li>
+ *  <li><code>checkpoint=blocks</code> (optional): number of blocks between two checkpoints
+ *  (default: {@link BuildProgress#DEFAULT_CHECKPOINT_INTERVAL});</li>
+ *  <li><code>resume</code> (optional): if present and a checkpoint exists, the build resumes from it.</li>
  * </ol>
  * 
  * The output file is a binary file with the following structure.
  * 
  * <ol>
- *  <li>The first 4 bytes represent the size of all Bloom filters (in bytes).</li>
+ *  <li>The header, i.e., the first 4 bytes representing the size of all Bloom filters (in bytes)
+ *  or, for non-standard formats, the extended header described in {@link FilterFile}.</li>
  *  <li>
  *      Then there is a sequence of data chunks, each representing a block. 
  *      A chunk comprises the following fields. 
@@ -36,59 +47,130 @@ import java.io.FileOutputStream;
  *  </li>
  * </ol>
  * 
+ * Periodically, the output file is flushed to disk and a checkpoint is saved in the file
+ * <code>outputFile.checkpoint</code> (see {@link BuildProgress.Checkpoint}). When resuming, the output file 
+ * is truncated to its size at the checkpoint and the input file is read from the following block.
+ * 
  * @author Matteo Loporchio
  */
 public class BloomFilterBuilder {
     public static void main(String[] args) {
         if (args.length < 3) {
-            System.err.println("Usage: BloomFilterBuilder <inputFile> <outputFile> <filterSize>");
+            System.err.println("Usage: BloomFilterBuilder <inputFile> <outputFile> <filterSize> [format] " + 
+            "[progress=seconds] [checkpoint=blocks] [resume]");
             System.exit(1);
         }
         final String inputFile = args[0];
         final String outputFile = args[1];
         int filterSize = Integer.parseInt(args[2]); // Expressed in bytes.
+        int format = BloomFilter.STANDARD;
+        int reportInterval = BuildProgress.DEFAULT_REPORT_INTERVAL;
+        int checkpointInterval = BuildProgress.DEFAULT_CHECKPOINT_INTERVAL;
+        boolean resume = false;
+        for (int i = 3; i < args.length; i++) {
+            if (args[i].equals("resume")) resume = true;
+            else if (args[i].startsWith("progress=")) reportInterval = Integer.parseInt(args[i].substring("progress=".length()));
+            else if (args[i].startsWith("checkpoint=")) checkpointInterval = Integer.parseInt(args[i].substring("checkpoint=".length()));
+            else format = BloomFilter.parseFormat(args[i]);
+        }
+        if (checkpointInterval < 1) {
+            System.err.println("The checkpoint interval must be positive");
+            System.exit(1);
+        }
+        final String checkpointFile = outputFile + ".checkpoint";
         long start = System.nanoTime();
-        // Open input and output files.
-        try (
-            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(inputFile)));
-            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(outputFile)));
-        ) {
-            // Write the size of each filter to the output file.
-            out.writeInt(filterSize);
-            // Read the input file.
-            int numBlocks = 0;
-            byte[] addressBytes = new byte[Event.ADDRESS_LENGTH];
-            byte[] topicBytes = new byte[Event.TOPIC_LENGTH];
-            while (true) {
-                try {
-                    int blockId = in.readInt();
-                    int numAddresses = in.readInt();
-                    int numTopics = in.readInt();
-                    BloomFilter bf = new BloomFilter(filterSize);
-                    // Read all addresses and add them to the filter.
-                    for (int i = 0; i < numAddresses; i++) {
-                        in.read(addressBytes);
-                        bf.put(addressBytes);
-                    }
-                    // Read all topics and add them to the filter.
-                    for (int i = 0; i < numTopics; i++) {
-                        in.read(topicBytes);
-                        bf.put(topicBytes);
+        try {
+            FilterFile header = new FilterFile(format, filterSize);
+            BuildProgress.Checkpoint checkpoint = resume ? BuildProgress.Checkpoint.load(checkpointFile) : null;
+            FileInputStream fileIn = new FileInputStream(inputFile);
+            FileOutputStream fileOut;
+            if (checkpoint != null) {
+                fileIn.getChannel().position(checkpoint.inputOffsets[0]);
+                fileOut = FilterFile.resume(outputFile, header, checkpoint.outputOffset);
+            }
+            else fileOut = new FileOutputStream(outputFile);
+            CountingInputStream counter = new CountingInputStream(new BufferedInputStream(fileIn));
+            // Open input and output files.
+            try (
+                DataInputStream in = new DataInputStream(counter);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+            ) {
+                // Write the format and the size of each filter to the output file.
+                if (checkpoint == null) header.write(out);
+                long inputOffset = (checkpoint != null) ? checkpoint.inputOffsets[0] : 0;
+                long entrySize = Integer.BYTES + filterSize;
+                BuildProgress progress = new BuildProgress("BloomFilterBuilder", reportInterval, System.err);
+                // Read the input file.
+                long numBlocks = (checkpoint != null) ? checkpoint.blocks : 0, consumed = 0;
+                int blockId = (checkpoint != null) ? checkpoint.block : -1;
+                byte[] addressBytes = new byte[Event.ADDRESS_LENGTH];
+                byte[] topicBytes = new byte[Event.TOPIC_LENGTH];
+                while (true) {
+                    try {
+                        long t = System.nanoTime();
+                        long read = counter.getCount();
+                        int currentId = in.readInt();
+                        int numAddresses = in.readInt();
+                        int numTopics = in.readInt();
+                        BloomFilter bf = new BloomFilter(filterSize, format);
+                        // Read all addresses and add them to the filter.
+                        for (int i = 0; i < numAddresses; i++) {
+                            in.read(addressBytes);
+                            bf.put(addressBytes);
+                        }
+                        // Read all topics and add them to the filter.
+                        for (int i = 0; i < numTopics; i++) {
+                            in.read(topicBytes);
+                            bf.put(topicBytes);
+                        }
+                        t = progress.time("build", t);
+                        // Write the pair (blockId, filter) to the output file.
+                        out.writeInt(currentId);
+                        out.write(bf.getBytes());
+                        progress.time("write", t);
+                        blockId = currentId;
+                        numBlocks++;
+                        // Input offset after the last complete block.
+                        consumed = counter.getCount();
+                        progress.block(consumed - read, entrySize);
+                        if (numBlocks % checkpointInterval == 0) {
+                            t = System.nanoTime();
+                            checkpoint(fileOut, out, checkpointFile, blockId, numBlocks,
+                            new long[] {inputOffset + consumed}, header.getHeaderSize() + numBlocks * entrySize);
+                            progress.time("checkpoint", t);
+                        }
                     }
-                    // Write the pair (blockId, filter) to the output file.
-                    out.writeInt(blockId);
-                    out.write(bf.getBytes());
-                    numBlocks++;
+                    catch (EOFException e) {break;}
                 }
-                catch (EOFException e) {break;}
+                checkpoint(fileOut, out, checkpointFile, blockId, numBlocks, new long[] {inputOffset + consumed},
+                header.getHeaderSize() + numBlocks * entrySize);
+                progress.report();
+                // Print statistics.
+                long elapsed = System.nanoTime() - start;
+                System.out.printf("Blocks written:\t%d\nElapsed time:\t%d ns\n", progress.blocks, elapsed);
             }
-            // Print statistics.
-            long elapsed = System.nanoTime() - start;
-            System.out.printf("Blocks written:\t%d\nElapsed time:\t%d ns\n", numBlocks, elapsed);
         }
         catch (Exception e) {
             e.printStackTrace();
             System.exit(1);
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Flushes the output file to disk and saves a checkpoint.
+     * @param fileOut the output file
+     * @param out the buffered stream writing to the output file
+     * @param checkpointFile path of the checkpoint file
+     * @param blockId identifier of the last block written
+     * @param numBlocks number of blocks written
+     * @param inputOffsets offsets of the next block in the input files
+     * @param outputOffset size of the output file
+     * @throws IOException if something goes wrong while writing
+     */
+    static void checkpoint(FileOutputStream fileOut, DataOutputStream out, String checkpointFile, int blockId,
+    long numBlocks, long[] inputOffsets, long outputOffset) throws IOException {
+        out.flush();
+        fileOut.getFD().sync();
+        new BuildProgress.Checkpoint(blockId, numBlocks, inputOffsets, outputOffset).save(checkpointFile);
+    }
+}
@@ -8,6 +8,9 @@ import java.io.EOFException;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 
+import com.google.common.io.CountingInputStream;
+import com.google.common.primitives.Bytes;
+
 /**
  * This programs behaves similarly to {@link BloomFilterBuilder}, as it constructs a binary
  * file containing Bloom filters that summarize the keys included in the input blocks.
@@ -15,6 +18,10 @@ import java.io.FileOutputStream;
  * by inserting additional information. Specifically, for each event occurrence inside a block,
  * we add the concatenation of the address of the contract triggering the event and the event signature
  * digest. We refer to these new Bloom filters as <em>extended Bloom filters</em>.
+ * If the events file includes indexed topics (see {@link Event#read(java.io.DataInputStream, boolean)}),
+ * the program can also add, for each topic of each occurrence, the position-tagged keys 
+ * described in {@link Query#topicKey}, both with and without the contract address. 
+ * These filters must then be queried with {@link Query#containsTopics} or {@link Query#keysTopics}.
  *
  * The inputs of this program are as follows:
  * 
@@ -22,13 +29,21 @@ import java.io.FileOutputStream;
  *  <li><code>keysFile</code>: path of the keys file containing unique block keys.</li>
  *  <li><code>eventsFile</code>: path of the events file containing unique event occurrences.</li>
  *  <li><code>outputFile</code>: path of the output file (filter file) containing Bloom filters for the blocks.</li>
- *  <li><code>filterSize</code>: size of each Bloom filter (expressed in bytes).</li>
+ *  <li><code>filterSize</code>: size of each Bloom filter (expressed in bytes);</li>
+ *  <li><code>format</code> (optional): format of the filters, either <code>standard</code> (default) 
+ *  or <code>blocked</code> (see {@link BloomFilter});</li>
+ *  <li><code>topics</code> (optional): if present, the events file includes indexed topics 
+ *  and their keys are added to the filters;</li>
+ *  <li><code>progress=seconds</code>, <code>checkpoint=blocks</code> and <code>resume</code> (optional):
+ *  progress reports and checkpoints, as in {@link BloomFilterBuilder} (the checkpoint records
+ *  the offsets of both input files).</li>
  * </ol>
  * 
  * The output file is a binary file with the following structure.
  * 
  * <ol>
- *  <li>The first 4 bytes represent the size of all Bloom filters (in bytes).</li>
+ *  <li>The header, i.e., the first 4 bytes representing the size of all Bloom filters (in bytes)
+ *  or, for non-standard formats, the extended header described in {@link FilterFile}.</li>
  *  <li>
  *      Then there is a sequence of data chunks, each representing a block. 
  *      A chunk comprises the following fields. 
@@ -44,68 +59,131 @@ import java.io.FileOutputStream;
 public class BloomFilterBuilderExt {
     public static void main(String[] args) {
         if (args.length < 4) {
-            System.err.println("Usage: BloomFilterBuilderExt <keysFile> <eventsFile> <outputFile> <filterSize>");
+            System.err.println("Usage: BloomFilterBuilderExt <keysFile> <eventsFile> <outputFile> <filterSize> [format] [topics] " +
+            "[progress=seconds] [checkpoint=blocks] [resume]");
             System.exit(1);
         }
         final String keysFile = args[0];
         final String eventsFile = args[1];
         final String outputFile = args[2];
         int filterSize = Integer.parseInt(args[3]); // Expressed in bytes.
+        int format = BloomFilter.STANDARD;
+        boolean withTopics = false;
+        int reportInterval = BuildProgress.DEFAULT_REPORT_INTERVAL;
+        int checkpointInterval = BuildProgress.DEFAULT_CHECKPOINT_INTERVAL;
+        boolean resume = false;
+        for (int i = 4; i < args.length; i++) {
+            if (args[i].equals("topics")) withTopics = true;
+            else if (args[i].equals("resume")) resume = true;
+            else if (args[i].startsWith("progress=")) reportInterval = Integer.parseInt(args[i].substring("progress=".length()));
+            else if (args[i].startsWith("checkpoint=")) checkpointInterval = Integer.parseInt(args[i].substring("checkpoint=".length()));
+            else format = BloomFilter.parseFormat(args[i]);
+        }
+        if (checkpointInterval < 1) {
+            System.err.println("The checkpoint interval must be positive");
+            System.exit(1);
+        }
+        final String checkpointFile = outputFile + ".checkpoint";
         long start = System.nanoTime();
-        // Open input and output files.
-        try (
-            DataInputStream keysIn = new DataInputStream(new BufferedInputStream(new FileInputStream(keysFile)));
-            DataInputStream eventsIn = new DataInputStream(new BufferedInputStream(new FileInputStream(eventsFile)));
-            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(outputFile)));
-        ) {
-            // Write the size of each filter to the output file.
-            out.writeInt(filterSize);
-            // Read the input file.
-            int numBlocks = 0;
-            byte[] addressBytes = new byte[Event.ADDRESS_LENGTH];
-            byte[] topicBytes = new byte[Event.TOPIC_LENGTH];
-            byte[] eventBytes = new byte[Event.ADDRESS_LENGTH + Event.TOPIC_LENGTH];
-            while (true) {
-                try {
-                    int blockId = keysIn.readInt();
-                    int eventId = eventsIn.readInt();
-                    if (blockId != eventId) {
-                        String errorMsg = String.format("Mismatching block identifier: expected %d, read %d", blockId, eventId);
-                        throw new RuntimeException(errorMsg);
-                    }
-                    int numAddresses = keysIn.readInt();
-                    int numTopics = keysIn.readInt();
-                    int numEvents = eventsIn.readInt();
-                    BloomFilter bf = new BloomFilter(filterSize);
-                    // Read all addresses and add them to the filter.
-                    for (int i = 0; i < numAddresses; i++) {
-                        keysIn.read(addressBytes);
-                        bf.put(addressBytes);
-                    }
-                    // Read all topics and add them to the filter.
-                    for (int i = 0; i < numTopics; i++) {
-                        keysIn.read(topicBytes);
-                        bf.put(topicBytes);
-                    }
-                    // Read all events (= address + first topic) and add them to the filter.
-                    for (int i = 0; i < numEvents; i++) {
-                        eventsIn.read(eventBytes);
-                        bf.put(eventBytes);
+        try {
+            FilterFile header = new FilterFile(format, filterSize);
+            BuildProgress.Checkpoint checkpoint = resume ? BuildProgress.Checkpoint.load(checkpointFile) : null;
+            FileInputStream keysFileIn = new FileInputStream(keysFile);
+            FileInputStream eventsFileIn = new FileInputStream(eventsFile);
+            FileOutputStream fileOut;
+            if (checkpoint != null) {
+                keysFileIn.getChannel().position(checkpoint.inputOffsets[0]);
+                eventsFileIn.getChannel().position(checkpoint.inputOffsets[1]);
+                fileOut = FilterFile.resume(outputFile, header, checkpoint.outputOffset);
+            }
+            else fileOut = new FileOutputStream(outputFile);
+            CountingInputStream keysCounter = new CountingInputStream(new BufferedInputStream(keysFileIn));
+            CountingInputStream eventsCounter = new CountingInputStream(new BufferedInputStream(eventsFileIn));
+            // Open input and output files.
+            try (
+                DataInputStream keysIn = new DataInputStream(keysCounter);
+                DataInputStream eventsIn = new DataInputStream(eventsCounter);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+            ) {
+                // Write the format and the size of each filter to the output file.
+                if (checkpoint == null) header.write(out);
+                long keysOffset = (checkpoint != null) ? checkpoint.inputOffsets[0] : 0;
+                long eventsOffset = (checkpoint != null) ? checkpoint.inputOffsets[1] : 0;
+                long entrySize = Integer.BYTES + filterSize;
+                BuildProgress progress = new BuildProgress("BloomFilterBuilderExt", reportInterval, System.err);
+                // Read the input file.
+                long numBlocks = (checkpoint != null) ? checkpoint.blocks : 0, keysConsumed = 0, eventsConsumed = 0;
+                int lastId = (checkpoint != null) ? checkpoint.block : -1;
+                byte[] addressBytes = new byte[Event.ADDRESS_LENGTH];
+                byte[] topicBytes = new byte[Event.TOPIC_LENGTH];
+                while (true) {
+                    try {
+                        long t = System.nanoTime();
+                        long read = keysCounter.getCount() + eventsCounter.getCount();
+                        int blockId = keysIn.readInt();
+                        int eventId = eventsIn.readInt();
+                        if (blockId != eventId) {
+                            String errorMsg = String.format("Mismatching block identifier: expected %d, read %d", blockId, eventId);
+                            throw new RuntimeException(errorMsg);
+                        }
+                        int numAddresses = keysIn.readInt();
+                        int numTopics = keysIn.readInt();
+                        int numEvents = eventsIn.readInt();
+                        BloomFilter bf = new BloomFilter(filterSize, format);
+                        // Read all addresses and add them to the filter.
+                        for (int i = 0; i < numAddresses; i++) {
+                            keysIn.read(addressBytes);
+                            bf.put(addressBytes);
+                        }
+                        // Read all topics and add them to the filter.
+                        for (int i = 0; i < numTopics; i++) {
+                            keysIn.read(topicBytes);
+                            bf.put(topicBytes);
+                        }
+                        // Read all events (= address + first topic) and add them to the filter.
+                        for (int i = 0; i < numEvents; i++) {
+                            Event e = Event.read(eventsIn, withTopics);
+                            bf.put(Bytes.concat(e.address, e.signature));
+                            if (e.topics == null) continue;
+                            // Add the position-tagged keys of the indexed topics.
+                            for (int j = 0; j < e.topics.length; j++) {
+                                bf.put(Query.topicKey(e.address, j + 1, e.topics[j]));
+                                bf.put(Query.topicKey(null, j + 1, e.topics[j]));
+                            }
+                        }
+                        t = progress.time("build", t);
+                        // Write the pair (blockId, filter) to the output file.
+                        out.writeInt(blockId);
+                        out.write(bf.getBytes());
+                        progress.time("write", t);
+                        lastId = blockId;
+                        numBlocks++;
+                        // Input offsets after the last complete block.
+                        keysConsumed = keysCounter.getCount();
+                        eventsConsumed = eventsCounter.getCount();
+                        progress.block(keysConsumed + eventsConsumed - read, entrySize);
+                        if (numBlocks % checkpointInterval == 0) {
+                            t = System.nanoTime();
+                            BloomFilterBuilder.checkpoint(fileOut, out, checkpointFile, lastId, numBlocks,
+                            new long[] {keysOffset + keysConsumed, eventsOffset + eventsConsumed},
+                            header.getHeaderSize() + numBlocks * entrySize);
+                            progress.time("checkpoint", t);
+                        }
                     }
-                    // Write the pair (blockId, filter) to the output file.
-                    out.writeInt(blockId);
-                    out.write(bf.getBytes());
-                    numBlocks++;
+                    catch (EOFException e) {break;}
                 }
-                catch (EOFException e) {break;}
+                BloomFilterBuilder.checkpoint(fileOut, out, checkpointFile, lastId, numBlocks,
+                new long[] {keysOffset + keysConsumed, eventsOffset + eventsConsumed},
+                header.getHeaderSize() + numBlocks * entrySize);
+                progress.report();
+                // Print statistics.
+                long elapsed = System.nanoTime() - start;
+                System.out.printf("Blocks written:\t%d\nElapsed time:\t%d ns\n", progress.blocks, elapsed);
             }
-            // Print statistics.
-            long elapsed = System.nanoTime() - start;
-            System.out.printf("Blocks written:\t%d\nElapsed time:\t%d ns\n", numBlocks, elapsed);
         }
         catch (Exception e) {
             e.printStackTrace();
             System.exit(1);
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,266 @@
+package skip;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Collects throughput metrics of a builder (e.g., {@link ChainIndexBuilder}) and periodically reports them.
+ * Each report includes the number of processed blocks, the overall and current throughput (in blocks per second),
+ * the number of bytes read and written, and the time spent in each stage of the builder (e.g., reading the input,
+ * building the records and writing them), with the average and maximum latency of each call.
+ * Reports are printed on the standard error, so they do not mix with the statistics printed by the builders.
+ *
+ * Builders also save periodic checkpoints (see {@link Checkpoint}), so that a build interrupted by a crash
+ * can be resumed from the last checkpoint instead of starting over.
+ *
+ * @author Matteo Loporchio
+ */
+public class BuildProgress {
+    /**
+     * Default interval between two reports (in seconds).
+     */
+    public static final int DEFAULT_REPORT_INTERVAL = 10;
+
+    /**
+     * Default number of blocks between two checkpoints.
+     */
+    public static final int DEFAULT_CHECKPOINT_INTERVAL = 100000;
+
+    /**
+     * Name of the metadata entry where builders writing a database store their checkpoint.
+     */
+    public static final String CHECKPOINT_KEY = "checkpoint";
+
+    /**
+     * Name of the builder, printed at the beginning of each report.
+     */
+    private final String name;
+
+    /**
+     * Interval between two reports (in nanoseconds, non-positive if reports are disabled).
+     */
+    private final long interval;
+
+    /**
+     * Stream where the reports are printed.
+     */
+    private final PrintStream out;
+
+    /**
+     * Start time of the build.
+     */
+    private final long start;
+
+    /**
+     * Time of the last report.
+     */
+    private long lastReport;
+
+    /**
+     * Number of processed blocks at the time of the last report.
+     */
+    private long lastBlocks;
+
+    /**
+     * Number of processed blocks.
+     */
+    public long blocks = 0;
+
+    /**
+     * Number of bytes read from the input.
+     */
+    public long bytesRead = 0;
+
+    /**
+     * Number of bytes written to the output.
+     */
+    public long bytesWritten = 0;
+
+    /**
+     * Total time, number of calls and maximum time of each stage (in insertion order).
+     */
+    private final Map<String, long[]> stages = new LinkedHashMap<>();
+
+    /**
+     * Constructs a new collector.
+     * @param name name of the builder
+     * @param intervalSeconds interval between two reports (in seconds, zero to disable periodic reports)
+     * @param out stream where the reports are printed
+     */
+    public BuildProgress(String name, int intervalSeconds, PrintStream out) {
+        this.name = name;
+        this.interval = intervalSeconds * 1_000_000_000L;
+        this.out = out;
+        this.start = this.lastReport = System.nanoTime();
+    }
+
+    /**
+     * Records the time spent in a stage, from the given instant to now.
+     * @param stage name of the stage
+     * @param from start time of the stage (as returned by {@link System#nanoTime()})
+     * @return the current time, so that consecutive stages can be timed with a single variable
+     */
+    public long time(String stage, long from) {
+        long now = System.nanoTime(), elapsed = now - from;
+        long[] s = stages.computeIfAbsent(stage, k -> new long[3]);
+        s[0] += elapsed;
+        s[1]++;
+        s[2] = Math.max(s[2], elapsed);
+        return now;
+    }
+
+    /**
+     * Records a processed block and prints a report if the interval has elapsed.
+     * @param read number of bytes read for the block
+     * @param written number of bytes written for the block
+     */
+    public void block(long read, long written) {
+        blocks++;
+        bytesRead += read;
+        bytesWritten += written;
+        if (interval > 0 && System.nanoTime() - lastReport >= interval) report();
+    }
+
+    /**
+     * Prints a report.
+     */
+    public void report() {
+        long now = System.nanoTime();
+        double elapsed = (now - start) / 1e9, current = (now - lastReport) / 1e9;
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.ROOT, "[%s] %d blocks in %.1f s (%.1f blocks/s, now %.1f blocks/s), " +
+        "read %.1f MiB, written %.1f MiB", name, blocks, elapsed, (elapsed > 0) ? blocks / elapsed : 0,
+        (current > 0) ? (blocks - lastBlocks) / current : 0, bytesRead / 1048576.0, bytesWritten / 1048576.0));
+        for (Map.Entry<String, long[]> e : stages.entrySet()) {
+            long[] s = e.getValue();
+            sb.append(String.format(Locale.ROOT, ", %s %.1f s (avg %.1f us, max %.1f ms)", e.getKey(),
+            s[0] / 1e9, (s[1] > 0) ? s[0] / 1e3 / s[1] : 0, s[2] / 1e6));
+        }
+        out.println(sb.toString());
+        lastReport = now;
+        lastBlocks = blocks;
+    }
+
+    /**
+     * A durable checkpoint of a build, recording the last block written to the output together with
+     * the offsets of the input files where the following block starts and the size of the output file
+     * (for builders writing a file) at that point.
+     * A checkpoint must only be saved after the output up to the block has been made durable,
+     * so that resuming from it never skips a block.
+     */
+    public static class Checkpoint {
+        /**
+         * Version of the serialized checkpoint.
+         */
+        public static final int VERSION = 1;
+
+        /**
+         * Identifier of the last block written.
+         */
+        public final int block;
+
+        /**
+         * Number of blocks written.
+         */
+        public final long blocks;
+
+        /**
+         * Offset of the next block in each input file.
+         */
+        public final long[] inputOffsets;
+
+        /**
+         * Size of the output file (-1 for builders writing a database).
+         */
+        public final long outputOffset;
+
+        /**
+         * Constructs a new checkpoint.
+         * @param block identifier of the last block written
+         * @param blocks number of blocks written
+         * @param inputOffsets offset of the next block in each input file
+         * @param outputOffset size of the output file (-1 for databases)
+         */
+        public Checkpoint(int block, long blocks, long[] inputOffsets, long outputOffset) {
+            this.block = block;
+            this.blocks = blocks;
+            this.inputOffsets = inputOffsets;
+            this.outputOffset = outputOffset;
+        }
+
+        /**
+         * Serializes the checkpoint.
+         * @return the serialized checkpoint
+         */
+        public byte[] toBytes() {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                out.writeInt(VERSION);
+                out.writeInt(block);
+                out.writeLong(blocks);
+                out.writeInt(inputOffsets.length);
+                for (long offset : inputOffsets) out.writeLong(offset);
+                out.writeLong(outputOffset);
+            }
+            catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return bytes.toByteArray();
+        }
+
+        /**
+         * Deserializes a checkpoint.
+         * @param data the serialized checkpoint
+         * @return the checkpoint
+         * @throws IOException if the checkpoint is not valid
+         */
+        public static Checkpoint fromBytes(byte[] data) throws IOException {
+            try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+                if (in.readInt() != VERSION) throw new IOException("Unsupported checkpoint version");
+                int block = in.readInt();
+                long blocks = in.readLong();
+                long[] inputOffsets = new long[in.readInt()];
+                for (int i = 0; i < inputOffsets.length; i++) inputOffsets[i] = in.readLong();
+                return new Checkpoint(block, blocks, inputOffsets, in.readLong());
+            }
+        }
+
+        /**
+         * Saves the checkpoint to a file. The checkpoint is written to a temporary file,
+         * flushed to disk and renamed, so the file always contains either the old or the new checkpoint.
+         * @param path path of the checkpoint file
+         * @throws IOException if something goes wrong while writing
+         */
+        public void save(String path) throws IOException {
+            Path tmp = Paths.get(path + ".tmp");
+            try (FileOutputStream out = new FileOutputStream(tmp.toFile())) {
+                out.write(toBytes());
+                out.getFD().sync();
+            }
+            Files.move(tmp, Paths.get(path), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        /**
+         * Loads a checkpoint from a file.
+         * @param path path of the checkpoint file
+         * @return the checkpoint (null if the file does not exist)
+         * @throws IOException if the file cannot be read or is not valid
+         */
+        public static Checkpoint load(String path) throws IOException {
+            Path p = Paths.get(path);
+            return Files.exists(p) ? fromBytes(Files.readAllBytes(p)) : null;
+        }
+    }
+}
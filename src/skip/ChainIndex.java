@@ -2,7 +2,16 @@ package skip;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
 
+import com.google.common.primitives.Bytes;
 import com.google.common.primitives.Ints;
 
 import org.iq80.leveldb.*;
@@ -18,13 +27,110 @@ import static org.fusesource.leveldbjni.JniDBFactory.*;
  * of a Bloom filter summarizing the keys in the block and a BF skip index
  * to back-navigate the blockchain starting from the block itself.
  * 
+ * Reads can optionally be prefetched by a small pool of I/O threads 
+ * (see {@link #enablePrefetching(int)} and {@link Prefetcher}).
+ * 
+ * Concurrency: reads are thread-safe and a single writer (e.g., {@link ChainIndexBuilder} 
+ * or {@link ChainWriter}) can append blocks while queries are running.
+ * Each appended block is written together with the <em>tip</em>, i.e., the identifier of 
+ * the last complete block (see {@link #append(int, BlockIndex)}), and queries never go beyond 
+ * the tip. A query can also pin a consistent view of the database with {@link #snapshot()}.
+ * 
+ * In deduplication mode (see {@link #setDedup(boolean)}), each distinct filter is stored once, 
+ * with key {@link #FILTER_PREFIX} followed by its content hash (see {@link BlockIndex#filterId}).
+ * Its value consists of the reference count (4 bytes), the format (1 byte) and the size (4 bytes) 
+ * of the filter, followed by the serialized filter (see {@link BlockIndex#serializeFilter}). Block indexes only store the identifiers 
+ * of their filters, while empty filters are not stored at all.
+ * 
  * @author Matteo Loporchio
  */
 public class ChainIndex implements AutoCloseable {
     /**
      * The underlying LevelDB database.
      */
-    private DB chainIndex;
+    private final DB chainIndex;
+
+    /**
+     * Options used for all reads (pinning the snapshot, if any).
+     */
+    private final ReadOptions readOptions;
+
+    /**
+     * Snapshot of the database (null if this is not a snapshot view).
+     */
+    private final Snapshot snapshot;
+
+    /**
+     * Name of the metadata entry storing the identifier of the last complete block.
+     */
+    public static final String TIP_KEY = "tip";
+
+    /**
+     * Name of the metadata entry storing the identifier of the first block.
+     */
+    public static final String FIRST_KEY = "first";
+
+    /**
+     * Name of the metadata entry marking databases including deduplicated records (see {@link #setDedup(boolean)}).
+     */
+    public static final String DEDUP_KEY = "dedup";
+
+    /**
+     * Whether new block indexes are written with a checksum (see {@link BlockIndex#FLAG_CHECKSUM}).
+     */
+    private boolean checksums = false;
+
+    /**
+     * Whether filters with few bits set are written as lists of positions (see {@link BlockIndex#FLAG_SPARSE}).
+     */
+    private boolean sparse = false;
+
+    /**
+     * Whether filters are stored once for each distinct content (see {@link BlockIndex#FLAG_DEDUP}).
+     */
+    private boolean dedup = false;
+
+    /**
+     * Whether the database may include deduplicated records, whose filters must be released when they are
+     * overwritten or removed (see {@link #DEDUP_KEY}).
+     */
+    private boolean dedupRecords = false;
+
+    /**
+     * Size of the pre-filters written with each filter (0 if disabled, see {@link BlockIndex#FLAG_PREFILTER}).
+     */
+    private int prefilterSize = 0;
+
+    /**
+     * First byte of the keys of the filters stored separately. Since it is never the first byte
+     * of a block key, these filters are stored after all block indexes.
+     */
+    public static final byte FILTER_PREFIX = (byte) 0xFF;
+
+    /**
+     * Size of the header of the filters stored separately (reference count, format and size).
+     */
+    private static final int FILTER_HEADER_SIZE = 2 * Integer.BYTES + 1;
+
+    /**
+     * Maximum number of filters stored separately kept in memory after being read.
+     */
+    public static final int FILTER_CACHE_SIZE = 1024;
+
+    /**
+     * Recently read filters stored separately (shared by snapshot views, since filters never change).
+     */
+    private final Map<ByteBuffer, BloomFilter> filterCache;
+
+    /**
+     * Maximum number of prefetched block indexes waiting to be used.
+     */
+    public static final int PREFETCH_CAPACITY = 256;
+
+    /**
+     * Asynchronous loader of block indexes (null if prefetching is disabled).
+     */
+    private Prefetcher<BlockIndex> prefetcher;
 
     /**
      * Constructs a new chain index database.
@@ -33,20 +139,358 @@ public class ChainIndex implements AutoCloseable {
      * @throws IOException if something goes wrong while opening the database
      */
     public ChainIndex(String chainIndexPath, boolean createIfMissing) throws IOException {
+        this(chainIndexPath, createIfMissing, DbOptions.DEFAULT);
+    }
+
+    /**
+     * Constructs a new chain index database with the given LevelDB settings.
+     * @param chainIndexPath path of the database
+     * @param createIfMissing whether the database should be created if not existing
+     * @param options LevelDB settings (e.g., cache size and compression)
+     * @throws IOException if something goes wrong while opening the database
+     */
+    public ChainIndex(String chainIndexPath, boolean createIfMissing, DbOptions options) throws IOException {
         File chainIndexFile = new File(chainIndexPath);
-        Options chainOpt = new Options();
-        chainOpt.createIfMissing(createIfMissing);
-        this.chainIndex = factory.open(chainIndexFile, chainOpt);
+        this.chainIndex = factory.open(chainIndexFile, options.toOptions(createIfMissing));
+        this.readOptions = new ReadOptions();
+        this.snapshot = null;
+        this.filterCache = newFilterCache();
+        this.dedupRecords = getMeta(DEDUP_KEY) != null || hasFilters();
+    }
+
+    /**
+     * Checks whether some filters are stored separately (i.e., in databases written before {@link #DEDUP_KEY}).
+     * @return true if and only if the database includes at least one filter stored separately
+     * @throws IOException if the database cannot be read
+     */
+    private boolean hasFilters() throws IOException {
+        try (DBIterator iterator = chainIndex.iterator()) {
+            iterator.seek(new byte[] {FILTER_PREFIX});
+            return iterator.hasNext() && iterator.peekNext().getKey()[0] == FILTER_PREFIX;
+        }
+    }
+
+    /**
+     * Constructs a chain index that is not backed by a LevelDB database.
+     * Subclasses must override all methods accessing the database (see {@link MemoryChainIndex}).
+     */
+    protected ChainIndex() {
+        this.chainIndex = null;
+        this.readOptions = null;
+        this.snapshot = null;
+        this.filterCache = null;
+    }
+
+    /**
+     * Constructs a read-only view of a database pinned to a snapshot.
+     * @param chainIndex the underlying database
+     * @param snapshot the snapshot
+     * @param filterCache cache of filters stored separately
+     */
+    private ChainIndex(DB chainIndex, Snapshot snapshot, Map<ByteBuffer, BloomFilter> filterCache) {
+        this.chainIndex = chainIndex;
+        this.snapshot = snapshot;
+        this.readOptions = new ReadOptions().snapshot(snapshot);
+        this.filterCache = filterCache;
+    }
+
+    /**
+     * Creates an empty cache of filters stored separately.
+     * @return the cache
+     */
+    private static Map<ByteBuffer, BloomFilter> newFilterCache() {
+        return Collections.synchronizedMap(new LinkedHashMap<ByteBuffer, BloomFilter>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, BloomFilter> eldest) {
+                return size() > FILTER_CACHE_SIZE;
+            }
+        });
+    }
+
+    /**
+     * Returns a read-only view of the current state of the database.
+     * Blocks appended after the creation of the view are not visible, 
+     * and the tip of the view does not change. The view must be closed after use,
+     * while the current database must remain open as long as the view is used.
+     * @return the snapshot view
+     */
+    public ChainIndex snapshot() {
+        return new ChainIndex(chainIndex, chainIndex.getSnapshot(), filterCache);
     }
 
     /**
      * Returns the {@link BlockIndex} associated with the block.
      * @param id block identifier
-     * @return the {@link BlockIndex} associated with the block
+     * @return the {@link BlockIndex} associated with the block (null if the block is not in the database)
      */
     public BlockIndex get(int id) {
-        byte[] key = Ints.toByteArray(id);
-        return BlockIndex.deserialize(chainIndex.get(key));
+        return (prefetcher != null) ? prefetcher.get(id) : load(id);
+    }
+
+    /**
+     * Reads and deserializes the {@link BlockIndex} associated with the block.
+     * @param id block identifier
+     * @return the {@link BlockIndex} associated with the block (null if the block is not in the database)
+     */
+    private BlockIndex load(int id) {
+        byte[] data = chainIndex.get(Ints.toByteArray(id), readOptions);
+        return (data != null) ? decode(data) : null;
+    }
+
+    /**
+     * Deserializes a block index of this database, reading the filters it references (if any).
+     * @param data sequence of bytes representing the index (e.g., returned by {@link #getBytes(int)})
+     * @return the block index
+     * @throws IllegalArgumentException if the record is not valid or a referenced filter does not exist
+     */
+    public BlockIndex decode(byte[] data) {
+        return BlockIndex.deserialize(data, this::getFilter);
+    }
+
+    /**
+     * Returns a filter stored separately. Filters in the cache are shared and must not be modified.
+     * @param id identifier of the filter
+     * @return the filter (null if not existing)
+     */
+    private BloomFilter getFilter(byte[] id) {
+        ByteBuffer cacheKey = ByteBuffer.wrap(id);
+        BloomFilter bf = filterCache.get(cacheKey);
+        if (bf != null) return bf;
+        byte[] value = chainIndex.get(filterKey(id), readOptions);
+        if (value == null || value.length <= FILTER_HEADER_SIZE) return null;
+        ByteBuffer buf = ByteBuffer.wrap(value);
+        buf.getInt();
+        int format = buf.get(), filterSize = buf.getInt();
+        int[] pos = {FILTER_HEADER_SIZE};
+        bf = BlockIndex.deserializeFilter(value, pos, value.length, filterSize, format, null);
+        filterCache.put(cacheKey, bf);
+        return bf;
+    }
+
+    /**
+     * Returns the key of a filter stored separately.
+     * @param id identifier of the filter
+     * @return the key of the filter
+     */
+    private static byte[] filterKey(byte[] id) {
+        return Bytes.concat(new byte[] {FILTER_PREFIX}, id);
+    }
+
+    /**
+     * Returns the serialized {@link BlockIndex} associated with the block.
+     * @param id block identifier
+     * @return the serialized block index (null if the block is not in the database)
+     */
+    public byte[] getBytes(int id) {
+        return chainIndex.get(Ints.toByteArray(id), readOptions);
+    }
+
+    /**
+     * Sets whether new block indexes should be written with a checksum.
+     * @param checksums true if checksums should be written
+     */
+    public void setChecksums(boolean checksums) {
+        this.checksums = checksums;
+    }
+
+    /**
+     * Sets whether new block indexes should store the filters with few bits set as lists of positions.
+     * @param sparse true if sparse filters should be written as lists of positions
+     */
+    public void setSparse(boolean sparse) {
+        this.sparse = sparse;
+    }
+
+    /**
+     * Sets whether the filters of new block indexes should be stored once for each distinct content.
+     * The first deduplicated record is written together with the {@link #DEDUP_KEY} entry: from then on,
+     * records being overwritten or removed release their filters in either mode.
+     * @param dedup true if filters should be deduplicated
+     */
+    public void setDedup(boolean dedup) {
+        this.dedup = dedup;
+    }
+
+    /**
+     * Sets the size of the pre-filters written with the filters of new block indexes
+     * (see {@link PrefilteredBloomFilter}). Pre-filters are only written for records of raw filters,
+     * i.e., not with sparse or deduplicated filters.
+     * @param prefilterSize size of the pre-filters (in bytes, 0 to disable them)
+     */
+    public void setPrefilter(int prefilterSize) {
+        this.prefilterSize = prefilterSize;
+    }
+
+    /**
+     * Sequential scan of the block indexes in decreasing order of identifier.
+     * The scan is backed by a LevelDB iterator: since block identifiers are stored as big-endian
+     * integers, consecutive blocks are adjacent in the database and are read sequentially,
+     * instead of being looked up one at a time. Scanners must be closed after use.
+     * Blocks missing from the database (e.g., never written or removed) are skipped without notice:
+     * callers requiring every block of the range can detect the gaps by comparing consecutive values of {@link #id()}.
+     */
+    public class Scanner implements AutoCloseable {
+        /**
+         * The underlying iterator.
+         */
+        private final DBIterator iterator;
+
+        /**
+         * Lowest block identifier of the scan.
+         */
+        private final int lower;
+
+        /**
+         * Identifier of the current block.
+         */
+        private int id;
+
+        /**
+         * Serialized index of the current block.
+         */
+        private byte[] value;
+
+        /**
+         * First entry of the scan, not yet returned (null if already returned or not existing).
+         */
+        private Map.Entry<byte[], byte[]> first;
+
+        /**
+         * Whether the scan is over.
+         */
+        private boolean done;
+
+        /**
+         * Constructs a new scanner.
+         * @param upper highest block identifier
+         * @param lower lowest block identifier
+         */
+        private Scanner(int upper, int lower) {
+            this.lower = lower;
+            this.iterator = chainIndex.iterator(readOptions);
+            // Position the iterator on the last key not greater than the upper endpoint.
+            iterator.seek(Ints.toByteArray(upper));
+            if (!iterator.hasNext()) {
+                iterator.seekToLast();
+                first = iterator.hasNext() ? iterator.peekNext() : null;
+            }
+            else {
+                first = iterator.peekNext();
+                byte[] key = first.getKey();
+                if (key.length != Integer.BYTES || Ints.fromByteArray(key) != upper) first = previous();
+            }
+            done = (first == null);
+        }
+
+        /**
+         * Constructs a scanner that is not backed by a database iterator.
+         * Subclasses must override all public methods.
+         */
+        protected Scanner() {
+            this.lower = 0;
+            this.iterator = null;
+            this.done = true;
+        }
+
+        /**
+         * Moves the iterator to the previous entry.
+         * @return the previous entry (null if not existing)
+         */
+        private Map.Entry<byte[], byte[]> previous() {
+            try {
+                return iterator.prev();
+            }
+            catch (NoSuchElementException e) {
+                return null;
+            }
+        }
+
+        /**
+         * Moves to the next block (i.e., the previous one in the chain).
+         * Entries that are not block indexes (e.g., metadata) are skipped.
+         * @return true if and only if there is another block within the range
+         */
+        public boolean next() {
+            while (!done) {
+                Map.Entry<byte[], byte[]> entry = (first != null) ? first : previous();
+                first = null;
+                if (entry == null) break;
+                byte[] key = entry.getKey();
+                if (key.length != Integer.BYTES) continue;
+                int current = Ints.fromByteArray(key);
+                if (current < lower) break;
+                id = current;
+                value = entry.getValue();
+                return true;
+            }
+            done = true;
+            return false;
+        }
+
+        /**
+         * Returns the identifier of the current block.
+         * @return the block identifier
+         */
+        public int id() {
+            return id;
+        }
+
+        /**
+         * Returns the index of the current block.
+         * @return the {@link BlockIndex} of the block
+         */
+        public BlockIndex value() {
+            return decode(value);
+        }
+
+        /**
+         * Returns the serialized index of the current block.
+         * @return the serialized {@link BlockIndex} of the block
+         */
+        public byte[] bytes() {
+            return value;
+        }
+
+        /**
+         * Releases the iterator.
+         */
+        @Override
+        public void close() throws IOException {
+            iterator.close();
+        }
+    }
+
+    /**
+     * Returns a scanner over the block indexes in a range, from the most recent to the oldest one.
+     * Blocks missing from the database are skipped.
+     * @param upper highest block identifier
+     * @param lower lowest block identifier
+     * @return the scanner
+     */
+    public Scanner scan(int upper, int lower) {
+        return new Scanner(upper, lower);
+    }
+
+    /**
+     * Enables asynchronous prefetching of block indexes.
+     * Prefetched records are invalidated by the writes of this object (e.g., {@link #truncate(int)}
+     * followed by {@link #append(int, BlockIndex)} after a reorganization), but not by writes of other processes.
+     * @param numThreads number of I/O threads
+     */
+    public void enablePrefetching(int numThreads) {
+        if (prefetcher != null) prefetcher.close();
+        prefetcher = new Prefetcher<>(this::load, numThreads, PREFETCH_CAPACITY);
+    }
+
+    /**
+     * Hints that the {@link BlockIndex} of a block will be read soon.
+     * This method has no effect if prefetching is disabled.
+     * @param id block identifier
+     */
+    public void prefetch(int id) {
+        if (prefetcher != null) prefetcher.prefetch(id);
     }
 
     /**
@@ -55,15 +499,313 @@ public class ChainIndex implements AutoCloseable {
      * @param index {@link BlockIndex} to be associated with the block
      */
     public void put(int id, BlockIndex index) {
+        checkWritable();
         byte[] key = Ints.toByteArray(id);
-        chainIndex.put(key, BlockIndex.serialize(index));
+        if (!dedup && !dedupRecords) {
+            chainIndex.put(key, serialize(index));
+            invalidate(id, id);
+            return;
+        }
+        try (WriteBatch batch = chainIndex.createWriteBatch()) {
+            batch.put(key, encode(id, index, batch));
+            chainIndex.write(batch);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        invalidate(id, id);
+    }
+
+    /**
+     * Discards the prefetched records of a range of blocks after they have been written.
+     * @param lower lowest block identifier
+     * @param upper highest block identifier
+     */
+    private void invalidate(int lower, int upper) {
+        if (prefetcher != null) prefetcher.invalidate(lower, upper);
+    }
+
+    /**
+     * Serializes a block index with the current settings, except deduplication (see {@link #encode}).
+     * @param index the block index
+     * @return the serialized block index
+     */
+    private byte[] serialize(BlockIndex index) {
+        if (prefilterSize > 0 && !sparse) return BlockIndex.serializePrefiltered(index, checksums, prefilterSize);
+        return BlockIndex.serialize(index, checksums, sparse);
+    }
+
+    /**
+     * Serializes a block index to be written. The updates of the filters referenced by the new record
+     * (in deduplication mode) and by the deduplicated record being replaced (in either mode) are added to a batch.
+     * @param id block identifier
+     * @param index the block index
+     * @param batch the batch including the new record
+     * @return the serialized block index
+     */
+    private byte[] encode(int id, BlockIndex index, WriteBatch batch) {
+        if (!dedup && !dedupRecords) return serialize(index);
+        Map<ByteBuffer, Integer> deltas = new HashMap<>();
+        Map<ByteBuffer, BloomFilter> added = new HashMap<>();
+        byte[] record;
+        if (dedup) {
+            byte[][] ids = new byte[1 + index.skip.getNumEntries()][];
+            for (int i = 0; i < ids.length; i++) {
+                BloomFilter bf = (i == 0) ? index.filter : index.skip.getEntry(i - 1);
+                ids[i] = BlockIndex.filterId(bf);
+                if (ids[i] == null) continue;
+                ByteBuffer filterId = ByteBuffer.wrap(ids[i]);
+                deltas.merge(filterId, 1, Integer::sum);
+                added.put(filterId, bf);
+            }
+            record = BlockIndex.serializeDedup(index, checksums, ids);
+            if (!dedupRecords) {
+                batch.put(metaKey(DEDUP_KEY), new byte[] {1});
+                dedupRecords = true;
+            }
+        }
+        else record = serialize(index);
+        release(chainIndex.get(Ints.toByteArray(id)), deltas);
+        updateFilters(batch, deltas, added);
+        return record;
+    }
+
+    /**
+     * Decrements the reference counts of the filters referenced by a record being removed.
+     * @param data the record (may be null)
+     * @param deltas changes of the reference counts (updated by the method)
+     */
+    private static void release(byte[] data, Map<ByteBuffer, Integer> deltas) {
+        if (data == null || !BlockIndex.isDedup(data)) return;
+        try {
+            for (byte[] filterId : BlockIndex.filterIds(data)) deltas.merge(ByteBuffer.wrap(filterId), -1, Integer::sum);
+        }
+        catch (IllegalArgumentException e) {
+            // The references of a corrupted record cannot be released.
+        }
+    }
+
+    /**
+     * Adds the updates of the reference counts of some filters to a batch.
+     * Filters whose count drops to zero are removed.
+     * @param batch the batch
+     * @param deltas changes of the reference counts
+     * @param added filters that may not be stored yet
+     */
+    private void updateFilters(WriteBatch batch, Map<ByteBuffer, Integer> deltas, Map<ByteBuffer, BloomFilter> added) {
+        for (Map.Entry<ByteBuffer, Integer> d : deltas.entrySet()) {
+            if (d.getValue() == 0) continue;
+            byte[] key = filterKey(d.getKey().array());
+            byte[] value = chainIndex.get(key);
+            int count = ((value != null) ? Ints.fromByteArray(value) : 0) + d.getValue();
+            if (count <= 0) batch.delete(key);
+            else if (value != null) {
+                System.arraycopy(Ints.toByteArray(count), 0, value, 0, Integer.BYTES);
+                batch.put(key, value);
+            }
+            else {
+                BloomFilter bf = added.get(d.getKey());
+                ByteBuffer header = ByteBuffer.allocate(FILTER_HEADER_SIZE);
+                header.putInt(count).put((byte) bf.getFormat()).putInt(bf.getSize());
+                batch.put(key, Bytes.concat(header.array(), BlockIndex.serializeFilter(bf, sparse)));
+            }
+        }
+    }
+
+    /**
+     * Adds a new {@link BlockIndex} to the database and publishes the block as the new tip.
+     * Both writes are applied atomically, so concurrent readers either see the block 
+     * as complete or do not see it at all.
+     * @param id block identifier (must follow the current tip, if any)
+     * @param index {@link BlockIndex} to be associated with the block
+     * @return the size of the serialized block index (in bytes)
+     */
+    public int append(int id, BlockIndex index) {
+        checkWritable();
+        int tip = getTip();
+        if (tip >= 0 && id != tip + 1) 
+            throw new IllegalArgumentException(String.format("Expected block %d, got %d", tip + 1, id));
+        try (WriteBatch batch = chainIndex.createWriteBatch()) {
+            byte[] record = encode(id, index, batch);
+            batch.put(Ints.toByteArray(id), record);
+            batch.put(metaKey(TIP_KEY), Ints.toByteArray(id));
+            if (tip < 0) batch.put(metaKey(FIRST_KEY), Ints.toByteArray(id));
+            chainIndex.write(batch);
+            invalidate(id, id);
+            return record.length;
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Removes the blocks following a given one and publishes it as the new tip (e.g., after a reorganization).
+     * All writes are applied atomically. The BF skip indexes of the remaining blocks are still valid,
+     * since they only summarize previous blocks.
+     * @param tip identifier of the new tip (must not precede the first block, nor follow the current tip)
+     */
+    public void truncate(int tip) {
+        checkWritable();
+        int current = getTip(), first = getFirst();
+        if (tip < first || tip > current)
+            throw new IllegalArgumentException(String.format("Invalid tip %d (blocks %d to %d)", tip, first, current));
+        try (WriteBatch batch = chainIndex.createWriteBatch()) {
+            Map<ByteBuffer, Integer> deltas = new HashMap<>();
+            for (int id = tip + 1; id <= current; id++) {
+                if (dedupRecords) release(chainIndex.get(Ints.toByteArray(id)), deltas);
+                batch.delete(Ints.toByteArray(id));
+            }
+            updateFilters(batch, deltas, Collections.emptyMap());
+            batch.put(metaKey(TIP_KEY), Ints.toByteArray(tip));
+            chainIndex.write(batch);
+            invalidate(tip + 1, Integer.MAX_VALUE);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Removes the block indexes of a range without changing the tip and the first block
+     * (e.g., after moving them to another storage, see {@link TieredChainIndex}).
+     * All writes are applied atomically, and the filters referenced only by the removed blocks are released.
+     * @param lower lowest block identifier
+     * @param upper highest block identifier
+     */
+    public void remove(int lower, int upper) {
+        checkWritable();
+        try (WriteBatch batch = chainIndex.createWriteBatch()) {
+            Map<ByteBuffer, Integer> deltas = new HashMap<>();
+            for (int id = lower; id <= upper; id++) {
+                if (dedupRecords) release(chainIndex.get(Ints.toByteArray(id)), deltas);
+                batch.delete(Ints.toByteArray(id));
+            }
+            updateFilters(batch, deltas, Collections.emptyMap());
+            chainIndex.write(batch);
+            invalidate(lower, upper);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Number of deletions of each batch written by {@link #clear()}.
+     */
+    private static final int CLEAR_BATCH_SIZE = 10000;
+
+    /**
+     * Removes all block indexes, filters stored separately and metadata entries (e.g., before rebuilding the index).
+     * The tip is removed first, so concurrent readers never see a tip whose blocks have been removed;
+     * the other entries are removed in batches of {@link #CLEAR_BATCH_SIZE} deletions.
+     */
+    public void clear() {
+        checkWritable();
+        chainIndex.delete(metaKey(TIP_KEY));
+        try (DBIterator iterator = chainIndex.iterator()) {
+            iterator.seekToFirst();
+            while (iterator.hasNext()) {
+                try (WriteBatch batch = chainIndex.createWriteBatch()) {
+                    for (int n = 0; n < CLEAR_BATCH_SIZE && iterator.hasNext(); n++) batch.delete(iterator.next().getKey());
+                    chainIndex.write(batch);
+                }
+            }
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        dedupRecords = false;
+        if (prefetcher != null) prefetcher.clear();
+    }
+
+    /**
+     * Compacts the records of a range, so that the disk space of removed records is reclaimed
+     * (e.g., after {@link #remove(int, int)}) without waiting for the background compactions of LevelDB.
+     * @param lower lowest block identifier
+     * @param upper highest block identifier
+     */
+    public void compact(int lower, int upper) {
+        chainIndex.compactRange(Ints.toByteArray(lower), Ints.toByteArray(upper));
+    }
+
+    /**
+     * Returns the identifier of the last complete block, i.e., the last block added with
+     * {@link #append(int, BlockIndex)}.
+     * @return the tip of the database (-1 if no block has been appended)
+     */
+    public int getTip() {
+        byte[] value = getMeta(TIP_KEY);
+        return (value != null) ? Ints.fromByteArray(value) : -1;
+    }
+
+    /**
+     * Returns the identifier of the first block added with {@link #append(int, BlockIndex)}.
+     * @return the first block of the database (-1 if no block has been appended)
+     */
+    public int getFirst() {
+        byte[] value = getMeta(FIRST_KEY);
+        return (value != null) ? Ints.fromByteArray(value) : -1;
+    }
+
+    /**
+     * Checks that the current object is not a snapshot view.
+     */
+    private void checkWritable() {
+        if (snapshot != null) throw new UnsupportedOperationException("Snapshot views are read-only");
+    }
+
+    /**
+     * Returns a metadata value stored in the database.
+     * @param name name of the metadata entry
+     * @return the value of the entry (null if not existing)
+     */
+    public byte[] getMeta(String name) {
+        return chainIndex.get(metaKey(name), readOptions);
+    }
+
+    /**
+     * Stores a metadata value in the database.
+     * @param name name of the metadata entry
+     * @param value value of the entry
+     */
+    public void putMeta(String name, byte[] value) {
+        putMeta(name, value, false);
+    }
+
+    /**
+     * Stores a metadata value in the database, optionally flushing the write to disk.
+     * Since LevelDB applies writes in order, a synchronous write also makes all previous writes durable
+     * (e.g., the blocks preceding a checkpoint, see {@link BuildProgress.Checkpoint}).
+     * @param name name of the metadata entry
+     * @param value value of the entry
+     * @param sync whether the write should be flushed to disk before returning
+     */
+    public void putMeta(String name, byte[] value, boolean sync) {
+        checkWritable();
+        chainIndex.put(metaKey(name), value, new WriteOptions().sync(sync));
+    }
+
+    /**
+     * Returns the key of a metadata entry. Since block identifiers are stored as 4-byte keys, 
+     * metadata names must have a different length so that they never collide with blocks.
+     * @param name name of the metadata entry
+     * @return the key of the entry
+     */
+    private static byte[] metaKey(String name) {
+        byte[] key = name.getBytes(StandardCharsets.UTF_8);
+        if (key.length == Integer.BYTES) 
+            throw new IllegalArgumentException("Metadata names cannot be " + Integer.BYTES + " bytes long");
+        return key;
     }
 
     /**
-     * Closes the current database.
+     * Closes the current database (or releases the snapshot, for snapshot views).
      */
     @Override
     public void close() throws Exception {
-        chainIndex.close();
+        if (prefetcher != null) prefetcher.close();
+        if (snapshot != null) snapshot.close();
+        else chainIndex.close();
     }
 }
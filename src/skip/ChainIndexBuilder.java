@@ -4,6 +4,10 @@ import java.io.BufferedInputStream;
 import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.FileInputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * This program builds the chain index database starting from a file including the Bloom filters
@@ -14,10 +18,36 @@ import java.io.FileInputStream;
  *  <li><code>inputFile</code>: path of the binary file containing Bloom filters;</li>
  *  <li><code>indexDb</code>: path of the chain index database;</li>
  *  <li><code>numEntries</code>: number of entries to be computed for each BF skip index;</li>
+ *  <li><code>checksum</code> (optional): if present, each block index is written with 
+ *  its CRC-32 checksum (see {@link BlockIndex}), which is checked whenever the record is read;</li>
+ *  <li><code>sparse</code> (optional): if present, the filters with few bits set are written as
+ *  lists of positions (see {@link SparseBloomFilter}) instead of raw bit arrays;</li>
+ *  <li><code>dedup</code> (optional): if present, each distinct filter is stored once 
+ *  and empty filters are not stored at all (see {@link ChainIndex#setDedup(boolean)});</li>
+ *  <li><code>spans=spec</code> (optional): distances between the skip entries, given either as a base
+ *  (e.g., <code>spans=4</code>) or as the list of all distances (e.g., <code>spans=1,2,8,64</code>,
+ *  see {@link Skip#parseSpans}); the default is base 2;</li>
+ *  <li><code>prefilter=size</code> (optional): each raw filter is followed by a pre-filter of the given size
+ *  in bytes (e.g., <code>prefilter=1024</code>), i.e., the filter folded to that size, which is probed
+ *  before the full filter (see {@link PrefilteredBloomFilter});</li>
+ *  <li><code>progress=seconds</code> (optional): interval between two progress reports 
+ *  (default: {@link BuildProgress#DEFAULT_REPORT_INTERVAL}, zero to disable them);</li>
+ *  <li><code>checkpoint=blocks</code> (optional): number of blocks between two checkpoints
+ *  (default: {@link BuildProgress#DEFAULT_CHECKPOINT_INTERVAL});</li>
+ *  <li><code>resume</code> (optional): if present, the build resumes from the last checkpoint.</li>
  * </ol>
  * 
  * The program produces a LevelDB database where each block identifier is associated with
  * the corresponding block index (see {@link BlockIndex}).
+ * The format of the filters (e.g., standard or blocked) is taken from the header of the input file
+ * and recorded in the header of each block index.
+ * Each block is published as the tip of the database once written (see {@link ChainIndex#append}),
+ * so the index can be queried while it is being built.
+ * Periodically, a checkpoint with the offset of the next block in the input file is stored 
+ * in the database (see {@link BuildProgress#CHECKPOINT_KEY}) with a synchronous write, which also makes
+ * all previous blocks durable. When resuming, the input file is read from the checkpoint and
+ * the blocks already published (i.e., up to the tip of the database) are skipped without being rebuilt.
+ * Otherwise, an existing database is cleared first (see {@link ChainIndex#clear()}) and rebuilt from scratch.
  * 
  * @author Matteo Loporchio
  */
@@ -25,42 +55,104 @@ public class ChainIndexBuilder {
 
     public static void main(String[] args) {
         if (args.length < 3) {
-            System.err.println("Usage: ChainIndexBuilder <inputFile> <indexDb> <numEntries>");
+            System.err.println("Usage: ChainIndexBuilder <inputFile> <indexDb> <numEntries> [checksum] [sparse] [dedup] " +
+            "[spans=spec] [prefilter=size] [progress=seconds] [checkpoint=blocks] [resume]");
             System.exit(1);
         }
         final String inputFile = args[0];
         final String indexPath = args[1];
         int numEntries = Integer.parseInt(args[2]);
+        final List<String> flags = Arrays.asList(args).subList(3, args.length);
+        final boolean checksum = flags.contains("checksum");
+        final boolean sparse = flags.contains("sparse");
+        final boolean dedup = flags.contains("dedup");
+        final boolean resume = flags.contains("resume");
+        int[] spans = Skip.spans(2, numEntries);
+        int prefilterSize = 0;
+        int reportInterval = BuildProgress.DEFAULT_REPORT_INTERVAL;
+        int checkpointInterval = BuildProgress.DEFAULT_CHECKPOINT_INTERVAL;
+        for (String flag : flags) {
+            if (flag.startsWith("spans=")) spans = Skip.parseSpans(flag.substring("spans=".length()), numEntries);
+            if (flag.startsWith("prefilter=")) prefilterSize = Integer.parseInt(flag.substring("prefilter=".length()));
+            if (flag.startsWith("progress=")) reportInterval = Integer.parseInt(flag.substring("progress=".length()));
+            if (flag.startsWith("checkpoint=")) checkpointInterval = Integer.parseInt(flag.substring("checkpoint=".length()));
+        }
+        if (checkpointInterval < 1) {
+            System.err.println("The checkpoint interval must be positive");
+            System.exit(1);
+        }
         long totalTime = 0, creationTime = 0, totalStart = System.nanoTime(), creationStart = 0;
         //
         try (
-            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(inputFile)));
+            FileInputStream fileIn = new FileInputStream(inputFile);
             ChainIndex index = new ChainIndex(indexPath, true);
         ) {
-            // Read the input file.
-            int filterSize = in.readInt(), height = 0, blockId = -1;
+            index.setChecksums(checksum);
+            index.setSparse(sparse);
+            index.setDedup(dedup);
+            index.setPrefilter(prefilterSize);
+            // Read the header of the input file and move to the first block to be read.
+            FilterFile header = FilterFile.read(new DataInputStream(fileIn));
+            int filterSize = header.filterSize, format = header.format, height = 0, blockId = -1;
+            if (prefilterSize > 0 && !BloomFilter.canFold(filterSize, prefilterSize, format))
+                throw new IllegalArgumentException("Invalid pre-filter size: " + prefilterSize);
+            long entrySize = Integer.BYTES + filterSize, offset = header.getHeaderSize();
+            byte[] saved = resume ? index.getMeta(BuildProgress.CHECKPOINT_KEY) : null;
+            if (saved != null) {
+                BuildProgress.Checkpoint checkpoint = BuildProgress.Checkpoint.fromBytes(saved);
+                offset = checkpoint.inputOffsets[0];
+                height = (int) checkpoint.blocks;
+                fileIn.getChannel().position(offset);
+            }
+            // Blocks are appended, so a database that is not resumed must start empty.
+            if (!resume) index.clear();
+            int tip = resume ? index.getTip() : -1;
+            BuildProgress progress = new BuildProgress("ChainIndexBuilder", reportInterval, System.err);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(fileIn));
             while (true) {
                 try {
+                    long t = System.nanoTime();
                     // Read the block identifier.
                     blockId = in.readInt();
                     // Read and build the current Bloom filter.
                     byte[] filterBytes = new byte[filterSize];
-                    in.read(filterBytes);
-                    BloomFilter filter = new BloomFilter(filterBytes);
+                    in.readFully(filterBytes);
+                    offset += entrySize;
+                    // Blocks published after the last checkpoint are already complete.
+                    if (blockId <= tip) {
+                        height++;
+                        continue;
+                    }
+                    BloomFilter filter = new BloomFilter(filterBytes, format);
+                    t = progress.time("read", t);
                     // Construct the skip list for the current block.
-                    creationStart = System.nanoTime();
-                    Skip skip = build(index, numEntries, filterSize, blockId, height);
+                    creationStart = t;
+                    Skip skip = build(index, spans, filterSize, format, blockId, height);
                     creationTime += (System.nanoTime() - creationStart);
                     // Build and write the descriptor.
                     BlockIndex desc = new BlockIndex(filter, skip);
-                    index.put(blockId, desc);
+                    t = progress.time("build", t);
+                    int written = index.append(blockId, desc);
+                    progress.time("write", t);
                     height++;
+                    progress.block(entrySize, written);
+                    if (progress.blocks % checkpointInterval == 0) {
+                        t = System.nanoTime();
+                        index.putMeta(BuildProgress.CHECKPOINT_KEY, 
+                        new BuildProgress.Checkpoint(blockId, height, new long[] {offset}, -1).toBytes(), true);
+                        progress.time("checkpoint", t);
+                    }
                 }
                 catch (EOFException e) {break;}
             }
+            index.putMeta(BuildProgress.CHECKPOINT_KEY, 
+            new BuildProgress.Checkpoint(blockId, height, new long[] {offset}, -1).toBytes(), true);
+            progress.report();
             totalTime = System.nanoTime() - totalStart;
+            // A resumed build may have no block left to write.
+            double meanCreationTime = (progress.blocks > 0) ? (double) creationTime / (double) progress.blocks : 0;
             System.out.printf("Blocks written:\t%d\nTotal time:\t%d ns\nCreation time:\t%.3f ns\n", 
-            height, totalTime, ((double) creationTime / (double) height));
+            progress.blocks, totalTime, meanCreationTime);
         }
         catch (Exception e) {
             e.printStackTrace();
@@ -73,28 +165,46 @@ public class ChainIndexBuilder {
      * @param chain chain index database
      * @param numEntries number of entries for the BF skip index
      * @param filterSize size of Bloom filters used in the BF skip index (in bytes)
+     * @param format format of Bloom filters used in the BF skip index
+     * @param blockId identifier of the block for which the BF skip index should be constructed
+     * @param height height of the block for which the BF skip index should be constructed
+     * (i.e., its distance from the first block of the index)
+     * @return BF skip index for the block
+     */
+    public static Skip build(ChainIndex chain, int numEntries, int filterSize, int format, int blockId, int height) {
+        return build(chain, Skip.spans(2, numEntries), filterSize, format, blockId, height);
+    }
+
+    /**
+     * Implementation of the BF skip index construction method with the given distances between the entries.
+     * Each entry is the union of the lower entries (or filters) of the previous blocks covering its range
+     * (see {@link Skip#cover}).
+     * @param chain chain index database
+     * @param spans distances defining the entries of the BF skip index (see {@link Skip#getSpans()})
+     * @param filterSize size of Bloom filters used in the BF skip index (in bytes)
+     * @param format format of Bloom filters used in the BF skip index
      * @param blockId identifier of the block for which the BF skip index should be constructed
      * @param height height of the block for which the BF skip index should be constructed
+     * (i.e., its distance from the first block of the index)
      * @return BF skip index for the block
      */
-    public static Skip build(ChainIndex chain, int numEntries, int filterSize, int blockId, int height) {
+    public static Skip build(ChainIndex chain, int[] spans, int filterSize, int format, int blockId, int height) {
         // Initialize the BF skip index for the current block.
+        int numEntries = spans.length - 1;
         BloomFilter[] entries = new BloomFilter[numEntries];
         for (int j = 0; j < numEntries; j++) 
-            entries[j] = new BloomFilter(filterSize);
-        // If the current height is zero, there is nothing to do.
-        if (height == 0) return new Skip(entries);
-        // Initialize the first entry as the filter of the predecessor block.
-        BlockIndex curr = chain.get(blockId - 1);
-        entries[0].merge(curr.filter);
-        // Initialize the remaining entries.
-        for (int j = 1; j < numEntries; j++) {
-            if (height - (1 << j) <= 0) return new Skip(entries);
-            BlockIndex b1 = chain.get(blockId - (1<<j)); 
-            entries[j].merge(b1.skip.getEntry(j-1));
-            BlockIndex b2 = chain.get(blockId - (1<<(j-1)));            
-            entries[j].merge(b2.skip.getEntry(j-1));
+            entries[j] = new BloomFilter(filterSize, format);
+        // Each entry only depends on the previous blocks, so those read for several entries are reused.
+        Map<Integer, BlockIndex> blocks = new HashMap<>();
+        for (int j = 0; j < numEntries; j++) {
+            // If the range of the entry precedes the first block, there is nothing else to do.
+            // An entry whose range starts exactly at the first block still summarizes it.
+            if (height - spans[j] < 0) break;
+            for (int[] part : Skip.cover(spans, j, height)) {
+                BlockIndex b = blocks.computeIfAbsent(blockId - part[0], chain::get);
+                entries[j].merge((part[1] < 0) ? b.filter : b.skip.getEntry(part[1]));
+            }
         }
-        return new Skip(entries);
+        return new Skip(entries, spans);
     }
-}
\ No newline at end of file
+}
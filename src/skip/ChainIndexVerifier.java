@@ -0,0 +1,361 @@
+package skip;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This program checks the consistency of a chain index database and optionally repairs it.
+ * For each block in the given range, the verifier checks that the record exists and has a valid
+ * header, size and checksum (if present, see {@link BlockIndex}), and that all its filters have the
+ * same size, format and number of skip entries as the first valid record of the range. Then, it recomputes
+ * each entry of the BF skip index from the filters of the predecessors, exactly as {@link ChainIndexBuilder}
+ * does, and compares it bit for bit with the stored one. The checks of each block only depend on a few
+ * preceding blocks, so the range is split into chunks verified in parallel.
+ *
+ * Repairs are instead sequential, since the skip entries of a block depend on those of its predecessors.
+ * Invalid blocks are rebuilt from the oldest to the most recent one, and each repair triggers
+ * a new check of the following blocks whose entries depend on the repaired one.
+ * The skip entries of a block can always be recomputed, while its filter can only be recovered
+ * from the original filter file (if given). Blocks that cannot be repaired are reported as unrecoverable.
+ *
+ * The inputs of this program are as follows.
+ * <ol>
+ *  <li><code>indexDb</code>: path of the chain index database;</li>
+ *  <li><code>lower</code>: first block to be verified;</li>
+ *  <li><code>upper</code>: last block to be verified;</li>
+ *  <li><code>numThreads</code> (optional): number of verification threads (default: number of processors);</li>
+ *  <li><code>repair</code> (optional): if present, invalid blocks are repaired in place;</li>
+ *  <li><code>filtersFile</code> (optional): path of the filter file used to build the index,
+ *  needed to repair blocks whose filter is lost.</li>
+ * </ol>
+ *
+ * Heights are computed with respect to the first block of the index (see {@link ChainIndex#getFirst()})
+ * or, if the index does not record it, with respect to <code>lower</code>.
+ *
+ * @author Matteo Loporchio
+ */
+public class ChainIndexVerifier {
+    /**
+     * Number of chunks assigned to each verification thread.
+     */
+    public static final int CHUNKS_PER_THREAD = 4;
+
+    public static void main(String[] args) {
+        if (args.length < 3) {
+            System.err.println("Usage: ChainIndexVerifier <indexDb> <lower> <upper> [numThreads] [repair] [filtersFile]");
+            System.exit(1);
+        }
+        final String indexPath = args[0];
+        int lower = Integer.parseInt(args[1]);
+        int upper = Integer.parseInt(args[2]);
+        int numThreads = (args.length > 3) ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+        final boolean repair = (args.length > 4 && args[4].equals("repair"));
+        final String filtersFile = (args.length > 5) ? args[5] : null;
+        long start = System.nanoTime();
+        try (ChainIndex index = new ChainIndex(indexPath, false)) {
+            int firstBlock = (index.getFirst() >= 0) ? index.getFirst() : lower;
+            SortedMap<Integer, String> invalid = verify(index, firstBlock, lower, upper, numThreads);
+            for (Map.Entry<Integer, String> e : invalid.entrySet())
+                System.out.printf("Block %d:\t%s\n", e.getKey(), e.getValue());
+            long elapsed = System.nanoTime() - start;
+            System.out.printf("Blocks checked:\t%d\nInvalid blocks:\t%d\nElapsed time:\t%d ns\n",
+            upper - lower + 1, invalid.size(), elapsed);
+            if (repair && !invalid.isEmpty()) {
+                start = System.nanoTime();
+                Map<Integer, BloomFilter> filters = (filtersFile != null) ?
+                readFilters(filtersFile, invalid.keySet()) : Collections.emptyMap();
+                List<Integer> unrecoverable = new ArrayList<>();
+                int repaired = repair(index, firstBlock, invalid, filters, unrecoverable);
+                for (int id : unrecoverable) System.out.printf("Block %d:\tunrecoverable\n", id);
+                elapsed = System.nanoTime() - start;
+                System.out.printf("Blocks repaired:\t%d\nUnrecoverable blocks:\t%d\nRepair time:\t%d ns\n",
+                repaired, unrecoverable.size(), elapsed);
+            }
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Verifies a range of blocks in parallel.
+     * @param index chain index database
+     * @param firstBlock first block of the index (i.e., the block with height zero)
+     * @param lower first block to be verified
+     * @param upper last block to be verified
+     * @param numThreads number of verification threads
+     * @return the invalid blocks, each with the description of its first problem
+     * @throws IOException if the range contains no valid record
+     * @throws InterruptedException if the verification is interrupted
+     */
+    public static SortedMap<Integer, String> verify(ChainIndex index, int firstBlock, int lower, int upper, int numThreads)
+    throws IOException, InterruptedException {
+        SortedMap<Integer, String> invalid = new TreeMap<>();
+        if (upper < lower) return invalid;
+        BlockIndex reference = findReference(index, lower, upper);
+        if (reference == null) throw new IOException("No valid block index in the range");
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try {
+            long length = (long) upper - lower + 1;
+            int numChunks = (int) Math.min(length, (long) numThreads * CHUNKS_PER_THREAD);
+            List<Future<SortedMap<Integer, String>>> futures = new ArrayList<>();
+            for (int c = 0; c < numChunks; c++) {
+                int l = (int) (lower + length * c / numChunks), u = (int) (lower + length * (c + 1) / numChunks - 1);
+                futures.add(executor.submit(() -> {
+                    SortedMap<Integer, String> result = new TreeMap<>();
+                    Map<Integer, BlockIndex> cache = newCache(reference.skip.getSpans());
+                    for (int id = l; id <= u; id++) {
+                        String problem = check(index, firstBlock, id, reference, cache);
+                        if (problem != null) result.put(id, problem);
+                    }
+                    return result;
+                }));
+            }
+            for (Future<SortedMap<Integer, String>> f : futures) invalid.putAll(f.get());
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new RuntimeException(cause);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+        return invalid;
+    }
+
+    /**
+     * Repairs the invalid blocks of a chain index, from the oldest to the most recent one.
+     * After each repair, the blocks whose skip entries depend on the repaired one are checked again
+     * (up to the tip of the index, if known, or up to the last invalid block otherwise).
+     * @param index chain index database
+     * @param firstBlock first block of the index (i.e., the block with height zero)
+     * @param invalid invalid blocks (see {@link #verify})
+     * @param filters filters of the blocks (used if the stored filter cannot be read)
+     * @param unrecoverable list where the blocks that cannot be repaired are added
+     * @return the number of repaired blocks
+     */
+    public static int repair(ChainIndex index, int firstBlock, SortedMap<Integer, String> invalid,
+    Map<Integer, BloomFilter> filters, List<Integer> unrecoverable) {
+        if (invalid.isEmpty()) return 0;
+        int last = Math.max(index.getTip(), invalid.lastKey());
+        BlockIndex reference = findReference(index, Math.min(firstBlock, invalid.firstKey()), last);
+        if (reference == null) {
+            unrecoverable.addAll(invalid.keySet());
+            return 0;
+        }
+        int[] spans = reference.skip.getSpans();
+        int filterSize = reference.filter.getSize(), format = reference.filter.getFormat();
+        // Keep checksums, sparse filters, deduplication and pre-filters if the existing records have them.
+        byte[] data = index.getBytes(invalid.firstKey());
+        if (data == null || !isValid(index, data)) data = index.getBytes(firstBlock);
+        index.setChecksums(data != null && BlockIndex.hasChecksum(data));
+        index.setSparse(data != null && BlockIndex.isSparse(data));
+        index.setDedup(data != null && BlockIndex.isDedup(data));
+        index.setPrefilter((data != null) ? BlockIndex.prefilterSize(data) : 0);
+        TreeSet<Integer> pending = new TreeSet<>(invalid.keySet());
+        Set<Integer> failed = new TreeSet<>();
+        int repaired = 0;
+        while (!pending.isEmpty()) {
+            int id = pending.pollFirst();
+            if (check(index, firstBlock, id, reference, null) == null) continue;
+            // Recover the filter of the block.
+            BlockIndex current = read(index, id);
+            BloomFilter filter = (current != null && current.filter.getSize() == filterSize &&
+            current.filter.getFormat() == format) ? current.filter : filters.get(id);
+            if (filter == null) {
+                failed.add(id);
+                continue;
+            }
+            try {
+                Skip skip = ChainIndexBuilder.build(index, spans, filterSize, format, id, id - firstBlock);
+                index.put(id, new BlockIndex(filter, skip));
+                repaired++;
+            }
+            catch (RuntimeException e) {
+                // A predecessor needed to rebuild the skip entries cannot be read.
+                failed.add(id);
+                continue;
+            }
+            // The entries of the following blocks may depend on the repaired block.
+            int reach = Skip.reach(spans);
+            for (int next = id + 1; next <= Math.min(last, id + reach); next++) pending.add(next);
+        }
+        unrecoverable.addAll(failed);
+        return repaired;
+    }
+
+    /**
+     * Checks a single block.
+     * @param index chain index database
+     * @param firstBlock first block of the index
+     * @param id identifier of the block
+     * @param reference a valid block index with the expected filter size, format and skip entries
+     * @param cache cache of recently read blocks (may be null)
+     * @return the description of the problem, or null if the block is valid
+     */
+    private static String check(ChainIndex index, int firstBlock, int id, BlockIndex reference, Map<Integer, BlockIndex> cache) {
+        byte[] data = index.getBytes(id);
+        if (data == null) return "missing record";
+        BlockIndex b;
+        try {
+            b = index.decode(data);
+        }
+        catch (IllegalArgumentException e) {
+            return "invalid record (" + e.getMessage() + ")";
+        }
+        if (cache != null) cache.put(id, b);
+        int[] spans = reference.skip.getSpans();
+        int numEntries = spans.length - 1;
+        int filterSize = reference.filter.getSize(), format = reference.filter.getFormat();
+        if (b.filter.getSize() != filterSize || b.filter.getFormat() != format || !Arrays.equals(b.skip.getSpans(), spans))
+            return "unexpected filter size, format or skip entries";
+        for (int j = 0; j < numEntries; j++) {
+            BloomFilter stored = b.skip.getEntry(j);
+            if (stored.getSize() != filterSize || stored.getFormat() != format) return "unexpected entry " + j;
+        }
+        // Pre-filters must be the folded filters, otherwise they could hide occurrences.
+        for (int j = -1; j < numEntries; j++) {
+            BloomFilter bf = (j < 0) ? b.filter : b.skip.getEntry(j);
+            if (!(bf instanceof PrefilteredBloomFilter)) continue;
+            PrefilteredBloomFilter pf = (PrefilteredBloomFilter) bf;
+            if (!Arrays.equals(pf.getPrefilter().getBytes(), pf.fold(pf.getPrefilterSize()).getBytes()))
+                return (j < 0) ? "wrong pre-filter" : "wrong pre-filter of skip entry " + j;
+        }
+        // Recompute the skip entries.
+        int height = id - firstBlock;
+        for (int j = 0; j < numEntries; j++) {
+            BloomFilter expected = new BloomFilter(filterSize, format);
+            for (int[] part : Skip.cover(spans, j, height)) {
+                int d = part[0];
+                BlockIndex prev = get(index, id - d, cache);
+                if (prev == null || !Arrays.equals(prev.skip.getSpans(), spans) || prev.filter.getSize() != filterSize)
+                    return "depends on invalid block " + (id - d);
+                expected.merge((part[1] < 0) ? prev.filter : prev.skip.getEntry(part[1]));
+            }
+            if (!Arrays.equals(expected.getBytes(), b.skip.getEntry(j).getBytes())) return "wrong skip entry " + j;
+        }
+        return null;
+    }
+
+    /**
+     * Reads a block index, using the cache if possible.
+     * @param index chain index database
+     * @param id identifier of the block
+     * @param cache cache of recently read blocks (may be null)
+     * @return the block index (null if it cannot be read)
+     */
+    private static BlockIndex get(ChainIndex index, int id, Map<Integer, BlockIndex> cache) {
+        BlockIndex b = (cache != null) ? cache.get(id) : null;
+        if (b != null) return b;
+        b = read(index, id);
+        if (b != null && cache != null) cache.put(id, b);
+        return b;
+    }
+
+    /**
+     * Reads a block index.
+     * @param index chain index database
+     * @param id identifier of the block
+     * @return the block index (null if missing or invalid)
+     */
+    private static BlockIndex read(ChainIndex index, int id) {
+        byte[] data = index.getBytes(id);
+        if (data == null || !isValid(index, data)) return null;
+        return index.decode(data);
+    }
+
+    /**
+     * Checks whether a serialized block index can be deserialized.
+     * @param index chain index database
+     * @param data the serialized block index
+     * @return true if and only if the record is valid
+     */
+    private static boolean isValid(ChainIndex index, byte[] data) {
+        try {
+            index.decode(data);
+            return true;
+        }
+        catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the first valid block index of a range.
+     * @param index chain index database
+     * @param lower first block of the range
+     * @param upper last block of the range
+     * @return the first valid block index (null if no block of the range is valid)
+     */
+    private static BlockIndex findReference(ChainIndex index, int lower, int upper) {
+        for (int id = lower; id <= upper; id++) {
+            BlockIndex b = read(index, id);
+            if (b != null) return b;
+        }
+        return null;
+    }
+
+    /**
+     * Returns a cache holding the blocks on which the skip entries of a block may depend,
+     * assuming that blocks are checked in increasing order.
+     * @param spans distances defining the entries of each BF skip index
+     * @return the cache
+     */
+    private static Map<Integer, BlockIndex> newCache(int[] spans) {
+        final int capacity = Skip.reach(spans) + 1;
+        return new LinkedHashMap<Integer, BlockIndex>(2 * capacity, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, BlockIndex> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Reads the filters of the given blocks from a filter file.
+     * @param path path of the filter file
+     * @param ids identifiers of the blocks
+     * @return the filters of the blocks found in the file
+     * @throws IOException if the file cannot be read
+     */
+    public static Map<Integer, BloomFilter> readFilters(String path, Set<Integer> ids) throws IOException {
+        Map<Integer, BloomFilter> filters = new HashMap<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path)))) {
+            FilterFile header = FilterFile.read(in);
+            byte[] filterBytes = new byte[header.filterSize];
+            while (filters.size() < ids.size()) {
+                int blockId;
+                try {
+                    blockId = in.readInt();
+                    in.readFully(filterBytes);
+                }
+                catch (EOFException e) {break;}
+                if (ids.contains(blockId))
+                    filters.put(blockId, new BloomFilter(filterBytes.clone(), header.format));
+            }
+        }
+        return filters;
+    }
+}
@@ -6,6 +6,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.LinkedHashSet;
 import java.util.Set;
 
@@ -20,6 +21,9 @@ import static org.fusesource.leveldbjni.JniDBFactory.*;
  * Keys correspond to block identifiers and the associated
  * values are sets of events (i.e., the events included in the block).
  * 
+ * Reads can optionally be prefetched by a small pool of I/O threads 
+ * (see {@link #enablePrefetching(int)} and {@link Prefetcher}).
+ * 
  * @author Matteo Loporchio
  */
 public class ChainStorage implements AutoCloseable {
@@ -28,6 +32,16 @@ public class ChainStorage implements AutoCloseable {
      */
     private DB chainStorage;
 
+    /**
+     * Maximum number of prefetched records waiting to be used.
+     */
+    public static final int PREFETCH_CAPACITY = 64;
+
+    /**
+     * Asynchronous loader of serialized records (null if prefetching is disabled).
+     */
+    private Prefetcher<byte[]> prefetcher;
+
     /**
      * Creates a new {@link ChainStorage} event database.
      * @param chainStoragePath path of the database
@@ -35,10 +49,19 @@ public class ChainStorage implements AutoCloseable {
      * @throws IOException if something goes wrong during the creation
      */
     public ChainStorage(String chainStoragePath, boolean createIfMissing) throws IOException {
+        this(chainStoragePath, createIfMissing, DbOptions.DEFAULT);
+    }
+
+    /**
+     * Creates a new {@link ChainStorage} event database with the given LevelDB settings.
+     * @param chainStoragePath path of the database
+     * @param createIfMissing whether the database should be created if not existing
+     * @param options LevelDB settings (e.g., cache size and compression)
+     * @throws IOException if something goes wrong during the creation
+     */
+    public ChainStorage(String chainStoragePath, boolean createIfMissing, DbOptions options) throws IOException {
         File chainStorageFile = new File(chainStoragePath);
-        Options chainOpt = new Options();
-        chainOpt.createIfMissing(createIfMissing);
-        this.chainStorage = factory.open(chainStorageFile, chainOpt);
+        this.chainStorage = factory.open(chainStorageFile, options.toOptions(createIfMissing));
     }
 
     /**
@@ -49,19 +72,93 @@ public class ChainStorage implements AutoCloseable {
      * @throws ClassNotFoundException if deserialization goes wrong
      */
     public Set<Event> get(int blockId) throws IOException, ClassNotFoundException {
-        byte[] contentBytes = chainStorage.get(Ints.toByteArray(blockId));
+        byte[] contentBytes = (prefetcher != null) ? prefetcher.get(blockId) : load(blockId);
         return deserialize(contentBytes);
     }
 
+    /**
+     * Reads the serialized set of events of a block.
+     * @param blockId identifier of the block
+     * @return the serialized set of events
+     */
+    private byte[] load(int blockId) {
+        return chainStorage.get(Ints.toByteArray(blockId));
+    }
+
+    /**
+     * Enables asynchronous prefetching of records. Only the database read is performed 
+     * in the background, while deserialization happens in {@link #get(int)}.
+     * Prefetched records are invalidated by {@link #put(int, Set)} and {@link #delete(int)},
+     * but not by writes of other processes.
+     * @param numThreads number of I/O threads
+     */
+    public void enablePrefetching(int numThreads) {
+        if (prefetcher != null) prefetcher.close();
+        prefetcher = new Prefetcher<>(this::load, numThreads, PREFETCH_CAPACITY);
+    }
+
+    /**
+     * Hints that the events of a block will be read soon.
+     * This method has no effect if prefetching is disabled.
+     * @param blockId identifier of the block
+     */
+    public void prefetch(int blockId) {
+        if (prefetcher != null) prefetcher.prefetch(blockId);
+    }
+
     /**
      * Inserts a new set of events for a block in the database.
      * @param blockId identifier of the block
      * @param content set of events for the block
+     * @return the size of the serialized set of events (in bytes)
      * @throws IOException if serialization goes wrong
      */
-    public void put(int blockId, Set<Event> content) throws IOException {
+    public int put(int blockId, Set<Event> content) throws IOException {
         byte[] contentBytes = serialize(content);
         chainStorage.put(Ints.toByteArray(blockId), contentBytes);
+        if (prefetcher != null) prefetcher.invalidate(blockId, blockId);
+        return contentBytes.length;
+    }
+
+    /**
+     * Removes the events of a block from the database.
+     * @param blockId identifier of the block
+     */
+    public void delete(int blockId) {
+        chainStorage.delete(Ints.toByteArray(blockId));
+        if (prefetcher != null) prefetcher.invalidate(blockId, blockId);
+    }
+
+    /**
+     * Returns a metadata value stored in the database.
+     * @param name name of the metadata entry
+     * @return the value of the entry (null if not existing)
+     */
+    public byte[] getMeta(String name) {
+        return chainStorage.get(metaKey(name));
+    }
+
+    /**
+     * Stores a metadata value in the database, optionally flushing the write to disk
+     * (see {@link ChainIndex#putMeta(String, byte[], boolean)}).
+     * @param name name of the metadata entry
+     * @param value value of the entry
+     * @param sync whether the write should be flushed to disk before returning
+     */
+    public void putMeta(String name, byte[] value, boolean sync) {
+        chainStorage.put(metaKey(name), value, new WriteOptions().sync(sync));
+    }
+
+    /**
+     * Returns the key of a metadata entry, which must not collide with the 4-byte keys of the blocks.
+     * @param name name of the metadata entry
+     * @return the key of the entry
+     */
+    private static byte[] metaKey(String name) {
+        byte[] key = name.getBytes(StandardCharsets.UTF_8);
+        if (key.length == Integer.BYTES) 
+            throw new IllegalArgumentException("Metadata names cannot be " + Integer.BYTES + " bytes long");
+        return key;
     }
 
     /**
@@ -69,6 +166,7 @@ public class ChainStorage implements AutoCloseable {
      */
     @Override
     public void close() throws IOException {
+        if (prefetcher != null) prefetcher.close();
         chainStorage.close();
     }
 
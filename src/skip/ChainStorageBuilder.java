@@ -4,9 +4,13 @@ import java.io.BufferedInputStream;
 import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.FileInputStream;
+import java.util.ArrayList;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
 
+import com.google.common.io.CountingInputStream;
+
 /**
  * This program builds the chain storage database starting from the binary file including 
  * all event occurrences of the blocks. The chain storage database is implemente as
@@ -16,49 +20,132 @@ import java.util.Set;
  * <ol>
  *  <li><code>inputFile</code>: path of the binary file containing event occurrences;</li>
  *  <li><code>outputFile</code>: path of the output chain storage database;</li>
+ *  <li><code>postingDb</code> (optional): path of a posting index database (see {@link PostingIndex}) 
+ *  built in the same pass;</li>
+ *  <li><code>minOccurrences</code> (optional): minimum number of blocks of the events included 
+ *  in the posting index (default: {@link #MIN_OCCURRENCES});</li>
+ *  <li><code>topics</code> (optional): if present, each event occurrence of the input file 
+ *  includes its indexed topics (see {@link Event#read(DataInputStream, boolean)}), 
+ *  which are stored with the event;</li>
+ *  <li><code>postingMemory=megabytes</code> (optional): memory used by the posting lists being built
+ *  (default: {@link PostingIndex#DEFAULT_MEMORY_BUDGET} bytes, see {@link PostingIndex#setMemoryBudget(long)});</li>
+ *  <li><code>progress=seconds</code> (optional): interval between two progress reports 
+ *  (default: {@link BuildProgress#DEFAULT_REPORT_INTERVAL}, zero to disable them);</li>
+ *  <li><code>checkpoint=blocks</code> (optional): number of blocks between two checkpoints
+ *  (default: {@link BuildProgress#DEFAULT_CHECKPOINT_INTERVAL});</li>
+ *  <li><code>resume</code> (optional): if present, the build resumes from the last checkpoint.</li>
  * </ol>
+ * The named options (i.e., all but the database paths and the number of occurrences)
+ * can be given in any position after the output file.
  * 
  * The program produces a LevelDB database where each block identifier is associated with
  * the corresponding set of event occurrences.
+ * Periodically, a checkpoint with the offset of the next block in the input file is stored 
+ * in the database (see {@link BuildProgress#CHECKPOINT_KEY}) with a synchronous write, 
+ * which also makes all previous blocks durable. When resuming, the input file is read from the checkpoint.
+ * Posting lists are completed at the end of the build, so builds including
+ * a posting index do not save checkpoints and cannot be resumed. The posting lists cover the blocks
+ * up to the last one of the input file (see {@link PostingIndex#getCovered()}).
  * 
  * @author Matteo Loporchio
  */
 public class ChainStorageBuilder {
+    /**
+     * Default minimum number of blocks of the events included in the posting index.
+     */
+    public static final int MIN_OCCURRENCES = 1024;
+
     public static void main(String[] args) {
+        // Options that can appear anywhere after the output file.
+        List<String> positional = new ArrayList<>();
+        int reportInterval = BuildProgress.DEFAULT_REPORT_INTERVAL;
+        int checkpointInterval = BuildProgress.DEFAULT_CHECKPOINT_INTERVAL;
+        long postingMemory = PostingIndex.DEFAULT_MEMORY_BUDGET;
+        boolean resume = false, withTopics = false;
+        for (String arg : args) {
+            if (arg.equals("resume")) resume = true;
+            else if (arg.equals("topics")) withTopics = true;
+            else if (arg.startsWith("postingMemory=")) 
+                postingMemory = Long.parseLong(arg.substring("postingMemory=".length())) << 20;
+            else if (arg.startsWith("progress=")) reportInterval = Integer.parseInt(arg.substring("progress=".length()));
+            else if (arg.startsWith("checkpoint=")) checkpointInterval = Integer.parseInt(arg.substring("checkpoint=".length()));
+            else positional.add(arg);
+        }
+        if (checkpointInterval < 1) {
+            System.err.println("The checkpoint interval must be positive");
+            System.exit(1);
+        }
+        args = positional.toArray(new String[0]);
         if (args.length < 2) {
-            System.err.println("Usage: ChainStorageBuilder <inputFile> <outputFile>");
+            System.err.println("Usage: ChainStorageBuilder <inputFile> <outputFile> [postingDb] [minOccurrences] [topics] " + 
+            "[postingMemory=megabytes] [progress=seconds] [checkpoint=blocks] [resume]");
             System.exit(1);
         }
         final String inputFile = args[0];
         final String outputFile = args[1];
+        final String postingPath = (args.length > 2) ? args[2] : null;
+        final int minOccurrences = (args.length > 3) ? Integer.parseInt(args[3]) : MIN_OCCURRENCES;
+        if (resume && postingPath != null) {
+            System.err.println("Builds including a posting index cannot be resumed");
+            System.exit(1);
+        }
         long start = System.nanoTime();
         try (
-            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(inputFile)));
+            FileInputStream fileIn = new FileInputStream(inputFile);
             ChainStorage storage = new ChainStorage(outputFile, true);
+            PostingIndex postings = (postingPath != null) ? new PostingIndex(postingPath, true) : null;
         ) {
+            if (postings != null) postings.setMemoryBudget(postingMemory);
+            byte[] saved = resume ? storage.getMeta(BuildProgress.CHECKPOINT_KEY) : null;
+            long offset = 0;
+            if (saved != null) {
+                offset = BuildProgress.Checkpoint.fromBytes(saved).inputOffsets[0];
+                fileIn.getChannel().position(offset);
+            }
+            CountingInputStream counter = new CountingInputStream(new BufferedInputStream(fileIn));
+            DataInputStream in = new DataInputStream(counter);
+            BuildProgress progress = new BuildProgress("ChainStorageBuilder", reportInterval, System.err);
             // Read the input file.
-            int numBlocks = 0;
+            int blockId = -1, lastBlock = -1;
+            long consumed = 0;
             while (true) {
                 try {
-                    int blockId = in.readInt();
+                    long t = System.nanoTime();
+                    blockId = in.readInt();
                     int numEvents = in.readInt();
                     Set<Event> events = new LinkedHashSet<>();
-                    for (int i = 0; i < numEvents; i++) {
-                        byte[] addressBytes = new byte[Event.ADDRESS_LENGTH];
-                        byte[] topicBytes = new byte[Event.TOPIC_LENGTH];
-                        in.read(addressBytes);
-                        in.read(topicBytes);
-                        events.add(new Event(addressBytes, topicBytes));
-                    }
+                    for (int i = 0; i < numEvents; i++) events.add(Event.read(in, withTopics));
+                    t = progress.time("read", t);
                     // Write the pair (blockId, set of events) to the output database.
-                    storage.put(blockId, events);
-                    numBlocks++;
+                    int written = storage.put(blockId, events);
+                    lastBlock = blockId;
+                    t = progress.time("write", t);
+                    if (postings != null) {
+                        for (Event e : events) postings.add(new Event(e.address, e.signature), blockId);
+                        progress.time("postings", t);
+                    }
+                    progress.block(counter.getCount() - consumed, written);
+                    // Input offset after the last complete block.
+                    consumed = counter.getCount();
+                    if (postings == null && progress.blocks % checkpointInterval == 0) {
+                        t = System.nanoTime();
+                        storage.putMeta(BuildProgress.CHECKPOINT_KEY, 
+                        new BuildProgress.Checkpoint(blockId, progress.blocks, new long[] {offset + consumed}, -1).toBytes(), true);
+                        progress.time("checkpoint", t);
+                    }
                 }
                 catch (EOFException e) {break;}
             }
             // Print statistics.
+            int indexed = (postings != null) ? postings.finish(minOccurrences, lastBlock) : 0;
+            if (postings == null) {
+                storage.putMeta(BuildProgress.CHECKPOINT_KEY, 
+                new BuildProgress.Checkpoint(blockId, progress.blocks, new long[] {offset + consumed}, -1).toBytes(), true);
+            }
+            progress.report();
             long elapsed = System.nanoTime() - start;
-            System.out.printf("Blocks written:\t%d\nElapsed time:\t%d ns\n", numBlocks, elapsed);
+            System.out.printf("Blocks written:\t%d\nElapsed time:\t%d ns\n", progress.blocks, elapsed);
+            if (postings != null) System.out.printf("Indexed events:\t%d\n", indexed);
         }
         catch (Exception e) {
             e.printStackTrace();
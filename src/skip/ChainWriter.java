@@ -0,0 +1,111 @@
+package skip;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.IntConsumer;
+
+/**
+ * Appends new blocks to a chain index and a chain storage while they are being queried
+ * (e.g., to ingest the blocks at the tip of the blockchain).
+ * Each block is written to the chain storage first and then to the chain index,
+ * together with the new tip (see {@link ChainIndex#append(int, BlockIndex)}).
+ * Since queries never go beyond the tip, readers never observe a block whose
+ * BF skip index or events have not been completely written.
+ * 
+ * Blocks can also be removed from the tip with {@link #rollback(int)} (e.g., after a reorganization):
+ * the index is truncated first, so readers never observe a block whose events have been removed.
+ * 
+ * There must be a single writer for each pair of databases.
+ * 
+ * @author Matteo Loporchio
+ */
+public class ChainWriter {
+    /**
+     * Chain index database.
+     */
+    private final ChainIndex index;
+
+    /**
+     * Chain storage database.
+     */
+    private final ChainStorage storage;
+
+    /**
+     * Distances defining the entries of each BF skip index (see {@link Skip#getSpans()}).
+     */
+    private final int[] spans;
+
+    /**
+     * Functions called after each rollback.
+     */
+    private final List<IntConsumer> rollbackListeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Constructs a new writer.
+     * @param index chain index database
+     * @param storage chain storage database
+     * @param numEntries number of entries of each BF skip index
+     */
+    public ChainWriter(ChainIndex index, ChainStorage storage, int numEntries) {
+        this(index, storage, Skip.spans(2, numEntries));
+    }
+
+    /**
+     * Constructs a new writer with the given distances between the skip entries.
+     * @param index chain index database
+     * @param storage chain storage database
+     * @param spans distances defining the entries of each BF skip index
+     */
+    public ChainWriter(ChainIndex index, ChainStorage storage, int[] spans) {
+        this.index = index;
+        this.storage = storage;
+        this.spans = spans;
+    }
+
+    /**
+     * Appends a new block.
+     * @param blockId identifier of the block (must follow the current tip, if any)
+     * @param filter Bloom filter of the block
+     * @param events set of events included in the block
+     * @throws IOException if the events cannot be serialized
+     */
+    public synchronized void append(int blockId, BloomFilter filter, Set<Event> events) throws IOException {
+        int tip = index.getTip();
+        if (tip >= 0 && blockId != tip + 1) 
+            throw new IllegalArgumentException(String.format("Expected block %d, got %d", tip + 1, blockId));
+        int height = (tip >= 0) ? blockId - index.getFirst() : 0;
+        storage.put(blockId, events);
+        Skip skip = ChainIndexBuilder.build(index, spans, filter.getSize(), filter.getFormat(), blockId, height);
+        index.append(blockId, new BlockIndex(filter, skip));
+    }
+
+    /**
+     * Removes all blocks following a given one.
+     * @param tip identifier of the new tip
+     */
+    public synchronized void rollback(int tip) {
+        int current = index.getTip();
+        index.truncate(tip);
+        for (int id = tip + 1; id <= current; id++) storage.delete(id);
+        for (IntConsumer listener : rollbackListeners) listener.accept(tip + 1);
+    }
+
+    /**
+     * Registers a function to be called after each rollback with the identifier of the first removed block
+     * (e.g., <code>cache::invalidateFrom</code> for a {@link QueryCache}).
+     * @param listener the function
+     */
+    public void addRollbackListener(IntConsumer listener) {
+        rollbackListeners.add(listener);
+    }
+
+    /**
+     * Returns the identifier of the last complete block.
+     * @return the tip of the chain index (-1 if no block has been appended)
+     */
+    public int getTip() {
+        return index.getTip();
+    }
+}
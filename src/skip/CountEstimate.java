@@ -0,0 +1,170 @@
+package skip;
+
+/**
+ * Contains the result of an approximate count query (see {@link Query#estimateCount}),
+ * i.e., an estimate of the number of blocks of a range containing an occurrence of an event.
+ *
+ * The blocks of the range are split into three groups: blocks whose filter has been tested,
+ * blocks excluded by a negative skip entry (which certainly contain no occurrence) and
+ * unresolved blocks, whose number of occurrences is extrapolated from a uniform sample of their filters.
+ * Blocks missing from the index database are counted as blocks without occurrences (see {@link #missing}).
+ * Matching filters are corrected for false positives, either with the false positive rate derived from
+ * their fill ratio or, if some of them have been checked against the chain storage, with the observed precision.
+ * The bounds are approximate confidence bounds (see {@link #Z}).
+ *
+ * @author Matteo Loporchio
+ */
+public class CountEstimate {
+    /**
+     * Quantile of the normal distribution used for the confidence bounds (about 95% for each interval).
+     */
+    public static final double Z = 1.96;
+
+    /**
+     * Lower endpoint of the range.
+     */
+    public int lower;
+
+    /**
+     * Upper endpoint of the range (limited to the tip of the index).
+     */
+    public int upper;
+
+    /**
+     * Number of block indexes read by the query.
+     */
+    public int visited = 0;
+
+    /**
+     * Number of blocks whose filter has been tested while traversing the skip entries.
+     */
+    public int tested = 0;
+
+    /**
+     * Number of tested blocks whose filter matches the event.
+     */
+    public int positives = 0;
+
+    /**
+     * Number of blocks excluded by a negative skip entry.
+     */
+    public long excluded = 0;
+
+    /**
+     * Number of blocks neither tested nor excluded.
+     */
+    public long unresolved = 0;
+
+    /**
+     * Number of blocks read whose index is missing from the database (counted as blocks without occurrences).
+     */
+    public int missing = 0;
+
+    /**
+     * Number of unresolved blocks whose filter has been tested (chosen uniformly at random).
+     */
+    public int sampled = 0;
+
+    /**
+     * Number of sampled blocks whose filter matches the event.
+     */
+    public int sampledPositives = 0;
+
+    /**
+     * Expected number of false positives among all tested and sampled filters, derived from their fill ratios.
+     */
+    public double falsePositives = 0;
+
+    /**
+     * Number of matching tested blocks checked against the chain storage.
+     */
+    public int verified = 0;
+
+    /**
+     * Number of checked blocks actually containing an occurrence.
+     */
+    public int confirmed = 0;
+
+    /**
+     * Estimated number of blocks containing an occurrence.
+     */
+    public double estimate = 0;
+
+    /**
+     * Lower bound on the number of blocks containing an occurrence.
+     */
+    public double lowerBound = 0;
+
+    /**
+     * Upper bound on the number of blocks containing an occurrence.
+     */
+    public double upperBound = 0;
+
+    /**
+     * Returns true if the count of matching filters is exact, i.e., if no block has been left unresolved.
+     * @return true if and only if every block has been either tested or excluded
+     */
+    public boolean isResolved() {
+        return unresolved == 0;
+    }
+
+    /**
+     * Computes the estimate and its bounds from the counters of the query.
+     */
+    void compute() {
+        // Fraction of matching filters that correspond to an actual occurrence.
+        double precision, precisionLower, precisionUpper;
+        if (verified > 0) {
+            double[] interval = wilson(confirmed, verified);
+            precision = (double) confirmed / verified;
+            precisionLower = interval[0];
+            precisionUpper = interval[1];
+        }
+        else {
+            int matches = positives + sampledPositives;
+            double fp = Math.min(falsePositives, matches);
+            precision = (matches > 0) ? (matches - fp) / matches : 1.0;
+            precisionLower = (matches > 0) ? Math.max(0, matches - fp - Z * Math.sqrt(fp)) / matches : 1.0;
+            precisionUpper = 1.0;
+        }
+        // Checked blocks are known exactly, the other matching ones are scaled by the precision.
+        int unchecked = positives - verified;
+        estimate = confirmed + unchecked * precision;
+        lowerBound = confirmed + unchecked * precisionLower;
+        upperBound = confirmed + unchecked * precisionUpper;
+        if (unresolved > 0) {
+            if (sampled > 0) {
+                double[] interval = wilson(sampledPositives, sampled);
+                estimate += unresolved * ((double) sampledPositives / sampled) * precision;
+                lowerBound += unresolved * interval[0] * precisionLower;
+                upperBound += unresolved * interval[1] * precisionUpper;
+            }
+            else {
+                // Without samples, the density of the tested blocks is the only available guess.
+                if (tested > 0) estimate += unresolved * ((double) positives / tested) * precision;
+                upperBound += unresolved;
+            }
+        }
+    }
+
+    /**
+     * Computes the Wilson score interval for a proportion.
+     * @param successes number of successes
+     * @param trials number of trials (must be positive)
+     * @return the lower and upper bound of the interval
+     */
+    static double[] wilson(int successes, int trials) {
+        double p = (double) successes / trials, z2 = Z * Z;
+        double denominator = 1 + z2 / trials;
+        double center = (p + z2 / (2.0 * trials)) / denominator;
+        double half = (Z / denominator) * Math.sqrt(p * (1 - p) / trials + z2 / (4.0 * trials * trials));
+        return new double[] {Math.max(0, center - half), Math.min(1, center + half)};
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%.1f [%.1f, %.1f] (visited=%d, tested=%d, positives=%d, excluded=%d, " +
+        "unresolved=%d, sampled=%d/%d, verified=%d/%d, missing=%d)", estimate, lowerBound, upperBound, visited, tested,
+        positives, excluded, unresolved, sampledPositives, sampled, confirmed, verified, missing);
+    }
+}
@@ -0,0 +1,116 @@
+package skip;
+
+import org.iq80.leveldb.CompressionType;
+import org.iq80.leveldb.Options;
+
+/**
+ * Tuning parameters of the LevelDB databases used by {@link ChainIndex} and {@link ChainStorage}.
+ * Parameters set to zero (or null) keep the LevelDB defaults.
+ * Options can also be parsed from a string of comma-separated <code>name=value</code> pairs
+ * (see {@link #parse(String)}), e.g., <code>cacheSize=8g,blockSize=64k,compression=none</code>.
+ *
+ * @author Matteo Loporchio
+ */
+public class DbOptions {
+    /**
+     * Default options (i.e., LevelDB defaults).
+     */
+    public static final DbOptions DEFAULT = new DbOptions();
+
+    /**
+     * Size of the block cache (in bytes).
+     */
+    public long cacheSize = 0;
+
+    /**
+     * Size of the data blocks of the database files (in bytes).
+     */
+    public int blockSize = 0;
+
+    /**
+     * Size of the in-memory write buffer (in bytes).
+     */
+    public int writeBufferSize = 0;
+
+    /**
+     * Compression of the data blocks (either <code>snappy</code> or <code>none</code>; null for the default).
+     */
+    public String compression = null;
+
+    /**
+     * Returns the LevelDB options corresponding to the current parameters.
+     * @param createIfMissing whether the database should be created if not existing
+     * @return the LevelDB options
+     */
+    public Options toOptions(boolean createIfMissing) {
+        Options opt = new Options();
+        opt.createIfMissing(createIfMissing);
+        if (cacheSize > 0) opt.cacheSize(cacheSize);
+        if (blockSize > 0) opt.blockSize(blockSize);
+        if (writeBufferSize > 0) opt.writeBufferSize(writeBufferSize);
+        if (compression != null)
+            opt.compressionType(compression.equals("none") ? CompressionType.NONE : CompressionType.SNAPPY);
+        return opt;
+    }
+
+    /**
+     * Parses a list of options. Sizes may have a <code>k</code>, <code>m</code> or <code>g</code> suffix.
+     * @param spec comma-separated <code>name=value</code> pairs
+     * (names are <code>cacheSize</code>, <code>blockSize</code>, <code>writeBufferSize</code> and <code>compression</code>)
+     * @return the options
+     * @throws IllegalArgumentException if an option is not valid
+     */
+    public static DbOptions parse(String spec) {
+        DbOptions result = new DbOptions();
+        if (spec == null || spec.isEmpty()) return result;
+        for (String pair : spec.split(",")) {
+            String[] parts = pair.split("=", 2);
+            if (parts.length != 2) throw new IllegalArgumentException("Invalid option: " + pair);
+            String name = parts[0].trim(), value = parts[1].trim();
+            switch (name) {
+                case "cacheSize": result.cacheSize = parseSize(value); break;
+                case "blockSize": result.blockSize = parseIntSize(name, value); break;
+                case "writeBufferSize": result.writeBufferSize = parseIntSize(name, value); break;
+                case "compression":
+                    if (!value.equals("snappy") && !value.equals("none"))
+                        throw new IllegalArgumentException("Invalid compression: " + value);
+                    result.compression = value;
+                    break;
+                default: throw new IllegalArgumentException("Unknown option: " + name);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Parses a size with an optional suffix.
+     * @param value the size (e.g., <code>512m</code>)
+     * @return the size in bytes
+     * @throws IllegalArgumentException if the size is negative or too large
+     */
+    private static long parseSize(String value) {
+        String v = value.toLowerCase();
+        long unit = 1;
+        char last = v.charAt(v.length() - 1);
+        if (last == 'k' || last == 'm' || last == 'g') {
+            unit = (last == 'k') ? 1L << 10 : (last == 'm') ? 1L << 20 : 1L << 30;
+            v = v.substring(0, v.length() - 1);
+        }
+        long size = Long.parseLong(v);
+        if (size < 0 || size > Long.MAX_VALUE / unit) throw new IllegalArgumentException("Invalid size: " + value);
+        return size * unit;
+    }
+
+    /**
+     * Parses the size of an option stored as an integer by LevelDB.
+     * @param name name of the option
+     * @param value the size (e.g., <code>64m</code>)
+     * @return the size in bytes
+     * @throws IllegalArgumentException if the size is negative or not smaller than 2 GB
+     */
+    private static int parseIntSize(String name, String value) {
+        long size = parseSize(value);
+        if (size > Integer.MAX_VALUE) throw new IllegalArgumentException("Option " + name + " too large: " + value);
+        return (int) size;
+    }
+}
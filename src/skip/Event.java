@@ -1,5 +1,8 @@
 package skip;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.Arrays;
 import java.util.Objects;
@@ -9,6 +12,10 @@ import java.util.Objects;
  * For our purposes, an event is represented as a pair <code>(address, signature)</code>
  * where <code>address</code> is the address of the triggering contract
  * and <code>signature</code> is the Keccak-256 digest of the event signature.
+ * Optionally, an event also carries its <em>indexed topics</em> (i.e., topics 1 to 3, 
+ * holding the values of the parameters declared as <code>indexed</code>) in positional order.
+ * An event can also be used as a <em>pattern</em> (see {@link #matches(Event)}),
+ * in which case a null field matches any value.
  * 
  * @author Matteo Loporchio
  */
@@ -39,14 +46,38 @@ public class Event implements Serializable {
      */
     public final byte[] signature;
 
+    /**
+     * Maximum number of indexed topics of an event.
+     */
+    public static final int MAX_TOPICS = 3;
+
+    /**
+     * Indexed topics of the event, where <code>topics[i]</code> is topic <code>i + 1</code>
+     * (null if the event carries no indexed topics).
+     */
+    public final byte[][] topics;
+
     /**
      * Constructs a new event.
      * @param address event address
      * @param signature event signature hash
      */
     public Event(byte[] address, byte[] signature) {
+        this(address, signature, null);
+    }
+
+    /**
+     * Constructs a new event with indexed topics.
+     * @param address event address
+     * @param signature event signature hash
+     * @param topics indexed topics in positional order (may be null)
+     */
+    public Event(byte[] address, byte[] signature, byte[][] topics) {
+        if (topics != null && topics.length > MAX_TOPICS)
+            throw new IllegalArgumentException("An event has at most " + MAX_TOPICS + " indexed topics");
         this.address = address;
         this.signature = signature;
+        this.topics = topics;
     }
 
     /**
@@ -55,21 +86,102 @@ public class Event implements Serializable {
      * @param signature event signature hash
      */
     public Event(String address, String signature) {
-        this.address = Bits.fromHex(address);
-        this.signature = Bits.fromHex(signature);
+        this.address = (address != null) ? Bits.fromHex(address) : null;
+        this.signature = (signature != null) ? Bits.fromHex(signature) : null;
+        this.topics = null;
+    }
+
+    /**
+     * Constructs a new event with indexed topics.
+     * @param address event address
+     * @param signature event signature hash
+     * @param topics indexed topics in positional order (null elements are allowed in patterns)
+     */
+    public Event(String address, String signature, String... topics) {
+        this((address != null) ? Bits.fromHex(address) : null, 
+        (signature != null) ? Bits.fromHex(signature) : null, parseTopics(topics));
+    }
+
+    /**
+     * Converts a sequence of hexadecimal topics to byte arrays.
+     * @param topics hexadecimal topics (may contain null elements)
+     * @return the topics as byte arrays (null if no topic is given)
+     */
+    private static byte[][] parseTopics(String[] topics) {
+        if (topics == null || topics.length == 0) return null;
+        byte[][] result = new byte[topics.length][];
+        for (int i = 0; i < topics.length; i++)
+            result[i] = (topics[i] != null) ? Bits.fromHex(topics[i]) : null;
+        return result;
+    }
+
+    /**
+     * Checks whether an event occurrence matches the current event, seen as a pattern.
+     * Null fields of the pattern match any value. Topics are compared by position, so a pattern
+     * with topic <code>i</code> only matches occurrences having the same value as topic <code>i</code>.
+     * @param occurrence the event occurrence
+     * @return true if and only if all non-null fields of the pattern are equal to those of the occurrence
+     */
+    public boolean matches(Event occurrence) {
+        if (address != null && !Arrays.equals(address, occurrence.address)) return false;
+        if (signature != null && !Arrays.equals(signature, occurrence.signature)) return false;
+        if (topics == null) return true;
+        for (int i = 0; i < topics.length; i++) {
+            if (topics[i] == null) continue;
+            if (occurrence.topics == null || occurrence.topics.length <= i) return false;
+            if (!Arrays.equals(topics[i], occurrence.topics[i])) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Reads an event occurrence from an events file. 
+     * Each occurrence consists of the address and the signature digest, optionally followed 
+     * by one byte with the number of indexed topics and by the topics themselves.
+     * @param in the input stream
+     * @param withTopics whether the occurrence includes indexed topics
+     * @return the event
+     * @throws IOException if the occurrence cannot be read
+     */
+    public static Event read(DataInputStream in, boolean withTopics) throws IOException {
+        byte[] addressBytes = new byte[ADDRESS_LENGTH];
+        byte[] topicBytes = new byte[TOPIC_LENGTH];
+        in.readFully(addressBytes);
+        in.readFully(topicBytes);
+        if (!withTopics) return new Event(addressBytes, topicBytes);
+        int numTopics = in.readUnsignedByte();
+        byte[][] topics = new byte[numTopics][TOPIC_LENGTH];
+        for (int i = 0; i < numTopics; i++) in.readFully(topics[i]);
+        return new Event(addressBytes, topicBytes, topics);
+    }
+
+    /**
+     * Writes an event occurrence to an events file (see {@link #read(DataInputStream, boolean)}).
+     * @param out the output stream
+     * @param withTopics whether the indexed topics should be written
+     * @throws IOException if the occurrence cannot be written
+     */
+    public void write(DataOutputStream out, boolean withTopics) throws IOException {
+        out.write(address);
+        out.write(signature);
+        if (!withTopics) return;
+        int numTopics = (topics != null) ? topics.length : 0;
+        out.writeByte(numTopics);
+        for (int i = 0; i < numTopics; i++) out.write(topics[i]);
     }
 
     @Override
     public boolean equals(Object o) {
         if (!(o instanceof Event)) return false;
         Event e = (Event) o;
-        return Arrays.equals(address, e.address) && Arrays.equals(signature, e.signature);
+        return Arrays.equals(address, e.address) && Arrays.equals(signature, e.signature) &&
+        Arrays.deepEquals(topics, e.topics);
     }
 
     @Override
     public int hashCode() {
         int h1 = Arrays.hashCode(address);
         int h2 = Arrays.hashCode(signature);
-        return Objects.hash(h1, h2);
+        return Objects.hash(h1, h2, Arrays.deepHashCode(topics));
     }
 }
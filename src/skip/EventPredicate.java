@@ -0,0 +1,227 @@
+package skip;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * A boolean predicate over the events of a block, expressed in disjunctive normal form.
+ * The predicate is a disjunction (OR) of <em>terms</em>, and each term is a conjunction (AND)
+ * of event patterns (see {@link Event#matches(Event)}) that must all occur in the same block.
+ * For instance:
+ * <ul>
+ *  <li>"any of these token contracts emitted Transfer" is a disjunction of single-pattern terms,
+ *  one for each contract (see {@link #match(byte[][], byte[][])});</li>
+ *  <li>"address A with either topic T1 or T2" is the disjunction of the patterns
+ *  <code>(A, T1)</code> and <code>(A, T2)</code>.</li>
+ * </ul>
+ *
+ * The predicate is compiled into Bloom filter probes (see {@link #probe(Function)}): a filter
+ * matches if, for at least one term, it contains all the keys of all the patterns of the term.
+ * Since a skip entry is the union of the filters of the blocks it summarizes, this test never
+ * excludes an entry that summarizes a block satisfying the predicate.
+ * Blocks are then verified exactly on their events with {@link #matches(Set)}.
+ *
+ * @author Matteo Loporchio
+ */
+public class EventPredicate {
+    /**
+     * Terms of the predicate (each term is a list of patterns).
+     */
+    private final List<List<Event>> terms;
+
+    /**
+     * Constructs a predicate from its terms.
+     * @param terms list of terms
+     */
+    private EventPredicate(List<List<Event>> terms) {
+        this.terms = terms;
+    }
+
+    /**
+     * Returns a predicate satisfied by the blocks containing an occurrence of the given pattern.
+     * @param pattern the event pattern
+     * @return the predicate
+     */
+    public static EventPredicate of(Event pattern) {
+        return new EventPredicate(Collections.singletonList(Collections.singletonList(pattern)));
+    }
+
+    /**
+     * Returns a predicate satisfied by the blocks containing at least one of the given patterns.
+     * @param patterns the event patterns
+     * @return the predicate
+     */
+    public static EventPredicate anyOf(Event... patterns) {
+        List<List<Event>> terms = new ArrayList<>();
+        for (Event p : patterns) terms.add(Collections.singletonList(p));
+        return new EventPredicate(terms);
+    }
+
+    /**
+     * Returns a predicate satisfied by the blocks containing all of the given patterns.
+     * @param patterns the event patterns
+     * @return the predicate
+     */
+    public static EventPredicate allOf(Event... patterns) {
+        return new EventPredicate(Collections.singletonList(Arrays.asList(patterns)));
+    }
+
+    /**
+     * Returns a predicate satisfied by the blocks containing an event triggered
+     * by any of the given addresses with any of the given signatures.
+     * A null array stands for any address (or signature).
+     * @param addresses contract addresses (may be null)
+     * @param signatures event signature digests (may be null)
+     * @return the predicate
+     */
+    public static EventPredicate match(byte[][] addresses, byte[][] signatures) {
+        byte[][] as = (addresses != null) ? addresses : new byte[][] {null};
+        byte[][] ss = (signatures != null) ? signatures : new byte[][] {null};
+        List<List<Event>> terms = new ArrayList<>();
+        for (byte[] a : as)
+            for (byte[] s : ss) terms.add(Collections.singletonList(new Event(a, s)));
+        return new EventPredicate(terms);
+    }
+
+    /**
+     * Returns the disjunction of the current predicate with another one.
+     * @param other the other predicate
+     * @return a predicate satisfied if either predicate is satisfied
+     */
+    public EventPredicate or(EventPredicate other) {
+        List<List<Event>> result = new ArrayList<>(terms);
+        result.addAll(other.terms);
+        return new EventPredicate(result);
+    }
+
+    /**
+     * Returns the conjunction of the current predicate with another one
+     * (the terms of the result are all pairwise combinations of the terms of the two predicates).
+     * @param other the other predicate
+     * @return a predicate satisfied if both predicates are satisfied by the same block
+     */
+    public EventPredicate and(EventPredicate other) {
+        List<List<Event>> result = new ArrayList<>();
+        for (List<Event> t1 : terms) {
+            for (List<Event> t2 : other.terms) {
+                List<Event> t = new ArrayList<>(t1);
+                t.addAll(t2);
+                result.add(t);
+            }
+        }
+        return new EventPredicate(result);
+    }
+
+    /**
+     * Returns the terms of the predicate.
+     * @return an unmodifiable view of the terms
+     */
+    public List<List<Event>> getTerms() {
+        return Collections.unmodifiableList(terms);
+    }
+
+    /**
+     * Checks exactly whether the events of a block satisfy the predicate.
+     * @param events the events of the block
+     * @return true if and only if, for some term, each pattern matches at least one event
+     */
+    public boolean matches(Set<Event> events) {
+        for (List<Event> term : terms) {
+            boolean all = true;
+            for (Event pattern : term) {
+                boolean found = false;
+                for (Event e : events) {
+                    if (pattern.matches(e)) {
+                        found = true;
+                        break;
+                    }
+                }
+                if (!found) {
+                    all = false;
+                    break;
+                }
+            }
+            if (all) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Compiles the predicate into a membership test for Bloom filters.
+     * The keys of each pattern are hashed once: the bit positions are computed for the first
+     * tested filter and reused for all filters with the same size and format.
+     * @param keys function returning the keys of each pattern
+     * (i.e., either {@link Query#keysDefault} or {@link Query#keysExtended})
+     * @return the membership test
+     */
+    public Predicate<BloomFilter> probe(Function<Event, byte[][]> keys) {
+        byte[][][] termKeys = termKeys(keys);
+        return new Predicate<BloomFilter>() {
+            /**
+             * Bit positions for the last tested size and format 
+             * (replaced atomically, so that the test can be shared by concurrent searches).
+             */
+            private volatile Positions cache;
+
+            @Override
+            public boolean test(BloomFilter bf) {
+                Positions c = cache;
+                if (c == null || c.size != bf.getSize() || c.format != bf.getFormat()) {
+                    c = new Positions(bf, termKeys);
+                    cache = c;
+                }
+                for (Bits.Probe p : c.probes) {
+                    if (bf.test(p)) return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Collects the keys of each term: a filter matches the predicate if it contains all the keys of some term.
+     * @param keys function returning the keys of each pattern
+     * @return the keys of each term
+     */
+    byte[][][] termKeys(Function<Event, byte[][]> keys) {
+        byte[][][] termKeys = new byte[terms.size()][][];
+        for (int t = 0; t < terms.size(); t++) {
+            List<byte[]> k = new ArrayList<>();
+            for (Event pattern : terms.get(t)) k.addAll(Arrays.asList(keys.apply(pattern)));
+            termKeys[t] = k.toArray(new byte[0][]);
+        }
+        return termKeys;
+    }
+
+    /**
+     * Bit positions of the keys of each term for filters of a given size and format.
+     */
+    private static final class Positions {
+        private final int size, format;
+        private final Bits.Probe[] probes;
+
+        /**
+         * Computes the bit positions of the keys of each term and prepares them as probes.
+         * @param bf a filter with the desired size and format
+         * @param termKeys keys of each term
+         */
+        private Positions(BloomFilter bf, byte[][][] termKeys) {
+            this.size = bf.getSize();
+            this.format = bf.getFormat();
+            this.probes = new Bits.Probe[termKeys.length];
+            for (int t = 0; t < termKeys.length; t++) {
+                int[] positions = new int[termKeys[t].length * BloomFilter.NUM_HASH];
+                for (int k = 0; k < termKeys[t].length; k++) {
+                    int[] p = bf.positions(termKeys[t][k]);
+                    System.arraycopy(p, 0, positions, k * BloomFilter.NUM_HASH, p.length);
+                }
+                probes[t] = new Bits.Probe(positions);
+            }
+        }
+    }
+}
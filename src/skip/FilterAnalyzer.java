@@ -0,0 +1,566 @@
+package skip;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This program computes statistics on the Bloom filters of a chain index database or a filter file,
+ * which can be used to choose the size of the filters as the chain grows.
+ * The blocks are split into ranges of fixed length, scanned by parallel threads (with an iterator
+ * over the database or with positional reads of the filter file). For each range and each level
+ * (level 0 corresponds to the block filters and level <code>j + 1</code> to the skip entries <code>j</code>),
+ * the program computes the distribution of the number of bits set to 1 (a histogram whose buckets
+ * have a relative width of at most <code>1 / </code>{@link #HISTOGRAM_PRECISION}), the expected false positive rate
+ * of a single key (i.e., the fill ratio raised to {@link BloomFilter#NUM_HASH}), the fraction of saturated filters
+ * (see {@link #SATURATION_RATIO}) and the number of distinct keys estimated from the fill ratio.
+ * Filter files only contain block filters, so they only have level 0.
+ *
+ * The inputs of this program are as follows.
+ * <ol>
+ *  <li><code>input</code>: path of the chain index database (a directory) or of the filter file;</li>
+ *  <li><code>outputPrefix</code>: prefix of the output files;</li>
+ *  <li><code>rangeSize</code> (optional): number of blocks of each range (default: {@link #DEFAULT_RANGE_SIZE});</li>
+ *  <li><code>numThreads</code> (optional): number of threads (default: number of processors);</li>
+ *  <li><code>lower</code> and <code>upper</code> (optional): range of blocks to be analyzed
+ *  (default: from the first block to the tip of the index, or the whole filter file).</li>
+ * </ol>
+ *
+ * The program writes three files: <code>outputPrefix-ranges.csv</code> with one row for each range and level,
+ * <code>outputPrefix-histogram.csv</code> with the histogram of the number of ones of each level over all blocks
+ * and <code>outputPrefix-summary.json</code> with the statistics of each level over all blocks, including
+ * the smallest filter size keeping the false positive rate below {@link #TARGET_FPR} for 98% of the filters.
+ * The estimates assume that the bits are uniformly spread, so they are only approximate for blocked filters.
+ *
+ * @author Matteo Loporchio
+ */
+public class FilterAnalyzer {
+    /**
+     * Default number of blocks of each range.
+     */
+    public static final int DEFAULT_RANGE_SIZE = 100000;
+
+    /**
+     * Fill ratio above which a filter is considered saturated
+     * (for a given number of keys, the false positive rate is minimized when half of the bits are set).
+     */
+    public static final double SATURATION_RATIO = 0.5;
+
+    /**
+     * False positive rate used to compute the suggested filter sizes.
+     */
+    public static final double TARGET_FPR = 0.01;
+
+    /**
+     * Number of buckets of the histograms for each power of two of the number of ones.
+     * Values below <code>2 * HISTOGRAM_PRECISION</code> have a bucket each, so sparse filters are counted exactly,
+     * while the histogram of filters with <code>2^k</code> bits only has about <code>(k - 5) * HISTOGRAM_PRECISION</code>
+     * buckets instead of one per number of ones.
+     */
+    public static final int HISTOGRAM_PRECISION = 32;
+
+    /**
+     * Statistics on a group of filters with the same size.
+     */
+    public static class Stats {
+        /**
+         * Size of the filters (in bytes).
+         */
+        public int filterSize;
+
+        /**
+         * Number of filters.
+         */
+        public long count = 0;
+
+        /**
+         * Sum of the number of ones of all filters.
+         */
+        public long sumOnes = 0;
+
+        /**
+         * Sum of the squared number of ones of all filters.
+         */
+        public double sumSquares = 0;
+
+        /**
+         * Minimum number of ones.
+         */
+        public int minOnes = Integer.MAX_VALUE;
+
+        /**
+         * Maximum number of ones.
+         */
+        public int maxOnes = 0;
+
+        /**
+         * Sum of the false positive rates of all filters.
+         */
+        public double sumFpr = 0;
+
+        /**
+         * Sum of the estimated number of keys of all filters.
+         */
+        public double sumKeys = 0;
+
+        /**
+         * Number of saturated filters.
+         */
+        public long saturated = 0;
+
+        /**
+         * Number of filters in each bucket of the histogram (up to the bucket of the maximum),
+         * i.e., bucket <code>i</code> counts the filters with {@link #bucketMin(int)} to {@link #bucketMax(int)} ones.
+         */
+        public long[] histogram = new long[0];
+
+        /**
+         * Constructs an empty group.
+         * @param filterSize size of the filters (in bytes)
+         */
+        public Stats(int filterSize) {
+            this.filterSize = filterSize;
+        }
+
+        /**
+         * Adds a filter to the group.
+         * @param ones number of bits set to 1 in the filter
+         */
+        public void add(int ones) {
+            double ratio = (double) ones / (8.0 * filterSize);
+            count++;
+            sumOnes += ones;
+            sumSquares += (double) ones * ones;
+            minOnes = Math.min(minOnes, ones);
+            maxOnes = Math.max(maxOnes, ones);
+            sumFpr += fpr(ratio);
+            sumKeys += keys(ratio, filterSize);
+            if (ratio > SATURATION_RATIO) saturated++;
+            int b = bucket(ones);
+            if (b >= histogram.length) histogram = Arrays.copyOf(histogram, b + 1);
+            histogram[b]++;
+        }
+
+        /**
+         * Adds the filters of another group to this one.
+         * @param other the other group
+         */
+        public void merge(Stats other) {
+            count += other.count;
+            sumOnes += other.sumOnes;
+            sumSquares += other.sumSquares;
+            minOnes = Math.min(minOnes, other.minOnes);
+            maxOnes = Math.max(maxOnes, other.maxOnes);
+            sumFpr += other.sumFpr;
+            sumKeys += other.sumKeys;
+            saturated += other.saturated;
+            if (other.histogram.length > histogram.length) histogram = Arrays.copyOf(histogram, other.histogram.length);
+            for (int i = 0; i < other.histogram.length; i++) histogram[i] += other.histogram[i];
+        }
+
+        /**
+         * Returns the average number of ones.
+         * @return the average number of ones
+         */
+        public double meanOnes() {
+            return (count > 0) ? (double) sumOnes / count : 0;
+        }
+
+        /**
+         * Returns the standard deviation of the number of ones.
+         * @return the standard deviation of the number of ones
+         */
+        public double stdOnes() {
+            if (count == 0) return 0;
+            double mean = meanOnes();
+            return Math.sqrt(Math.max(0, sumSquares / count - mean * mean));
+        }
+
+        /**
+         * Returns the average fill ratio.
+         * @return the average ratio between the number of ones and the number of bits
+         */
+        public double meanRatio() {
+            return meanOnes() / (8.0 * filterSize);
+        }
+
+        /**
+         * Returns a quantile of the number of ones, rounded up to the end of its bucket of the histogram
+         * (so that sizes derived from it are never underestimated).
+         * @param q the quantile (between 0 and 1)
+         * @return a number of ones such that a fraction q of the filters has at most as many ones
+         * (exact below <code>2 * </code>{@link #HISTOGRAM_PRECISION}, otherwise at most
+         * <code>1 / </code>{@link #HISTOGRAM_PRECISION} above the exact quantile)
+         */
+        public int onesQuantile(double q) {
+            if (count == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(q * count)), seen = 0;
+            for (int i = 0; i < histogram.length; i++) {
+                seen += histogram[i];
+                if (seen >= rank) return Math.max(minOnes, Math.min(maxOnes, bucketMax(i)));
+            }
+            return maxOnes;
+        }
+
+        /**
+         * Returns a quantile of the fill ratio.
+         * @param q the quantile (between 0 and 1)
+         * @return the fill ratio corresponding to {@link #onesQuantile(double)}
+         */
+        public double ratioQuantile(double q) {
+            return onesQuantile(q) / (8.0 * filterSize);
+        }
+
+        /**
+         * Returns the average false positive rate.
+         * @return the average probability that a key absent from a filter is reported as present
+         */
+        public double meanFpr() {
+            return (count > 0) ? sumFpr / count : 0;
+        }
+
+        /**
+         * Returns the average estimated number of keys.
+         * @return the average number of distinct keys of the filters
+         */
+        public double meanKeys() {
+            return (count > 0) ? sumKeys / count : 0;
+        }
+
+        /**
+         * Returns the fraction of saturated filters.
+         * @return the fraction of filters whose fill ratio exceeds {@link #SATURATION_RATIO}
+         */
+        public double saturatedFraction() {
+            return (count > 0) ? (double) saturated / count : 0;
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.err.println("Usage: FilterAnalyzer <input> <outputPrefix> [rangeSize] [numThreads] [lower] [upper]");
+            System.exit(1);
+        }
+        final String input = args[0];
+        final String outputPrefix = args[1];
+        int rangeSize = (args.length > 2) ? Integer.parseInt(args[2]) : DEFAULT_RANGE_SIZE;
+        int numThreads = (args.length > 3) ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+        int lower = (args.length > 4) ? Integer.parseInt(args[4]) : -1;
+        int upper = (args.length > 5) ? Integer.parseInt(args[5]) : -1;
+        if (rangeSize < 1) {
+            System.err.println("The range size must be positive");
+            System.exit(1);
+        }
+        long start = System.nanoTime();
+        try {
+            int[] bounds = {lower, upper};
+            Stats[][] ranges;
+            if (new File(input).isDirectory()) {
+                try (ChainIndex index = new ChainIndex(input, false)) {
+                    if (bounds[0] < 0) bounds[0] = index.getFirst();
+                    if (bounds[1] < 0) bounds[1] = index.getTip();
+                    if (bounds[0] < 0 || bounds[1] < 0) throw new IOException("The index does not record its first block and tip");
+                    ranges = analyze(index, bounds[0], bounds[1], rangeSize, numThreads);
+                }
+            }
+            else ranges = analyze(input, bounds, rangeSize, numThreads);
+            Stats[] levels = total(ranges);
+            long blocks = (levels.length > 0) ? levels[0].count : 0;
+            long elapsed = System.nanoTime() - start;
+            write(outputPrefix, input, bounds[0], bounds[1], rangeSize, ranges, levels, elapsed);
+            System.out.printf("Blocks analyzed:\t%d\nLevels:\t%d\nElapsed time:\t%d ns\n", blocks, levels.length, elapsed);
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Computes the statistics of the filters of a chain index database.
+     * @param index chain index database
+     * @param lower first block to be analyzed
+     * @param upper last block to be analyzed
+     * @param rangeSize number of blocks of each range
+     * @param numThreads number of threads
+     * @return the statistics of each range (first index) and level (second index);
+     * missing blocks are ignored and ranges without blocks have no levels
+     * @throws IOException if the analysis fails
+     * @throws InterruptedException if the analysis is interrupted
+     */
+    public static Stats[][] analyze(ChainIndex index, int lower, int upper, int rangeSize, int numThreads)
+    throws IOException, InterruptedException {
+        return parallel(lower, upper, rangeSize, numThreads, (l, u) -> {
+            List<Stats> levels = new ArrayList<>();
+            try (ChainIndex.Scanner scanner = index.scan(u, l)) {
+                while (scanner.next()) {
+                    BlockIndex b = scanner.value();
+                    int numEntries = b.skip.getNumEntries();
+                    for (int level = 0; level <= numEntries; level++) {
+                        BloomFilter bf = (level == 0) ? b.filter : b.skip.getEntry(level - 1);
+                        if (levels.size() <= level) levels.add(new Stats(bf.getSize()));
+                        levels.get(level).add(bf.countOnes());
+                    }
+                }
+            }
+            return levels.toArray(new Stats[0]);
+        });
+    }
+
+    /**
+     * Computes the statistics of the filters of a filter file (only level 0).
+     * @param filterFile path of the filter file
+     * @param bounds first and last block to be analyzed (negative values are replaced
+     * with the first and last block of the file)
+     * @param rangeSize number of blocks of each range
+     * @param numThreads number of threads
+     * @return the statistics of each range (first index) and level (second index)
+     * @throws IOException if the file cannot be read or is not valid
+     * @throws InterruptedException if the analysis is interrupted
+     */
+    public static Stats[][] analyze(String filterFile, int[] bounds, int rangeSize, int numThreads)
+    throws IOException, InterruptedException {
+        FilterFile header;
+        int firstBlock;
+        try (DataInputStream in = new DataInputStream(new FileInputStream(filterFile))) {
+            header = FilterFile.read(in);
+            firstBlock = in.readInt();
+        }
+        try (FileChannel channel = FileChannel.open(Paths.get(filterFile), StandardOpenOption.READ)) {
+            int headerSize = header.getHeaderSize(), filterSize = header.filterSize;
+            long entrySize = Integer.BYTES + filterSize;
+            long numBlocks = (channel.size() - headerSize) / entrySize;
+            if (numBlocks > Integer.MAX_VALUE - (long) firstBlock) throw new IOException("Too many blocks");
+            int lastBlock = (int) (firstBlock + numBlocks - 1);
+            if (bounds[0] < 0) bounds[0] = firstBlock;
+            if (bounds[1] < 0) bounds[1] = lastBlock;
+            if (bounds[0] < firstBlock || bounds[1] > lastBlock)
+                throw new IllegalArgumentException("The file contains blocks " + firstBlock + " to " + lastBlock);
+            return parallel(bounds[0], bounds[1], rangeSize, numThreads, (l, u) -> {
+                Stats stats = new Stats(filterSize);
+                ByteBuffer entry = ByteBuffer.allocate((int) entrySize);
+                byte[] filter = new byte[filterSize];
+                for (int id = l; id <= u; id++) {
+                    entry.clear();
+                    long position = headerSize + (id - firstBlock) * entrySize;
+                    while (entry.hasRemaining()) {
+                        if (channel.read(entry, position + entry.position()) < 0) throw new IOException("Truncated filter file");
+                    }
+                    if (entry.getInt(0) != id)
+                        throw new IllegalArgumentException("Expected block " + id + ", got " + entry.getInt(0));
+                    entry.position(Integer.BYTES);
+                    entry.get(filter);
+                    stats.add(Bits.countOnes(filter));
+                }
+                return new Stats[] {stats};
+            });
+        }
+    }
+
+    /**
+     * Task computing the statistics of a range of blocks.
+     */
+    private interface RangeTask {
+        /**
+         * Computes the statistics of a range of blocks.
+         * @param lower first block of the range
+         * @param upper last block of the range
+         * @return the statistics of each level
+         * @throws Exception if something goes wrong while reading the blocks
+         */
+        Stats[] run(int lower, int upper) throws Exception;
+    }
+
+    /**
+     * Runs a task on each range of blocks with parallel threads.
+     * @param lower first block
+     * @param upper last block
+     * @param rangeSize number of blocks of each range
+     * @param numThreads number of threads
+     * @param task the task
+     * @return the statistics of each range
+     * @throws IOException if the task throws an exception
+     * @throws InterruptedException if the execution is interrupted
+     */
+    private static Stats[][] parallel(int lower, int upper, int rangeSize, int numThreads, RangeTask task)
+    throws IOException, InterruptedException {
+        if (upper < lower) return new Stats[0][];
+        int numRanges = (int) (((long) upper - lower) / rangeSize + 1);
+        Stats[][] result = new Stats[numRanges][];
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try {
+            List<Future<Stats[]>> futures = new ArrayList<>();
+            for (int r = 0; r < numRanges; r++) {
+                int l = (int) (lower + (long) r * rangeSize), u = (int) Math.min(upper, l + (long) rangeSize - 1);
+                futures.add(executor.submit(() -> task.run(l, u)));
+            }
+            for (int r = 0; r < numRanges; r++) result[r] = futures.get(r).get();
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IOException(cause);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+        return result;
+    }
+
+    /**
+     * Merges the statistics of all ranges.
+     * @param ranges the statistics of each range and level
+     * @return the statistics of each level
+     */
+    public static Stats[] total(Stats[][] ranges) {
+        List<Stats> levels = new ArrayList<>();
+        for (Stats[] range : ranges) {
+            for (int level = 0; level < range.length; level++) {
+                if (levels.size() <= level) levels.add(new Stats(range[level].filterSize));
+                levels.get(level).merge(range[level]);
+            }
+        }
+        return levels.toArray(new Stats[0]);
+    }
+
+    /**
+     * Returns the bucket of the histograms including a number of ones.
+     * Values below <code>2 * </code>{@link #HISTOGRAM_PRECISION} have a bucket each, while larger values
+     * are split into {@link #HISTOGRAM_PRECISION} buckets for each power of two.
+     * @param ones number of ones (non-negative)
+     * @return the index of the bucket
+     */
+    public static int bucket(int ones) {
+        if (ones < 2 * HISTOGRAM_PRECISION) return ones;
+        int shift = Integer.numberOfTrailingZeros(HISTOGRAM_PRECISION);
+        int e = 31 - Integer.numberOfLeadingZeros(ones) - shift;
+        return (e + 1) * HISTOGRAM_PRECISION + (ones >> e) - HISTOGRAM_PRECISION;
+    }
+
+    /**
+     * Returns the smallest number of ones included in a bucket of the histograms.
+     * @param bucket index of the bucket
+     * @return the smallest number of ones of the bucket
+     */
+    public static int bucketMin(int bucket) {
+        if (bucket < 2 * HISTOGRAM_PRECISION) return bucket;
+        int e = bucket / HISTOGRAM_PRECISION - 1, m = bucket % HISTOGRAM_PRECISION + HISTOGRAM_PRECISION;
+        return m << e;
+    }
+
+    /**
+     * Returns the largest number of ones included in a bucket of the histograms.
+     * @param bucket index of the bucket
+     * @return the largest number of ones of the bucket
+     */
+    public static int bucketMax(int bucket) {
+        if (bucket < 2 * HISTOGRAM_PRECISION) return bucket;
+        int e = bucket / HISTOGRAM_PRECISION - 1, m = bucket % HISTOGRAM_PRECISION + HISTOGRAM_PRECISION;
+        return (int) Math.min(Integer.MAX_VALUE, (((long) m + 1) << e) - 1);
+    }
+
+    /**
+     * Computes the false positive rate of a filter for a single key.
+     * @param ratio fill ratio of the filter
+     * @return the probability that all bits associated with a key are set
+     */
+    public static double fpr(double ratio) {
+        return Math.pow(ratio, BloomFilter.NUM_HASH);
+    }
+
+    /**
+     * Estimates the number of distinct keys inserted into a filter from its fill ratio.
+     * Saturated filters are assumed to have all bits but one set, so the estimate is always finite.
+     * @param ratio fill ratio of the filter
+     * @param filterSize size of the filter (in bytes)
+     * @return the estimated number of keys
+     */
+    public static double keys(double ratio, int filterSize) {
+        double numBits = 8.0 * filterSize;
+        return -(numBits / BloomFilter.NUM_HASH) * Math.log(1 - Math.min(ratio, (numBits - 1) / numBits));
+    }
+
+    /**
+     * Computes the smallest filter size (a power of two) whose false positive rate does not exceed a target value.
+     * @param keys number of distinct keys of the filter
+     * @param fpr target false positive rate
+     * @return the size of the filter (in bytes)
+     */
+    public static int suggestedSize(double keys, double fpr) {
+        int k = BloomFilter.NUM_HASH;
+        double numBits = -k * keys / Math.log(1 - Math.pow(fpr, 1.0 / k));
+        int size = Long.BYTES;
+        while (size < (1 << 30) && 8.0 * size < numBits) size <<= 1;
+        return size;
+    }
+
+    /**
+     * Writes the output files.
+     * @param prefix prefix of the output files
+     * @param input path of the analyzed database or file
+     * @param lower first analyzed block
+     * @param upper last analyzed block
+     * @param rangeSize number of blocks of each range
+     * @param ranges statistics of each range and level
+     * @param levels statistics of each level over all ranges
+     * @param elapsed elapsed time (in nanoseconds)
+     * @throws IOException if something goes wrong while writing
+     */
+    private static void write(String prefix, String input, int lower, int upper, int rangeSize,
+    Stats[][] ranges, Stats[] levels, long elapsed) throws IOException {
+        try (PrintWriter out = new PrintWriter(prefix + "-ranges.csv")) {
+            out.println("lower,upper,level,filterSize,filters,meanOnes,stdOnes,minOnes,maxOnes," +
+            "meanRatio,p50Ones,p98Ones,meanFpr,saturated,meanKeys");
+            for (int r = 0; r < ranges.length; r++) {
+                long l = lower + (long) r * rangeSize, u = Math.min(upper, l + rangeSize - 1);
+                for (int level = 0; level < ranges[r].length; level++) {
+                    Stats s = ranges[r][level];
+                    out.println(String.format(Locale.ROOT, "%d,%d,%d,%d,%d,%.2f,%.2f,%d,%d,%.6f,%d,%d,%.6g,%.6f,%.2f",
+                    l, u, level, s.filterSize, s.count, s.meanOnes(), s.stdOnes(), s.minOnes, s.maxOnes,
+                    s.meanRatio(), s.onesQuantile(0.5), s.onesQuantile(0.98), s.meanFpr(), s.saturatedFraction(), s.meanKeys()));
+                }
+            }
+        }
+        try (PrintWriter out = new PrintWriter(prefix + "-histogram.csv")) {
+            out.println("level,minOnes,maxOnes,filters");
+            for (int level = 0; level < levels.length; level++) {
+                Stats s = levels[level];
+                for (int i = 0; i < s.histogram.length; i++) {
+                    if (s.histogram[i] > 0) out.println(level + "," + bucketMin(i) + "," + bucketMax(i) + "," + s.histogram[i]);
+                }
+            }
+        }
+        try (PrintWriter out = new PrintWriter(prefix + "-summary.json")) {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format(Locale.ROOT, "{\"input\":%s,\"lower\":%d,\"upper\":%d,\"rangeSize\":%d," +
+            "\"elapsedNanos\":%d,\"levels\":[", Json.quote(input), lower, upper, rangeSize, elapsed));
+            for (int level = 0; level < levels.length; level++) {
+                Stats s = levels[level];
+                double p98Keys = keys(s.ratioQuantile(0.98), s.filterSize);
+                if (level > 0) sb.append(',');
+                sb.append(String.format(Locale.ROOT, "{\"level\":%d,\"filterSize\":%d,\"filters\":%d," +
+                "\"meanOnes\":%.2f,\"stdOnes\":%.2f,\"minOnes\":%d,\"maxOnes\":%d,\"meanRatio\":%.6f," +
+                "\"p50Ones\":%d,\"p98Ones\":%d,\"meanFpr\":%.6g,\"saturated\":%.6f,\"meanKeys\":%.2f," +
+                "\"p98Keys\":%.2f,\"suggestedSize\":%d}", level, s.filterSize, s.count, s.meanOnes(), s.stdOnes(),
+                s.minOnes, s.maxOnes, s.meanRatio(), s.onesQuantile(0.5), s.onesQuantile(0.98), s.meanFpr(),
+                s.saturatedFraction(), s.meanKeys(), p98Keys, suggestedSize(p98Keys, TARGET_FPR)));
+            }
+            out.println(sb.append("]}").toString());
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package skip;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * This class describes the header of a filter file, i.e., the binary file
+ * produced by {@link BloomFilterBuilder} and {@link BloomFilterBuilderExt}.
+ *
+ * For standard filters, the header consists of 4 bytes representing the size of all Bloom filters,
+ * as in the original layout. For other formats, the header consists of the following fields.
+ *
+ * <ol>
+ *  <li>4 bytes containing the value {@link BlockIndex#MAGIC} (which is not a valid filter size,
+ *  since it is not a multiple of 8);</li>
+ *  <li>1 byte representing the format of the filters (see {@link BloomFilter#getFormat()});</li>
+ *  <li>1 byte of flags (currently always 0);</li>
+ *  <li>4 bytes representing the size of all Bloom filters (in bytes).</li>
+ * </ol>
+ *
+ * The fields have the same widths as those of the extended header of block indexes (see {@link BlockIndex}).
+ *
+ * @author Matteo Loporchio
+ */
+public class FilterFile {
+    /**
+     * Format of the filters in the file.
+     */
+    public final int format;
+
+    /**
+     * Size of the filters in the file (in bytes).
+     */
+    public final int filterSize;
+
+    /**
+     * Constructs a new filter file header.
+     * @param format format of the filters
+     * @param filterSize size of the filters (in bytes)
+     */
+    public FilterFile(int format, int filterSize) {
+        this.format = format;
+        this.filterSize = filterSize;
+    }
+
+    /**
+     * Returns the size of the header (in bytes).
+     * @return number of bytes occupied by the header
+     */
+    public int getHeaderSize() {
+        return (format == BloomFilter.STANDARD) ? Integer.BYTES : 2 * Integer.BYTES + 2;
+    }
+
+    /**
+     * Writes the header to an output stream.
+     * @param out the output stream
+     * @throws IOException if something goes wrong while writing
+     */
+    public void write(DataOutputStream out) throws IOException {
+        if (format != BloomFilter.STANDARD) {
+            out.writeInt(BlockIndex.MAGIC);
+            out.writeByte(format);
+            out.writeByte(0);
+        }
+        out.writeInt(filterSize);
+    }
+
+    /**
+     * Reads the header from an input stream.
+     * @param in the input stream
+     * @return the header of the file
+     * @throws IOException if something goes wrong while reading or the header is not valid
+     */
+    public static FilterFile read(DataInputStream in) throws IOException {
+        int first = in.readInt();
+        if (first % Long.BYTES == 0) return new FilterFile(BloomFilter.STANDARD, first);
+        if (first != BlockIndex.MAGIC) throw new IOException("Invalid filter file header");
+        int format = in.readByte();
+        if (in.readByte() != 0) throw new IOException("Unsupported filter file flags");
+        int filterSize = in.readInt();
+        return new FilterFile(format, filterSize);
+    }
+
+    /**
+     * Reopens a filter file to append the blocks following a checkpoint (see {@link BuildProgress.Checkpoint}).
+     * The blocks written after the checkpoint (possibly incomplete) are discarded.
+     * @param path path of the filter file
+     * @param expected the header the file must have
+     * @param size size of the file at the checkpoint (in bytes)
+     * @return an output stream appending to the file
+     * @throws IOException if the file cannot be opened or its header differs from the expected one
+     */
+    public static FileOutputStream resume(String path, FilterFile expected, long size) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(path))) {
+            FilterFile header = read(in);
+            if (header.format != expected.format || header.filterSize != expected.filterSize)
+                throw new IOException("The filter file has a different format or filter size");
+        }
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.WRITE)) {
+            if (channel.size() < size) throw new IOException("The filter file is shorter than its checkpoint");
+            channel.truncate(size);
+            channel.force(true);
+        }
+        return new FileOutputStream(path, true);
+    }
+}
@@ -0,0 +1,248 @@
+package skip;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A minimal JSON reader and writer, used by {@link QueryServer} to exchange queries and results.
+ * Objects are parsed as maps (preserving the order of the keys), arrays as lists,
+ * integral numbers as longs and the other numbers as doubles.
+ *
+ * @author Matteo Loporchio
+ */
+public final class Json {
+    /**
+     * The text being parsed.
+     */
+    private final String text;
+
+    /**
+     * Current position within the text.
+     */
+    private int pos;
+
+    /**
+     * Constructs a new parser.
+     * @param text the text to be parsed
+     */
+    private Json(String text) {
+        this.text = text;
+    }
+
+    /**
+     * Parses a JSON value.
+     * @param text the text to be parsed
+     * @return the value (a map, a list, a string, a long, a double, a boolean or null)
+     * @throws IllegalArgumentException if the text is not valid JSON
+     */
+    public static Object parse(String text) {
+        Json parser = new Json(text);
+        Object value = parser.value();
+        parser.skipSpaces();
+        if (parser.pos != text.length()) throw parser.error("Unexpected content");
+        return value;
+    }
+
+    /**
+     * Returns a string as a quoted JSON string.
+     * @param s the string
+     * @return the quoted string, with the special characters escaped
+     */
+    public static String quote(String s) {
+        StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"': sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+                    else sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    /**
+     * Parses the value at the current position.
+     * @return the value
+     */
+    private Object value() {
+        skipSpaces();
+        if (pos >= text.length()) throw error("Unexpected end of input");
+        char c = text.charAt(pos);
+        switch (c) {
+            case '{': return object();
+            case '[': return array();
+            case '"': return string();
+            case 't': return literal("true", Boolean.TRUE);
+            case 'f': return literal("false", Boolean.FALSE);
+            case 'n': return literal("null", null);
+            default:
+                if (c == '-' || (c >= '0' && c <= '9')) return number();
+                throw error("Unexpected character '" + c + "'");
+        }
+    }
+
+    /**
+     * Parses an object.
+     * @return the object as a map
+     */
+    private Map<String, Object> object() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        pos++;
+        skipSpaces();
+        if (peek() == '}') {
+            pos++;
+            return result;
+        }
+        while (true) {
+            skipSpaces();
+            if (peek() != '"') throw error("Expected a key");
+            String key = string();
+            skipSpaces();
+            expect(':');
+            result.put(key, value());
+            skipSpaces();
+            if (peek() == ',') pos++;
+            else {
+                expect('}');
+                return result;
+            }
+        }
+    }
+
+    /**
+     * Parses an array.
+     * @return the array as a list
+     */
+    private List<Object> array() {
+        List<Object> result = new ArrayList<>();
+        pos++;
+        skipSpaces();
+        if (peek() == ']') {
+            pos++;
+            return result;
+        }
+        while (true) {
+            result.add(value());
+            skipSpaces();
+            if (peek() == ',') pos++;
+            else {
+                expect(']');
+                return result;
+            }
+        }
+    }
+
+    /**
+     * Parses a string.
+     * @return the string without quotes and escapes
+     */
+    private String string() {
+        StringBuilder sb = new StringBuilder();
+        pos++;
+        while (true) {
+            if (pos >= text.length()) throw error("Unterminated string");
+            char c = text.charAt(pos++);
+            if (c == '"') return sb.toString();
+            if (c != '\\') {
+                sb.append(c);
+                continue;
+            }
+            if (pos >= text.length()) throw error("Unterminated string");
+            char e = text.charAt(pos++);
+            switch (e) {
+                case '"': case '\\': case '/': sb.append(e); break;
+                case 'b': sb.append('\b'); break;
+                case 'f': sb.append('\f'); break;
+                case 'n': sb.append('\n'); break;
+                case 'r': sb.append('\r'); break;
+                case 't': sb.append('\t'); break;
+                case 'u':
+                    if (pos + 4 > text.length()) throw error("Invalid escape");
+                    try {
+                        sb.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+                    }
+                    catch (NumberFormatException ex) {
+                        throw error("Invalid escape");
+                    }
+                    pos += 4;
+                    break;
+                default: throw error("Invalid escape");
+            }
+        }
+    }
+
+    /**
+     * Parses a number.
+     * @return the number (a long if integral, otherwise a double)
+     */
+    private Object number() {
+        int start = pos;
+        boolean integral = true;
+        while (pos < text.length()) {
+            char c = text.charAt(pos);
+            if (c == '.' || c == 'e' || c == 'E') integral = false;
+            else if (!(c == '-' || c == '+' || (c >= '0' && c <= '9'))) break;
+            pos++;
+        }
+        String s = text.substring(start, pos);
+        try {
+            return integral ? (Object) Long.parseLong(s) : (Object) Double.parseDouble(s);
+        }
+        catch (NumberFormatException ex) {
+            throw error("Invalid number " + s);
+        }
+    }
+
+    /**
+     * Parses a literal.
+     * @param word the expected literal
+     * @param value the value of the literal
+     * @return the value
+     */
+    private Object literal(String word, Object value) {
+        if (!text.startsWith(word, pos)) throw error("Unexpected literal");
+        pos += word.length();
+        return value;
+    }
+
+    /**
+     * Skips the whitespace at the current position.
+     */
+    private void skipSpaces() {
+        while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) pos++;
+    }
+
+    /**
+     * Returns the character at the current position.
+     * @return the character (0 at the end of the input)
+     */
+    private char peek() {
+        return (pos < text.length()) ? text.charAt(pos) : 0;
+    }
+
+    /**
+     * Consumes the expected character.
+     * @param c the character
+     */
+    private void expect(char c) {
+        if (peek() != c) throw error("Expected '" + c + "'");
+        pos++;
+    }
+
+    /**
+     * Returns a parsing error at the current position.
+     * @param message description of the error
+     * @return the exception
+     */
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException(message + " at position " + pos);
+    }
+}
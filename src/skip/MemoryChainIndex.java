@@ -0,0 +1,678 @@
+package skip;
+
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A read-only chain index fully resident in memory, which can be used in place of a {@link ChainIndex}
+ * by all queries (see {@link Query}) without any I/O.
+ *
+ * The block indexes are stored outside the Java heap, in direct buffers of at most {@link #SEGMENT_SIZE} bytes,
+ * so that millions of Bloom filters do not burden the garbage collector.
+ * Each block takes a fixed-size record with its filter followed by its skip entries, in the same byte order
+ * as the serialized block indexes. The searches based on BF skip indexes (see {@link Query#findFirst})
+ * probe the records in place with the bit positions of the searched keys (see {@link #test(int, int, int[])}),
+ * so visiting a block never allocates, copies or deserializes anything. Filters returned by {@link #get(int)}
+ * (e.g., for the other queries) are views reading the bits in place, but each call allocates a {@link BlockIndex},
+ * a {@link Skip}, an array of entries and one view for each filter (a few dozen bytes each, whatever the size of the filters).
+ * The amount of direct memory available to the JVM can be set with <code>-XX:MaxDirectMemorySize</code>.
+ *
+ * The index can be loaded either from a chain index database (see {@link #load(ChainIndex, int)}) or from a
+ * filter file (see {@link #load(String, int, int)}), in which case the BF skip indexes are computed in memory.
+ * In both cases, the records are loaded by parallel threads.
+ *
+ * @author Matteo Loporchio
+ */
+public class MemoryChainIndex extends ChainIndex {
+    /**
+     * Maximum size of each direct buffer (in bytes).
+     */
+    public static final int SEGMENT_SIZE = 1 << 30;
+
+    /**
+     * Number of chunks of blocks loaded by each thread (for load balancing).
+     */
+    public static final int CHUNKS_PER_THREAD = 4;
+
+    /**
+     * Direct buffers storing the records (none after the index has been closed).
+     */
+    private ByteBuffer[] segments;
+
+    /**
+     * Number of records of each buffer.
+     */
+    private final int recordsPerSegment;
+
+    /**
+     * Size of each record (in bytes).
+     */
+    private final int recordSize;
+
+    /**
+     * Format of the filters.
+     */
+    private final int format;
+
+    /**
+     * Size of the filters (in bytes).
+     */
+    private final int filterSize;
+
+    /**
+     * Number of skip entries of each block.
+     */
+    private final int numEntries;
+
+    /**
+     * Distances defining the skip entries of each block (see {@link Skip#getSpans()}).
+     */
+    private final int[] spans;
+
+    /**
+     * Identifier of the first block.
+     */
+    private final int first;
+
+    /**
+     * Identifier of the last block.
+     */
+    private final int tip;
+
+    /**
+     * Bit set of the blocks having a record (one bit for each block, starting from the first one).
+     */
+    private final long[] present;
+
+    /**
+     * Whether this object owns the buffers (false for the views returned by {@link #snapshot()}).
+     */
+    private final boolean owner;
+
+    /**
+     * Time spent to load the index (in nanoseconds).
+     */
+    private long loadTime;
+
+    /**
+     * Allocates an empty index.
+     * @param first identifier of the first block
+     * @param tip identifier of the last block
+     * @param format format of the filters
+     * @param filterSize size of the filters (in bytes)
+     * @param spans distances defining the skip entries of each block
+     */
+    private MemoryChainIndex(int first, int tip, int format, int filterSize, int[] spans) {
+        int numEntries = spans.length - 1;
+        long recordBytes = (long) (1 + numEntries) * filterSize;
+        if (recordBytes > SEGMENT_SIZE) throw new IllegalArgumentException("Block index too large: " + recordBytes + " bytes");
+        this.first = first;
+        this.tip = tip;
+        this.format = format;
+        this.filterSize = filterSize;
+        this.numEntries = numEntries;
+        this.spans = spans;
+        this.recordSize = (int) recordBytes;
+        this.recordsPerSegment = SEGMENT_SIZE / recordSize;
+        long numBlocks = (long) tip - first + 1;
+        this.segments = new ByteBuffer[(int) ((numBlocks + recordsPerSegment - 1) / recordsPerSegment)];
+        for (int s = 0; s < segments.length; s++) {
+            long records = Math.min(recordsPerSegment, numBlocks - (long) s * recordsPerSegment);
+            segments[s] = ByteBuffer.allocateDirect((int) (records * recordSize));
+        }
+        this.present = new long[(int) ((numBlocks + Long.SIZE - 1) / Long.SIZE)];
+        this.owner = true;
+    }
+
+    /**
+     * Constructs a view sharing the buffers of another index.
+     * @param other the index
+     */
+    private MemoryChainIndex(MemoryChainIndex other) {
+        this.segments = other.segments;
+        this.recordsPerSegment = other.recordsPerSegment;
+        this.recordSize = other.recordSize;
+        this.format = other.format;
+        this.filterSize = other.filterSize;
+        this.numEntries = other.numEntries;
+        this.spans = other.spans;
+        this.first = other.first;
+        this.tip = other.tip;
+        this.present = other.present;
+        this.loadTime = other.loadTime;
+        this.owner = false;
+    }
+
+    /**
+     * Loads all block indexes of a chain index database, from its first block to its tip.
+     * @param source chain index database
+     * @param numThreads number of loading threads
+     * @return the in-memory index
+     * @throws IOException if the database has no tip or its records are not valid
+     * @throws InterruptedException if the loading is interrupted
+     */
+    public static MemoryChainIndex load(ChainIndex source, int numThreads) throws IOException, InterruptedException {
+        if (source.getTip() < 0) throw new IOException("The database has no tip: the range of blocks must be given");
+        return load(source, source.getFirst(), source.getTip(), numThreads);
+    }
+
+    /**
+     * Loads the block indexes of a range of blocks from a chain index database.
+     * Blocks missing from the database are also missing from the in-memory index.
+     * @param source chain index database
+     * @param lower first block to be loaded
+     * @param upper last block to be loaded
+     * @param numThreads number of loading threads
+     * @return the in-memory index
+     * @throws IOException if the range is empty or the records are not valid
+     * @throws InterruptedException if the loading is interrupted
+     */
+    public static MemoryChainIndex load(ChainIndex source, int lower, int upper, int numThreads)
+    throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        if (lower < 0 || upper < lower) throw new IOException("Invalid range of blocks: " + lower + " to " + upper);
+        BlockIndex.Header reference = null;
+        try (ChainIndex.Scanner scan = source.scan(upper, lower)) {
+            if (scan.next()) reference = BlockIndex.readHeader(scan.bytes());
+        }
+        catch (IllegalArgumentException e) {
+            throw new IOException("Invalid block index", e);
+        }
+        if (reference == null) throw new IOException("No block index in the range");
+        final BlockIndex.Header ref = reference;
+        MemoryChainIndex result = new MemoryChainIndex(lower, upper, ref.format, ref.filterSize, ref.spans);
+        // Chunks are aligned to words of the bit set, so that threads never update the same word.
+        result.parallel(numThreads, (l, u) -> {
+            try (ChainIndex.Scanner scan = source.scan(u, l)) {
+                while (scan.next()) {
+                    byte[] data = scan.bytes();
+                    BlockIndex.Header h = BlockIndex.readHeader(data);
+                    if (h.format != ref.format || h.filterSize != ref.filterSize || !Arrays.equals(h.spans, ref.spans))
+                        throw new IllegalArgumentException("Inconsistent block index " + scan.id());
+                    if ((h.flags & (BlockIndex.FLAG_SPARSE | BlockIndex.FLAG_DEDUP)) != 0) 
+                        result.putRecord(scan.id(), source.decode(data));
+                    else result.putRecord(scan.id(), data, h.offset);
+                }
+            }
+        });
+        result.loadTime = System.nanoTime() - start;
+        return result;
+    }
+
+    /**
+     * Loads the Bloom filters of a filter file (see {@link FilterFile}) and computes their BF skip indexes.
+     * The blocks of the file must be consecutive. Heights are relative to the first block of the file,
+     * as in {@link ChainIndexBuilder}. Filters are read with positional reads by parallel threads,
+     * and the skip entries are then computed one level at a time (each level only depends on the previous one).
+     * @param filterFile path of the filter file
+     * @param numEntries number of skip entries of each block
+     * @param numThreads number of loading threads
+     * @return the in-memory index
+     * @throws IOException if the file cannot be read or is not valid
+     * @throws InterruptedException if the loading is interrupted
+     */
+    public static MemoryChainIndex load(String filterFile, int numEntries, int numThreads)
+    throws IOException, InterruptedException {
+        return load(filterFile, Skip.spans(2, numEntries), numThreads);
+    }
+
+    /**
+     * Loads the Bloom filters of a filter file and computes their BF skip indexes
+     * with the given distances between the entries (see {@link #load(String, int, int)}).
+     * @param filterFile path of the filter file
+     * @param spans distances defining the skip entries of each block (see {@link Skip#getSpans()})
+     * @param numThreads number of loading threads
+     * @return the in-memory index
+     * @throws IOException if the file cannot be read or is not valid
+     * @throws InterruptedException if the loading is interrupted
+     */
+    public static MemoryChainIndex load(String filterFile, int[] spans, int numThreads)
+    throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        FilterFile header;
+        int firstBlock;
+        try (DataInputStream in = new DataInputStream(new FileInputStream(filterFile))) {
+            header = FilterFile.read(in);
+            firstBlock = in.readInt();
+        }
+        try (FileChannel channel = FileChannel.open(Paths.get(filterFile), StandardOpenOption.READ)) {
+            int headerSize = header.getHeaderSize(), filterSize = header.filterSize;
+            long entrySize = Integer.BYTES + filterSize;
+            long numBlocks = (channel.size() - headerSize) / entrySize;
+            if (numBlocks > Integer.MAX_VALUE - (long) firstBlock) throw new IOException("Too many blocks");
+            MemoryChainIndex result = new MemoryChainIndex(firstBlock, (int) (firstBlock + numBlocks - 1),
+            header.format, filterSize, spans);
+            result.parallel(numThreads, (l, u) -> {
+                ByteBuffer entry = ByteBuffer.allocate((int) entrySize);
+                for (int id = l; id <= u; id++) {
+                    entry.clear();
+                    long position = headerSize + (id - firstBlock) * entrySize;
+                    while (entry.hasRemaining()) {
+                        if (channel.read(entry, position + entry.position()) < 0) throw new IOException("Truncated filter file");
+                    }
+                    if (entry.getInt(0) != id)
+                        throw new IllegalArgumentException("Expected block " + id + ", got " + entry.getInt(0));
+                    result.putRecord(id, entry.array(), Integer.BYTES);
+                }
+            });
+            for (int j = 0; j < spans.length - 1; j++) {
+                final int level = j;
+                result.parallel(numThreads, (l, u) -> {
+                    for (int id = l; id <= u; id++) result.computeEntry(id, level);
+                });
+            }
+            result.loadTime = System.nanoTime() - start;
+            return result;
+        }
+    }
+
+    /**
+     * Task loading a range of blocks.
+     */
+    private interface RangeTask {
+        /**
+         * Loads a range of blocks.
+         * @param lower first block of the range
+         * @param upper last block of the range
+         * @throws Exception if something goes wrong while loading
+         */
+        void run(int lower, int upper) throws Exception;
+    }
+
+    /**
+     * Runs a task on all blocks of the index, split into chunks executed by parallel threads.
+     * Chunks start at multiples of 64 blocks from the first one.
+     * @param numThreads number of threads
+     * @param task the task
+     * @throws IOException if the task throws an exception
+     * @throws InterruptedException if the execution is interrupted
+     */
+    private void parallel(int numThreads, RangeTask task) throws IOException, InterruptedException {
+        long numWords = present.length;
+        int numChunks = (int) Math.max(1, Math.min(numWords, (long) numThreads * CHUNKS_PER_THREAD));
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int c = 0; c < numChunks; c++) {
+                long lw = numWords * c / numChunks, uw = numWords * (c + 1) / numChunks;
+                int l = (int) (first + lw * Long.SIZE), u = (int) Math.min(tip, first + uw * Long.SIZE - 1);
+                futures.add(executor.submit(() -> {
+                    task.run(l, u);
+                    return null;
+                }));
+            }
+            for (Future<?> f : futures) f.get();
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            throw new IOException(cause);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Returns the buffer storing the record of a block.
+     * @param id block identifier
+     * @return the buffer
+     */
+    private ByteBuffer segment(int id) {
+        return segments[(id - first) / recordsPerSegment];
+    }
+
+    /**
+     * Returns the position of the record of a block within its buffer.
+     * @param id block identifier
+     * @return the position of the record
+     */
+    private int offset(int id) {
+        return ((id - first) % recordsPerSegment) * recordSize;
+    }
+
+    /**
+     * Copies a record (or a filter only) and marks the block as present.
+     * @param id block identifier
+     * @param data array containing the record
+     * @param from position of the record within the array
+     */
+    private void putRecord(int id, byte[] data, int from) {
+        int length = Math.min(recordSize, data.length - from);
+        segment(id).put(offset(id), data, from, length);
+        int r = id - first;
+        present[r >>> 6] |= Bits.mask(r);
+    }
+
+    /**
+     * Copies the filters of a block index and marks the block as present.
+     * @param id block identifier
+     * @param index the block index
+     */
+    private void putRecord(int id, BlockIndex index) {
+        ByteBuffer segment = segment(id);
+        int offset = offset(id);
+        for (int j = -1; j < numEntries; j++) {
+            long[] bits = ((j < 0) ? index.filter : index.skip.getEntry(j)).getBitSet();
+            int to = offset + (1 + j) * filterSize;
+            for (int k = 0; k < bits.length; k++) segment.putLong(to + k * Long.BYTES, bits[k]);
+        }
+        int r = id - first;
+        present[r >>> 6] |= Bits.mask(r);
+    }
+
+    /**
+     * Computes a skip entry of a block from the filters and lower entries of the previous blocks
+     * (see {@link ChainIndexBuilder#build} and {@link Skip#cover}).
+     * @param id block identifier
+     * @param j index of the entry
+     */
+    private void computeEntry(int id, int j) {
+        int height = id - first;
+        if (height - spans[j] < 0) return;
+        ByteBuffer dst = segment(id);
+        int to = offset(id) + (1 + j) * filterSize;
+        for (int[] part : Skip.cover(spans, j, height)) {
+            int src = id - part[0];
+            ByteBuffer s = segment(src);
+            int from = offset(src) + (1 + part[1]) * filterSize;
+            for (int k = 0; k < filterSize; k += Long.BYTES) dst.putLong(to + k, dst.getLong(to + k) | s.getLong(from + k));
+        }
+    }
+
+    /**
+     * Checks whether a block has a record.
+     * @param id block identifier
+     * @return true if and only if the block has been loaded
+     */
+    public boolean contains(int id) {
+        if (id < first || id > tip) return false;
+        int r = id - first;
+        return (present[r >>> 6] & Bits.mask(r)) != 0;
+    }
+
+    /**
+     * Checks whether all the given bit positions are set in a filter of a block, reading the record in place
+     * (as {@link BloomFilter#test(int[])} on the filters returned by {@link #get(int)}, without allocating them).
+     * @param id block identifier (the block must have been loaded, see {@link #contains(int)})
+     * @param entry index of the skip entry (-1 for the block filter)
+     * @param positions positions of the bits to be checked (for filters of the size and format of the index)
+     * @return true if and only if all bits are set
+     */
+    public boolean test(int id, int entry, int[] positions) {
+        ByteBuffer segment = segment(id);
+        int offset = offset(id) + (1 + entry) * filterSize;
+        for (int i = 0; i < positions.length; i++) {
+            if ((segment.getLong(offset + ((positions[i] >>> 6) << 3)) & Bits.mask(positions[i])) == 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the distances defining the skip entries of each block (see {@link Skip#getSpans()}).
+     * @return the distances
+     */
+    public int[] getSpans() {
+        return spans;
+    }
+
+    /**
+     * Returns the size of the filters.
+     * @return the size of the filters (in bytes)
+     */
+    public int getFilterSize() {
+        return filterSize;
+    }
+
+    /**
+     * Returns the format of the filters.
+     * @return the format of the filters
+     */
+    public int getFormat() {
+        return format;
+    }
+
+    /**
+     * Returns the {@link BlockIndex} associated with the block.
+     * Its filters are read-only views of the in-memory record: the record is not copied,
+     * but <code>numEntries + 4</code> small objects are allocated (see the class description).
+     * @param id block identifier
+     * @return the {@link BlockIndex} associated with the block (null if the block has not been loaded)
+     */
+    @Override
+    public BlockIndex get(int id) {
+        if (!contains(id)) return null;
+        ByteBuffer segment = segment(id);
+        int offset = offset(id);
+        BloomFilter[] entries = new BloomFilter[numEntries];
+        for (int j = 0; j < numEntries; j++) entries[j] = new View(segment, offset + (1 + j) * filterSize, filterSize, format);
+        return new BlockIndex(new View(segment, offset, filterSize, format), new Skip(entries, spans));
+    }
+
+    @Override
+    public byte[] getBytes(int id) {
+        BlockIndex index = get(id);
+        return (index != null) ? BlockIndex.serialize(index) : null;
+    }
+
+    @Override
+    public Scanner scan(int upper, int lower) {
+        return new MemoryScanner(upper, lower);
+    }
+
+    /**
+     * Scan of the in-memory records in decreasing order of identifier.
+     */
+    private class MemoryScanner extends ChainIndex.Scanner {
+        /**
+         * Lowest block identifier of the scan.
+         */
+        private final int lower;
+
+        /**
+         * Identifier of the current block.
+         */
+        private int id;
+
+        /**
+         * Constructs a new scanner.
+         * @param upper highest block identifier
+         * @param lower lowest block identifier
+         */
+        private MemoryScanner(int upper, int lower) {
+            this.lower = Math.max(lower, first);
+            this.id = (int) Math.min((long) upper, (long) tip) + 1;
+        }
+
+        @Override
+        public boolean next() {
+            while (--id >= lower) {
+                if (contains(id)) return true;
+            }
+            id = lower;
+            return false;
+        }
+
+        @Override
+        public int id() {
+            return id;
+        }
+
+        @Override
+        public BlockIndex value() {
+            return get(id);
+        }
+
+        @Override
+        public byte[] bytes() {
+            return getBytes(id);
+        }
+
+        @Override
+        public void close() {}
+    }
+
+    /**
+     * Returns a view sharing the records of the current index.
+     * Since the index is read-only, the view is always consistent; closing it does not release the records.
+     * @return the view
+     */
+    @Override
+    public ChainIndex snapshot() {
+        return new MemoryChainIndex(this);
+    }
+
+    @Override
+    public int getTip() {
+        return tip;
+    }
+
+    @Override
+    public int getFirst() {
+        return first;
+    }
+
+    @Override
+    public byte[] getMeta(String name) {
+        return null;
+    }
+
+    @Override
+    public void put(int id, BlockIndex index) {
+        throw new UnsupportedOperationException("In-memory chain indexes are read-only");
+    }
+
+    @Override
+    public int append(int id, BlockIndex index) {
+        throw new UnsupportedOperationException("In-memory chain indexes are read-only");
+    }
+
+    @Override
+    public void truncate(int tip) {
+        throw new UnsupportedOperationException("In-memory chain indexes are read-only");
+    }
+
+    @Override
+    public void remove(int lower, int upper) {
+        throw new UnsupportedOperationException("In-memory chain indexes are read-only");
+    }
+
+    @Override
+    public void clear() {
+        throw new UnsupportedOperationException("In-memory chain indexes are read-only");
+    }
+
+    @Override
+    public void compact(int lower, int upper) {}
+
+    @Override
+    public void putMeta(String name, byte[] value, boolean sync) {
+        throw new UnsupportedOperationException("In-memory chain indexes are read-only");
+    }
+
+    /**
+     * Prefetching is not needed, since all records are in memory.
+     * @param numThreads ignored
+     */
+    @Override
+    public void enablePrefetching(int numThreads) {}
+
+    /**
+     * Returns the time spent to load the index.
+     * @return the loading time (in nanoseconds)
+     */
+    public long getLoadTime() {
+        return loadTime;
+    }
+
+    /**
+     * Returns the amount of memory used by the index, i.e., the size of all buffers and of the bit set of loaded blocks.
+     * @return the number of bytes
+     */
+    public long getResidentSize() {
+        long size = (long) present.length * Long.BYTES;
+        for (ByteBuffer segment : segments) size += segment.capacity();
+        return size;
+    }
+
+    /**
+     * Releases the buffers (their memory is reclaimed once they are no longer referenced, e.g., by views).
+     */
+    @Override
+    public void close() {
+        if (owner) segments = new ByteBuffer[0];
+    }
+
+    /**
+     * Read-only Bloom filter stored in a direct buffer.
+     */
+    private static class View extends BloomFilter {
+        /**
+         * The buffer.
+         */
+        private final ByteBuffer buffer;
+
+        /**
+         * Position of the filter within the buffer.
+         */
+        private final int offset;
+
+        /**
+         * Constructs a new view.
+         * @param buffer the buffer
+         * @param offset position of the filter within the buffer
+         * @param size size of the filter
+         * @param format format of the filter
+         */
+        private View(ByteBuffer buffer, int offset, int size, int format) {
+            super(size, format, null);
+            this.buffer = buffer;
+            this.offset = offset;
+        }
+
+        @Override
+        protected boolean get(int i) {
+            return (buffer.getLong(offset + ((i >>> 6) << 3)) & Bits.mask(i)) != 0;
+        }
+
+        @Override
+        protected void set(int i) {
+            throw new UnsupportedOperationException("In-memory filters are read-only");
+        }
+
+        @Override
+        public void merge(BloomFilter bf) {
+            throw new UnsupportedOperationException("In-memory filters are read-only");
+        }
+
+        /**
+         * Returns a copy of the bits of the filter.
+         * @return a new array with the bits of the filter
+         */
+        @Override
+        public long[] getBitSet() {
+            long[] bits = new long[getSize() / Long.BYTES];
+            for (int k = 0; k < bits.length; k++) bits[k] = buffer.getLong(offset + k * Long.BYTES);
+            return bits;
+        }
+
+        @Override
+        public int countOnes() {
+            int count = 0;
+            for (int k = 0; k < getSize(); k += Long.BYTES) count += Long.bitCount(buffer.getLong(offset + k));
+            return count;
+        }
+    }
+}
@@ -0,0 +1,526 @@
+package skip;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import com.google.common.primitives.Bytes;
+import com.google.common.primitives.Ints;
+
+import org.iq80.leveldb.*;
+import static org.fusesource.leveldbjni.JniDBFactory.*;
+
+/**
+ * An inverted index mapping events to the sorted lists of blocks where they occur (posting lists).
+ * Unlike BF skip indexes, posting lists are exact, so queries on indexed events never
+ * visit blocks without an occurrence. Only frequent events are indexed (see {@link #finish(int)}):
+ * queries on the other events fall back to the BF skip index (see {@link Query}).
+ *
+ * Each event is identified by the concatenation of its address and signature digest.
+ * Its posting list is split into chunks of at most {@link #CHUNK_SIZE} block identifiers, stored in
+ * a LevelDB database with key <code>address || signature || first</code>, where <code>first</code>
+ * is the first block of the chunk (as a big-endian integer). A chunk stores the number of blocks
+ * and the first block as variable-length integers, followed by the gaps between consecutive blocks
+ * (delta and varint encoding, see {@link Bits#writeVarint}). The chunk including a block is found with a single database seek,
+ * and the block is then located within the chunk by binary search.
+ *
+ * The posting lists cover the blocks up to the one given to {@link #finish(int, int)} (see {@link #getCovered()}):
+ * blocks appended later are not indexed and must be searched with the BF skip index, as done by {@link Query}.
+ * Blocks removed from the chain (e.g., after a reorganization) must be discarded with {@link #invalidateFrom(int)}
+ * (see also {@link ChainWriter#addRollbackListener}).
+ *
+ * @author Matteo Loporchio
+ */
+public class PostingIndex implements AutoCloseable {
+    /**
+     * Maximum number of blocks of each chunk.
+     */
+    public static final int CHUNK_SIZE = 128;
+
+    /**
+     * Size of the event part of the keys.
+     */
+    public static final int EVENT_KEY_LENGTH = Event.ADDRESS_LENGTH + Event.TOPIC_LENGTH;
+
+    /**
+     * Name of the metadata entry storing the last block covered by the posting lists.
+     * Its key cannot collide with the keys of the chunks, which are longer.
+     */
+    public static final String COVERED_KEY = "covered";
+
+    /**
+     * Default amount of memory used by the posting lists being built (in bytes, see {@link #setMemoryBudget(long)}).
+     */
+    public static final long DEFAULT_MEMORY_BUDGET = 1L << 30;
+
+    /**
+     * Estimated memory used by each event with pending blocks, besides the blocks (in bytes).
+     */
+    private static final int PENDING_OVERHEAD = 192;
+
+    /**
+     * The underlying LevelDB database.
+     */
+    private final DB postingIndex;
+
+    /**
+     * Last block covered by the posting lists (-1 if unknown).
+     */
+    private volatile int covered;
+
+    /**
+     * Posting lists being built (see {@link #add(Event, int)}): pending blocks of each event.
+     */
+    private Map<ByteBuffer, Pending> pending;
+
+    /**
+     * Estimated memory used by the pending blocks (in bytes).
+     */
+    private long pendingBytes;
+
+    /**
+     * Maximum memory used by the pending blocks before they are written to the database (in bytes).
+     */
+    private long memoryBudget = DEFAULT_MEMORY_BUDGET;
+
+    /**
+     * Number of times the pending blocks have been written because of the memory budget.
+     */
+    private int flushes;
+
+    /**
+     * Last block added to the posting lists.
+     */
+    private int currentBlock;
+
+    /**
+     * Part of a posting list being built.
+     */
+    private static class Pending {
+        /**
+         * Blocks not yet written to the database.
+         */
+        int[] ids = new int[4];
+
+        /**
+         * Number of blocks not yet written to the database.
+         */
+        int size;
+
+        /**
+         * Number of blocks added since the pending blocks were last flushed.
+         */
+        int count;
+
+        /**
+         * Last block added (to ignore repeated occurrences in the same block).
+         */
+        int last = -1;
+
+        /**
+         * Whether a full chunk has been written since the pending blocks were last flushed.
+         */
+        boolean written;
+    }
+
+    /**
+     * Constructs a new posting index database.
+     * @param postingIndexPath path of the database
+     * @param createIfMissing whether the database should be created if not existing
+     * @throws IOException if something goes wrong while opening the database
+     */
+    public PostingIndex(String postingIndexPath, boolean createIfMissing) throws IOException {
+        this(postingIndexPath, createIfMissing, DbOptions.DEFAULT);
+    }
+
+    /**
+     * Constructs a new posting index database with the given LevelDB settings.
+     * @param postingIndexPath path of the database
+     * @param createIfMissing whether the database should be created if not existing
+     * @param options LevelDB settings
+     * @throws IOException if something goes wrong while opening the database
+     */
+    public PostingIndex(String postingIndexPath, boolean createIfMissing, DbOptions options) throws IOException {
+        this.postingIndex = factory.open(new File(postingIndexPath), options.toOptions(createIfMissing));
+        byte[] value = postingIndex.get(metaKey(COVERED_KEY));
+        this.covered = (value != null) ? Ints.fromByteArray(value) : -1;
+    }
+
+    /**
+     * Returns the key of a metadata entry, which must not collide with the keys of the chunks.
+     * @param name name of the metadata entry
+     * @return the key of the entry
+     */
+    private static byte[] metaKey(String name) {
+        byte[] key = name.getBytes(StandardCharsets.UTF_8);
+        if (key.length == EVENT_KEY_LENGTH + Integer.BYTES) 
+            throw new IllegalArgumentException("Metadata names cannot be " + key.length + " bytes long");
+        return key;
+    }
+
+    /**
+     * Returns the last block covered by the posting lists: more recent blocks are not indexed.
+     * @return the identifier of the block (-1 if no block is covered, e.g., if the index has not been completed)
+     */
+    public int getCovered() {
+        return covered;
+    }
+
+    /**
+     * Sets the last block covered by the posting lists, with a synchronous write.
+     * @param id identifier of the block
+     */
+    private void setCovered(int id) {
+        postingIndex.put(metaKey(COVERED_KEY), Ints.toByteArray(id), new WriteOptions().sync(true));
+        covered = id;
+    }
+
+    /**
+     * Excludes the blocks from the given one onwards from the posting lists (e.g., after a rollback):
+     * queries on those blocks fall back to the BF skip index, even if they are appended again.
+     * @param id identifier of the first invalid block
+     */
+    public synchronized void invalidateFrom(int id) {
+        if (covered >= id) setCovered(id - 1);
+    }
+
+    /**
+     * Sets the maximum amount of memory used by the posting lists being built. When it is reached,
+     * the pending blocks are written to the database as partial chunks, and the lists of the events
+     * with too few occurrences are removed by {@link #finish(int, int)}.
+     * @param bytes memory budget (in bytes)
+     */
+    public void setMemoryBudget(long bytes) {
+        if (bytes <= 0) throw new IllegalArgumentException("Invalid memory budget: " + bytes);
+        this.memoryBudget = bytes;
+    }
+
+    /**
+     * Returns the key identifying an event in the posting index.
+     * @param e the event
+     * @return the key of the event (null if the event cannot be indexed, e.g., if it is a pattern)
+     */
+    public static byte[] eventKey(Event e) {
+        if (e.address == null || e.signature == null || e.topics != null) return null;
+        return Bytes.concat(e.address, e.signature);
+    }
+
+    /**
+     * Checks whether an event has a posting list.
+     * @param e the event
+     * @return true if and only if queries on the event can be answered by this index
+     */
+    public boolean isIndexed(Event e) {
+        byte[] prefix = eventKey(e);
+        if (prefix == null) return false;
+        try (DBIterator it = postingIndex.iterator()) {
+            it.seek(prefix);
+            return it.hasNext() && hasPrefix(it.peekNext().getKey(), prefix);
+        }
+        catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Returns the most recent block containing an event within a range.
+     * @param e the event (must be indexed, see {@link #isIndexed(Event)})
+     * @param lower lower endpoint of the range
+     * @param upper upper endpoint of the range
+     * @return the identifier of the block (-1 if the event does not occur in the range)
+     */
+    public int findFirst(Event e, int lower, int upper) {
+        QueryResult result = new QueryResult();
+        find(e, lower, upper, true, QueryLimits.NONE, result);
+        return result.id;
+    }
+
+    /**
+     * Returns all blocks containing an event within a range.
+     * @param e the event (must be indexed, see {@link #isIndexed(Event)})
+     * @param lower lower endpoint of the range
+     * @param upper upper endpoint of the range
+     * @return the identifiers of the blocks, from the most recent to the oldest one
+     */
+    public List<Integer> findAll(Event e, int lower, int upper) {
+        QueryResult result = new QueryResult();
+        result.ids = new ArrayList<>();
+        find(e, lower, upper, false, QueryLimits.NONE, result);
+        return result.ids;
+    }
+
+    /**
+     * Collects the blocks containing an event within a range, with bounded work.
+     * Each block read from the posting list counts as a visited block of the result.
+     * If a limit is reached, the result is partial and the unsearched range 
+     * goes from <code>lower</code> to the block that was about to be visited.
+     * @param e the event
+     * @param lower lower endpoint of the range
+     * @param upper upper endpoint of the range
+     * @param firstOnly whether only the most recent block is needed
+     * @param limits limits on the work performed by the query
+     * @param result result where the blocks are added: if <code>firstOnly</code> is false, 
+     * its list <code>ids</code> must not be null, and its first block is also stored in <code>id</code>
+     */
+    public void find(Event e, int lower, int upper, boolean firstOnly, QueryLimits limits, QueryResult result) {
+        byte[] prefix = eventKey(e);
+        if (prefix == null || upper < lower || upper < 0) return;
+        try (DBIterator it = postingIndex.iterator()) {
+            // Find the last chunk starting at or before the upper endpoint.
+            // Keys are compared as unsigned bytes, so upper + 1 is also correct if it overflows.
+            Map.Entry<byte[], byte[]> entry;
+            it.seek(Bytes.concat(prefix, Ints.toByteArray(upper + 1)));
+            if (it.hasNext()) entry = previous(it);
+            else {
+                it.seekToLast();
+                entry = it.hasNext() ? it.peekNext() : null;
+            }
+            // Scan the chunks backwards.
+            while (entry != null && hasPrefix(entry.getKey(), prefix)) {
+                int[] ids = decode(entry.getValue());
+                int pos = Arrays.binarySearch(ids, upper);
+                if (pos < 0) pos = -pos - 2;
+                for (int i = pos; i >= 0; i--) {
+                    if (ids[i] < lower) return;
+                    int status = limits.check(result.count);
+                    if (status != QueryResult.COMPLETE) {
+                        result.stop(status, lower, ids[i]);
+                        return;
+                    }
+                    result.count++;
+                    if (result.id < 0) result.id = ids[i];
+                    if (firstOnly) return;
+                    result.ids.add(ids[i]);
+                }
+                entry = previous(it);
+            }
+        }
+        catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Moves an iterator to the previous entry.
+     * @param it the iterator
+     * @return the previous entry (null if not existing)
+     */
+    private static Map.Entry<byte[], byte[]> previous(DBIterator it) {
+        try {
+            return it.prev();
+        }
+        catch (NoSuchElementException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Checks whether a chunk key belongs to an event.
+     * @param key the chunk key
+     * @param prefix the event key
+     * @return true if and only if the key starts with the event key
+     */
+    private static boolean hasPrefix(byte[] key, byte[] prefix) {
+        if (key.length != prefix.length + Integer.BYTES) return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (key[i] != prefix[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Adds an occurrence of an event to its posting list.
+     * Blocks must be added in increasing order and lists are only written
+     * by {@link #finish(int, int)}, when a chunk is full or when the memory budget is reached
+     * (see {@link #setMemoryBudget(long)}). The last covered block is cleared until the lists are completed.
+     * @param e the event
+     * @param blockId identifier of the block
+     */
+    public void add(Event e, int blockId) {
+        if (pending == null) {
+            pending = new HashMap<>();
+            pendingBytes = 0;
+            flushes = 0;
+            currentBlock = blockId;
+            postingIndex.delete(metaKey(COVERED_KEY));
+            covered = -1;
+        }
+        // Pending blocks are only flushed between two blocks, so that repeated occurrences are always detected.
+        if (blockId != currentBlock) {
+            if (pendingBytes >= memoryBudget) flush();
+            currentBlock = blockId;
+        }
+        ByteBuffer key = ByteBuffer.wrap(eventKey(e));
+        Pending p = pending.get(key);
+        if (p == null) {
+            p = new Pending();
+            pending.put(key, p);
+            pendingBytes += PENDING_OVERHEAD + (long) Integer.BYTES * p.ids.length;
+        }
+        if (p.last == blockId) return;
+        p.last = blockId;
+        p.count++;
+        if (p.size == p.ids.length) {
+            int length = Math.min(2 * p.ids.length, CHUNK_SIZE);
+            pendingBytes += (long) Integer.BYTES * (length - p.ids.length);
+            p.ids = Arrays.copyOf(p.ids, length);
+        }
+        p.ids[p.size++] = blockId;
+        if (p.size == CHUNK_SIZE) {
+            putChunk(key.array(), p.ids, p.size);
+            p.written = true;
+            p.size = 0;
+        }
+    }
+
+    /**
+     * Writes the pending blocks of all events as partial chunks and releases their memory.
+     */
+    private void flush() {
+        for (Map.Entry<ByteBuffer, Pending> p : pending.entrySet()) {
+            if (p.getValue().size > 0) putChunk(p.getKey().array(), p.getValue().ids, p.getValue().size);
+        }
+        pending.clear();
+        pendingBytes = 0;
+        flushes++;
+    }
+
+    /**
+     * Completes the posting lists of the events with at least the given number of occurrences
+     * and removes those of the other events. If the memory budget has been reached, the number of
+     * occurrences of each event is counted by a sequential scan of the database.
+     * @param minOccurrences minimum number of blocks of the indexed events
+     * @param lastBlock last block covered by the posting lists (see {@link #getCovered()})
+     * @return the number of indexed events
+     */
+    public int finish(int minOccurrences, int lastBlock) {
+        int indexed = 0;
+        if (pending != null && flushes == 0) {
+            for (Map.Entry<ByteBuffer, Pending> p : pending.entrySet()) {
+                byte[] key = p.getKey().array();
+                Pending list = p.getValue();
+                if (list.count >= minOccurrences) {
+                    if (list.size > 0) putChunk(key, list.ids, list.size);
+                    indexed++;
+                }
+                else if (list.written) delete(key);
+            }
+        }
+        else if (pending != null) {
+            flush();
+            indexed = prune(minOccurrences);
+        }
+        pending = null;
+        setCovered(lastBlock);
+        return indexed;
+    }
+
+    /**
+     * Removes the posting lists with fewer than the given number of blocks.
+     * @param minOccurrences minimum number of blocks of the indexed events
+     * @return the number of remaining posting lists
+     */
+    private int prune(int minOccurrences) {
+        int indexed = 0;
+        try (DBIterator it = postingIndex.iterator()) {
+            List<byte[]> keys = new ArrayList<>();
+            byte[] prefix = null;
+            long total = 0;
+            for (it.seekToFirst(); ; it.next()) {
+                Map.Entry<byte[], byte[]> entry = it.hasNext() ? it.peekNext() : null;
+                // Chunks of the same event are adjacent: a list is complete when the event key changes.
+                if (entry != null && entry.getKey().length != EVENT_KEY_LENGTH + Integer.BYTES) continue;
+                if (prefix != null && (entry == null || !hasPrefix(entry.getKey(), prefix))) {
+                    if (total >= minOccurrences) indexed++;
+                    else {
+                        try (WriteBatch batch = postingIndex.createWriteBatch()) {
+                            for (byte[] k : keys) batch.delete(k);
+                            postingIndex.write(batch);
+                        }
+                    }
+                    keys.clear();
+                    total = 0;
+                    prefix = null;
+                }
+                if (entry == null) break;
+                if (prefix == null) prefix = Arrays.copyOf(entry.getKey(), EVENT_KEY_LENGTH);
+                keys.add(entry.getKey());
+                total += Bits.readVarint(entry.getValue(), new int[1]);
+            }
+        }
+        catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+        return indexed;
+    }
+
+    /**
+     * Writes a chunk of a posting list.
+     * @param key event key
+     * @param buf buffer of blocks
+     * @param length number of blocks
+     */
+    private void putChunk(byte[] key, int[] buf, int length) {
+        int[] ids = Arrays.copyOf(buf, length);
+        postingIndex.put(Bytes.concat(key, Ints.toByteArray(ids[0])), encode(ids));
+    }
+
+    /**
+     * Removes all chunks of a posting list.
+     * @param key event key
+     */
+    private void delete(byte[] key) {
+        try (DBIterator it = postingIndex.iterator()) {
+            List<byte[]> keys = new ArrayList<>();
+            for (it.seek(key); it.hasNext(); it.next()) {
+                byte[] k = it.peekNext().getKey();
+                if (!hasPrefix(k, key)) break;
+                keys.add(k);
+            }
+            for (byte[] k : keys) postingIndex.delete(k);
+        }
+        catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Encodes a sorted list of block identifiers with delta and varint encoding.
+     * @param ids the identifiers
+     * @return the encoded chunk
+     */
+    public static byte[] encode(int[] ids) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(ids.length + 8);
+        Bits.writeVarint(out, ids.length);
+        for (int i = 0; i < ids.length; i++) Bits.writeVarint(out, (i == 0) ? ids[0] : ids[i] - ids[i - 1]);
+        return out.toByteArray();
+    }
+
+    /**
+     * Decodes a chunk of block identifiers.
+     * @param data the encoded chunk
+     * @return the identifiers
+     */
+    public static int[] decode(byte[] data) {
+        int[] pos = new int[1];
+        int[] ids = new int[Bits.readVarint(data, pos)];
+        for (int i = 0; i < ids.length; i++) ids[i] = (i == 0) ? Bits.readVarint(data, pos) : ids[i - 1] + Bits.readVarint(data, pos);
+        return ids;
+    }
+
+    /**
+     * Closes the current database.
+     */
+    @Override
+    public void close() throws IOException {
+        postingIndex.close();
+    }
+}
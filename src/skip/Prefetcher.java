@@ -0,0 +1,133 @@
+package skip;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.IntFunction;
+
+/**
+ * Asynchronous loader of database records identified by block identifiers.
+ * Records requested with {@link #prefetch(int)} are loaded by a small pool of I/O threads,
+ * so that the blocking reads overlap with the computation of the caller.
+ * A later call to {@link #get(int)} returns the prefetched record (waiting for it if needed)
+ * or loads it synchronously if it was never prefetched.
+ * At most <code>capacity</code> records are kept: the oldest ones are discarded
+ * when the limit is exceeded (e.g., when a query ends before using them).
+ *
+ * @author Matteo Loporchio
+ */
+public class Prefetcher<T> implements AutoCloseable {
+    /**
+     * Pool of I/O threads.
+     */
+    private final ExecutorService executor;
+
+    /**
+     * Procedure loading a record from the database.
+     */
+    private final IntFunction<T> loader;
+
+    /**
+     * Pending and completed loads, in insertion order.
+     */
+    private final Map<Integer, Future<T>> pending;
+
+    /**
+     * Constructs a new prefetcher.
+     * @param loader procedure loading a record given the block identifier
+     * @param numThreads number of I/O threads
+     * @param capacity maximum number of records waiting to be consumed
+     */
+    public Prefetcher(IntFunction<T> loader, int numThreads, int capacity) {
+        this.loader = loader;
+        this.executor = Executors.newFixedThreadPool(numThreads, (r) -> {
+            Thread t = new Thread(r, "prefetcher");
+            t.setDaemon(true);
+            return t;
+        });
+        this.pending = new LinkedHashMap<Integer, Future<T>>() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Future<T>> eldest) {
+                if (size() <= capacity) return false;
+                eldest.getValue().cancel(false);
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Starts loading a record in the background (if it is not already being loaded).
+     * @param id block identifier
+     */
+    public void prefetch(int id) {
+        synchronized (pending) {
+            if (pending.containsKey(id)) return;
+            pending.put(id, executor.submit(() -> loader.apply(id)));
+        }
+    }
+
+    /**
+     * Returns a record, using the prefetched copy if available.
+     * @param id block identifier
+     * @return the record associated with the block
+     */
+    public T get(int id) {
+        Future<T> f;
+        synchronized (pending) {
+            f = pending.remove(id);
+        }
+        if (f == null || f.isCancelled()) return loader.apply(id);
+        try {
+            return f.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return loader.apply(id);
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * Discards the prefetched records of a range of blocks (e.g., after they have been overwritten or removed),
+     * so that later reads load them again. Loads still running are cancelled or their result is ignored.
+     * @param lower lowest block identifier
+     * @param upper highest block identifier
+     */
+    public void invalidate(int lower, int upper) {
+        synchronized (pending) {
+            pending.entrySet().removeIf((e) -> {
+                if (e.getKey() < lower || e.getKey() > upper) return false;
+                e.getValue().cancel(false);
+                return true;
+            });
+        }
+    }
+
+    /**
+     * Discards all prefetched records.
+     */
+    public void clear() {
+        synchronized (pending) {
+            for (Future<T> f : pending.values()) f.cancel(false);
+            pending.clear();
+        }
+    }
+
+    /**
+     * Stops the I/O threads.
+     */
+    @Override
+    public void close() {
+        clear();
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,114 @@
+package skip;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A read-only Bloom filter paired with a smaller pre-filter obtained by folding it (see {@link BloomFilter#fold(int)}).
+ * Membership tests probe the pre-filter first and only touch the full filter if all bits are set in the pre-filter,
+ * so most negative tests only read a few cache-resident words (see {@link BlockIndex#FLAG_PREFILTER}).
+ *
+ * The full filter is not copied: its bits are read in place from the serialized record,
+ * which is only converted to an array of longs if the whole bit set is needed (e.g., for merging).
+ *
+ * @author Matteo Loporchio
+ */
+public class PrefilteredBloomFilter extends BloomFilter {
+    /**
+     * Serialized record containing the full filter.
+     */
+    private final byte[] data;
+
+    /**
+     * Position of the full filter within the record.
+     */
+    private final int offset;
+
+    /**
+     * Bits of the pre-filter.
+     */
+    private final long[] prefilter;
+
+    /**
+     * Number of bits of the pre-filter.
+     */
+    private final int prefilterBits;
+
+    /**
+     * Constructs a new filter.
+     * @param data serialized record containing the full filter
+     * @param offset position of the full filter within the record
+     * @param size size of the full filter (in bytes)
+     * @param format format of the filter
+     * @param prefilter bits of the pre-filter (the full filter folded to a smaller size)
+     */
+    public PrefilteredBloomFilter(byte[] data, int offset, int size, int format, long[] prefilter) {
+        super(size, format, null);
+        this.data = data;
+        this.offset = offset;
+        this.prefilter = prefilter;
+        this.prefilterBits = prefilter.length * Long.SIZE;
+    }
+
+    /**
+     * Returns the size of the pre-filter.
+     * @return the number of bytes of the pre-filter
+     */
+    public int getPrefilterSize() {
+        return prefilter.length * Long.BYTES;
+    }
+
+    /**
+     * Returns the pre-filter.
+     * @return a filter with the bits of the pre-filter
+     */
+    public BloomFilter getPrefilter() {
+        return new BloomFilter(Bits.toByteArray(prefilter), getFormat());
+    }
+
+    @Override
+    public boolean contains(byte[] element) {
+        return test(positions(element));
+    }
+
+    @Override
+    public boolean test(int[] positions) {
+        // Positions are reduced modulo the size of the pre-filter, as if computed for the folded filter.
+        for (int i = 0; i < positions.length; i++) {
+            int p = positions[i] % prefilterBits;
+            if ((prefilter[p >>> 6] & Bits.mask(p)) == 0) return false;
+        }
+        return super.test(positions);
+    }
+
+    @Override
+    protected boolean get(int i) {
+        // Longs are serialized in big-endian order, so the bit order of Bits#mask is preserved within each byte.
+        return (data[offset + (i >>> 3)] & (0x80 >>> (i & 7))) != 0;
+    }
+
+    @Override
+    protected void set(int i) {
+        throw new UnsupportedOperationException("Pre-filtered filters are read-only");
+    }
+
+    @Override
+    public void merge(BloomFilter bf) {
+        throw new UnsupportedOperationException("Pre-filtered filters are read-only");
+    }
+
+    /**
+     * Returns a copy of the bits of the full filter.
+     * @return a new array with the bits of the filter
+     */
+    @Override
+    public long[] getBitSet() {
+        long[] bits = new long[getSize() / Long.BYTES];
+        ByteBuffer.wrap(data, offset, getSize()).asLongBuffer().get(bits);
+        return bits;
+    }
+
+    @Override
+    public int countOnes() {
+        return Bits.countOnes(getBitSet());
+    }
+}
@@ -1,8 +1,24 @@
 package skip;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.BiPredicate;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.function.Predicate;
 
 import com.google.common.primitives.Bytes;
 
@@ -16,9 +32,73 @@ import com.google.common.primitives.Bytes;
  *  <li>the BF skip index-based method, which leverages these data structures to speed up the search.</li>
  * </ol>
  * 
+ * The class also includes a search method based on the bit-sliced layout of {@link SlicedIndex}
+ * and a cost-based planner ({@link #plan} and {@link #search}) that chooses between the first two methods
+ * for each part of the search range.
+ * All methods work with standard and blocked filters alike, since each {@link BlockIndex}
+ * records the format of its filters and membership tests are resolved by {@link BloomFilter}.
+ * Search ranges are clamped to the tip of the chain index (see {@link ChainIndex#getTip()}),
+ * so queries can run while new blocks are being appended.
+ * 
  * @author Matteo Loporchio
  */
 public final class Query {
+    /**
+     * Ranges with at most this number of blocks are always searched sequentially by the planner.
+     */
+    public static final int PLAN_SHORT_RANGE = 32;
+
+    /**
+     * Minimum number of blocks of each sub-range of a plan.
+     */
+    public static final int PLAN_MIN_STEP = 1 << 12;
+
+    /**
+     * Maximum number of sub-ranges of a plan.
+     */
+    public static final int PLAN_MAX_STEPS = 8;
+
+    /**
+     * Default number of blocks of each chunk searched by {@link #parallelLinearSearch}.
+     */
+    public static final int LINEAR_CHUNK_SIZE = 1 << 12;
+
+    /**
+     * Maximum number of parts of a parallel search submitted to the executor and not yet merged
+     * (see {@link #parallelSearch}).
+     */
+    public static final int PARALLEL_WINDOW = 64;
+
+    /**
+     * Number of blocks sampled by the planner for each sub-range.
+     */
+    public static final int PLAN_SAMPLES = 4;
+
+    /**
+     * Relative cost of reading a block index from the chain index.
+     */
+    public static final double READ_COST = 1.0;
+
+    /**
+     * Relative cost of a membership test on a Bloom filter.
+     */
+    public static final double TEST_COST = 0.1;
+
+    /**
+     * Relative cost of reading the events of a block from the chain storage.
+     */
+    public static final double STORAGE_COST = 1.0;
+
+    /**
+     * Number of upcoming blocks whose indexes are prefetched during a search
+     * (only if prefetching is enabled, see {@link ChainIndex#enablePrefetching(int)}).
+     */
+    public static final int PREFETCH_DEPTH = 4;
+
+    /**
+     * Default maximum number of block indexes read by {@link #estimateCount}.
+     */
+    public static final int ESTIMATE_BUDGET = 256;
 
     /**
      * Membership testing procedure for standard Bloom filters.
@@ -38,6 +118,97 @@ public final class Query {
         return bf.contains(Bytes.concat(e.address, e.signature));
     };
 
+    /**
+     * Keys tested by {@link #containsDefault}, i.e., the contract address and the event signature digest.
+     * Null fields of the event (see {@link Event#matches(Event)}) are not tested.
+     */
+    public static final Function<Event, byte[][]> keysDefault = (e) -> {
+        if (e.address == null) return (e.signature == null) ? new byte[0][] : new byte[][] {e.signature};
+        if (e.signature == null) return new byte[][] {e.address};
+        return new byte[][] {e.address, e.signature};
+    };
+
+    /**
+     * Keys tested by {@link #containsExtended}, i.e., the concatenation of the contract address 
+     * and the event signature digest. If one of the two fields is null, the other one is tested alone
+     * (extended filters also contain all keys of the standard ones).
+     */
+    public static final Function<Event, byte[][]> keysExtended = (e) -> {
+        if (e.address == null || e.signature == null) return keysDefault.apply(e);
+        return new byte[][] {Bytes.concat(e.address, e.signature)};
+    };
+
+    /**
+     * Keys tested on extended Bloom filters that also include indexed topics
+     * (see {@link BloomFilterBuilderExt}): the keys of {@link #keysExtended} 
+     * and a position-tagged key (see {@link #topicKey}) for each non-null topic of the event.
+     * This function must not be used with filters built without topics.
+     */
+    public static final Function<Event, byte[][]> keysTopics = (e) -> {
+        byte[][] base = keysExtended.apply(e);
+        if (e.topics == null) return base;
+        byte[][] result = Arrays.copyOf(base, base.length + e.topics.length);
+        int n = base.length;
+        for (int i = 0; i < e.topics.length; i++) {
+            if (e.topics[i] != null) result[n++] = topicKey(e.address, i + 1, e.topics[i]);
+        }
+        return Arrays.copyOf(result, n);
+    };
+
+    /**
+     * Membership testing procedure for extended Bloom filters with indexed topics.
+     * An event is included in a block if and only if the keys of the block
+     * contain all the keys returned by {@link #keysTopics}.
+     */
+    public static final BiPredicate<BloomFilter, Event> containsTopics = (bf, e) -> {
+        for (byte[] key : keysTopics.apply(e)) {
+            if (!bf.contains(key)) return false;
+        }
+        return true;
+    };
+
+    /**
+     * Returns the key summarizing an indexed topic in the extended Bloom filters.
+     * The key is the concatenation of the contract address (if not null), 
+     * one byte with the position of the topic and the topic itself, 
+     * so that equal values in different positions (e.g., the sender and the receiver of a transfer) 
+     * yield different keys.
+     * @param address contract address (may be null)
+     * @param position position of the topic (from 1 to {@link Event#MAX_TOPICS})
+     * @param topic value of the topic
+     * @return the key
+     */
+    public static byte[] topicKey(byte[] address, int position, byte[] topic) {
+        byte[] tag = new byte[] {(byte) position};
+        return (address != null) ? Bytes.concat(address, tag, topic) : Bytes.concat(tag, topic);
+    }
+
+    /**
+     * Limits the upper endpoint of a search range to the last complete block of a chain index.
+     * @param index chain index database
+     * @param upper upper endpoint of the search range
+     * @return the new upper endpoint (unchanged if the index has no tip)
+     */
+    private static int clampToTip(ChainIndex index, int upper) {
+        int tip = index.getTip();
+        return (tip >= 0) ? Math.min(upper, tip) : upper;
+    }
+
+    /**
+     * Checks whether an event occurs in a set of event occurrences.
+     * Patterns and occurrences with indexed topics are compared with {@link Event#matches(Event)}.
+     * @param events the event occurrences
+     * @param e the event
+     * @return true if and only if the event matches one of the occurrences
+     */
+    private static boolean occurs(Set<Event> events, Event e) {
+        if (events.contains(e)) return true;
+        for (Event o : events) {
+            if (e.matches(o)) return true;
+        }
+        return false;
+    }
+
     /**
      * Implementation of the sequential search algorithm.
      * @param index chain index database
@@ -58,19 +229,58 @@ public final class Query {
         Event e, 
         BiPredicate<BloomFilter,Event> membership
     ) throws IOException, ClassNotFoundException 
+    {
+        return linearSearch(index, storage, lower, upper, e, membership, QueryLimits.NONE);
+    }
+
+    /**
+     * Implementation of the sequential search algorithm with bounded work.
+     * If a limit is reached, the result is partial and the unsearched range 
+     * goes from <code>lower</code> to the block that was about to be visited.
+     * Blocks missing from the index are skipped (see {@link ChainIndex.Scanner}) and not counted as visited.
+     * @param index chain index database
+     * @param storage chain storage database
+     * @param lower lower endpoint of the search interval
+     * @param upper upper endpoint of the search interval
+     * @param e event to be searched
+     * @param membership predicate for Bloom filter membership testing
+     * @param limits limits on the work performed by the query
+     * @return a {@link QueryResult} with information about the result of the query
+     * @throws IOException in case of deserialization errors
+     * @throws ClassNotFoundException in case of deserialization errors
+     */
+    public static QueryResult linearSearch(
+        ChainIndex index, 
+        ChainStorage storage, 
+        int lower, 
+        int upper, 
+        Event e, 
+        BiPredicate<BloomFilter,Event> membership,
+        QueryLimits limits
+    ) throws IOException, ClassNotFoundException 
     {
         QueryResult result = new QueryResult();
-        for (int i = upper; i >= lower; i--) {
-            BlockIndex currIndex = index.get(i);
-            result.count++;
-            // If the current filter contains the event, we retrieve the block content
-            // and then check if the event is really included in the block.
-            if (membership.test(currIndex.filter, e)) {
-                Set<Event> currEvents = storage.get(i);
-                if (currEvents.contains(e)) {
-                    result.id = i;
+        upper = clampToTip(index, upper);
+        // Blocks are read with a reverse scan, so that consecutive blocks are read sequentially.
+        try (ChainIndex.Scanner scan = index.scan(upper, lower)) {
+            while (scan.next()) {
+                int i = scan.id();
+                int status = limits.check(result.count);
+                if (status != QueryResult.COMPLETE) {
+                    result.stop(status, lower, i);
                     break;
                 }
+                BlockIndex currIndex = scan.value();
+                result.count++;
+                // If the current filter contains the event, we retrieve the block content
+                // and then check if the event is really included in the block.
+                if (membership.test(currIndex.filter, e)) {
+                    Set<Event> currEvents = storage.get(i);
+                    if (occurs(currEvents, e)) {
+                        result.id = i;
+                        break;
+                    }
+                }
             }
         }
         return result;
@@ -97,46 +307,1226 @@ public final class Query {
         BiPredicate<BloomFilter,Event> membership
     ) throws IOException, ClassNotFoundException 
     {
+        return findFirst(index, storage, lower, upper, e, membership, QueryLimits.NONE);
+    }
+
+    /**
+     * Implementation of the efficient search algorithm based on BF skip indexes with bounded work.
+     * If a limit is reached, the result is partial: the blocks above <code>remainingUpper</code> 
+     * do not contain the event, so the query can be resumed on the remaining range.
+     * Blocks missing from the index are skipped, as in {@link #linearSearch}.
+     * @param index chain index database
+     * @param storage chain storage database
+     * @param lower lower endpoint of the search range
+     * @param upper upper endpoint of the search range
+     * @param e event to be searched
+     * @param membership predicate for checking event membership within Bloom filters
+     * @param limits limits on the work performed by the query
+     * @return a {@link QueryResult} with information about the result of the query
+     * @throws IOException in case of deserialization errors
+     * @throws ClassNotFoundException in case of deserialization errors
+     */
+    public static QueryResult findFirst(
+        ChainIndex index, 
+        ChainStorage storage, 
+        int lower,
+        int upper, 
+        Event e, 
+        BiPredicate<BloomFilter,Event> membership,
+        QueryLimits limits
+    ) throws IOException, ClassNotFoundException 
+    {
+        return traverse(index, storage, lower, upper, (bf) -> membership.test(bf, e), termKeys(membership, e), 
+        (events) -> occurs(events, e), limits, null);
+    }
+
+    /**
+     * Implementation of the search algorithm based on BF skip indexes for a boolean predicate
+     * (see {@link EventPredicate}). A single traversal searches for the most recent block 
+     * satisfying any term of the predicate: the Bloom filters are tested against the keys of 
+     * each term and skip entries are pruned only if no term can be satisfied by the blocks 
+     * they summarize. Candidate blocks are then verified against the chain storage.
+     * @param index chain index database
+     * @param storage chain storage database
+     * @param lower lower endpoint of the search range
+     * @param upper upper endpoint of the search range
+     * @param p predicate to be satisfied
+     * @param keys function returning the keys of each event pattern 
+     * (i.e., either {@link #keysDefault} or {@link #keysExtended})
+     * @param limits limits on the work performed by the query
+     * @return a {@link QueryResult} with information about the result of the query
+     * @throws IOException in case of deserialization errors
+     * @throws ClassNotFoundException in case of deserialization errors
+     */
+    public static QueryResult findFirst(
+        ChainIndex index, 
+        ChainStorage storage, 
+        int lower,
+        int upper, 
+        EventPredicate p, 
+        Function<Event,byte[][]> keys,
+        QueryLimits limits
+    ) throws IOException, ClassNotFoundException 
+    {
+        return traverse(index, storage, lower, upper, p.probe(keys), p.termKeys(keys), p::matches, limits, null);
+    }
+
+    /**
+     * Search algorithm based on BF skip indexes returning all the blocks containing an event.
+     * The traversal is the same as {@link #findFirst}, but it goes on after each occurrence.
+     * @param index chain index database
+     * @param storage chain storage database
+     * @param lower lower endpoint of the search range
+     * @param upper upper endpoint of the search range
+     * @param e event to be searched
+     * @param membership predicate for checking event membership within Bloom filters
+     * @param limits limits on the work performed by the query
+     * @return a {@link QueryResult} whose list <code>ids</code> contains all the blocks with an occurrence
+     * (if the result is partial, only those above <code>remainingUpper</code>)
+     * @throws IOException in case of deserialization errors
+     * @throws ClassNotFoundException in case of deserialization errors
+     */
+    public static QueryResult findAll(
+        ChainIndex index, 
+        ChainStorage storage, 
+        int lower,
+        int upper, 
+        Event e, 
+        BiPredicate<BloomFilter,Event> membership,
+        QueryLimits limits
+    ) throws IOException, ClassNotFoundException 
+    {
+        return traverse(index, storage, lower, upper, (bf) -> membership.test(bf, e), termKeys(membership, e), 
+        (events) -> occurs(events, e), limits, new ArrayList<>());
+    }
+
+    /**
+     * Search algorithm using a posting index for frequent events and the BF skip index for the others.
+     * If the event has a posting list (see {@link PostingIndex#isIndexed(Event)}), the blocks covered by the posting index
+     * (see {@link PostingIndex#getCovered()}) are searched exactly, and each block read from the posting list counts as visited.
+     * Otherwise, and for the blocks appended after the posting index was built,
+     * the query is answered by {@link #findFirst(ChainIndex, ChainStorage, int, int, Event, BiPredicate, QueryLimits)}.
+     * Limits apply to the whole query.
+     * @param postings posting index database
+     * @param index chain index database
+     * @param storage chain storage database
+     * @param lower lower endpoint of the search range
+     * @param upper upper endpoint of the search range
+     * @param e event to be searched
+     * @param membership predicate for checking event membership within Bloom filters
+     * @param limits limits on the work performed by the query
+     * @return a {@link QueryResult} with information about the result of the query
+     * @throws IOException in case of deserialization errors
+     * @throws ClassNotFoundException in case of deserialization errors
+     */
+    public static QueryResult findFirst(
+        PostingIndex postings,
+        ChainIndex index, 
+        ChainStorage storage, 
+        int lower,
+        int upper, 
+        Event e, 
+        BiPredicate<BloomFilter,Event> membership,
+        QueryLimits limits
+    ) throws IOException, ClassNotFoundException 
+    {
+        if (!postings.isIndexed(e)) return findFirst(index, storage, lower, upper, e, membership, limits);
+        upper = clampToTip(index, upper);
+        int covered = postings.getCovered();
         QueryResult result = new QueryResult();
-        while (upper >= lower) {
-            BlockIndex currIndex = index.get(upper);
-            result.count++;
-            if (membership.test(currIndex.filter, e)) {
-                Set<Event> currEvents = storage.get(upper);
-                if (currEvents.contains(e)) {
-                    result.id = upper;
-                    return result;
-                }
-            }
-            int numEntries = currIndex.skip.getNumEntries();
-            int jmax = maxJump(numEntries, lower, upper);
-            for (int j = 0; j <= jmax; j++) {
-                int lsub = Math.max(lower, upper - (1 << (j+1)) + 1);
-                int usub = upper - (1 << j);
-                if (membership.test(currIndex.skip.getEntry(j), e)) {
-                    QueryResult partial = findFirst(index, storage, lsub, usub, e, membership);
-                    result.count += partial.count;
-                    if (partial.id != -1) {
-                        result.id = partial.id;
-                        return result;
-                    }
-                }
-            }
-            upper -= (1 << (jmax + 1));
+        // Blocks not covered by the posting index are searched first, since they are the most recent ones.
+        if (upper > covered) {
+            result = findFirst(index, storage, Math.max(lower, covered + 1), upper, e, membership, limits);
+            // The blocks covered by the posting index are not searched yet.
+            if (!result.isComplete()) result.remainingLower = lower;
+            if (result.id >= 0 || !result.isComplete() || lower > covered) return result;
         }
+        postings.find(e, lower, Math.min(upper, covered), true, limits, result);
         return result;
     }
 
     /**
-     * Auxiliary method for computing the maximum feasible jump.
-     * @param numEntries number of entries in the current skip list
-     * @param lower lower bound for the search range
-     * @param upper upper bound for the search range (i.e., current block)
-     * @return identifier of the maximum feasible jump, -1 if no jump can be selected
+     * Returns all the blocks containing an event, using a posting index for frequent events
+     * and the BF skip index for the others (see 
+     * {@link #findFirst(PostingIndex, ChainIndex, ChainStorage, int, int, Event, BiPredicate, QueryLimits)}).
+     * @param postings posting index database
+     * @param index chain index database
+     * @param storage chain storage database
+     * @param lower lower endpoint of the search range
+     * @param upper upper endpoint of the search range
+     * @param e event to be searched
+     * @param membership predicate for checking event membership within Bloom filters
+     * @param limits limits on the work performed by the query
+     * @return a {@link QueryResult} whose list <code>ids</code> contains all the blocks with an occurrence
+     * @throws IOException in case of deserialization errors
+     * @throws ClassNotFoundException in case of deserialization errors
      */
-    public static int maxJump(int numEntries, int lower, int upper) {
-        for (int j = numEntries - 1; j >= 0; j--) {
-            if (lower <= (upper - (1 << j))) return j;
+    public static QueryResult findAll(
+        PostingIndex postings,
+        ChainIndex index, 
+        ChainStorage storage, 
+        int lower,
+        int upper, 
+        Event e, 
+        BiPredicate<BloomFilter,Event> membership,
+        QueryLimits limits
+    ) throws IOException, ClassNotFoundException 
+    {
+        if (!postings.isIndexed(e)) return findAll(index, storage, lower, upper, e, membership, limits);
+        upper = clampToTip(index, upper);
+        int covered = postings.getCovered();
+        QueryResult result = new QueryResult();
+        result.ids = new ArrayList<>();
+        if (upper > covered) {
+            result = findAll(index, storage, Math.max(lower, covered + 1), upper, e, membership, limits);
+            // The blocks covered by the posting index are not searched yet.
+            if (!result.isComplete()) result.remainingLower = lower;
+            if (!result.isComplete() || lower > covered) return result;
+        }
+        postings.find(e, lower, Math.min(upper, covered), false, limits, result);
+        return result;
+    }
+
+    /**
+     * Implementation of the search algorithm based on BF skip indexes for sharded chain indexes.
+     * The shards overlapping the search range are searched in parallel and their results
+     * are collected from the most recent to the oldest one: as soon as a shard returns an occurrence,
+     * the searches on the older shards are cancelled. Limits apply to the whole query:
+     * the budget of visited blocks is shared by all shards, and the cancellation token stops all of them.
+     * @param index sharded chain index
+     * @param storage chain storage database
+     * @param lower lower endpoint of the search range
+     * @param upper upper endpoint of the search range
+     * @param e event to be searched
+     * @param membership predicate for checking event membership within Bloom filters
+     * @param limits limits on the work performed by the query
+     * @param executor executor running the searches on the shards
+     * @return a {@link QueryResult} with information about the result of the query 
+     * (the number of visited blocks includes all shards)
+     * @throws IOException in case of deserialization errors
+     * @throws ClassNotFoundException in case of deserialization errors
+     */
+    public static QueryResult findFirst(
+        ShardedChainIndex index, 
+        ChainStorage storage, 
+        int lower,
+        int upper, 
+        Event e, 
+        BiPredicate<BloomFilter,Event> membership,
+        QueryLimits limits,
+        ExecutorService executor
+    ) throws IOException, ClassNotFoundException 
+    {
+        return shardedSearch(index, storage, lower, upper, (bf) -> membership.test(bf, e), (events) -> occurs(events, e), 
+        limits, false, executor);
+    }
+
+    /**
+     * Returns all the blocks containing an event using a sharded chain index.
+     * The shards are searched in parallel as in 
+     * {@link #findFirst(ShardedChainIndex, ChainStorage, int, int, Event, BiPredicate, QueryLimits, ExecutorService)},
+     * but no shard is cancelled unless one of them is stopped by its limits.
+     * @param index sharded chain index
+     * @param storage chain storage database
+     * @param lower lower endpoint of the search range
+     * @param upper upper endpoint of the search range
+     * @param e event to be searched
+     * @param membership predicate for checking event membership within Bloom filters
+     * @param limits limits on the work performed by the query
+     * @param executor executor running the searches on the shards
+     * @return a {@link QueryResult} whose list <code>ids</code> contains all the blocks with an occurrence
+     * (if the result is partial, only those above <code>remainingUpper</code>)
+     * @throws IOException in case of deserialization errors
+     * @throws ClassNotFoundException in case of deserialization errors
+     */
+    public static QueryResult findAll(
+        ShardedChainIndex index, 
+        ChainStorage storage, 
+        int lower,
+        int upper, 
+        Event e, 
+        BiPredicate<BloomFilter,Event> membership,
+        QueryLimits limits,
+        ExecutorService executor
+    ) throws IOException, ClassNotFoundException 
+    {
+        return shardedSearch(index, storage, lower, upper, (bf) -> membership.test(bf, e), (events) -> occurs(events, e), 
+        limits, true, executor);
+    }
+
+    /**
+     * Parallel traversal of the shards of a sharded chain index.
+     * Each shard is searched by {@link #traverse} (see {@link #parallelSearch}).
+     * @param index sharded chain index
+     * @param storage chain storage database
+     * @param lower lower endpoint of the search range
+     * @param upper upper endpoint of the search range
+     * @param probe membership test for the Bloom filters
+     * @param verify exact test on the events of a block
+     * @param limits limits on the work performed by the query
+     * @param all whether all occurrences should be returned
+     * @param executor executor running the searches on the shards
+     * @return a {@link QueryResult} with information about the result of the query
+     * @throws IOException in case of deserialization errors
+     * @throws ClassNotFoundException in case of deserialization errors
+     */
+    private static QueryResult shardedSearch(
+        ShardedChainIndex index, 
+        ChainStorage storage, 
+        int lower,
+        int upper, 
+        Predicate<BloomFilter> probe,
+        Predicate<Set<Event>> verify,
+        QueryLimits limits,
+        boolean all,
+        ExecutorService executor
+    ) throws IOException, ClassNotFoundException 
+    {
+        lower = Math.max(lower, index.getFirstBlock());
+        // Split the range at the boundaries of the shards, from the most recent shard to the oldest one.
+        List<int[]> ranges = new ArrayList<>();
+        if (upper >= lower) {
+            for (int s = Math.min(index.shardOf(upper), index.getNumShards() - 1); s >= index.shardOf(lower); s--) {
+                // Each range ends at the last block of its shard, whose blocks past it do not exist yet.
+                int l = Math.max(lower, index.shardLower(s)), u = Math.min(upper, index.lastBlock(s));
+                if (u >= l) ranges.add(new int[] {l, u});
+            }
+        }
+        return parallelSearch(lower, ranges, (l, u, rangeLimits) -> traverse(index.getShard(index.shardOf(l)), 
+        storage, l, u, probe, null, verify, rangeLimits, all ? new ArrayList<>() : null), limits, all, executor);
+    }
+
+    /**
+     * Parallel sequential search. The range is split into chunks of the given number of blocks, which are
+     * searched concurrently by {@link #linearSearch} from the most recent to the oldest one
+     * (see {@link #parallelSearch}). As soon as a chunk finds an occurrence, the older chunks are cancelled,
+     * and the result is still the most recent occurrence in the range.
+     * @param index chain index database
+     * @param storage chain storage database
+     * @param lower lower endpoint of the search interval
+     * @param upper upper endpoint of the search interval
+     * @param e event to be searched
+     * @param membership predicate for Bloom filter membership testing
+     * @param limits limits on the work performed by the query (the budget is shared by all chunks)
+     * @param executor executor running the searches on the chunks
+     * @param chunkSize number of blocks of each chunk
+     * @return a {@link QueryResult} with information about the result of the query
+     * (the number of visited blocks includes all chunks)
+     * @throws IOException in case of deserialization errors
+     * @throws ClassNotFoundException in case of deserialization errors
+     */
+    public static QueryResult parallelLinearSearch(
+        ChainIndex index, 
+        ChainStorage storage, 
+        int lower, 
+        int upper, 
+        Event e, 
+        BiPredicate<BloomFilter,Event> membership,
+        QueryLimits limits,
+        ExecutorService executor,
+        int chunkSize
+    ) throws IOException, ClassNotFoundException 
+    {
+        upper = clampToTip(index, upper);
+        List<int[]> ranges = new ArrayList<>();
+        for (long u = upper; u >= lower; u -= chunkSize) ranges.add(new int[] {(int) Math.max(lower, u - chunkSize + 1), (int) u});
+        return parallelSearch(lower, ranges, (l, u, chunkLimits) -> linearSearch(index, storage, l, u, e, membership, chunkLimits), 
+        limits, false, executor);
+    }
+
+    /**
+     * Parallel sequential search with chunks of {@link #LINEAR_CHUNK_SIZE} blocks
+     * (see {@link #parallelLinearSearch(ChainIndex, ChainStorage, int, int, Event, BiPredicate, QueryLimits, ExecutorService, int)}).
+     * @param index chain index database
+     * @param storage chain storage database
+     * @param lower lower endpoint of the search interval
+     * @param upper upper endpoint of the search interval
+     * @param e event to be searched
+     * @param membership predicate for Bloom filter membership testing
+     * @param limits limits on the work performed by the query (the budget is shared by all chunks)
+     * @param executor executor running the searches on the chunks
+     * @return a {@link QueryResult} with information about the result of the query
+     * @throws IOException in case of deserialization errors
+     * @throws ClassNotFoundException in case of deserialization errors
+     */
+    public static QueryResult parallelLinearSearch(
+        ChainIndex index, 
+        ChainStorage storage, 
+        int lower, 
+        int upper, 
+        Event e, 
+        BiPredicate<BloomFilter,Event> membership,
+        QueryLimits limits,
+        ExecutorService executor
+    ) throws IOException, ClassNotFoundException 
+    {
+        return parallelLinearSearch(index, storage, lower, upper, e, membership, limits, executor, LINEAR_CHUNK_SIZE);
+    }
+
+    /**
+     * Search on a part of a range, run by {@link #parallelSearch}.
+     */
+    private interface RangeSearch {
+        /**
+         * Searches a part of the range.
+         * @param lower lower endpoint of the part
+         * @param upper upper endpoint of the part
+         * @param limits limits of the search, including the cancellation token of the part
+         * @return the result of the search
+         * @throws IOException in case of deserialization errors
+         * @throws ClassNotFoundException in case of deserialization errors
+         */
+        QueryResult search(int lower, int upper, QueryLimits limits) throws IOException, ClassNotFoundException;
+    }
+
+    /**
+     * Searches consecutive parts of a range in parallel (e.g., the shards of a sharded chain index).
+     * Each part is searched with its own cancellation token (see {@link QueryLimits#link}), while the budget
+     * of visited blocks is shared by all parts (see {@link QueryLimits#share()}). Parts are submitted in a sliding window
+     * of {@link #PARALLEL_WINDOW} parts, so that the parts older than an occurrence are never submitted
+     * and large ranges do not flood the queue of the executor.
+     * When the search on a part returns an occurrence (only if <code>all</code> is false) or a partial result,
+     * the older parts are cancelled immediately. Results are merged from the most recent part to the oldest one,
+     * and the results of the cancelled parts are discarded, since the merged result must describe a prefix of the range.
+     * @param lower lower endpoint of the whole range
+     * @param ranges parts of the range (pairs of endpoints), from the most recent to the oldest one
+     * @param search the search on a part
+     * @param limits limits on the work performed by the query
+     * @param all whether all occurrences should be returned
+     * @param executor executor running the searches
+     * @return a {@link QueryResult} with information about the result of the query
+     * (the number of visited blocks includes all parts)
+     * @throws IOException in case of deserialization errors
+     * @throws ClassNotFoundException in case of deserialization errors
+     */
+    private static QueryResult parallelSearch(
+        int lower,
+        List<int[]> ranges,
+        RangeSearch search,
+        QueryLimits limits,
+        boolean all,
+        ExecutorService executor
+    ) throws IOException, ClassNotFoundException 
+    {
+        QueryResult result = new QueryResult();
+        if (all) result.ids = new ArrayList<>();
+        if (ranges.isEmpty()) return result;
+        // Submit the searches from the most recent part to the oldest one.
+        List<AtomicBoolean> tokens = new ArrayList<>();
+        for (int k = 0; k < ranges.size(); k++) tokens.add(new AtomicBoolean(false));
+        QueryLimits sharedLimits = limits.share();
+        IntFunction<Future<QueryResult>> submit = (part) -> {
+            final int l = ranges.get(part)[0], u = ranges.get(part)[1];
+            QueryLimits partLimits = sharedLimits.link(tokens.get(part));
+            return executor.submit(() -> {
+                QueryResult r = search.search(l, u, partLimits);
+                if ((r.id >= 0 && !all) || !r.isComplete()) {
+                    for (int m = part + 1; m < tokens.size(); m++) tokens.get(m).set(true);
+                }
+                return r;
+            });
+        };
+        List<Future<QueryResult>> futures = new ArrayList<>();
+        while (futures.size() < Math.min(ranges.size(), PARALLEL_WINDOW)) futures.add(submit.apply(futures.size()));
+        // Merge the results. Cancelled parts are still awaited, so that no search outlives the query.
+        boolean done = false;
+        int next = ranges.get(0)[1];
+        for (int k = 0; k < futures.size(); k++) {
+            QueryResult r;
+            try {
+                r = futures.get(k).get();
+            }
+            catch (InterruptedException ex) {
+                for (AtomicBoolean token : tokens) token.set(true);
+                Thread.currentThread().interrupt();
+                if (!done) result.stop(QueryResult.CANCELLED, lower, next);
+                return result;
+            }
+            catch (ExecutionException ex) {
+                for (AtomicBoolean token : tokens) token.set(true);
+                Throwable cause = ex.getCause();
+                if (cause instanceof IOException) throw (IOException) cause;
+                if (cause instanceof ClassNotFoundException) throw (ClassNotFoundException) cause;
+                if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                throw new RuntimeException(cause);
+            }
+            result.count += r.count;
+            if (done) continue;
+            if (all) result.ids.addAll(r.ids);
+            if (!r.isComplete()) {
+                result.stop(r.status, lower, r.remainingUpper);
+                done = true;
+            }
+            else if (r.id >= 0 && !all) {
+                result.id = r.id;
+                done = true;
+            }
+            if (done) {
+                for (int m = k + 1; m < tokens.size(); m++) tokens.get(m).set(true);
+            }
+            // Keep the window full until the result is known.
+            else if (futures.size() < ranges.size()) futures.add(submit.apply(futures.size()));
+            next = ranges.get(k)[0] - 1;
+        }
+        if (all && !result.ids.isEmpty()) result.id = result.ids.get(0);
+        return result;
+    }
+
+    /**
+     * Non-recursive traversal of the BF skip indexes used by {@link #findFirst}.
+     * Pending sub-ranges are kept on an explicit stack, so that they are searched
+     * from the most recent to the oldest one, exactly as in the recursive formulation
+     * of the algorithm: when a skip entry matches, the blocks it summarizes are searched
+     * before moving to older entries. As a consequence, when the traversal is stopped,
+     * all blocks above the sub-range on top of the stack have already been excluded.
+     * Moreover, the upper endpoints of the sub-ranges on top of the stack are the next blocks
+     * to be visited, so their indexes can be prefetched while the current block is processed.
+     * A block missing from the index contains no occurrence, as in {@link #linearSearch}: since it has
+     * no skip entries, the rest of its sub-range is searched from the previous block
+     * (the read still counts as a visited block, so the limits bound runs of missing blocks).
+     * If the keys tested by the probe are given and the index is in memory (see {@link MemoryChainIndex}),
+     * the filters are probed in place with the bit positions of the keys, so no block index is allocated.
+     * @param index chain index database
+     * @param storage chain storage database
+     * @param lower lower endpoint of the search range
+     * @param upper upper endpoint of the search range
+     * @param probe membership test for the Bloom filters (both block filters and skip entries)
+     * @param terms keys tested by the probe: a filter matches if it contains all the keys of some term
+     * (may be null if the probe is not based on keys)
+     * @param verify exact test on the events of a block
+     * @param limits limits on the work performed by the query
+     * @param all if not null, the traversal does not stop at the first occurrence 
+     * and the identifiers of all blocks containing an occurrence are added to this list
+     * @return a {@link QueryResult} with information about the result of the query
+     * @throws IOException in case of deserialization errors
+     * @throws ClassNotFoundException in case of deserialization errors
+     */
+    private static QueryResult traverse(
+        ChainIndex index, 
+        ChainStorage storage, 
+        int lower,
+        int upper, 
+        Predicate<BloomFilter> probe,
+        byte[][][] terms,
+        Predicate<Set<Event>> verify,
+        QueryLimits limits,
+        List<Integer> all
+    ) throws IOException, ClassNotFoundException 
+    {
+        QueryResult result = new QueryResult();
+        result.ids = all;
+        upper = clampToTip(index, upper);
+        MemoryChainIndex memory = (terms != null && index instanceof MemoryChainIndex) ? (MemoryChainIndex) index : null;
+        int[][] positions = null;
+        if (memory != null) {
+            positions = new int[terms.length][];
+            for (int t = 0; t < terms.length; t++) positions[t] = positions(terms[t], memory.getFilterSize(), memory.getFormat());
+        }
+        // Each pending sub-range takes two consecutive positions: lower and upper endpoint.
+        int[] stack = new int[64];
+        int top = 0;
+        stack[top++] = lower;
+        stack[top++] = upper;
+        while (top > 0) {
+            int u = stack[--top], l = stack[--top];
+            if (u < l) continue;
+            int status = limits.check(result.count);
+            if (status != QueryResult.COMPLETE) {
+                result.stop(status, lower, u);
+                return result;
+            }
+            BlockIndex currIndex = (memory != null) ? null : index.get(u);
+            result.count++;
+            if ((memory != null) ? !memory.contains(u) : currIndex == null) {
+                stack[top++] = l;
+                stack[top++] = u - 1;
+                continue;
+            }
+            // On a filter hit, the storage read overlaps with the tests of the skip entries.
+            boolean hit = (memory != null) ? test(memory, u, -1, positions) : probe.test(currIndex.filter);
+            if (hit) storage.prefetch(u);
+            int[] spans = (memory != null) ? memory.getSpans() : currIndex.skip.getSpans();
+            int jmax = maxJump(spans, l, u);
+            // Push the rest of the range first, then the matching entries from the oldest to the newest.
+            if (top + 2 * (jmax + 2) > stack.length) stack = Arrays.copyOf(stack, 2 * stack.length + 2 * (jmax + 2));
+            stack[top++] = l;
+            stack[top++] = u - spans[jmax + 1];
+            for (int j = jmax; j >= 0; j--) {
+                if ((memory != null) ? test(memory, u, j, positions) : probe.test(currIndex.skip.getEntry(j))) {
+                    stack[top++] = Math.max(l, u - spans[j + 1] + 1);
+                    stack[top++] = u - spans[j];
+                }
+            }
+            // The next blocks to be visited are the upper endpoints of the sub-ranges on top of the stack.
+            for (int k = top - 2, n = 0; k >= 0 && n < PREFETCH_DEPTH; k -= 2, n++) {
+                if (stack[k + 1] >= stack[k]) index.prefetch(stack[k + 1]);
+            }
+            if (hit && verify.test(storage.get(u))) {
+                if (result.id < 0) result.id = u;
+                if (all == null) return result;
+                all.add(u);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Tests a filter of an in-memory index against the bit positions of the keys of each term.
+     * @param memory the in-memory index
+     * @param id block identifier
+     * @param entry index of the skip entry (-1 for the block filter)
+     * @param positions bit positions of the keys of each term
+     * @return true if and only if the filter contains all the keys of some term
+     */
+    private static boolean test(MemoryChainIndex memory, int id, int entry, int[][] positions) {
+        for (int[] p : positions) {
+            if (memory.test(id, entry, p)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the keys tested by a membership procedure for an event, as a predicate with a single term
+     * (see {@link #traverse}).
+     * @param membership predicate for checking event membership within Bloom filters
+     * @param e the event
+     * @return the keys (null if the procedure is not {@link #containsDefault}, {@link #containsExtended}
+     * or {@link #containsTopics})
+     */
+    private static byte[][][] termKeys(BiPredicate<BloomFilter,Event> membership, Event e) {
+        if (membership == containsDefault) return new byte[][][] {keysDefault.apply(e)};
+        if (membership == containsExtended) return new byte[][][] {keysExtended.apply(e)};
+        if (membership == containsTopics) return new byte[][][] {keysTopics.apply(e)};
+        return null;
+    }
+
+    /**
+     * Computes an execution plan for a type F query.
+     * The range is split into at most {@link #PLAN_MAX_STEPS} sub-ranges. For each of them,
+     * the planner samples {@link #PLAN_SAMPLES} block indexes and measures how often the 
+     * block filters and the skip entries of each level match the event (i.e., how often all bits
+     * probed for the event are set) together with their average fill ratio.
+     * These statistics are used to estimate the cost of a sequential scan and of a traversal
+     * based on BF skip indexes, and the cheaper strategy is chosen for the sub-range.
+     * Short ranges are always searched sequentially, since sampling would cost more than the scan.
+     * The range is limited to the first and the last complete block of the index. Samples missing from
+     * the index are ignored, and sub-ranges without any sampled block are searched sequentially.
+     * @param index chain index database
+     * @param lower lower endpoint of the search range
+     * @param upper upper endpoint of the search range
+     * @param e event to be searched
+     * @param membership predicate for checking event membership within Bloom filters
+     * @return the plan for the query
+     */
+    public static QueryPlan plan(
+        ChainIndex index,
+        int lower,
+        int upper,
+        Event e,
+        BiPredicate<BloomFilter,Event> membership
+    ) {
+        upper = clampToTip(index, upper);
+        int first = index.getFirst();
+        if (first >= 0) lower = Math.max(lower, first);
+        QueryPlan plan = new QueryPlan(lower, upper);
+        int length = upper - lower + 1;
+        if (length <= 0) return plan;
+        if (length <= PLAN_SHORT_RANGE) {
+            plan.steps.add(new QueryPlan.Step(lower, upper, QueryPlan.LINEAR, 
+            length * (READ_COST + TEST_COST), Double.NaN, null, null));
+            return plan;
+        }
+        int numSteps = Math.max(1, Math.min(PLAN_MAX_STEPS, length / PLAN_MIN_STEP));
+        int stepLength = (int) (((long) length + numSteps - 1) / numSteps);
+        for (int su = upper; su >= lower; su -= stepLength) {
+            int sl = Math.max(lower, su - stepLength + 1);
+            // Sample block indexes evenly within the sub-range.
+            double[] hits = null, fill = null;
+            int numEntries = 0;
+            int[] spans = null;
+            int found = 0;
+            for (int s = 0; s < PLAN_SAMPLES; s++) {
+                int id = su - (int) ((long) s * (su - sl) / (PLAN_SAMPLES - 1));
+                BlockIndex b = index.get(id);
+                plan.sampled++;
+                if (b == null) continue;
+                found++;
+                if (hits == null) {
+                    numEntries = b.skip.getNumEntries();
+                    spans = b.skip.getSpans();
+                    hits = new double[1 + numEntries];
+                    fill = new double[1 + numEntries];
+                }
+                for (int j = 0; j <= numEntries; j++) {
+                    BloomFilter bf = (j == 0) ? b.filter : b.skip.getEntry(j - 1);
+                    if (membership.test(bf, e)) hits[j]++;
+                    fill[j] += (double) bf.countOnes() / (bf.getSize() * Byte.SIZE);
+                }
+            }
+            int subLength = su - sl + 1;
+            if (found == 0) {
+                plan.steps.add(new QueryPlan.Step(sl, su, QueryPlan.LINEAR, 
+                subLength * (READ_COST + TEST_COST), Double.NaN, null, null));
+                continue;
+            }
+            // Smooth the observed hit rates with the false positive rate expected from the fill ratio.
+            for (int j = 0; j <= numEntries; j++) {
+                fill[j] /= found;
+                hits[j] = (hits[j] + Math.pow(fill[j], BloomFilter.NUM_HASH)) / (found + 1);
+            }
+            double linear = subLength * (READ_COST + TEST_COST + hits[0] * STORAGE_COST);
+            double skip = skipCost(subLength, spans, hits);
+            int strategy = (skip < linear) ? QueryPlan.SKIP : QueryPlan.LINEAR;
+            plan.steps.add(new QueryPlan.Step(sl, su, strategy, linear, skip, hits, fill));
+        }
+        return plan;
+    }
+
+    /**
+     * Estimates the cost of searching a range with the BF skip index-based method,
+     * assuming that the event does not occur in the range (i.e., the worst case)
+     * and that the skip entries have the default distances (powers of two).
+     * @param length number of blocks in the range
+     * @param numEntries number of entries of the BF skip indexes
+     * @param hits hit rate of the block filters (first element) and of each skip entry level
+     * @return the estimated cost of the traversal
+     */
+    public static double skipCost(int length, int numEntries, double[] hits) {
+        return skipCost(length, Skip.spans(2, numEntries), hits);
+    }
+
+    /**
+     * Estimates the cost of searching a range with the BF skip index-based method,
+     * assuming that the event does not occur in the range (i.e., the worst case).
+     * The estimate follows the structure of {@link #findFirst}: each visited block costs
+     * a read and a number of membership tests, and each matching skip entry of level <code>j</code>
+     * causes the traversal of the <code>spans[j+1] - spans[j]</code> blocks it summarizes.
+     * @param length number of blocks in the range
+     * @param spans distances defining the skip entries (see {@link Skip#getSpans()})
+     * @param hits hit rate of the block filters (first element) and of each skip entry level
+     * @return the estimated cost of the traversal
+     */
+    public static double skipCost(int length, int[] spans, double[] hits) {
+        double[] cost = traversalCost(length, spans, hits, new HashMap<>());
+        return cost[0] * (READ_COST + hits[0] * STORAGE_COST) + cost[1] * TEST_COST;
+    }
+
+    /**
+     * Computes the expected number of visited blocks and membership tests for traversing a range
+     * without occurrences with the BF skip index-based method (see {@link #skipCost(int, int[], double[])}).
+     * @param length number of blocks in the range
+     * @param spans distances defining the skip entries
+     * @param hits hit rate of the block filters (first element) and of each skip entry level
+     * @param windows costs already computed for the ranges summarized by the skip entries
+     * @return the expected number of visited blocks (first element) and membership tests (second element)
+     */
+    private static double[] traversalCost(long length, int[] spans, double[] hits, Map<Long, double[]> windows) {
+        int numEntries = spans.length - 1;
+        double v = 0, t = 0;
+        long remaining = length;
+        while (remaining > 0) {
+            int jmax = -1;
+            while (jmax + 1 < numEntries && spans[jmax + 1] <= remaining - 1) jmax++;
+            double hopVisits = 1, hopTests = 1 + (jmax + 1);
+            for (int i = 0; i <= jmax; i++) {
+                long window = Math.min(spans[i + 1] - spans[i], remaining - spans[i]);
+                double[] c = windows.get(window);
+                if (c == null) {
+                    c = traversalCost(window, spans, hits, windows);
+                    windows.put(window, c);
+                }
+                hopVisits += hits[1 + i] * c[0];
+                hopTests += hits[1 + i] * c[1];
+            }
+            long hop = spans[jmax + 1], numHops = 1;
+            // All hops using the largest entry over full windows have the same cost.
+            if (jmax == numEntries - 1) numHops = (remaining - 1 - spans[jmax]) / hop + 1;
+            v += numHops * hopVisits;
+            t += numHops * hopTests;
+            remaining -= numHops * hop;
+        }
+        return new double[] {v, t};
+    }
+
+    /**
+     * Answers a type F query by executing the plan computed by {@link #plan}.
+     * Consecutive sub-ranges with the same strategy are searched with a single call
+     * and the number of visited blocks includes the blocks sampled by the planner.
+     * @param index chain index database
+     * @param storage chain storage database
+     * @param lower lower endpoint of the search range
+     * @param upper upper endpoint of the search range
+     * @param e event to be searched
+     * @param membership predicate for checking event membership within Bloom filters
+     * @return a {@link QueryResult} with information about the result of the query
+     * @throws IOException in case of deserialization errors
+     * @throws ClassNotFoundException in case of deserialization errors
+     */
+    public static QueryResult search(
+        ChainIndex index, 
+        ChainStorage storage, 
+        int lower,
+        int upper, 
+        Event e, 
+        BiPredicate<BloomFilter,Event> membership
+    ) throws IOException, ClassNotFoundException 
+    {
+        return search(index, storage, lower, upper, e, membership, QueryLimits.NONE);
+    }
+
+    /**
+     * Answers a type F query by executing the plan computed by {@link #plan} with bounded work.
+     * The blocks sampled by the planner count towards the budget of visited blocks.
+     * @param index chain index database
+     * @param storage chain storage database
+     * @param lower lower endpoint of the search range
+     * @param upper upper endpoint of the search range
+     * @param e event to be searched
+     * @param membership predicate for checking event membership within Bloom filters
+     * @param limits limits on the work performed by the query
+     * @return a {@link QueryResult} with information about the result of the query
+     * @throws IOException in case of deserialization errors
+     * @throws ClassNotFoundException in case of deserialization errors
+     */
+    public static QueryResult search(
+        ChainIndex index, 
+        ChainStorage storage, 
+        int lower,
+        int upper, 
+        Event e, 
+        BiPredicate<BloomFilter,Event> membership,
+        QueryLimits limits
+    ) throws IOException, ClassNotFoundException 
+    {
+        QueryPlan plan = plan(index, lower, upper, e, membership);
+        QueryResult result = new QueryResult();
+        result.count = plan.sampled;
+        int i = 0;
+        while (i < plan.steps.size()) {
+            int strategy = plan.steps.get(i).strategy, j = i;
+            while (j + 1 < plan.steps.size() && plan.steps.get(j + 1).strategy == strategy) j++;
+            int u = plan.steps.get(i).upper, l = plan.steps.get(j).lower;
+            QueryLimits remaining = limits.consume(result.count);
+            QueryResult partial = (strategy == QueryPlan.SKIP) ?
+                findFirst(index, storage, l, u, e, membership, remaining) :
+                linearSearch(index, storage, l, u, e, membership, remaining);
+            result.count += partial.count;
+            if (partial.id != -1) {
+                result.id = partial.id;
+                return result;
+            }
+            if (!partial.isComplete()) {
+                result.stop(partial.status, lower, partial.remainingUpper);
+                return result;
+            }
+            i = j + 1;
+        }
+        return result;
+    }
+
+    /**
+     * Answers a type F query using the results of previous queries stored in a {@link QueryCache}.
+     * The parts of the range known not to contain the event are skipped and a known occurrence
+     * is returned without visiting any block, so only the sub-ranges without cached facts are searched
+     * (e.g., the blocks appended since the last query, if the range slides forward).
+     * The results of these searches are then added to the cache, including the blocks
+     * searched by partial queries.
+     * @param cache cache of query results
+     * @param index chain index database
+     * @param storage chain storage database
+     * @param lower lower endpoint of the search range
+     * @param upper upper endpoint of the search range
+     * @param e event to be searched
+     * @param membership predicate for checking event membership within Bloom filters
+     * @param strategy algorithm used for the uncached sub-ranges 
+     * (either {@link QueryPlan#SKIP} or {@link QueryPlan#LINEAR})
+     * @param limits limits on the work performed by the query
+     * @return a {@link QueryResult} with information about the result of the query
+     * @throws IOException in case of deserialization errors
+     * @throws ClassNotFoundException in case of deserialization errors
+     */
+    public static QueryResult cachedSearch(
+        QueryCache cache,
+        ChainIndex index, 
+        ChainStorage storage, 
+        int lower,
+        int upper, 
+        Event e, 
+        BiPredicate<BloomFilter,Event> membership,
+        int strategy,
+        QueryLimits limits
+    ) throws IOException, ClassNotFoundException 
+    {
+        QueryResult result = new QueryResult();
+        // Facts are only recorded for blocks up to the tip, which cannot change without a rollback:
+        // the generation is read first, so that facts found during a rollback are dropped.
+        long generation = cache.getGeneration();
+        int u = clampToTip(index, upper);
+        while (true) {
+            u = cache.skipAbsent(e, u);
+            if (u < lower) return result;
+            if (cache.isOccurrence(e, u)) {
+                result.id = u;
+                return result;
+            }
+            // Search the sub-range between the current block and the previous known one.
+            int l = Math.max(lower, cache.knownBelow(e, u) + 1);
+            QueryLimits remaining = limits.consume(result.count);
+            QueryResult partial = (strategy == QueryPlan.SKIP) ?
+                findFirst(index, storage, l, u, e, membership, remaining) :
+                linearSearch(index, storage, l, u, e, membership, remaining);
+            result.count += partial.count;
+            if (partial.id != -1) {
+                cache.addOccurrence(e, partial.id, generation);
+                cache.addAbsent(e, partial.id + 1, u, generation);
+                result.id = partial.id;
+                return result;
+            }
+            if (!partial.isComplete()) {
+                cache.addAbsent(e, partial.remainingUpper + 1, u, generation);
+                result.stop(partial.status, lower, partial.remainingUpper);
+                return result;
+            }
+            cache.addAbsent(e, l, u, generation);
+            u = l - 1;
+        }
+    }
+
+    /**
+     * Returns a description of the plan chosen for a type F query, without executing it.
+     * @param index chain index database
+     * @param lower lower endpoint of the search range
+     * @param upper upper endpoint of the search range
+     * @param e event to be searched
+     * @param membership predicate for checking event membership within Bloom filters
+     * @return the description of the plan (see {@link QueryPlan#explain()})
+     */
+    public static String explain(
+        ChainIndex index,
+        int lower,
+        int upper,
+        Event e,
+        BiPredicate<BloomFilter,Event> membership
+    ) {
+        return plan(index, lower, upper, e, membership).explain();
+    }
+
+    /**
+     * Estimates the number of blocks of a range containing an occurrence of an event,
+     * reading at most {@link #ESTIMATE_BUDGET} block indexes and no block from the chain storage.
+     * See {@link #estimateCount(ChainIndex, ChainStorage, int, int, Event, Function, int, int, Random)}.
+     * @param index chain index database
+     * @param lower lower endpoint of the range
+     * @param upper upper endpoint of the range
+     * @param e event to be counted
+     * @param keys function returning the keys of the event that must be contained in the filters
+     * (i.e., either {@link #keysDefault} or {@link #keysExtended})
+     * @return the estimate with its bounds
+     */
+    public static CountEstimate estimateCount(
+        ChainIndex index,
+        int lower,
+        int upper,
+        Event e,
+        Function<Event,byte[][]> keys
+    ) {
+        try {
+            return estimateCount(index, null, lower, upper, e, keys, ESTIMATE_BUDGET, 0, new Random());
+        }
+        catch (IOException | ClassNotFoundException ex) {
+            // The chain storage is never read without samples.
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Estimates the number of blocks of a range containing an occurrence of an event.
+     * The method refines the range with the skip entries, always splitting the largest pending sub-range:
+     * for each of them it reads the index of its most recent block, tests the block filter and
+     * the skip entries, and discards the sub-ranges whose entry does not match (since filters have 
+     * no false negatives). A quarter of the budget is reserved for the sub-ranges still pending
+     * when the budget runs out, whose block filters are sampled uniformly at random.
+     * The number of reads is thus bounded by the budget rather than by the length of the range,
+     * and sparse events are usually counted exactly (up to false positives) after a logarithmic number of reads.
+     * The range is limited to the first and the last complete block of the index; blocks missing
+     * from the database are counted as blocks without occurrences, as in the search methods.
+     *
+     * The number of matching filters is corrected using the false positive rate of each filter,
+     * estimated as its fill ratio raised to the number of bits probed for the event
+     * (only approximate for blocked filters, whose bits are not uniformly spread).
+     * Blocks containing all keys of the event in different occurrences also match the filters:
+     * since their number cannot be derived from the fill ratios, only the sample accounts for them.
+     * If a sample size is given, a random sample of the matching blocks is checked against
+     * the chain storage and the observed precision is used instead (see {@link CountEstimate}).
+     * @param index chain index database
+     * @param storage chain storage database (may be null if the sample size is zero)
+     * @param lower lower endpoint of the range
+     * @param upper upper endpoint of the range
+     * @param e event to be counted
+     * @param keys function returning the keys of the event that must be contained in the filters
+     * (i.e., either {@link #keysDefault} or {@link #keysExtended})
+     * @param maxVisited maximum number of block indexes to be read
+     * @param sampleSize maximum number of matching blocks to be checked against the chain storage
+     * @param random source of randomness for the samples
+     * @return the estimate with its bounds
+     * @throws IOException in case of deserialization errors
+     * @throws ClassNotFoundException in case of deserialization errors
+     */
+    public static CountEstimate estimateCount(
+        ChainIndex index,
+        ChainStorage storage,
+        int lower,
+        int upper,
+        Event e,
+        Function<Event,byte[][]> keys,
+        int maxVisited,
+        int sampleSize,
+        Random random
+    ) throws IOException, ClassNotFoundException
+    {
+        if (maxVisited < 1) throw new IllegalArgumentException("The budget must be positive");
+        if (sampleSize > 0 && storage == null) throw new IllegalArgumentException("Samples require the chain storage");
+        CountEstimate result = new CountEstimate();
+        upper = clampToTip(index, upper);
+        int first = index.getFirst();
+        if (first >= 0) lower = Math.max(lower, first);
+        result.lower = lower;
+        result.upper = upper;
+        if (upper < lower) {
+            result.compute();
+            return result;
+        }
+        byte[][] eventKeys = keys.apply(e);
+        // Filters of a chain index share size and format, so positions are computed from the first one.
+        // The probe prepares the positions once for all the filters tested by the estimate.
+        int[] positions = null;
+        Bits.Probe probe = null;
+        int distinct = 0;
+        List<Integer> matches = new ArrayList<>();
+        // Pending sub-ranges (lower and upper endpoint), the longest one first.
+        PriorityQueue<int[]> pending = new PriorityQueue<>((a, b) -> Integer.compare(b[1] - b[0], a[1] - a[0]));
+        pending.add(new int[] {lower, upper});
+        int refineBudget = maxVisited - maxVisited / 4;
+        while (!pending.isEmpty() && result.visited < refineBudget) {
+            int[] range = pending.poll();
+            int l = range[0], u = range[1];
+            BlockIndex currIndex = index.get(u);
+            result.visited++;
+            if (currIndex == null) {
+                // Without its skip entries, the rest of the sub-range is refined from the previous block.
+                result.missing++;
+                if (u > l) pending.add(new int[] {l, u - 1});
+                continue;
+            }
+            if (positions == null) {
+                positions = positions(eventKeys, currIndex.filter.getSize(), currIndex.filter.getFormat());
+                distinct = (int) Arrays.stream(positions).distinct().count();
+                probe = new Bits.Probe(positions);
+            }
+            result.tested++;
+            if (estimateTest(currIndex.filter, probe, distinct, result)) {
+                result.positives++;
+                matches.add(u);
+            }
+            Skip skip = currIndex.skip;
+            int jmax = maxJump(skip, l, u);
+            for (int j = 0; j <= jmax; j++) {
+                int from = Math.max(l, u - skip.getSpan(j + 1) + 1), to = u - skip.getSpan(j);
+                if (skip.getEntry(j).test(probe)) pending.add(new int[] {from, to});
+                else result.excluded += to - from + 1;
+            }
+            if (u - skip.getSpan(jmax + 1) >= l) pending.add(new int[] {l, u - skip.getSpan(jmax + 1)});
+        }
+        // Resolve the pending sub-ranges, entirely if the rest of the budget allows it, otherwise by sampling.
+        long remaining = 0;
+        for (int[] range : pending) remaining += range[1] - range[0] + 1;
+        int budget = maxVisited - result.visited;
+        if (remaining > 0 && remaining <= budget) {
+            for (int[] range : pending) {
+                for (int u = range[1]; u >= range[0]; u--) {
+                    BlockIndex currIndex = index.get(u);
+                    result.visited++;
+                    if (currIndex == null) {
+                        result.missing++;
+                        continue;
+                    }
+                    if (positions == null) {
+                        positions = positions(eventKeys, currIndex.filter.getSize(), currIndex.filter.getFormat());
+                        distinct = (int) Arrays.stream(positions).distinct().count();
+                        probe = new Bits.Probe(positions);
+                    }
+                    result.tested++;
+                    if (estimateTest(currIndex.filter, probe, distinct, result)) {
+                        result.positives++;
+                        matches.add(u);
+                    }
+                }
+            }
+        }
+        else if (remaining > 0) {
+            result.unresolved = remaining;
+            int[][] ranges = pending.toArray(new int[0][]);
+            long[] ends = new long[ranges.length];
+            for (int i = 0; i < ranges.length; i++) ends[i] = ((i > 0) ? ends[i - 1] : 0) + ranges[i][1] - ranges[i][0] + 1;
+            // Distinct offsets, so that the sample is drawn without replacement.
+            Set<Long> offsets = new HashSet<>();
+            while (offsets.size() < budget) offsets.add((long) (random.nextDouble() * remaining));
+            for (long offset : offsets) {
+                int i = Arrays.binarySearch(ends, offset + 1);
+                if (i < 0) i = -i - 1;
+                int id = (int) (ranges[i][1] - (ends[i] - 1 - offset));
+                BlockIndex currIndex = index.get(id);
+                result.visited++;
+                result.sampled++;
+                // Missing blocks are sampled as blocks without occurrences.
+                if (currIndex == null) {
+                    result.missing++;
+                    continue;
+                }
+                if (positions == null) {
+                    positions = positions(eventKeys, currIndex.filter.getSize(), currIndex.filter.getFormat());
+                    distinct = (int) Arrays.stream(positions).distinct().count();
+                    probe = new Bits.Probe(positions);
+                }
+                if (estimateTest(currIndex.filter, probe, distinct, result)) result.sampledPositives++;
+            }
+        }
+        // Check a random sample of the matching blocks (partial Fisher-Yates shuffle).
+        int checks = Math.min(sampleSize, matches.size());
+        for (int i = 0; i < checks; i++) {
+            Collections.swap(matches, i, i + random.nextInt(matches.size() - i));
+            result.verified++;
+            if (occurs(storage.get(matches.get(i)), e)) result.confirmed++;
+        }
+        result.compute();
+        return result;
+    }
+
+    /**
+     * Tests the bit positions of an event against a filter for {@link #estimateCount} and adds the probability
+     * of a false positive of the filter to the result.
+     * @param bf the filter
+     * @param probe bit positions of the event keys
+     * @param distinct number of distinct bit positions
+     * @param result the estimate being computed
+     * @return true if and only if the filter matches the event
+     */
+    private static boolean estimateTest(BloomFilter bf, Bits.Probe probe, int distinct, CountEstimate result) {
+        double fill = (double) bf.countOnes() / (8.0 * bf.getSize());
+        result.falsePositives += Math.pow(fill, distinct);
+        return bf.test(probe);
+    }
+
+    /**
+     * Implementation of the search algorithm based on the sliced index (see {@link SlicedIndex}).
+     * For each segment intersecting the search range (starting from the most recent one),
+     * the method computes the bitwise AND of the slices corresponding to the bits of the event keys
+     * and then checks the candidate blocks from the most recent to the oldest one.
+     * The number of visited blocks in the result corresponds to the number of candidate blocks
+     * checked against the chain storage.
+     * @param index sliced index database
+     * @param storage chain storage database
+     * @param lower lower endpoint of the search range
+     * @param upper upper endpoint of the search range
+     * @param e event to be searched
+     * @param keys function returning the keys of the event that must be contained in the filters
+     * (i.e., either {@link #keysDefault} or {@link #keysExtended})
+     * @return a {@link QueryResult} with information about the result of the query
+     * @throws IOException in case of deserialization errors
+     * @throws ClassNotFoundException in case of deserialization errors
+     */
+    public static QueryResult slicedSearch(
+        SlicedIndex index, 
+        ChainStorage storage, 
+        int lower, 
+        int upper, 
+        Event e, 
+        Function<Event,byte[][]> keys
+    ) throws IOException, ClassNotFoundException 
+    {
+        QueryResult result = new QueryResult();
+        int[] positions = slicedPositions(index, keys.apply(e));
+        int segmentSize = index.getSegmentSize();
+        for (int segment = upper / segmentSize; segment >= lower / segmentSize; segment--) {
+            long[] candidates = index.candidates(segment, positions);
+            if (candidates == null) continue;
+            int first = segment * segmentSize;
+            int from = Math.min(upper, first + segmentSize - 1) - first;
+            int to = Math.max(lower, first) - first;
+            for (int offset = from; offset >= to; offset--) {
+                if ((candidates[offset >>> 6] & Bits.mask(offset)) == 0) continue;
+                result.count++;
+                Set<Event> currEvents = storage.get(first + offset);
+                if (occurs(currEvents, e)) {
+                    result.id = first + offset;
+                    return result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Computes the bit positions of a set of keys in the filters indexed by a sliced index.
+     * @param index sliced index database
+     * @param keys keys to be tested
+     * @return the positions of all bits associated with the keys
+     */
+    private static int[] slicedPositions(SlicedIndex index, byte[][] keys) {
+        return positions(keys, index.getFilterSize(), index.getFormat());
+    }
+
+    /**
+     * Computes the bit positions of a set of keys in filters with a given size and format.
+     * @param keys keys to be tested
+     * @param size size of the filters (in bytes)
+     * @param format format of the filters
+     * @return the positions of all bits associated with the keys
+     */
+    private static int[] positions(byte[][] keys, int size, int format) {
+        int[] positions = new int[keys.length * BloomFilter.NUM_HASH];
+        for (int k = 0; k < keys.length; k++) {
+            int[] p = BloomFilter.positions(keys[k], size, format);
+            System.arraycopy(p, 0, positions, k * BloomFilter.NUM_HASH, p.length);
+        }
+        return positions;
+    }
+
+    /**
+     * Auxiliary method for computing the maximum feasible jump.
+     * @param numEntries number of entries in the current skip list
+     * @param lower lower bound for the search range
+     * @param upper upper bound for the search range (i.e., current block)
+     * @return identifier of the maximum feasible jump, -1 if no jump can be selected
+     */
+    public static int maxJump(int numEntries, int lower, int upper) {
+        for (int j = numEntries - 1; j >= 0; j--) {
+            if (lower <= (upper - (1 << j))) return j;
+        }
+        return -1;
+    }
+
+    /**
+     * Auxiliary method for computing the maximum feasible jump with the distances of a skip list.
+     * @param skip the current skip list
+     * @param lower lower bound for the search range
+     * @param upper upper bound for the search range (i.e., current block)
+     * @return identifier of the maximum feasible jump, -1 if no jump can be selected
+     */
+    public static int maxJump(Skip skip, int lower, int upper) {
+        return maxJump(skip.getSpans(), lower, upper);
+    }
+
+    /**
+     * Auxiliary method for computing the maximum feasible jump with the distances defining the entries of a skip list.
+     * @param spans distances defining the entries (see {@link Skip#getSpans()})
+     * @param lower lower bound for the search range
+     * @param upper upper bound for the search range (i.e., current block)
+     * @return identifier of the maximum feasible jump, -1 if no jump can be selected
+     */
+    public static int maxJump(int[] spans, int lower, int upper) {
+        for (int j = spans.length - 2; j >= 0; j--) {
+            if (lower <= (upper - spans[j])) return j;
         }
         return -1;
     }
@@ -0,0 +1,221 @@
+package skip;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Cache of the results of previous queries (see {@link Query#cachedSearch}).
+ * For each event, the cache remembers the blocks known to contain an occurrence and the intervals
+ * of blocks known not to contain any occurrence. Before searching a range, the parts of the range
+ * already covered by these facts are removed, so that a query repeated with a range sliding forward
+ * (e.g., up to the tip of the blockchain) only searches the new blocks.
+ *
+ * Memory is bounded: at most <code>maxEvents</code> events are kept (the least recently used one
+ * is evicted first) and, for each event, at most <code>maxFacts</code> intervals and occurrences are kept
+ * (the oldest ones are evicted first). Facts about blocks that are removed from the chain (e.g., after
+ * a reorganization) must be discarded with {@link #invalidateFrom(int)}
+ * (see also {@link ChainWriter#addRollbackListener}).
+ * Each invalidation starts a new generation of the cache: facts are recorded together with the generation
+ * read before the search that found them (see {@link #getGeneration()}), and facts of older generations are dropped,
+ * so that a search running during a rollback cannot record facts about the removed blocks.
+ *
+ * @author Matteo Loporchio
+ */
+public class QueryCache {
+    /**
+     * Default maximum number of facts for each event.
+     */
+    public static final int DEFAULT_MAX_FACTS = 256;
+
+    /**
+     * Facts known about an event.
+     */
+    private static class Facts {
+        /**
+         * Intervals without occurrences (lower endpoint mapped to upper endpoint), disjoint and non-adjacent.
+         */
+        private final TreeMap<Integer, Integer> absent = new TreeMap<>();
+
+        /**
+         * Blocks containing an occurrence.
+         */
+        private final TreeSet<Integer> occurrences = new TreeSet<>();
+    }
+
+    /**
+     * Facts of each event, in access order.
+     */
+    private final LinkedHashMap<Event, Facts> entries;
+
+    /**
+     * Maximum number of facts for each event.
+     */
+    private final int maxFacts;
+
+    /**
+     * Number of invalidations so far.
+     */
+    private long generation;
+
+    /**
+     * Constructs a new cache.
+     * @param maxEvents maximum number of events
+     * @param maxFacts maximum number of facts (intervals and occurrences) for each event
+     */
+    public QueryCache(int maxEvents, int maxFacts) {
+        this.maxFacts = maxFacts;
+        this.entries = new LinkedHashMap<Event, Facts>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Event, Facts> eldest) {
+                return size() > maxEvents;
+            }
+        };
+    }
+
+    /**
+     * Constructs a new cache with the default number of facts for each event.
+     * @param maxEvents maximum number of events
+     */
+    public QueryCache(int maxEvents) {
+        this(maxEvents, DEFAULT_MAX_FACTS);
+    }
+
+    /**
+     * Skips the blocks known not to contain an event.
+     * @param e the event
+     * @param upper upper endpoint of a range
+     * @return the most recent block not greater than <code>upper</code>
+     * that is not known to be without occurrences
+     */
+    public synchronized int skipAbsent(Event e, int upper) {
+        Facts f = entries.get(e);
+        if (f == null) return upper;
+        Map.Entry<Integer, Integer> interval = f.absent.floorEntry(upper);
+        if (interval != null && interval.getValue() >= upper) return interval.getKey() - 1;
+        return upper;
+    }
+
+    /**
+     * Checks whether a block is known to contain an event.
+     * @param e the event
+     * @param id identifier of the block
+     * @return true if and only if the block is a known occurrence
+     */
+    public synchronized boolean isOccurrence(Event e, int id) {
+        Facts f = entries.get(e);
+        return f != null && f.occurrences.contains(id);
+    }
+
+    /**
+     * Returns the most recent block below the given one about which something is known.
+     * @param e the event
+     * @param upper identifier of a block
+     * @return the most recent block lower than <code>upper</code> that is either a known occurrence
+     * or the upper endpoint of an interval without occurrences (<code>Integer.MIN_VALUE</code> if none)
+     */
+    public synchronized int knownBelow(Event e, int upper) {
+        Facts f = entries.get(e);
+        if (f == null) return Integer.MIN_VALUE;
+        int result = Integer.MIN_VALUE;
+        Integer o = f.occurrences.lower(upper);
+        if (o != null) result = o;
+        Map.Entry<Integer, Integer> interval = f.absent.lowerEntry(upper);
+        if (interval != null) result = Math.max(result, Math.min(interval.getValue(), upper - 1));
+        return result;
+    }
+
+    /**
+     * Returns the current generation of the cache, which must be read before searching the blocks
+     * whose facts are recorded.
+     * @return the number of invalidations so far
+     */
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Records that a block contains an event.
+     * @param e the event
+     * @param id identifier of the block
+     * @param generation generation of the cache when the search started (the fact is dropped if it is outdated)
+     */
+    public synchronized void addOccurrence(Event e, int id, long generation) {
+        if (generation != this.generation) return;
+        Facts f = entries.computeIfAbsent(e, (k) -> new Facts());
+        f.occurrences.add(id);
+        trim(f);
+    }
+
+    /**
+     * Records that an interval of blocks does not contain an event.
+     * The interval is merged with the overlapping or adjacent ones.
+     * @param e the event
+     * @param lower lower endpoint of the interval
+     * @param upper upper endpoint of the interval
+     * @param generation generation of the cache when the search started (the fact is dropped if it is outdated)
+     */
+    public synchronized void addAbsent(Event e, int lower, int upper, long generation) {
+        if (upper < lower || generation != this.generation) return;
+        Facts f = entries.computeIfAbsent(e, (k) -> new Facts());
+        Map.Entry<Integer, Integer> prev = f.absent.floorEntry(lower);
+        if (prev != null && prev.getValue() >= lower - 1) {
+            lower = prev.getKey();
+            upper = Math.max(upper, prev.getValue());
+        }
+        Map.Entry<Integer, Integer> next = f.absent.ceilingEntry(lower);
+        while (next != null && next.getKey() <= upper + 1) {
+            upper = Math.max(upper, next.getValue());
+            f.absent.remove(next.getKey());
+            next = f.absent.ceilingEntry(lower);
+        }
+        f.absent.put(lower, upper);
+        trim(f);
+    }
+
+    /**
+     * Evicts the oldest facts of an event until the limit is respected.
+     * @param f facts of the event
+     */
+    private void trim(Facts f) {
+        while (f.absent.size() + f.occurrences.size() > maxFacts) {
+            boolean dropInterval = !f.absent.isEmpty() &&
+            (f.occurrences.isEmpty() || f.absent.firstKey() < f.occurrences.first());
+            if (dropInterval) f.absent.pollFirstEntry();
+            else f.occurrences.pollFirst();
+        }
+    }
+
+    /**
+     * Discards all facts about the blocks from the given one onwards (e.g., after a rollback).
+     * @param id identifier of the first invalid block
+     */
+    public synchronized void invalidateFrom(int id) {
+        generation++;
+        for (Facts f : entries.values()) {
+            f.occurrences.tailSet(id, true).clear();
+            Map.Entry<Integer, Integer> last = f.absent.lowerEntry(id);
+            f.absent.tailMap(id, true).clear();
+            if (last != null && last.getValue() >= id) f.absent.put(last.getKey(), id - 1);
+        }
+    }
+
+    /**
+     * Discards all facts.
+     */
+    public synchronized void clear() {
+        generation++;
+        entries.clear();
+    }
+
+    /**
+     * Returns the number of events in the cache.
+     * @return the number of events
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+}
@@ -0,0 +1,162 @@
+package skip;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits on the amount of work performed by a query (see {@link Query}).
+ * A query can be bounded by a deadline, by a cancellation token (i.e., a flag that can be
+ * set by another thread) and by a maximum number of visited blocks.
+ * When a limit is reached, the query stops and returns a partial {@link QueryResult}
+ * describing the part of the range that has not been searched yet.
+ * The budget of visited blocks can also be shared by concurrent searches (see {@link #share()}).
+ *
+ * @author Matteo Loporchio
+ */
+public class QueryLimits {
+    /**
+     * Limits that never stop a query.
+     */
+    public static final QueryLimits NONE = new QueryLimits(false, 0, -1, null, new AtomicBoolean[0], null);
+
+    /**
+     * Whether the query has a deadline.
+     */
+    private final boolean hasDeadline;
+
+    /**
+     * Deadline of the query (with respect to {@link System#nanoTime()}).
+     */
+    private final long deadline;
+
+    /**
+     * Maximum number of blocks that can be visited (negative if unlimited).
+     */
+    private final int maxVisited;
+
+    /**
+     * Cancellation token (null if the query cannot be cancelled).
+     */
+    private final AtomicBoolean cancelled;
+
+    /**
+     * Additional cancellation tokens (see {@link #link(AtomicBoolean)}).
+     */
+    private final AtomicBoolean[] linked;
+
+    /**
+     * Number of blocks visited by all searches sharing the budget (null if the budget is not shared).
+     */
+    private final AtomicLong shared;
+
+    /**
+     * Constructs new query limits.
+     * @param timeout maximum duration of the query (negative if unlimited)
+     * @param unit time unit of the timeout
+     * @param maxVisited maximum number of blocks that can be visited (negative if unlimited)
+     * @param cancelled cancellation token: the query stops as soon as it is set to true (may be null)
+     */
+    public QueryLimits(long timeout, TimeUnit unit, int maxVisited, AtomicBoolean cancelled) {
+        this(timeout >= 0, System.nanoTime() + ((timeout >= 0) ? unit.toNanos(timeout) : 0), maxVisited, cancelled, 
+        new AtomicBoolean[0], null);
+    }
+
+    /**
+     * Constructs new query limits with an absolute deadline.
+     * @param hasDeadline whether the query has a deadline
+     * @param deadline deadline with respect to {@link System#nanoTime()}
+     * @param maxVisited maximum number of blocks that can be visited (negative if unlimited)
+     * @param cancelled cancellation token (may be null)
+     * @param linked additional cancellation tokens
+     * @param shared counter of the blocks visited by the searches sharing the budget (may be null)
+     */
+    private QueryLimits(boolean hasDeadline, long deadline, int maxVisited, AtomicBoolean cancelled, AtomicBoolean[] linked,
+    AtomicLong shared) {
+        this.hasDeadline = hasDeadline;
+        this.deadline = deadline;
+        this.maxVisited = maxVisited;
+        this.cancelled = cancelled;
+        this.linked = linked;
+        this.shared = shared;
+    }
+
+    /**
+     * Returns limits with the same deadline and token,
+     * but with a budget reduced by the given number of visited blocks.
+     * @param visited number of blocks already visited
+     * @return the remaining limits
+     */
+    public QueryLimits consume(int visited) {
+        // A shared budget already includes the blocks visited with these limits.
+        if (maxVisited < 0 || shared != null) return this;
+        return new QueryLimits(hasDeadline, deadline, Math.max(0, maxVisited - visited), cancelled, linked, null);
+    }
+
+    /**
+     * Returns the same limits with a budget shared by all searches using them (e.g., the parts of a parallel search):
+     * every check letting a search visit a block takes the block from the common budget, whatever the number
+     * of blocks visited by that search.
+     * @return the new limits
+     */
+    public QueryLimits share() {
+        if (maxVisited < 0) return this;
+        return new QueryLimits(hasDeadline, deadline, maxVisited, cancelled, linked, new AtomicLong());
+    }
+
+    /**
+     * Returns limits with the same deadline and budget, but with a different cancellation token.
+     * @param token the new cancellation token
+     * @return the new limits
+     */
+    public QueryLimits withToken(AtomicBoolean token) {
+        return new QueryLimits(hasDeadline, deadline, maxVisited, token, linked, shared);
+    }
+
+    /**
+     * Returns the same limits with an additional cancellation token: the query stops
+     * as soon as either its own token or the additional one is set to true.
+     * This is used to cancel parts of a query (e.g., the search on a shard, 
+     * see {@link Query#findFirst(ShardedChainIndex, ChainStorage, int, int, Event, java.util.function.BiPredicate, QueryLimits, java.util.concurrent.ExecutorService)})
+     * without affecting the token of the caller.
+     * @param token the additional cancellation token
+     * @return the new limits
+     */
+    public QueryLimits link(AtomicBoolean token) {
+        AtomicBoolean[] tokens = Arrays.copyOf(linked, linked.length + 1);
+        tokens[linked.length] = token;
+        return new QueryLimits(hasDeadline, deadline, maxVisited, cancelled, tokens, shared);
+    }
+
+    /**
+     * Returns the cancellation token of the query.
+     * @return the cancellation token (may be null)
+     */
+    public AtomicBoolean getToken() {
+        return cancelled;
+    }
+
+    /**
+     * Checks whether a query can visit another block.
+     * If the budget is shared, the block is taken from the common budget when the query can go on.
+     * @param visited number of blocks visited so far (ignored if the budget is shared)
+     * @return {@link QueryResult#COMPLETE} if the query can go on, otherwise the reason why it must stop
+     */
+    public int check(int visited) {
+        if (cancelled != null && cancelled.get()) return QueryResult.CANCELLED;
+        for (AtomicBoolean token : linked) {
+            if (token.get()) return QueryResult.CANCELLED;
+        }
+        if (maxVisited >= 0 && shared == null && visited >= maxVisited) return QueryResult.BUDGET_EXHAUSTED;
+        if (hasDeadline && System.nanoTime() - deadline >= 0) return QueryResult.TIMEOUT;
+        if (shared != null) {
+            long taken;
+            do {
+                taken = shared.get();
+                if (taken >= maxVisited) return QueryResult.BUDGET_EXHAUSTED;
+            } while (!shared.compareAndSet(taken, taken + 1));
+        }
+        return QueryResult.COMPLETE;
+    }
+}
@@ -0,0 +1,152 @@
+package skip;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Describes how a type F query is executed by {@link Query#search}.
+ * A plan splits the search range into consecutive sub-ranges (steps), ordered from the
+ * most recent to the oldest one, and assigns a search strategy to each of them
+ * based on the cost estimates computed by {@link Query#plan}.
+ *
+ * @author Matteo Loporchio
+ */
+public class QueryPlan {
+    /**
+     * Strategy corresponding to {@link Query#linearSearch}.
+     */
+    public static final int LINEAR = 0;
+
+    /**
+     * Strategy corresponding to {@link Query#findFirst}.
+     */
+    public static final int SKIP = 1;
+
+    /**
+     * A sub-range of the plan with its strategy and cost estimates.
+     */
+    public static class Step {
+        /**
+         * Lower endpoint of the sub-range.
+         */
+        public final int lower;
+
+        /**
+         * Upper endpoint of the sub-range.
+         */
+        public final int upper;
+
+        /**
+         * Strategy chosen for the sub-range (either {@link #LINEAR} or {@link #SKIP}).
+         */
+        public final int strategy;
+
+        /**
+         * Estimated cost of the sequential method.
+         */
+        public final double linearCost;
+
+        /**
+         * Estimated cost of the BF skip index-based method.
+         */
+        public final double skipCost;
+
+        /**
+         * Observed hit rate of the block filters and of each skip entry level (may be null).
+         */
+        public final double[] hitRates;
+
+        /**
+         * Average fill ratio of the block filters and of each skip entry level (may be null).
+         */
+        public final double[] fillRatios;
+
+        /**
+         * Constructs a new step.
+         * @param lower lower endpoint of the sub-range
+         * @param upper upper endpoint of the sub-range
+         * @param strategy strategy for the sub-range
+         * @param linearCost estimated cost of the sequential method
+         * @param skipCost estimated cost of the BF skip index-based method
+         * @param hitRates observed hit rates (filter first, then skip entries)
+         * @param fillRatios average fill ratios (filter first, then skip entries)
+         */
+        public Step(int lower, int upper, int strategy, double linearCost, double skipCost,
+        double[] hitRates, double[] fillRatios) {
+            this.lower = lower;
+            this.upper = upper;
+            this.strategy = strategy;
+            this.linearCost = linearCost;
+            this.skipCost = skipCost;
+            this.hitRates = hitRates;
+            this.fillRatios = fillRatios;
+        }
+    }
+
+    /**
+     * Lower endpoint of the search range.
+     */
+    public final int lower;
+
+    /**
+     * Upper endpoint of the search range.
+     */
+    public final int upper;
+
+    /**
+     * Number of blocks read to compute the statistics of the plan.
+     */
+    public int sampled = 0;
+
+    /**
+     * Steps of the plan, from the most recent to the oldest sub-range.
+     */
+    public final List<Step> steps = new ArrayList<>();
+
+    /**
+     * Constructs an empty plan for the given range.
+     * @param lower lower endpoint of the search range
+     * @param upper upper endpoint of the search range
+     */
+    public QueryPlan(int lower, int upper) {
+        this.lower = lower;
+        this.upper = upper;
+    }
+
+    /**
+     * Returns a human-readable description of the plan.
+     * @return the description of the plan, with one line for each step
+     */
+    public String explain() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("Plan for [%d, %d] (%d blocks, %d sampled)\n", lower, upper, upper - lower + 1, sampled));
+        for (Step s : steps) {
+            sb.append(String.format("  [%d, %d]\t%s\tlinear=%.1f\tskip=%s", s.lower, s.upper,
+            (s.strategy == SKIP) ? "SKIP" : "LINEAR", s.linearCost, 
+            Double.isNaN(s.skipCost) ? "-" : String.format("%.1f", s.skipCost)));
+            if (s.hitRates != null) sb.append("\thits=").append(format(s.hitRates));
+            if (s.fillRatios != null) sb.append("\tfill=").append(format(s.fillRatios));
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return explain();
+    }
+
+    /**
+     * Formats an array of ratios.
+     * @param values the array
+     * @return a string with all values rounded to three decimal places
+     */
+    private static String format(double[] values) {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) sb.append(',');
+            sb.append(String.format("%.3f", values[i]));
+        }
+        return sb.append(']').toString();
+    }
+}
@@ -1,18 +1,86 @@
 package skip;
 
+import java.util.List;
+
 /**
  * Contains information about the result of a type F query (see {@link Query}).
- * 
+ * If the query has been stopped by one of its {@link QueryLimits}, the result is partial:
+ * no occurrence has been found in the blocks above <code>remainingUpper</code>,
+ * while the range from <code>remainingLower</code> to <code>remainingUpper</code>
+ * still has to be searched (e.g., by issuing a new query on it).
+ * Queries returning all occurrences ({@link Query#findAll}) also fill the list <code>ids</code>.
+ *
  * @author Matteo Loporchio
  */
 public class QueryResult {
+    /**
+     * Status of a query that has searched the whole range.
+     */
+    public static final int COMPLETE = 0;
+
+    /**
+     * Status of a query stopped by its deadline.
+     */
+    public static final int TIMEOUT = 1;
+
+    /**
+     * Status of a query stopped by its cancellation token.
+     */
+    public static final int CANCELLED = 2;
+
+    /**
+     * Status of a query stopped because it has visited the maximum number of blocks.
+     */
+    public static final int BUDGET_EXHAUSTED = 3;
+
     /**
      * Identifier of the block containing the first occurrence.
      */
     public int id = -1;
 
+    /**
+     * Identifiers of all blocks containing an occurrence, from the most recent to the oldest one
+     * (only for {@link Query#findAll}, null otherwise).
+     */
+    public List<Integer> ids = null;
+
     /**
      * Number blocks visited to find the solution.
      */
     public int count = 0;
+
+    /**
+     * Status of the query.
+     */
+    public int status = COMPLETE;
+
+    /**
+     * Lower endpoint of the range that has not been searched (-1 if the query is complete).
+     */
+    public int remainingLower = -1;
+
+    /**
+     * Upper endpoint of the range that has not been searched (-1 if the query is complete).
+     */
+    public int remainingUpper = -1;
+
+    /**
+     * Returns true if the query has either found an occurrence or searched the whole range.
+     * @return true if and only if the result is not partial
+     */
+    public boolean isComplete() {
+        return status == COMPLETE;
+    }
+
+    /**
+     * Marks the result as partial.
+     * @param status the reason why the query has been stopped
+     * @param lower lower endpoint of the range that has not been searched
+     * @param upper upper endpoint of the range that has not been searched
+     */
+    public void stop(int status, int lower, int upper) {
+        this.status = status;
+        this.remainingLower = lower;
+        this.remainingUpper = upper;
+    }
 }
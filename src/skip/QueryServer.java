@@ -0,0 +1,772 @@
+package skip;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiPredicate;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A long-running query service answering type F queries over HTTP on the loopback interface,
+ * so that the databases are opened once and queries do not pay the startup of a new JVM.
+ * Queries are run on a bounded executor: when all threads are busy and the queue is full,
+ * new queries are rejected with status 503 (admission control) instead of piling up.
+ * Admission takes one permit of a semaphore for each query (all permits of a batch at once),
+ * so concurrent requests can never admit more queries than the threads and the queue can hold.
+ * Requests are handled asynchronously: the HTTP threads only parse the requests and submit them,
+ * and the responses are written by the query threads as soon as the results are available.
+ *
+ * The service has the following endpoints (requests and responses are JSON objects).
+ * <ul>
+ *  <li><code>POST /query</code>: a single query, i.e., an object with the fields <code>address</code> and
+ *  <code>signature</code> (hex strings, optionally with a <code>0x</code> prefix), <code>lower</code>,
+ *  <code>upper</code> (default: the tip of the index, or its last block if it has no tip), <code>method</code> (either <code>skip</code>,
+ *  <code>linear</code> or <code>plan</code>, see {@link Query}; default: <code>skip</code>) and the optional
+ *  limits <code>timeoutMillis</code> and <code>maxVisited</code> (see {@link QueryLimits}).
+ *  Blocks and budgets must be integers in the range of <code>int</code>.
+ *  The response describes the {@link QueryResult};</li>
+ *  <li><code>POST /batch</code>: an object whose field <code>queries</code> is an array of queries.
+ *  The queries are run concurrently and their results are streamed back one per line (NDJSON)
+ *  in order of completion, each with the position of the query within the batch (field <code>index</code>);</li>
+ *  <li><code>POST /range</code>: a query returning all the blocks containing the event in the range.
+ *  The range is searched from the most recent block in chunks of {@link #RANGE_CHUNK_SIZE} blocks
+ *  (see {@link Query#findAll}) and each occurrence is streamed back on its own line as soon as its chunk
+ *  is complete; the last line summarizes the search (field <code>done</code>);</li>
+ *  <li><code>GET /health</code>: the status of the service with the first block and the tip of the index;</li>
+ *  <li><code>GET /metrics</code>: counters of requests, queries, rejections and errors, the number of
+ *  running and queued queries, and the total number of visited blocks and query time.</li>
+ * </ul>
+ *
+ * The inputs of this program are as follows.
+ * <ol>
+ *  <li><code>indexDb</code>: path of the chain index database;</li>
+ *  <li><code>storageDb</code>: path of the chain storage database;</li>
+ *  <li><code>port</code>: port of the service on the loopback interface (0 for any free port);</li>
+ *  <li><code>threads</code> (optional): number of query threads (default: {@link #DEFAULT_THREADS});</li>
+ *  <li><code>queueSize</code> (optional): maximum number of queries waiting for a thread
+ *  (default: {@link #DEFAULT_QUEUE_SIZE});</li>
+ *  <li><code>membership</code> (optional): procedure to be used for testing whether an event is included
+ *  in a Bloom filter (either <code>default</code> or <code>extended</code>; default: <code>default</code>).</li>
+ * </ol>
+ * The service can be tested locally with {@link TestQueryServer}.
+ *
+ * @author Matteo Loporchio
+ */
+public class QueryServer implements AutoCloseable {
+    /**
+     * Default number of query threads.
+     */
+    public static final int DEFAULT_THREADS = 4;
+
+    /**
+     * Default maximum number of queries waiting for a thread.
+     */
+    public static final int DEFAULT_QUEUE_SIZE = 64;
+
+    /**
+     * Number of threads parsing the HTTP requests.
+     */
+    public static final int HTTP_THREADS = 2;
+
+    /**
+     * Maximum size of a request body (in bytes).
+     */
+    public static final int MAX_REQUEST_SIZE = 1 << 20;
+
+    /**
+     * Number of blocks searched before streaming the occurrences of a range query.
+     */
+    public static final int RANGE_CHUNK_SIZE = 1 << 12;
+
+    /**
+     * Chain index database.
+     */
+    private final ChainIndex index;
+
+    /**
+     * Chain storage database.
+     */
+    private final ChainStorage storage;
+
+    /**
+     * Membership testing procedure.
+     */
+    private final BiPredicate<BloomFilter, Event> membership;
+
+    /**
+     * The HTTP server.
+     */
+    private final HttpServer server;
+
+    /**
+     * Executor parsing the HTTP requests.
+     */
+    private final ExecutorService httpExecutor;
+
+    /**
+     * Executor running the queries.
+     */
+    private final ThreadPoolExecutor queryExecutor;
+
+    /**
+     * Permits of the queries that can be admitted (running or waiting for a thread).
+     */
+    private final Semaphore permits;
+
+    /**
+     * Number of HTTP requests received.
+     */
+    private final AtomicLong requests = new AtomicLong();
+
+    /**
+     * Number of queries completed.
+     */
+    private final AtomicLong queries = new AtomicLong();
+
+    /**
+     * Number of queries rejected by admission control.
+     */
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * Number of failed requests.
+     */
+    private final AtomicLong errors = new AtomicLong();
+
+    /**
+     * Total number of blocks visited by the queries.
+     */
+    private final AtomicLong visited = new AtomicLong();
+
+    /**
+     * Total time spent by the queries (in nanoseconds).
+     */
+    private final AtomicLong queryTime = new AtomicLong();
+
+    /**
+     * Constructs a new server (not started yet, see {@link #start()}).
+     * @param index chain index database
+     * @param storage chain storage database
+     * @param port port on the loopback interface (0 for any free port)
+     * @param threads number of query threads
+     * @param queueSize maximum number of queries waiting for a thread
+     * @param membership membership testing procedure
+     * @throws IOException if the server cannot be bound to the port
+     */
+    public QueryServer(ChainIndex index, ChainStorage storage, int port, int threads, int queueSize,
+    BiPredicate<BloomFilter, Event> membership) throws IOException {
+        this.index = index;
+        this.storage = storage;
+        this.membership = membership;
+        // The queue is bounded by the permits, which are released only once the queries are complete.
+        this.queryExecutor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+        new LinkedBlockingQueue<>(), new ThreadPoolExecutor.AbortPolicy());
+        this.permits = new Semaphore(threads + queueSize);
+        this.httpExecutor = Executors.newFixedThreadPool(HTTP_THREADS);
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.setExecutor(httpExecutor);
+        server.createContext("/query", (ex) -> handle(ex, "POST", this::query));
+        server.createContext("/batch", (ex) -> handle(ex, "POST", this::batch));
+        server.createContext("/range", (ex) -> handle(ex, "POST", this::range));
+        server.createContext("/health", (ex) -> handle(ex, "GET", this::health));
+        server.createContext("/metrics", (ex) -> handle(ex, "GET", this::metrics));
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 3) {
+            System.err.println("Usage: QueryServer <indexDb> <storageDb> <port> [threads] [queueSize] [membership]");
+            System.exit(1);
+        }
+        final String indexPath = args[0];
+        final String storagePath = args[1];
+        final int port = Integer.parseInt(args[2]);
+        final int threads = (args.length > 3) ? Integer.parseInt(args[3]) : DEFAULT_THREADS;
+        final int queueSize = (args.length > 4) ? Integer.parseInt(args[4]) : DEFAULT_QUEUE_SIZE;
+        final BiPredicate<BloomFilter, Event> membership =
+        (args.length > 5 && args[5].equals("extended")) ? Query.containsExtended : Query.containsDefault;
+        try {
+            ChainIndex index = new ChainIndex(indexPath, false);
+            ChainStorage storage = new ChainStorage(storagePath, false);
+            QueryServer server = new QueryServer(index, storage, port, threads, queueSize, membership);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    server.close();
+                    storage.close();
+                    index.close();
+                }
+                catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }));
+            server.start();
+            System.out.printf("Listening on:\t%s:%d\n", InetAddress.getLoopbackAddress().getHostAddress(), server.getPort());
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Starts accepting requests.
+     */
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * Returns the port of the server.
+     * @return the port on the loopback interface
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Stops the server, waiting for the running queries to complete.
+     */
+    @Override
+    public void close() {
+        server.stop(0);
+        httpExecutor.shutdown();
+        queryExecutor.shutdown();
+        try {
+            queryExecutor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Handler of an endpoint. The handler either writes the response or
+     * hands the exchange over to a query thread, which writes it later.
+     */
+    private interface Endpoint {
+        /**
+         * Handles a request.
+         * @param exchange the exchange
+         * @param request the body of the request (null for GET requests)
+         * @throws IOException if the response cannot be written
+         */
+        void handle(HttpExchange exchange, Map<String, Object> request) throws IOException;
+    }
+
+    /**
+     * Checks the method of a request, parses its body and dispatches it to an endpoint.
+     * Invalid requests are answered with status 400 and unexpected failures with status 500.
+     * @param exchange the exchange
+     * @param method the expected method
+     * @param endpoint the endpoint
+     */
+    private void handle(HttpExchange exchange, String method, Endpoint endpoint) {
+        requests.incrementAndGet();
+        try {
+            if (!exchange.getRequestMethod().equals(method)) {
+                send(exchange, 405, error("Method not allowed"));
+                return;
+            }
+            Map<String, Object> request = null;
+            if (method.equals("POST")) {
+                Object body = Json.parse(readBody(exchange));
+                if (!(body instanceof Map)) throw new IllegalArgumentException("Expected a JSON object");
+                @SuppressWarnings("unchecked")
+                Map<String, Object> map = (Map<String, Object>) body;
+                request = map;
+            }
+            endpoint.handle(exchange, request);
+        }
+        catch (IllegalArgumentException e) {
+            errors.incrementAndGet();
+            send(exchange, 400, error(e.getMessage()));
+        }
+        catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            send(exchange, 503, error("Too many pending queries"));
+        }
+        catch (Exception e) {
+            errors.incrementAndGet();
+            send(exchange, 500, error(String.valueOf(e.getMessage())));
+        }
+    }
+
+    /**
+     * Answers a single query.
+     * @param exchange the exchange
+     * @param request the query
+     */
+    private void query(HttpExchange exchange, Map<String, Object> request) {
+        Request q = new Request(request, index);
+        admit(1);
+        submit(() -> {
+            try {
+                send(exchange, 200, run(q).toJson());
+            }
+            catch (Exception e) {
+                errors.incrementAndGet();
+                send(exchange, 500, error(String.valueOf(e.getMessage())));
+            }
+        });
+    }
+
+    /**
+     * Answers a batch of queries, streaming the results in order of completion.
+     * The batch is rejected as a whole if the queue cannot hold all its queries.
+     * @param exchange the exchange
+     * @param request the batch
+     * @throws IOException if the response cannot be written
+     */
+    private void batch(HttpExchange exchange, Map<String, Object> request) throws IOException {
+        Object list = request.get("queries");
+        if (!(list instanceof List)) throw new IllegalArgumentException("Missing array of queries");
+        List<Request> batch = new ArrayList<>();
+        for (Object o : (List<?>) list) {
+            if (!(o instanceof Map)) throw new IllegalArgumentException("Each query must be a JSON object");
+            @SuppressWarnings("unchecked")
+            Map<String, Object> map = (Map<String, Object>) o;
+            batch.add(new Request(map, index));
+        }
+        admit(batch.size());
+        try {
+            exchange.getResponseHeaders().set("Content-Type", "application/x-ndjson");
+            exchange.sendResponseHeaders(200, 0);
+        }
+        catch (IOException e) {
+            permits.release(batch.size());
+            throw e;
+        }
+        if (batch.isEmpty()) {
+            exchange.close();
+            return;
+        }
+        Stream stream = new Stream(exchange, batch.size());
+        for (int k = 0; k < batch.size(); k++) {
+            final int position = k;
+            final Request q = batch.get(k);
+            try {
+                submit(() -> {
+                    String line;
+                    try {
+                        line = "{\"index\":" + position + "," + run(q).toJson().substring(1);
+                    }
+                    catch (Exception e) {
+                        errors.incrementAndGet();
+                        line = "{\"index\":" + position + ",\"error\":" + Json.quote(String.valueOf(e.getMessage())) + "}";
+                    }
+                    stream.write(line, true);
+                });
+            }
+            catch (RejectedExecutionException e) {
+                rejected.incrementAndGet();
+                stream.write("{\"index\":" + position + ",\"error\":\"Too many pending queries\"}", true);
+            }
+        }
+    }
+
+    /**
+     * Answers a range query, streaming the occurrences chunk by chunk.
+     * @param exchange the exchange
+     * @param request the query
+     */
+    private void range(HttpExchange exchange, Map<String, Object> request) {
+        Request q = new Request(request, index);
+        admit(1);
+        submit(() -> {
+            long start = System.nanoTime();
+            Stream stream = null;
+            try {
+                exchange.getResponseHeaders().set("Content-Type", "application/x-ndjson");
+                exchange.sendResponseHeaders(200, 0);
+                stream = new Stream(exchange, 1);
+                QueryResult total = new QueryResult();
+                QueryLimits limits = q.limits();
+                for (long u = q.upper; u >= q.lower; u -= RANGE_CHUNK_SIZE) {
+                    int l = (int) Math.max(q.lower, u - RANGE_CHUNK_SIZE + 1);
+                    QueryResult r = Query.findAll(index, storage, l, (int) u, q.event, membership, limits.consume(total.count));
+                    total.count += r.count;
+                    for (int id : r.ids) {
+                        if (total.id < 0) total.id = id;
+                        stream.write("{\"id\":" + id + "}", false);
+                    }
+                    if (!r.isComplete()) {
+                        total.stop(r.status, q.lower, r.remainingUpper);
+                        break;
+                    }
+                }
+                record(total, System.nanoTime() - start);
+                stream.write("{\"done\":true," + toJson(total, System.nanoTime() - start).substring(1), true);
+            }
+            catch (Exception e) {
+                errors.incrementAndGet();
+                if (stream != null) stream.write("{\"error\":" + Json.quote(String.valueOf(e.getMessage())) + "}", true);
+                else send(exchange, 500, error(String.valueOf(e.getMessage())));
+            }
+        });
+    }
+
+    /**
+     * Admits a number of queries, taking their permits atomically.
+     * @param n number of queries
+     * @throws RejectedExecutionException if there are not enough permits
+     */
+    private void admit(int n) {
+        if (!permits.tryAcquire(n)) throw new RejectedExecutionException();
+    }
+
+    /**
+     * Runs an admitted query, releasing its permit once complete.
+     * @param task the query
+     * @throws RejectedExecutionException if the server is shutting down (the permit is released)
+     */
+    private void submit(Runnable task) {
+        try {
+            queryExecutor.execute(() -> {
+                try {
+                    task.run();
+                }
+                finally {
+                    permits.release();
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Reports the status of the service.
+     * @param exchange the exchange
+     * @param request unused
+     */
+    private void health(HttpExchange exchange, Map<String, Object> request) {
+        send(exchange, 200, String.format("{\"status\":\"ok\",\"first\":%d,\"tip\":%d}", index.getFirst(), index.getTip()));
+    }
+
+    /**
+     * Reports the counters of the service.
+     * @param exchange the exchange
+     * @param request unused
+     */
+    private void metrics(HttpExchange exchange, Map<String, Object> request) {
+        send(exchange, 200, String.format("{\"requests\":%d,\"queries\":%d,\"rejected\":%d,\"errors\":%d," +
+        "\"running\":%d,\"queued\":%d,\"visitedBlocks\":%d,\"queryTimeNanos\":%d}",
+        requests.get(), queries.get(), rejected.get(), errors.get(), queryExecutor.getActiveCount(),
+        queryExecutor.getQueue().size(), visited.get(), queryTime.get()));
+    }
+
+    /**
+     * Runs a query with the requested method.
+     * @param q the query
+     * @return the result of the query
+     * @throws IOException in case of deserialization errors
+     * @throws ClassNotFoundException in case of deserialization errors
+     */
+    private Timed run(Request q) throws IOException, ClassNotFoundException {
+        long start = System.nanoTime();
+        QueryResult r;
+        switch (q.method) {
+            case "linear": r = Query.linearSearch(index, storage, q.lower, q.upper, q.event, membership, q.limits()); break;
+            case "plan": r = Query.search(index, storage, q.lower, q.upper, q.event, membership, q.limits()); break;
+            default: r = Query.findFirst(index, storage, q.lower, q.upper, q.event, membership, q.limits());
+        }
+        long time = System.nanoTime() - start;
+        record(r, time);
+        return new Timed(r, time);
+    }
+
+    /**
+     * Updates the counters after a query.
+     * @param r the result of the query
+     * @param time time spent by the query (in nanoseconds)
+     */
+    private void record(QueryResult r, long time) {
+        queries.incrementAndGet();
+        visited.addAndGet(r.count);
+        queryTime.addAndGet(time);
+    }
+
+    /**
+     * Result of a query with its running time.
+     */
+    private static class Timed {
+        /**
+         * The result.
+         */
+        private final QueryResult result;
+
+        /**
+         * Running time (in nanoseconds).
+         */
+        private final long time;
+
+        /**
+         * Constructs a new result.
+         * @param result the result
+         * @param time the running time
+         */
+        private Timed(QueryResult result, long time) {
+            this.result = result;
+            this.time = time;
+        }
+
+        /**
+         * Returns the result as a JSON object.
+         * @return the JSON object
+         */
+        private String toJson() {
+            return QueryServer.toJson(result, time);
+        }
+    }
+
+    /**
+     * Returns a query result as a JSON object.
+     * @param r the result
+     * @param time running time of the query (in nanoseconds)
+     * @return the JSON object
+     */
+    private static String toJson(QueryResult r, long time) {
+        return String.format("{\"id\":%d,\"visited\":%d,\"status\":%d,\"remainingLower\":%d,\"remainingUpper\":%d,\"timeNanos\":%d}",
+        r.id, r.count, r.status, r.remainingLower, r.remainingUpper, time);
+    }
+
+    /**
+     * A parsed query.
+     */
+    private static class Request {
+        /**
+         * The event.
+         */
+        private final Event event;
+
+        /**
+         * Lower endpoint of the range.
+         */
+        private final int lower;
+
+        /**
+         * Upper endpoint of the range.
+         */
+        private final int upper;
+
+        /**
+         * Search method (<code>skip</code>, <code>linear</code> or <code>plan</code>).
+         */
+        private final String method;
+
+        /**
+         * Timeout (in milliseconds, negative if unlimited).
+         */
+        private final long timeout;
+
+        /**
+         * Maximum number of visited blocks (negative if unlimited).
+         */
+        private final int maxVisited;
+
+        /**
+         * Parses a query.
+         * @param request the JSON object
+         * @param index chain index, whose tip is the default upper endpoint
+         * @throws IllegalArgumentException if the query is not valid
+         */
+        private Request(Map<String, Object> request, ChainIndex index) {
+            String address = hex(request.get("address")), signature = hex(request.get("signature"));
+            if (address == null && signature == null) throw new IllegalArgumentException("Missing address and signature");
+            this.event = new Event(address, signature);
+            this.lower = integer(request, "lower", 0);
+            this.upper = (request.get("upper") != null) ? integer(request, "upper", -1) : lastBlock(index);
+            this.method = (request.get("method") != null) ? request.get("method").toString() : "skip";
+            if (!method.equals("skip") && !method.equals("linear") && !method.equals("plan"))
+                throw new IllegalArgumentException("Unknown method: " + method);
+            this.timeout = number(request, "timeoutMillis", -1);
+            this.maxVisited = integer(request, "maxVisited", -1);
+        }
+
+        /**
+         * Returns the limits of the query.
+         * @return the limits (starting now)
+         */
+        private QueryLimits limits() {
+            if (timeout < 0 && maxVisited < 0) return QueryLimits.NONE;
+            return new QueryLimits(timeout, TimeUnit.MILLISECONDS, maxVisited, null);
+        }
+
+        /**
+         * Parses a hex string.
+         * @param value the value of a field
+         * @return the hex string without prefix (null if the value is null)
+         * @throws IllegalArgumentException if the value is not a valid hex string
+         */
+        private static String hex(Object value) {
+            if (value == null) return null;
+            String s = value.toString();
+            if (s.startsWith("0x") || s.startsWith("0X")) s = s.substring(2);
+            if (s.isEmpty() || s.length() % 2 != 0 || !s.matches("[0-9a-fA-F]+"))
+                throw new IllegalArgumentException("Invalid hex string: " + value);
+            return s;
+        }
+
+        /**
+         * Returns the default upper endpoint of a query.
+         * @param index chain index
+         * @return the tip of the index, or its last block if it has no tip (e.g., if it has been built without
+         * {@link ChainIndex#append}), or -1 if it is empty
+         */
+        private static int lastBlock(ChainIndex index) {
+            int tip = index.getTip();
+            if (tip >= 0) return tip;
+            try (ChainIndex.Scanner scan = index.scan(Integer.MAX_VALUE, 0)) {
+                return scan.next() ? scan.id() : -1;
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        /**
+         * Reads an integral field that must fit in an <code>int</code>.
+         * @param request the JSON object
+         * @param name name of the field
+         * @param defaultValue value of the field if missing
+         * @return the value of the field
+         * @throws IllegalArgumentException if the value is not an integer or is out of range
+         */
+        private static int integer(Map<String, Object> request, String name, int defaultValue) {
+            long value = number(request, name, defaultValue);
+            if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE)
+                throw new IllegalArgumentException("Field " + name + " out of range: " + value);
+            return (int) value;
+        }
+
+        /**
+         * Reads an integral field.
+         * @param request the JSON object
+         * @param name name of the field
+         * @param defaultValue value of the field if missing
+         * @return the value of the field
+         * @throws IllegalArgumentException if the value is not an integer
+         */
+        private static long number(Map<String, Object> request, String name, long defaultValue) {
+            Object value = request.get(name);
+            if (value == null) return defaultValue;
+            if (!(value instanceof Long)) throw new IllegalArgumentException("Field " + name + " must be an integer");
+            return (Long) value;
+        }
+    }
+
+    /**
+     * A streamed response, written one line at a time by concurrent query threads
+     * and closed after the expected number of final lines.
+     */
+    private static class Stream {
+        /**
+         * The exchange.
+         */
+        private final HttpExchange exchange;
+
+        /**
+         * Number of final lines still to be written.
+         */
+        private final AtomicInteger pending;
+
+        /**
+         * Whether the client is still reading the response.
+         */
+        private boolean open = true;
+
+        /**
+         * Constructs a new stream (the response headers must have been sent).
+         * @param exchange the exchange
+         * @param lines number of final lines
+         */
+        private Stream(HttpExchange exchange, int lines) {
+            this.exchange = exchange;
+            this.pending = new AtomicInteger(lines);
+        }
+
+        /**
+         * Writes a line and flushes it. The response is closed after the last final line.
+         * @param line the line
+         * @param last whether the line is final
+         */
+        private synchronized void write(String line, boolean last) {
+            if (open) {
+                try {
+                    OutputStream out = exchange.getResponseBody();
+                    out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                }
+                catch (IOException e) {
+                    // The client has gone away: the remaining lines are discarded.
+                    open = false;
+                }
+            }
+            if (last && pending.decrementAndGet() == 0) exchange.close();
+        }
+    }
+
+    /**
+     * Reads the body of a request.
+     * @param exchange the exchange
+     * @return the body as a string
+     * @throws IOException if the body cannot be read
+     * @throws IllegalArgumentException if the body is too large
+     */
+    private static String readBody(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            byte[] body = in.readNBytes(MAX_REQUEST_SIZE + 1);
+            if (body.length > MAX_REQUEST_SIZE) throw new IllegalArgumentException("Request too large");
+            return new String(body, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Returns an error as a JSON object.
+     * @param message description of the error
+     * @return the JSON object
+     */
+    private static String error(String message) {
+        return "{\"error\":" + Json.quote(message) + "}";
+    }
+
+    /**
+     * Writes a complete JSON response and closes the exchange.
+     * @param exchange the exchange
+     * @param status HTTP status code
+     * @param body the JSON body
+     */
+    private static void send(HttpExchange exchange, int status, String body) {
+        byte[] data = body.getBytes(StandardCharsets.UTF_8);
+        try {
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(status, data.length);
+            exchange.getResponseBody().write(data);
+        }
+        catch (IOException e) {
+            // The client has gone away.
+        }
+        finally {
+            exchange.close();
+        }
+    }
+}
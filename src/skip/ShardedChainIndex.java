@@ -0,0 +1,280 @@
+package skip;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.iq80.leveldb.Options;
+import static org.fusesource.leveldbjni.JniDBFactory.factory;
+
+/**
+ * A chain index split into shards covering consecutive ranges of blocks.
+ * Each shard is a separate {@link ChainIndex} database with its own BF skip indexes:
+ * skip entries never summarize blocks of other shards, since the heights used to build them
+ * (see {@link ChainIndexBuilder#build}) are relative to the first block of the shard.
+ * Therefore, each shard can be searched independently of the others.
+ *
+ * Shard number <code>s</code> covers the blocks from <code>firstBlock + s * shardSize</code>
+ * to <code>firstBlock + (s + 1) * shardSize - 1</code> and is stored in the directory
+ * <code>shard_s</code> of the root number <code>s % roots.length</code>.
+ * Multiple roots allow to spread the shards over several devices.
+ * The parameters of the partition are recorded in each shard, so that an existing index
+ * can be opened given its roots only.
+ *
+ * @author Matteo Loporchio
+ */
+public class ShardedChainIndex implements AutoCloseable {
+    /**
+     * Name of the metadata entry of each shard storing the partition parameters.
+     */
+    public static final String META_KEY = "shard";
+
+    /**
+     * Prefix of the directory names of the shards.
+     */
+    public static final String SHARD_PREFIX = "shard_";
+
+    /**
+     * Root directories of the shards.
+     */
+    private final String[] roots;
+
+    /**
+     * Identifier of the first block of the index.
+     */
+    private final int firstBlock;
+
+    /**
+     * Number of blocks of each shard.
+     */
+    private final int shardSize;
+
+    /**
+     * Shard databases (null elements are shards that have not been created yet).
+     */
+    private ChainIndex[] shards;
+
+    /**
+     * Creates a new sharded chain index. Shards are created when their first block is added.
+     * @param roots root directories of the shards
+     * @param firstBlock identifier of the first block of the index
+     * @param shardSize number of blocks of each shard
+     */
+    public ShardedChainIndex(String[] roots, int firstBlock, int shardSize) {
+        if (roots.length == 0) throw new IllegalArgumentException("At least one root directory is needed");
+        if (shardSize <= 0) throw new IllegalArgumentException("Invalid shard size: " + shardSize);
+        this.roots = roots;
+        this.firstBlock = firstBlock;
+        this.shardSize = shardSize;
+        this.shards = new ChainIndex[0];
+    }
+
+    /**
+     * Opens an existing sharded chain index.
+     * @param roots root directories of the shards
+     * @throws IOException if a shard cannot be opened or the shards are inconsistent
+     */
+    public ShardedChainIndex(String... roots) throws IOException {
+        if (roots.length == 0) throw new IllegalArgumentException("At least one root directory is needed");
+        this.roots = roots;
+        // Count the shards: their numbers must be consecutive.
+        int numShards = 0;
+        while (new File(shardPath(numShards)).isDirectory()) numShards++;
+        if (numShards == 0) throw new IOException("No shards found");
+        this.shards = new ChainIndex[numShards];
+        int first = 0, size = 0;
+        for (int s = 0; s < numShards; s++) {
+            shards[s] = new ChainIndex(shardPath(s), false);
+            byte[] meta = shards[s].getMeta(META_KEY);
+            if (meta == null) throw new IOException("Missing metadata in shard " + s);
+            ByteBuffer buf = ByteBuffer.wrap(meta);
+            int f = buf.getInt(), z = buf.getInt(), n = buf.getInt();
+            if (s == 0) {
+                first = f;
+                size = z;
+            }
+            if (f != first || z != size || n != s) throw new IOException("Inconsistent metadata in shard " + s);
+        }
+        this.firstBlock = first;
+        this.shardSize = size;
+    }
+
+    /**
+     * Returns the path of a shard.
+     * @param s shard number
+     * @return the path of the shard directory
+     */
+    private String shardPath(int s) {
+        return shardPath(roots, s);
+    }
+
+    /**
+     * Returns the path of a shard.
+     * @param roots root directories of the shards
+     * @param s shard number
+     * @return the path of the shard directory
+     */
+    private static String shardPath(String[] roots, int s) {
+        return new File(roots[s % roots.length], SHARD_PREFIX + s).getPath();
+    }
+
+    /**
+     * Removes the shards of an existing index (e.g., before building a new one in the same roots).
+     * As in {@link #ShardedChainIndex(String...)}, the shards are the directories with consecutive numbers.
+     * @param roots root directories of the shards
+     * @return the number of removed shards
+     * @throws IOException if a shard cannot be removed
+     */
+    public static int destroy(String... roots) throws IOException {
+        int s = 0;
+        while (new File(shardPath(roots, s)).isDirectory()) {
+            factory.destroy(new File(shardPath(roots, s)), new Options());
+            s++;
+        }
+        return s;
+    }
+
+    /**
+     * Returns the shard including a block.
+     * @param id block identifier
+     * @return the shard number
+     */
+    public int shardOf(int id) {
+        if (id < firstBlock) throw new IllegalArgumentException("Block " + id + " precedes the first block of the index");
+        return (id - firstBlock) / shardSize;
+    }
+
+    /**
+     * Returns the first block of a shard.
+     * @param s shard number
+     * @return the identifier of the first block of the shard
+     */
+    public int shardLower(int s) {
+        return firstBlock + s * shardSize;
+    }
+
+    /**
+     * Returns the last block of a shard.
+     * @param s shard number
+     * @return the identifier of the last block of the shard
+     */
+    public int shardUpper(int s) {
+        return firstBlock + (s + 1) * shardSize - 1;
+    }
+
+    /**
+     * Returns the height of a block within its shard, i.e., its distance from the first block of the shard.
+     * @param id block identifier
+     * @return the shard-local height of the block
+     */
+    public int heightOf(int id) {
+        return id - shardLower(shardOf(id));
+    }
+
+    /**
+     * Returns the identifier of the first block of the index.
+     * @return the first block
+     */
+    public int getFirstBlock() {
+        return firstBlock;
+    }
+
+    /**
+     * Returns the number of blocks of each shard.
+     * @return the shard size
+     */
+    public int getShardSize() {
+        return shardSize;
+    }
+
+    /**
+     * Returns the number of existing shards.
+     * @return the number of shards
+     */
+    public int getNumShards() {
+        return shards.length;
+    }
+
+    /**
+     * Returns the database of a shard.
+     * @param s shard number
+     * @return the shard database (null if the shard does not exist)
+     */
+    public ChainIndex getShard(int s) {
+        return (s >= 0 && s < shards.length) ? shards[s] : null;
+    }
+
+    /**
+     * Returns the {@link BlockIndex} associated with a block.
+     * @param id block identifier
+     * @return the {@link BlockIndex} associated with the block (null if the block or its shard does not exist)
+     */
+    public BlockIndex get(int id) {
+        ChainIndex shard = getShard(shardOf(id));
+        return (shard != null) ? shard.get(id) : null;
+    }
+
+    /**
+     * Returns the last block of a shard, i.e., its tip or, for shards without a tip, its most recent block.
+     * @param s shard number
+     * @return the identifier of the last block (-1 if the shard does not exist or is empty)
+     * @throws IOException if the shard cannot be read
+     */
+    public int lastBlock(int s) throws IOException {
+        ChainIndex shard = getShard(s);
+        if (shard == null) return -1;
+        int tip = shard.getTip();
+        if (tip >= 0) return tip;
+        try (ChainIndex.Scanner scan = shard.scan(shardUpper(s), shardLower(s))) {
+            return scan.next() ? scan.id() : -1;
+        }
+    }
+
+    /**
+     * Adds a new {@link BlockIndex} to the shard including the block, creating the shard if needed.
+     * @param id block identifier
+     * @param index {@link BlockIndex} to be associated with the block
+     * @throws IOException if the shard cannot be created
+     */
+    public void put(int id, BlockIndex index) throws IOException {
+        createShard(shardOf(id)).put(id, index);
+    }
+
+    /**
+     * Returns the database of a shard, creating the shard if needed.
+     * @param s shard number
+     * @return the shard database
+     * @throws IOException if the shard cannot be created
+     */
+    public synchronized ChainIndex createShard(int s) throws IOException {
+        if (s >= shards.length) shards = Arrays.copyOf(shards, s + 1);
+        if (shards[s] == null) {
+            new File(roots[s % roots.length]).mkdirs();
+            shards[s] = new ChainIndex(shardPath(s), true);
+            ByteBuffer meta = ByteBuffer.allocate(3 * Integer.BYTES);
+            meta.putInt(firstBlock).putInt(shardSize).putInt(s);
+            shards[s].putMeta(META_KEY, meta.array());
+        }
+        return shards[s];
+    }
+
+    /**
+     * Enables asynchronous prefetching on all shards (see {@link ChainIndex#enablePrefetching(int)}).
+     * @param numThreads number of I/O threads of each shard
+     */
+    public void enablePrefetching(int numThreads) {
+        for (ChainIndex shard : shards) {
+            if (shard != null) shard.enablePrefetching(numThreads);
+        }
+    }
+
+    /**
+     * Closes all shards.
+     */
+    @Override
+    public void close() throws Exception {
+        for (ChainIndex shard : shards) {
+            if (shard != null) shard.close();
+        }
+    }
+}
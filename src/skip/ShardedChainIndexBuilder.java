@@ -0,0 +1,86 @@
+package skip;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.util.Arrays;
+
+/**
+ * This program builds a sharded chain index (see {@link ShardedChainIndex}) starting from 
+ * a file including the Bloom filters of the blocks. It behaves like {@link ChainIndexBuilder},
+ * but the BF skip index of each block is computed within the shard including the block.
+ * 
+ * The inputs of this program are as follows.
+ * <ol>
+ *  <li><code>inputFile</code>: path of the binary file containing Bloom filters;</li>
+ *  <li><code>numEntries</code>: number of entries to be computed for each BF skip index;</li>
+ *  <li><code>shardSize</code>: number of blocks of each shard;</li>
+ *  <li><code>indexRoot</code>: one or more root directories where the shards are stored 
+ *  (shards are assigned to roots in round-robin order).</li>
+ * </ol>
+ * 
+ * The first shard starts from the first block of the input file. As in {@link ChainIndexBuilder},
+ * each block is published as the tip of its shard once written (see {@link ChainIndex#append}),
+ * and the shards of an existing index in the same roots are removed first (see {@link ShardedChainIndex#destroy}).
+ * 
+ * @author Matteo Loporchio
+ */
+public class ShardedChainIndexBuilder {
+
+    public static void main(String[] args) {
+        if (args.length < 4) {
+            System.err.println("Usage: ShardedChainIndexBuilder <inputFile> <numEntries> <shardSize> <indexRoot> [indexRoot...]");
+            System.exit(1);
+        }
+        final String inputFile = args[0];
+        int numEntries = Integer.parseInt(args[1]);
+        int shardSize = Integer.parseInt(args[2]);
+        final String[] roots = Arrays.copyOfRange(args, 3, args.length);
+        long totalTime = 0, creationTime = 0, totalStart = System.nanoTime(), creationStart = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(inputFile)))) {
+            // Read the input file.
+            FilterFile header = FilterFile.read(in);
+            int filterSize = header.filterSize, format = header.format, numBlocks = 0, blockId = -1;
+            // The first shard starts from the first block of the input file (if any).
+            int firstBlock = 0;
+            in.mark(Integer.BYTES);
+            try {
+                firstBlock = in.readInt();
+            }
+            catch (EOFException e) {}
+            in.reset();
+            ShardedChainIndex.destroy(roots);
+            try (ShardedChainIndex index = new ShardedChainIndex(roots, firstBlock, shardSize)) {
+                while (true) {
+                    try {
+                        // Read the block identifier.
+                        blockId = in.readInt();
+                        // Read and build the current Bloom filter.
+                        byte[] filterBytes = new byte[filterSize];
+                        in.readFully(filterBytes);
+                        BloomFilter filter = new BloomFilter(filterBytes, format);
+                        // Construct the skip list for the current block within its shard.
+                        creationStart = System.nanoTime();
+                        ChainIndex shard = index.createShard(index.shardOf(blockId));
+                        Skip skip = ChainIndexBuilder.build(shard, numEntries, filterSize, format, blockId, index.heightOf(blockId));
+                        creationTime += (System.nanoTime() - creationStart);
+                        // Build and write the descriptor.
+                        shard.append(blockId, new BlockIndex(filter, skip));
+                        numBlocks++;
+                    }
+                    catch (EOFException e) {break;}
+                }
+                totalTime = System.nanoTime() - totalStart;
+                // The input may contain no block.
+                double meanCreationTime = (numBlocks > 0) ? (double) creationTime / (double) numBlocks : 0;
+                System.out.printf("Blocks written:\t%d\nShards written:\t%d\nTotal time:\t%d ns\nCreation time:\t%.3f ns\n", 
+                numBlocks, index.getNumShards(), totalTime, meanCreationTime);
+            }
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
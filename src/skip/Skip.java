@@ -1,9 +1,17 @@
 package skip;
 
+import java.util.Arrays;
+
 /**
  * This class contains the implementation of the BF skip index, 
  * a data structure based on Bloom filters for answering
  * inter-block queries on blockchains in an efficient way.
+ *
+ * The entries are defined by an increasing sequence of distances (spans)
+ * <code>d_0 = 1 &lt; d_1 &lt; ... &lt; d_n</code>, where <code>n</code> is the number of entries:
+ * the j-th entry of block <code>u</code> summarizes the blocks from <code>u - d_(j+1) + 1</code>
+ * to <code>u - d_j</code>. By default the distances are the powers of two (<code>d_j = 2^j</code>),
+ * but any base (<code>d_j = b^j</code>) or custom sequence can be used (see {@link #parseSpans}).
  * 
  * @author Matteo Loporchio
  */
@@ -13,15 +21,31 @@ public class Skip {
      */
     private BloomFilter[] entries;
 
+    /**
+     * Distances defining the entries (<code>numEntries + 1</code> values, starting from 1).
+     */
+    private int[] spans;
+
     /**
      * Constructs a new BF skip index with the given number of entries and filter size.
      * @param numEntries number of entries of the BF skip index
      * @param filterSize size of the Bloom filters (in bytes)
      */
     public Skip(int numEntries, int filterSize) {
+        this(numEntries, filterSize, BloomFilter.STANDARD);
+    }
+
+    /**
+     * Constructs a new BF skip index with the given number of entries, filter size and format.
+     * @param numEntries number of entries of the BF skip index
+     * @param filterSize size of the Bloom filters (in bytes)
+     * @param format format of the Bloom filters (see {@link BloomFilter#getFormat()})
+     */
+    public Skip(int numEntries, int filterSize, int format) {
+        spans = spans(2, numEntries);
         entries = new BloomFilter[numEntries];
         for (int i = 0; i < entries.length; i++) 
-            entries[i] = new BloomFilter(filterSize);
+            entries[i] = new BloomFilter(filterSize, format);
     }
 
     /**
@@ -29,7 +53,18 @@ public class Skip {
      * @param entries array of Bloom filters
      */
     public Skip(BloomFilter[] entries) {
+        this(entries, spans(2, entries.length));
+    }
+
+    /**
+     * Constructs a new BF skip index from the given array of filters and distances.
+     * @param entries array of Bloom filters
+     * @param spans distances defining the entries (<code>entries.length + 1</code> values, see {@link #getSpans()})
+     */
+    public Skip(BloomFilter[] entries, int[] spans) {
+        if (spans.length != entries.length + 1) throw new IllegalArgumentException("Invalid number of spans");
         this.entries = entries;
+        this.spans = spans;
     }
 
     /**
@@ -48,4 +83,127 @@ public class Skip {
     public BloomFilter getEntry(int i) {
         return entries[i];
     }
-}
\ No newline at end of file
+
+    /**
+     * Returns the distances defining the entries of the BF skip index: the j-th entry of block <code>u</code>
+     * summarizes the blocks from <code>u - spans[j+1] + 1</code> to <code>u - spans[j]</code>.
+     * @return the distances (<code>getNumEntries() + 1</code> values, starting from 1)
+     */
+    public int[] getSpans() {
+        return spans;
+    }
+
+    /**
+     * Returns the distance of the most recent block summarized by an entry.
+     * @param j identifier of the entry (<code>getNumEntries()</code> for the end of the last entry)
+     * @return the distance <code>d_j</code>
+     */
+    public int getSpan(int j) {
+        return spans[j];
+    }
+
+    /**
+     * Returns the distances of a BF skip index with the given base (i.e., <code>d_j = base^j</code>).
+     * @param base the base (at least 2)
+     * @param numEntries number of entries
+     * @return the distances
+     * @throws IllegalArgumentException if the base is not valid or the distances overflow
+     */
+    public static int[] spans(int base, int numEntries) {
+        if (base < 2) throw new IllegalArgumentException("Invalid base: " + base);
+        int[] spans = new int[numEntries + 1];
+        long d = 1;
+        for (int j = 0; j <= numEntries; j++) {
+            if (d > Integer.MAX_VALUE) throw new IllegalArgumentException("Spans are too large");
+            spans[j] = (int) d;
+            d *= base;
+        }
+        return spans;
+    }
+
+    /**
+     * Parses the distances of a BF skip index. The specification is either a base
+     * (e.g., <code>4</code>) or the comma-separated list of all distances, starting from 1
+     * (e.g., <code>1,2,8,64</code> for three entries).
+     * @param spec the specification
+     * @param numEntries number of entries
+     * @return the distances
+     * @throws IllegalArgumentException if the specification is not valid
+     */
+    public static int[] parseSpans(String spec, int numEntries) {
+        if (!spec.contains(",")) return spans(Integer.parseInt(spec.trim()), numEntries);
+        String[] parts = spec.split(",");
+        if (parts.length != numEntries + 1)
+            throw new IllegalArgumentException("Expected " + (numEntries + 1) + " spans, found " + parts.length);
+        int[] spans = new int[parts.length];
+        for (int j = 0; j < parts.length; j++) spans[j] = Integer.parseInt(parts[j].trim());
+        if (!isValid(spans)) throw new IllegalArgumentException("Spans must be increasing and start from 1: " + spec);
+        return spans;
+    }
+
+    /**
+     * Checks whether a sequence of distances is valid.
+     * @param spans the distances
+     * @return true if and only if the distances start from 1 and are increasing
+     */
+    public static boolean isValid(int[] spans) {
+        if (spans.length == 0 || spans[0] != 1) return false;
+        for (int j = 1; j < spans.length; j++) {
+            if (spans[j] <= spans[j - 1]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether a sequence of distances is the default one (powers of two).
+     * @param spans the distances
+     * @return true if and only if <code>spans[j] = 2^j</code> for all j
+     */
+    public static boolean isDefault(int[] spans) {
+        for (int j = 0; j < spans.length; j++) {
+            if (j >= 31 || spans[j] != (1 << j)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns how the j-th entry of a block is computed from the previous blocks.
+     * The range of the entry is covered, from the most recent block, by the largest lower entries
+     * of previous blocks fitting in it (or by single block filters), as in the binary case
+     * where entry j is the union of entries j-1 of blocks <code>u - 2^(j-1)</code> and <code>u - 2^j</code>.
+     * Blocks preceding the first block of the index are ignored.
+     * @param spans the distances
+     * @param j identifier of the entry
+     * @param height height of the block (i.e., its distance from the first block of the index)
+     * @return the parts of the entry, as pairs <code>{distance, level}</code>: each part is the entry
+     * <code>level</code> of block <code>u - distance</code>, or its filter if the level is -1
+     */
+    public static int[][] cover(int[] spans, int j, int height) {
+        int last = Math.min(spans[j + 1] - 1, height);
+        int[][] parts = new int[0][];
+        int count = 0;
+        for (long p = spans[j]; p <= last;) {
+            // Find the widest lower entry of block u - p + d_k starting at distance p within the range.
+            int k = j - 1;
+            while (k >= 0 && Math.min(p + spans[k + 1] - spans[k] - 1, height) > last) k--;
+            if (count == parts.length) parts = Arrays.copyOf(parts, Math.max(2, 2 * count));
+            parts[count++] = (k >= 0) ? new int[] {(int) p - spans[k], k} : new int[] {(int) p, -1};
+            p += (k >= 0) ? spans[k + 1] - spans[k] : 1;
+        }
+        return Arrays.copyOf(parts, count);
+    }
+
+    /**
+     * Returns the maximum distance of the previous blocks on which the entries of a block depend
+     * (see {@link #cover}), e.g., <code>2^(n-1)</code> for the default distances and <code>n</code> entries.
+     * @param spans the distances
+     * @return the maximum distance (0 if there are no entries)
+     */
+    public static int reach(int[] spans) {
+        int reach = 0;
+        for (int j = 0; j < spans.length - 1; j++) {
+            for (int[] part : cover(spans, j, Integer.MAX_VALUE)) reach = Math.max(reach, part[0]);
+        }
+        return reach;
+    }
+}
@@ -0,0 +1,187 @@
+package skip;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.google.common.primitives.Bytes;
+import com.google.common.primitives.Ints;
+
+import org.iq80.leveldb.*;
+import static org.fusesource.leveldbjni.JniDBFactory.*;
+
+/**
+ * The sliced index is a bit-sliced (i.e., transposed) representation of the block filters,
+ * in the spirit of signature files such as BitFunnel.
+ * Blocks are grouped into segments of a fixed number of consecutive blocks
+ * (segment <code>s</code> contains blocks <code>s * segmentSize</code> to <code>(s+1) * segmentSize - 1</code>).
+ * For each segment and each bit position <code>p</code> of the filters, the index stores a <em>slice</em>,
+ * i.e., a bitmap whose <code>i</code>-th bit is set if and only if bit <code>p</code> is set
+ * in the filter of the <code>i</code>-th block of the segment.
+ * Hence, the blocks of a segment whose filters contain all bits of a key are obtained
+ * by computing the bitwise AND of the slices of the key positions.
+ *
+ * The index is implemented as a LevelDB key-value database. Each slice is associated with a key
+ * made of the segment identifier followed by the bit position (4 bytes each).
+ * Slices with no bits set are not stored. The parameters of the index (segment size,
+ * filter size and filter format) are stored under the {@link #META_KEY} key.
+ *
+ * @author Matteo Loporchio
+ */
+public class SlicedIndex implements AutoCloseable {
+    /**
+     * Key associated with the parameters of the index.
+     */
+    public static final byte[] META_KEY = "meta".getBytes();
+
+    /**
+     * The underlying LevelDB database.
+     */
+    private DB slicedIndex;
+
+    /**
+     * Number of blocks in each segment (multiple of 64).
+     */
+    private int segmentSize;
+
+    /**
+     * Size of the indexed filters (in bytes).
+     */
+    private int filterSize;
+
+    /**
+     * Format of the indexed filters.
+     */
+    private int format;
+
+    /**
+     * Opens an existing sliced index database.
+     * @param slicedIndexPath path of the database
+     * @throws IOException if something goes wrong while opening the database
+     */
+    public SlicedIndex(String slicedIndexPath) throws IOException {
+        this.slicedIndex = factory.open(new File(slicedIndexPath), new Options());
+        byte[] meta = slicedIndex.get(META_KEY);
+        if (meta == null) throw new IOException("Missing sliced index parameters");
+        ByteBuffer buf = ByteBuffer.wrap(meta);
+        this.segmentSize = buf.getInt();
+        this.filterSize = buf.getInt();
+        this.format = buf.getInt();
+    }
+
+    /**
+     * Creates a new sliced index database.
+     * @param slicedIndexPath path of the database
+     * @param segmentSize number of blocks in each segment (must be a multiple of 64)
+     * @param filterSize size of the indexed filters (in bytes)
+     * @param format format of the indexed filters
+     * @throws IOException if something goes wrong while creating the database
+     */
+    public SlicedIndex(String slicedIndexPath, int segmentSize, int filterSize, int format) throws IOException {
+        if (segmentSize <= 0 || segmentSize % Long.SIZE != 0)
+            throw new IllegalArgumentException("The segment size must be a positive multiple of 64");
+        Options opt = new Options();
+        opt.createIfMissing(true);
+        this.slicedIndex = factory.open(new File(slicedIndexPath), opt);
+        this.segmentSize = segmentSize;
+        this.filterSize = filterSize;
+        this.format = format;
+        byte[] meta = ByteBuffer.allocate(3 * Integer.BYTES).putInt(segmentSize).putInt(filterSize).putInt(format).array();
+        slicedIndex.put(META_KEY, meta);
+    }
+
+    /**
+     * Returns the number of blocks in each segment.
+     * @return the segment size
+     */
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * Returns the size of the indexed filters (in bytes).
+     * @return the filter size
+     */
+    public int getFilterSize() {
+        return filterSize;
+    }
+
+    /**
+     * Returns the format of the indexed filters.
+     * @return the filter format
+     */
+    public int getFormat() {
+        return format;
+    }
+
+    /**
+     * Returns a slice of the index.
+     * @param segment segment identifier
+     * @param position bit position
+     * @return the slice as an array of longs, or null if no bit of the slice is set
+     */
+    public long[] getSlice(int segment, int position) {
+        byte[] data = slicedIndex.get(key(segment, position));
+        return (data == null) ? null : Bits.toLongArray(data);
+    }
+
+    /**
+     * Stores the slices of a whole segment. Empty slices are skipped.
+     * @param segment segment identifier
+     * @param slices array of slices indexed by bit position
+     */
+    public void putSegment(int segment, long[][] slices) {
+        try (WriteBatch batch = slicedIndex.createWriteBatch()) {
+            for (int p = 0; p < slices.length; p++) {
+                if (Bits.countOnes(slices[p]) == 0) continue;
+                batch.put(key(segment, p), Bits.toByteArray(slices[p]));
+            }
+            slicedIndex.write(batch);
+        }
+        catch (IOException e) {
+            throw new DBException(e);
+        }
+    }
+
+    /**
+     * Computes the blocks of a segment whose filters have all the given bits set.
+     * @param segment segment identifier
+     * @param positions bit positions to be tested
+     * @return a bitmap of the candidate blocks, or null if there are no candidates
+     */
+    public long[] candidates(int segment, int[] positions) {
+        long[] result = null;
+        for (int p : positions) {
+            long[] slice = getSlice(segment, p);
+            if (slice == null) return null;
+            if (result == null) result = slice;
+            else {
+                boolean empty = true;
+                for (int i = 0; i < result.length; i++) {
+                    result[i] &= slice[i];
+                    if (result[i] != 0) empty = false;
+                }
+                if (empty) return null;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Closes the current database.
+     */
+    @Override
+    public void close() throws IOException {
+        slicedIndex.close();
+    }
+
+    /**
+     * Returns the key associated with a slice.
+     * @param segment segment identifier
+     * @param position bit position
+     * @return the key of the slice
+     */
+    private static byte[] key(int segment, int position) {
+        return Bytes.concat(Ints.toByteArray(segment), Ints.toByteArray(position));
+    }
+}
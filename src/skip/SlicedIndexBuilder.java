@@ -0,0 +1,99 @@
+package skip;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.util.Arrays;
+
+/**
+ * This program builds the sliced index database (see {@link SlicedIndex}) starting from
+ * a file including the Bloom filters of the blocks (i.e., the output of {@link BloomFilterBuilder}
+ * or {@link BloomFilterBuilderExt}).
+ *
+ * The inputs of this program are as follows.
+ * <ol>
+ *  <li><code>inputFile</code>: path of the binary file containing Bloom filters;</li>
+ *  <li><code>slicedDb</code>: path of the sliced index database;</li>
+ *  <li><code>segmentSize</code> (optional): number of blocks in each segment (default: 4096).</li>
+ * </ol>
+ *
+ * Filters are read one segment at a time and transposed in memory,
+ * so the program needs about twice the size of the filters of a segment.
+ *
+ * @author Matteo Loporchio
+ */
+public class SlicedIndexBuilder {
+    /**
+     * Default number of blocks in each segment.
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 4096;
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.err.println("Usage: SlicedIndexBuilder <inputFile> <slicedDb> [segmentSize]");
+            System.exit(1);
+        }
+        final String inputFile = args[0];
+        final String slicedPath = args[1];
+        int segmentSize = (args.length > 2) ? Integer.parseInt(args[2]) : DEFAULT_SEGMENT_SIZE;
+        long start = System.nanoTime();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(inputFile)))) {
+            FilterFile header = FilterFile.read(in);
+            int numPositions = header.filterSize * Byte.SIZE;
+            long[][] slices = new long[numPositions][segmentSize / Long.SIZE];
+            byte[] filterBytes = new byte[header.filterSize];
+            int numBlocks = 0, numSegments = 0, segment = -1;
+            try (SlicedIndex index = new SlicedIndex(slicedPath, segmentSize, header.filterSize, header.format)) {
+                while (true) {
+                    try {
+                        int blockId = in.readInt();
+                        in.readFully(filterBytes);
+                        // Flush the current segment when the block belongs to a new one.
+                        if (blockId / segmentSize != segment) {
+                            if (segment != -1) {
+                                index.putSegment(segment, slices);
+                                numSegments++;
+                                for (long[] slice : slices) Arrays.fill(slice, 0);
+                            }
+                            segment = blockId / segmentSize;
+                        }
+                        transpose(Bits.toLongArray(filterBytes), blockId % segmentSize, slices);
+                        numBlocks++;
+                    }
+                    catch (EOFException e) {break;}
+                }
+                if (segment != -1) {
+                    index.putSegment(segment, slices);
+                    numSegments++;
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+            System.out.printf("Blocks written:\t%d\nSegments written:\t%d\nElapsed time:\t%d ns\n",
+            numBlocks, numSegments, elapsed);
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Adds the bits of a filter to the slices of a segment.
+     * @param bits backing array of the filter
+     * @param offset offset of the block within the segment
+     * @param slices slices of the segment indexed by bit position
+     */
+    public static void transpose(long[] bits, int offset, long[][] slices) {
+        int word = offset >>> 6;
+        long mask = Bits.mask(offset);
+        for (int w = 0; w < bits.length; w++) {
+            long v = bits[w];
+            while (v != 0) {
+                int b = Long.numberOfLeadingZeros(v);
+                slices[(w << 6) + b][word] |= mask;
+                v &= ~Bits.mask(b);
+            }
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package skip;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * A read-only Bloom filter represented by the sorted list of the positions of its bits set to 1.
+ * Filters with few bits set (e.g., the filters of most blocks and the first skip entries)
+ * are much smaller in this form than as raw bit arrays, and membership is tested directly
+ * on the list of positions by binary search (see {@link BlockIndex#FLAG_SPARSE}).
+ *
+ * Serialized sparse filters consist of the number of positions followed by the gaps between
+ * consecutive positions, all written as variable-length integers (see {@link Bits#writeVarint}).
+ *
+ * @author Matteo Loporchio
+ */
+public class SparseBloomFilter extends BloomFilter {
+    /**
+     * Maximum number of bytes used by each position in the serialized form.
+     * The encoding is only chosen if it is certainly smaller than the raw bit array (see {@link #isSparse}).
+     */
+    public static final int MAX_POSITION_BYTES = 5;
+
+    /**
+     * Sorted positions of the bits set to 1.
+     */
+    private final int[] positions;
+
+    /**
+     * Constructs a new sparse filter.
+     * @param size number of bytes of the equivalent bit array
+     * @param format format of the filter
+     * @param positions sorted positions of the bits set to 1
+     */
+    public SparseBloomFilter(int size, int format, int[] positions) {
+        super(size, format, null);
+        this.positions = positions;
+    }
+
+    /**
+     * Checks whether a filter is small enough to be stored in sparse form.
+     * @param bf the filter
+     * @return true if and only if the sparse form is smaller than the raw bit array
+     */
+    public static boolean isSparse(BloomFilter bf) {
+        return (long) (bf.countOnes() + 1) * MAX_POSITION_BYTES < bf.getSize();
+    }
+
+    /**
+     * Serializes the positions of the bits set to 1 of a filter.
+     * @param bf the filter
+     * @return the serialized sparse filter
+     */
+    public static byte[] encode(BloomFilter bf) {
+        long[] bits = bf.getBitSet();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Bits.writeVarint(out, bf.countOnes());
+        int prev = 0;
+        for (int w = 0; w < bits.length; w++) {
+            long word = bits[w];
+            while (word != 0) {
+                // Positions follow the bit order of Bits#mask (i.e., from the most significant bit).
+                int offset = Long.numberOfLeadingZeros(word);
+                int pos = (w << 6) + offset;
+                word ^= Bits.mask(offset);
+                Bits.writeVarint(out, pos - prev);
+                prev = pos;
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Deserializes a sparse filter.
+     * @param data the serialized filters
+     * @param pos position of the filter within the array (updated by the method)
+     * @param size number of bytes of the equivalent bit array
+     * @param format format of the filter
+     * @return the filter
+     * @throws IllegalArgumentException if the positions are not valid
+     */
+    public static SparseBloomFilter decode(byte[] data, int[] pos, int size, int format) {
+        int n = Bits.readVarint(data, pos);
+        if (n < 0 || n > size * Byte.SIZE) throw new IllegalArgumentException("Invalid sparse filter");
+        int[] positions = new int[n];
+        for (int i = 0; i < n; i++) positions[i] = (i == 0 ? 0 : positions[i - 1]) + Bits.readVarint(data, pos);
+        for (int i = 0; i < n; i++) {
+            if (positions[i] < 0 || positions[i] >= size * Byte.SIZE || (i > 0 && positions[i] <= positions[i - 1]))
+                throw new IllegalArgumentException("Invalid sparse filter");
+        }
+        return new SparseBloomFilter(size, format, positions);
+    }
+
+    @Override
+    protected boolean get(int i) {
+        return Arrays.binarySearch(positions, i) >= 0;
+    }
+
+    @Override
+    protected void set(int i) {
+        throw new UnsupportedOperationException("Sparse filters are read-only");
+    }
+
+    @Override
+    public void merge(BloomFilter bf) {
+        throw new UnsupportedOperationException("Sparse filters are read-only");
+    }
+
+    /**
+     * Returns the equivalent bit array.
+     * @return a new array with the bits of the filter
+     */
+    @Override
+    public long[] getBitSet() {
+        long[] bits = new long[getSize() / Long.BYTES];
+        for (int p : positions) bits[p >>> 6] |= Bits.mask(p);
+        return bits;
+    }
+
+    @Override
+    public int countOnes() {
+        return positions.length;
+    }
+}
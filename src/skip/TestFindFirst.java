@@ -21,6 +21,11 @@ import java.util.function.BiPredicate;
  *  <li><code>contract</code>: address of the contract triggering the event (must be a hex string with a <code>0x</code> prefix);</li>
  *  <li><code>eventSignature</code>: hash of the event signature (must be a hex string with a <code>0x</code> prefix);</li>
  *  <li><code>membership</code>: procedure to be used for testing whether an event is included in a Bloom filter (must be either <code>default</code> or <code>extended</code>);</li>
+ *  <li><code>prefetchThreads</code> (optional): number of I/O threads used for prefetching database reads (default: 0, i.e., no prefetching);</li>
+ *  <li><code>dbOptions</code> (optional): LevelDB settings of both databases (see {@link DbOptions#parse(String)});</li>
+ *  <li><code>residentThreads</code> (optional): if greater than zero, the chain index is loaded in memory
+ *  by the given number of threads before running the queries (see {@link MemoryChainIndex});
+ *  the loading time and the resident size are printed on the standard output (default: 0).</li>
  * </ol>
  * 
  * The program outputs a CSV file containing the results of the experiment.
@@ -50,7 +55,7 @@ public class TestFindFirst {
 
     public static void main(String[] args) {
         if (args.length < 7) {
-            System.err.println("TestFindFirst <indexDb> <storageDb> <queryFile> <resultFile> <contract> <eventSignature> <membership>");
+            System.err.println("TestFindFirst <indexDb> <storageDb> <queryFile> <resultFile> <contract> <eventSignature> <membership> [prefetchThreads] [dbOptions] [residentThreads]");
             System.exit(1);
         }
         final String indexPath = args[0];
@@ -59,12 +64,19 @@ public class TestFindFirst {
         final String resultFile = args[3];
         final Event event = new Event(args[4].substring(2), args[5].substring(2));
         final BiPredicate<BloomFilter,Event> membership = ((args[6].equals("default")) ? Query.containsDefault : Query.containsExtended);
+        final int prefetchThreads = (args.length > 7) ? Integer.parseInt(args[7]) : 0;
+        final DbOptions dbOptions = (args.length > 8) ? DbOptions.parse(args[8]) : DbOptions.DEFAULT;
+        final int residentThreads = (args.length > 9) ? Integer.parseInt(args[9]) : 0;
         try (
-            ChainIndex index = new ChainIndex(indexPath, false);
-            ChainStorage storage = new ChainStorage(storagePath, false);
+            ChainIndex index = open(indexPath, dbOptions, residentThreads);
+            ChainStorage storage = new ChainStorage(storagePath, false, dbOptions);
             BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(queryFile)));
             PrintWriter out = new PrintWriter(resultFile);
         ) {
+            if (prefetchThreads > 0) {
+                index.enablePrefetching(prefetchThreads);
+                storage.enablePrefetching(prefetchThreads);
+            }
             out.println("upper,lower,solution,distance,linearSolution,linearVisited,linearTime,skipSolution,skipVisited,skipTime");
             String query = null;
             while ((query = in.readLine()) != null) {
@@ -107,4 +119,21 @@ public class TestFindFirst {
             System.exit(1);
         }
     }
+
+    /**
+     * Opens the chain index database, optionally loading it in memory.
+     * @param indexPath path of the chain index database
+     * @param dbOptions LevelDB settings
+     * @param residentThreads number of loading threads (0 to keep the index on disk)
+     * @return the chain index
+     * @throws Exception if the database cannot be opened or loaded
+     */
+    private static ChainIndex open(String indexPath, DbOptions dbOptions, int residentThreads) throws Exception {
+        if (residentThreads <= 0) return new ChainIndex(indexPath, false, dbOptions);
+        try (ChainIndex source = new ChainIndex(indexPath, false, dbOptions)) {
+            MemoryChainIndex index = MemoryChainIndex.load(source, residentThreads);
+            System.out.printf("Load time:\t%d ns\nResident size:\t%d bytes\n", index.getLoadTime(), index.getResidentSize());
+            return index;
+        }
+    }
 }
\ No newline at end of file
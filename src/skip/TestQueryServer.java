@@ -0,0 +1,228 @@
+package skip;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiPredicate;
+
+/**
+ * This program tests the query service (see {@link QueryServer}) fully locally: the service is started
+ * in the same JVM on a free port of the loopback interface, the queries of a CSV file are sent to it over HTTP
+ * and the responses are compared with the results of the same queries run directly with {@link Query}.
+ *
+ * The inputs of this program are as follows.
+ * <ol>
+ *  <li><code>indexDb</code>: path of the chain index database;</li>
+ *  <li><code>storageDb</code>: path of the chain storage database;</li>
+ *  <li><code>queryFile</code>: path of the CSV file containing the queries (as for {@link TestFindFirst});</li>
+ *  <li><code>contract</code>: address of the contract triggering the event (must be a hex string with a <code>0x</code> prefix);</li>
+ *  <li><code>eventSignature</code>: hash of the event signature (must be a hex string with a <code>0x</code> prefix);</li>
+ *  <li><code>membership</code>: procedure to be used for testing whether an event is included in a Bloom filter (must be either <code>default</code> or <code>extended</code>);</li>
+ *  <li><code>threads</code> (optional): number of query threads of the service (default: {@link QueryServer#DEFAULT_THREADS});</li>
+ *  <li><code>queueSize</code> (optional): maximum number of queries waiting for a thread
+ *  (default: {@link QueryServer#DEFAULT_QUEUE_SIZE}).</li>
+ * </ol>
+ *
+ * The following checks are performed:
+ * <ol>
+ *  <li><code>/health</code> reports the first block and the tip of the index;</li>
+ *  <li>each query sent to <code>/query</code> with the methods <code>skip</code>, <code>linear</code> and <code>plan</code>
+ *  returns the same block and number of visited blocks as the corresponding method of {@link Query};</li>
+ *  <li>the queries sent to <code>/batch</code> (as many as the service can admit at once) return the same blocks;</li>
+ *  <li>each query sent to <code>/range</code> streams the same blocks as {@link Query#findAll};</li>
+ *  <li>invalid queries (e.g., with blocks out of the range of <code>int</code>) are rejected with status 400,
+ *  and batches larger than the threads and the queue of the service with status 503;</li>
+ *  <li><code>/metrics</code> counts all the rejected batches.</li>
+ * </ol>
+ * The program prints the number of checks and failures (each failure is also described on the standard error)
+ * and exits with status 1 if some check fails.
+ *
+ * @author Matteo Loporchio
+ */
+public class TestQueryServer {
+    /**
+     * Number of checks performed.
+     */
+    private static int checks = 0;
+
+    /**
+     * Number of failed checks.
+     */
+    private static int failures = 0;
+
+    public static void main(String[] args) {
+        if (args.length < 6) {
+            System.err.println("Usage: TestQueryServer <indexDb> <storageDb> <queryFile> <contract> <eventSignature> <membership> [threads] [queueSize]");
+            System.exit(1);
+        }
+        final String indexPath = args[0];
+        final String storagePath = args[1];
+        final String queryFile = args[2];
+        final String address = args[3], signature = args[4];
+        final Event event = new Event(address.substring(2), signature.substring(2));
+        final BiPredicate<BloomFilter,Event> membership = ((args[5].equals("default")) ? Query.containsDefault : Query.containsExtended);
+        final int threads = (args.length > 6) ? Integer.parseInt(args[6]) : QueryServer.DEFAULT_THREADS;
+        final int queueSize = (args.length > 7) ? Integer.parseInt(args[7]) : QueryServer.DEFAULT_QUEUE_SIZE;
+        try (
+            ChainIndex index = new ChainIndex(indexPath, false);
+            ChainStorage storage = new ChainStorage(storagePath, false);
+            QueryServer server = new QueryServer(index, storage, 0, threads, queueSize, membership);
+        ) {
+            server.start();
+            HttpClient client = HttpClient.newHttpClient();
+            String base = "http://localhost:" + server.getPort();
+            // Read the queries.
+            List<int[]> queries = new ArrayList<>();
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(queryFile)))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String[] parts = line.split(",");
+                    queries.add(new int[] {Integer.parseInt(parts[0]), Integer.parseInt(parts[1])});
+                }
+            }
+            // Health.
+            Map<String, Object> health = object(client.send(HttpRequest.newBuilder(URI.create(base + "/health")).build(),
+            HttpResponse.BodyHandlers.ofString()).body());
+            check(health.get("tip").equals((long) index.getTip()) && health.get("first").equals((long) index.getFirst()),
+            "health: " + health);
+            // Single queries.
+            for (int[] q : queries) {
+                QueryResult skip = Query.findFirst(index, storage, q[1], q[0], event, membership);
+                QueryResult linear = Query.linearSearch(index, storage, q[1], q[0], event, membership);
+                QueryResult plan = Query.search(index, storage, q[1], q[0], event, membership);
+                String[] methods = {"skip", "linear", "plan"};
+                QueryResult[] expected = {skip, linear, plan};
+                for (int m = 0; m < methods.length; m++) {
+                    HttpResponse<String> r = post(client, base + "/query", query(address, signature, q[1], q[0], methods[m]));
+                    Map<String, Object> result = object(r.body());
+                    check(r.statusCode() == 200 && result.get("id").equals((long) expected[m].id) &&
+                    result.get("visited").equals((long) expected[m].count), methods[m] + " query " + q[0] + "," + q[1] + ": " + r.body());
+                }
+            }
+            // Batches, each with as many queries as the service can admit.
+            int capacity = threads + queueSize;
+            for (int start = 0; start < queries.size(); start += capacity) {
+                List<int[]> part = queries.subList(start, Math.min(queries.size(), start + capacity));
+                HttpResponse<String> r = post(client, base + "/batch", batch(address, signature, part, part.size()));
+                String[] lines = r.body().split("\n");
+                check(r.statusCode() == 200 && lines.length == part.size(), "batch from " + start + ": " + r.statusCode());
+                for (String line : lines) {
+                    Map<String, Object> result = object(line);
+                    int[] q = part.get(((Long) result.get("index")).intValue());
+                    QueryResult expected = Query.findFirst(index, storage, q[1], q[0], event, membership);
+                    check(result.get("id").equals((long) expected.id), "batch query " + q[0] + "," + q[1] + ": " + line);
+                }
+            }
+            // Range queries.
+            for (int[] q : queries) {
+                QueryResult expected = Query.findAll(index, storage, q[1], q[0], event, membership, QueryLimits.NONE);
+                HttpResponse<String> r = post(client, base + "/range", query(address, signature, q[1], q[0], "skip"));
+                List<Integer> ids = new ArrayList<>();
+                boolean done = false;
+                for (String line : r.body().split("\n")) {
+                    Map<String, Object> result = object(line);
+                    if (result.containsKey("done")) done = true;
+                    else ids.add(((Long) result.get("id")).intValue());
+                }
+                check(r.statusCode() == 200 && done && ids.equals(expected.ids), "range query " + q[0] + "," + q[1] + ": " + ids);
+            }
+            // Invalid and rejected requests.
+            check(post(client, base + "/query", query(address, signature, 0, 3000000000L, "skip")).statusCode() == 400,
+            "block out of range accepted");
+            check(post(client, base + "/query", "{\"address\":\"" + address + "\",\"lower\":0,\"maxVisited\":-3000000000}").statusCode() == 400,
+            "budget out of range accepted");
+            check(post(client, base + "/query", "[]").statusCode() == 400, "array accepted as a query");
+            int rejected = 3;
+            for (int k = 0; k < rejected; k++) {
+                HttpResponse<String> r = post(client, base + "/batch", batch(address, signature, queries.subList(0, 1), capacity + 1));
+                check(r.statusCode() == 503, "batch larger than the capacity accepted: " + r.statusCode());
+            }
+            Map<String, Object> metrics = object(client.send(HttpRequest.newBuilder(URI.create(base + "/metrics")).build(),
+            HttpResponse.BodyHandlers.ofString()).body());
+            check(metrics.get("rejected").equals((long) rejected), "metrics: " + metrics);
+            System.out.printf("Checks:\t%d\nFailures:\t%d\n", checks, failures);
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+        if (failures > 0) System.exit(1);
+    }
+
+    /**
+     * Records the outcome of a check.
+     * @param ok whether the check is successful
+     * @param description description of the failure
+     */
+    private static void check(boolean ok, String description) {
+        checks++;
+        if (!ok) {
+            failures++;
+            System.err.println("Failed: " + description);
+        }
+    }
+
+    /**
+     * Returns a query as a JSON object.
+     * @param address address of the event
+     * @param signature signature of the event
+     * @param lower lower endpoint of the range
+     * @param upper upper endpoint of the range
+     * @param method search method
+     * @return the JSON object
+     */
+    private static String query(String address, String signature, long lower, long upper, String method) {
+        return String.format("{\"address\":\"%s\",\"signature\":\"%s\",\"lower\":%d,\"upper\":%d,\"method\":\"%s\"}",
+        address, signature, lower, upper, method);
+    }
+
+    /**
+     * Returns a batch of queries as a JSON object.
+     * @param address address of the event
+     * @param signature signature of the event
+     * @param queries the queries (pairs of upper and lower endpoints), repeated cyclically
+     * @param size number of queries of the batch
+     * @return the JSON object
+     */
+    private static String batch(String address, String signature, List<int[]> queries, int size) {
+        StringBuilder sb = new StringBuilder("{\"queries\":[");
+        for (int k = 0; k < size; k++) {
+            int[] q = queries.get(k % queries.size());
+            sb.append((k > 0) ? "," : "").append(query(address, signature, q[1], q[0], "skip"));
+        }
+        return sb.append("]}").toString();
+    }
+
+    /**
+     * Sends a POST request.
+     * @param client the HTTP client
+     * @param uri address of the endpoint
+     * @param body the body of the request
+     * @return the response
+     * @throws Exception if the request fails
+     */
+    private static HttpResponse<String> post(HttpClient client, String uri, String body) throws Exception {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(uri)).POST(HttpRequest.BodyPublishers.ofString(body)).build();
+        return client.send(request, HttpResponse.BodyHandlers.ofString());
+    }
+
+    /**
+     * Parses a JSON object.
+     * @param text the JSON text
+     * @return the object
+     * @throws IllegalArgumentException if the text is not a JSON object
+     */
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> object(String text) {
+        Object value = Json.parse(text);
+        if (!(value instanceof Map)) throw new IllegalArgumentException("Expected a JSON object: " + text);
+        return (Map<String, Object>) value;
+    }
+}
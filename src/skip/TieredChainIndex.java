@@ -0,0 +1,1105 @@
+package skip;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+/**
+ * A chain index whose records are split into two tiers: the most recent blocks (the <em>hot</em> tier)
+ * are stored uncompressed in a {@link ChainIndex} database, while older ranges of blocks (the <em>cold</em> tier)
+ * are <em>sealed</em> into immutable, compressed segment files. Reads are routed to the right tier transparently,
+ * so a tiered index can be used in place of a {@link ChainIndex} by all queries (see {@link Query})
+ * and by the writers appending new blocks (see {@link ChainWriter}). Since queries mostly hit recent blocks,
+ * their latency is the same as with a plain database, while historical data takes much less space.
+ *
+ * Each segment covers a range of consecutive blocks, starting right after the previous segment.
+ * Its records are grouped into chunks of consecutive blocks, each compressed separately with Deflate:
+ * a chunk is closed as soon as its records reach a given uncompressed size (see {@link #DEFAULT_CHUNK_BYTES}),
+ * so that reading a block decompresses about the same amount of data whatever the size of the filters.
+ * A chunk holds the number of blocks and the length of each record (0 for missing blocks), followed by the records.
+ * A segment file (named {@link #SEGMENT_PREFIX} followed by its first block) consists of a header
+ * (magic number, version, first and last block, target size of the chunks), the compressed chunks and a sparse
+ * table with the offset of each chunk and the end of the last one, followed by the first block of each chunk
+ * (relative to the first block of the segment), the offset of the table and the magic number.
+ * Segments of version 1, whose chunks have a fixed number of blocks written in the header, can still be read.
+ * Reading a block only decompresses its chunk, and recently used chunks are cached
+ * up to a given total size (see {@link #DEFAULT_CACHE_BYTES}).
+ * Segment records never reference filters stored separately (see {@link ChainIndex#setDedup}),
+ * so that segments are self-contained.
+ *
+ * Sealing (see {@link #seal()}) can run in the background (see {@link #startSealing(long)}): once the tip
+ * is at least {@link #getHotBlocks()} blocks past the end of the next segment, the records are copied into
+ * a new segment file, which is flushed to disk and published before the records are removed from the database.
+ * Therefore, concurrent readers always find each block in at least one tier, and a crash leaves at most
+ * some redundant records in the database, which are removed when the index is opened again.
+ * Sealed blocks cannot be modified: {@link #put} and {@link #truncate} only accept blocks of the hot tier.
+ *
+ * @author Matteo Loporchio
+ */
+public class TieredChainIndex extends ChainIndex {
+    /**
+     * Magic number of the segment files.
+     */
+    public static final int MAGIC = 0x53454731;
+
+    /**
+     * Version of the segment files.
+     */
+    public static final int VERSION = 2;
+
+    /**
+     * Prefix of the names of the segment files.
+     */
+    public static final String SEGMENT_PREFIX = "segment_";
+
+    /**
+     * Default number of blocks of each segment.
+     */
+    public static final int DEFAULT_SEGMENT_BLOCKS = 1 << 16;
+
+    /**
+     * Default number of most recent blocks kept in the hot tier.
+     */
+    public static final int DEFAULT_HOT_BLOCKS = 1 << 16;
+
+    /**
+     * Default uncompressed size of each chunk (in bytes).
+     */
+    public static final int DEFAULT_CHUNK_BYTES = 1 << 18;
+
+    /**
+     * Default maximum total size of the decompressed chunks kept in memory (in bytes).
+     */
+    public static final long DEFAULT_CACHE_BYTES = 1L << 26;
+
+    /**
+     * Size of the header of the segment files.
+     */
+    private static final int HEADER_SIZE = 5 * Integer.BYTES;
+
+    /**
+     * Size of the trailer of the segment files (offset of the table and magic number).
+     */
+    private static final int TRAILER_SIZE = Long.BYTES + Integer.BYTES;
+
+    /**
+     * The database storing the hot tier (a snapshot view, for the views returned by {@link #snapshot()}).
+     */
+    private final ChainIndex hot;
+
+    /**
+     * Directory of the segment files.
+     */
+    private final File segmentsDir;
+
+    /**
+     * Sealed segments, by first block (shared by snapshot views, since segments never change).
+     */
+    private final ConcurrentSkipListMap<Integer, Segment> segments;
+
+    /**
+     * Recently decompressed chunks, by segment and chunk number (shared by snapshot views).
+     */
+    private final ChunkCache chunkCache;
+
+    /**
+     * Number of most recent blocks kept in the hot tier.
+     */
+    private final int hotBlocks;
+
+    /**
+     * Number of blocks of each new segment.
+     */
+    private final int segmentBlocks;
+
+    /**
+     * Uncompressed size of the chunks of each new segment (in bytes).
+     */
+    private final int chunkBytes;
+
+    /**
+     * Whether this object owns the database and the segments (false for snapshot views).
+     */
+    private final boolean owner;
+
+    /**
+     * Lock serializing the writes to the database (e.g., appends of a writer and removals of sealed records).
+     */
+    private final Object writeLock = new Object();
+
+    /**
+     * Last block of the segment being sealed (-1 if no segment is being sealed).
+     * Writes to the blocks of the segment are rejected until it is published, since it is copied from a snapshot.
+     */
+    private volatile int sealing = -1;
+
+    /**
+     * Background thread sealing segments (null if not started).
+     */
+    private ScheduledExecutorService sealer;
+
+    /**
+     * Asynchronous loader of block indexes (null if prefetching is disabled).
+     */
+    private Prefetcher<BlockIndex> prefetcher;
+
+    /**
+     * A sealed segment.
+     */
+    private static class Segment {
+        /**
+         * First block of the segment.
+         */
+        final int lower;
+
+        /**
+         * Last block of the segment.
+         */
+        final int upper;
+
+        /**
+         * First block of each chunk, relative to the first block of the segment.
+         */
+        final int[] firsts;
+
+        /**
+         * Offset of each chunk, followed by the end of the last chunk.
+         */
+        final long[] offsets;
+
+        /**
+         * The segment file.
+         */
+        final File file;
+
+        /**
+         * Channel used for positional reads.
+         */
+        final FileChannel channel;
+
+        /**
+         * Opens a segment file, reading its header and its offset table.
+         * @param file the segment file
+         * @throws IOException if the file cannot be read or is not a valid segment
+         */
+        Segment(File file) throws IOException {
+            this.file = file;
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            try {
+                long size = channel.size();
+                if (size < HEADER_SIZE + TRAILER_SIZE) throw new IOException("Truncated segment " + file);
+                ByteBuffer header = read(0, HEADER_SIZE);
+                if (header.getInt() != MAGIC) throw new IOException("Invalid segment " + file);
+                int version = header.getInt();
+                if (version != 1 && version != VERSION) throw new IOException("Unsupported version of segment " + file);
+                this.lower = header.getInt();
+                this.upper = header.getInt();
+                // Blocks per chunk (version 1) or target size of the chunks.
+                int chunkSize = header.getInt();
+                ByteBuffer trailer = read(size - TRAILER_SIZE, TRAILER_SIZE);
+                long tableOffset = trailer.getLong();
+                if (trailer.getInt() != MAGIC || upper < lower || chunkSize <= 0 || tableOffset < HEADER_SIZE)
+                    throw new IOException("Invalid segment " + file);
+                long tableSize = size - TRAILER_SIZE - tableOffset;
+                int numChunks;
+                if (version == 1) numChunks = (int) (((long) upper - lower) / chunkSize + 1);
+                else if ((tableSize - Long.BYTES) % (Long.BYTES + Integer.BYTES) != 0) numChunks = -1;
+                else numChunks = (int) ((tableSize - Long.BYTES) / (Long.BYTES + Integer.BYTES));
+                if (numChunks <= 0 || (numChunks + 1L) * Long.BYTES + ((version == 1) ? 0 : (long) numChunks * Integer.BYTES) != tableSize)
+                    throw new IOException("Invalid offset table in segment " + file);
+                ByteBuffer table = read(tableOffset, (int) tableSize);
+                this.offsets = new long[numChunks + 1];
+                for (int i = 0; i <= numChunks; i++) offsets[i] = table.getLong();
+                this.firsts = new int[numChunks];
+                for (int i = 0; i < numChunks; i++) {
+                    firsts[i] = (version == 1) ? i * chunkSize : table.getInt();
+                    if ((i == 0) ? firsts[i] != 0 : firsts[i] <= firsts[i - 1] || firsts[i] > upper - lower)
+                        throw new IOException("Invalid chunk table in segment " + file);
+                }
+            }
+            catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Returns the chunk including a block.
+         * @param offset position of the block in the segment
+         * @return the chunk number
+         */
+        int chunkOf(int offset) {
+            int i = Arrays.binarySearch(firsts, offset);
+            return (i >= 0) ? i : -i - 2;
+        }
+
+        /**
+         * Reads a range of bytes of the segment file.
+         * @param position offset of the first byte
+         * @param length number of bytes
+         * @return the bytes, in a buffer ready to be read
+         * @throws IOException if something goes wrong while reading
+         */
+        ByteBuffer read(long position, int length) throws IOException {
+            ByteBuffer buf = ByteBuffer.allocate(length);
+            while (buf.hasRemaining()) {
+                if (channel.read(buf, position + buf.position()) < 0) throw new EOFException("Truncated segment " + file);
+            }
+            return buf.flip();
+        }
+
+        /**
+         * Reads and decompresses a chunk.
+         * @param chunk chunk number
+         * @return the records of the chunk (null elements are missing blocks)
+         * @throws IOException if the chunk cannot be read or is not valid
+         */
+        byte[][] readChunk(int chunk) throws IOException {
+            ByteBuffer compressed = read(offsets[chunk], (int) (offsets[chunk + 1] - offsets[chunk]));
+            Inflater inflater = new Inflater();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try {
+                inflater.setInput(compressed.array());
+                byte[] buffer = new byte[1 << 16];
+                while (!inflater.finished()) {
+                    int n = inflater.inflate(buffer);
+                    if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                        throw new IOException("Truncated chunk " + chunk + " in segment " + file);
+                    out.write(buffer, 0, n);
+                }
+            }
+            catch (DataFormatException e) {
+                throw new IOException("Corrupted chunk " + chunk + " in segment " + file, e);
+            }
+            finally {
+                inflater.end();
+            }
+            try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+                byte[][] records = new byte[in.readInt()][];
+                int[] lengths = new int[records.length];
+                for (int i = 0; i < lengths.length; i++) lengths[i] = in.readInt();
+                for (int i = 0; i < records.length; i++) {
+                    if (lengths[i] == 0) continue;
+                    records[i] = new byte[lengths[i]];
+                    in.readFully(records[i]);
+                }
+                return records;
+            }
+        }
+    }
+
+    /**
+     * Opens a tiered chain index with the default number of hot blocks and blocks per segment.
+     * @param chainIndexPath path of the database storing the hot tier
+     * @param segmentsDir directory of the segment files (created if missing)
+     * @param createIfMissing whether the database should be created if not existing
+     * @throws IOException if something goes wrong while opening the database or the segments
+     */
+    public TieredChainIndex(String chainIndexPath, String segmentsDir, boolean createIfMissing) throws IOException {
+        this(chainIndexPath, segmentsDir, createIfMissing, DbOptions.DEFAULT, DEFAULT_HOT_BLOCKS, DEFAULT_SEGMENT_BLOCKS);
+    }
+
+    /**
+     * Opens a tiered chain index. The segments must cover consecutive ranges of blocks.
+     * Records of the database already copied into a segment (e.g., after a crash during sealing) are removed.
+     * @param chainIndexPath path of the database storing the hot tier
+     * @param segmentsDir directory of the segment files (created if missing)
+     * @param createIfMissing whether the database should be created if not existing
+     * @param options LevelDB settings of the database
+     * @param hotBlocks number of most recent blocks kept in the hot tier
+     * @param segmentBlocks number of blocks of each new segment
+     * @throws IOException if something goes wrong while opening the database or the segments
+     */
+    public TieredChainIndex(String chainIndexPath, String segmentsDir, boolean createIfMissing, DbOptions options,
+    int hotBlocks, int segmentBlocks) throws IOException {
+        this(chainIndexPath, segmentsDir, createIfMissing, options, hotBlocks, segmentBlocks, DEFAULT_CHUNK_BYTES, DEFAULT_CACHE_BYTES);
+    }
+
+    /**
+     * Opens a tiered chain index with a given size of the chunks and of the chunk cache.
+     * The size of the chunks only applies to new segments (each segment records its own chunks).
+     * @param chainIndexPath path of the database storing the hot tier
+     * @param segmentsDir directory of the segment files (created if missing)
+     * @param createIfMissing whether the database should be created if not existing
+     * @param options LevelDB settings of the database
+     * @param hotBlocks number of most recent blocks kept in the hot tier
+     * @param segmentBlocks number of blocks of each new segment
+     * @param chunkBytes uncompressed size of the chunks of each new segment (in bytes)
+     * @param cacheBytes maximum total size of the decompressed chunks kept in memory (in bytes, 0 disables the cache)
+     * @throws IOException if something goes wrong while opening the database or the segments
+     */
+    public TieredChainIndex(String chainIndexPath, String segmentsDir, boolean createIfMissing, DbOptions options,
+    int hotBlocks, int segmentBlocks, int chunkBytes, long cacheBytes) throws IOException {
+        if (hotBlocks < 0) throw new IllegalArgumentException("Invalid number of hot blocks: " + hotBlocks);
+        if (segmentBlocks <= 0) throw new IllegalArgumentException("Invalid segment size: " + segmentBlocks);
+        if (chunkBytes <= 0) throw new IllegalArgumentException("Invalid chunk size: " + chunkBytes);
+        if (cacheBytes < 0) throw new IllegalArgumentException("Invalid cache size: " + cacheBytes);
+        this.segmentsDir = new File(segmentsDir);
+        if (!this.segmentsDir.isDirectory() && !this.segmentsDir.mkdirs())
+            throw new IOException("Cannot create directory " + segmentsDir);
+        this.hotBlocks = hotBlocks;
+        this.segmentBlocks = segmentBlocks;
+        this.chunkBytes = chunkBytes;
+        this.owner = true;
+        this.segments = new ConcurrentSkipListMap<>();
+        this.chunkCache = new ChunkCache(cacheBytes);
+        this.hot = new ChainIndex(chainIndexPath, createIfMissing, options);
+        try {
+            openSegments();
+            for (Segment s : segments.values()) {
+                try (ChainIndex.Scanner scan = hot.scan(s.upper, s.lower)) {
+                    if (scan.next()) hot.remove(s.lower, s.upper);
+                }
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            for (Segment s : segments.values()) s.channel.close();
+            closeQuietly(hot);
+            throw e;
+        }
+    }
+
+    /**
+     * Constructs a read-only view sharing the segments of another tiered index.
+     * @param other the tiered index
+     */
+    private TieredChainIndex(TieredChainIndex other) {
+        this.hot = other.hot.snapshot();
+        this.segmentsDir = other.segmentsDir;
+        this.segments = other.segments;
+        this.chunkCache = other.chunkCache;
+        this.hotBlocks = other.hotBlocks;
+        this.segmentBlocks = other.segmentBlocks;
+        this.chunkBytes = other.chunkBytes;
+        this.owner = false;
+    }
+
+    /**
+     * Cache of decompressed chunks, bounded by their total size and evicted in least recently used order.
+     */
+    private static class ChunkCache {
+        /**
+         * Estimated memory overhead of each record (array header and reference).
+         */
+        private static final int RECORD_OVERHEAD = 24;
+
+        /**
+         * The chunks, in access order.
+         */
+        private final LinkedHashMap<Long, byte[][]> chunks = new LinkedHashMap<>(16, 0.75f, true);
+
+        /**
+         * Maximum total size of the chunks (in bytes).
+         */
+        private final long capacity;
+
+        /**
+         * Current total size of the chunks (in bytes).
+         */
+        private long bytes = 0;
+
+        /**
+         * Constructs an empty cache.
+         * @param capacity maximum total size of the chunks (in bytes)
+         */
+        ChunkCache(long capacity) {
+            this.capacity = capacity;
+        }
+
+        /**
+         * Returns the estimated memory size of a chunk.
+         * @param records the records of the chunk
+         * @return the size (in bytes)
+         */
+        private static long sizeOf(byte[][] records) {
+            long size = RECORD_OVERHEAD;
+            for (byte[] r : records) size += RECORD_OVERHEAD + ((r != null) ? r.length : 0);
+            return size;
+        }
+
+        /**
+         * Returns a cached chunk.
+         * @param key segment and chunk number
+         * @return the records of the chunk (null if not cached)
+         */
+        synchronized byte[][] get(long key) {
+            return chunks.get(key);
+        }
+
+        /**
+         * Adds a chunk, evicting the least recently used ones until the total size fits the capacity.
+         * Chunks larger than the capacity are not cached.
+         * @param key segment and chunk number
+         * @param records the records of the chunk
+         */
+        synchronized void put(long key, byte[][] records) {
+            long size = sizeOf(records);
+            if (size > capacity) return;
+            byte[][] previous = chunks.put(key, records);
+            if (previous != null) bytes -= sizeOf(previous);
+            bytes += size;
+            Iterator<byte[][]> it = chunks.values().iterator();
+            while (bytes > capacity && it.hasNext()) {
+                bytes -= sizeOf(it.next());
+                it.remove();
+            }
+        }
+
+        /**
+         * Removes all the chunks.
+         */
+        synchronized void clear() {
+            chunks.clear();
+            bytes = 0;
+        }
+    }
+
+    /**
+     * Opens the segment files of the directory, removing the temporary files left by interrupted sealings.
+     * @throws IOException if a segment cannot be opened or the segments are not consecutive
+     */
+    private void openSegments() throws IOException {
+        File[] files = segmentsDir.listFiles((dir, name) -> name.startsWith(SEGMENT_PREFIX));
+        if (files == null) throw new IOException("Cannot list directory " + segmentsDir);
+        Arrays.sort(files);
+        Segment previous = null;
+        for (File f : files) {
+            if (f.getName().endsWith(".tmp")) {
+                Files.delete(f.toPath());
+                continue;
+            }
+            Segment s = new Segment(f);
+            segments.put(s.lower, s);
+            if (previous != null && s.lower != previous.upper + 1)
+                throw new IOException("Segment " + f + " does not follow segment " + previous.file);
+            previous = s;
+        }
+    }
+
+    /**
+     * Returns the path of the segment file starting with a given block.
+     * @param lower first block of the segment
+     * @return the segment file
+     */
+    private File segmentFile(int lower) {
+        return new File(segmentsDir, String.format("%s%010d", SEGMENT_PREFIX, lower));
+    }
+
+    /**
+     * Returns the segment including a block.
+     * @param id block identifier
+     * @return the segment (null if the block is not sealed)
+     */
+    private Segment segmentOf(int id) {
+        Map.Entry<Integer, Segment> e = segments.floorEntry(id);
+        return (e != null && id <= e.getValue().upper) ? e.getValue() : null;
+    }
+
+    /**
+     * Returns the last sealed block.
+     * @return the identifier of the last block of the last segment (-1 if there are no segments)
+     */
+    public int getSealedTip() {
+        Map.Entry<Integer, Segment> e = segments.lastEntry();
+        return (e != null) ? e.getValue().upper : -1;
+    }
+
+    /**
+     * Returns the number of most recent blocks kept in the hot tier.
+     * @return the number of hot blocks
+     */
+    public int getHotBlocks() {
+        return hotBlocks;
+    }
+
+    /**
+     * Returns the number of sealed segments.
+     * @return the number of segments
+     */
+    public int getNumSegments() {
+        return segments.size();
+    }
+
+    /**
+     * Returns the total size of the segment files.
+     * @return the size of the cold tier (in bytes)
+     */
+    public long getColdBytes() {
+        long total = 0;
+        for (Segment s : segments.values()) total += s.file.length();
+        return total;
+    }
+
+    /**
+     * Reads a sealed record.
+     * @param s the segment including the block
+     * @param id block identifier
+     * @return the serialized block index (null if the block is missing)
+     */
+    private byte[] readSealed(Segment s, int id) {
+        int offset = id - s.lower, chunk = s.chunkOf(offset);
+        long key = ((long) s.lower << 32) | chunk;
+        byte[][] records = chunkCache.get(key);
+        if (records == null) {
+            try {
+                records = s.readChunk(chunk);
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            chunkCache.put(key, records);
+        }
+        int i = offset - s.firsts[chunk];
+        return (i < records.length) ? records[i] : null;
+    }
+
+    /**
+     * Returns a read-only view of the current state of the index (see {@link ChainIndex#snapshot()}).
+     * Segments are immutable and shared with the view, so blocks sealed after the creation of the view
+     * are still found in the database snapshot of the view.
+     * @return the snapshot view
+     */
+    @Override
+    public ChainIndex snapshot() {
+        return new TieredChainIndex(this);
+    }
+
+    @Override
+    public BlockIndex get(int id) {
+        return (prefetcher != null) ? prefetcher.get(id) : load(id);
+    }
+
+    /**
+     * Reads and deserializes the {@link BlockIndex} associated with the block from the right tier.
+     * @param id block identifier
+     * @return the {@link BlockIndex} associated with the block (null if the block is in neither tier)
+     */
+    private BlockIndex load(int id) {
+        byte[] data = getBytes(id);
+        if (data == null) return null;
+        try {
+            return decode(data);
+        }
+        catch (IllegalArgumentException e) {
+            // The filters of a deduplicated record may have been released after the block was sealed.
+            Segment s = segmentOf(id);
+            if (s == null || !BlockIndex.isDedup(data)) throw e;
+            return decode(readSealed(s, id));
+        }
+    }
+
+    @Override
+    public BlockIndex decode(byte[] data) {
+        return hot.decode(data);
+    }
+
+    /**
+     * Returns the serialized {@link BlockIndex} associated with the block, from the right tier.
+     * The cold tier is checked again if the block is missing from the database, since it may have been
+     * sealed in the meantime (segments are published before the records are removed from the database).
+     * @param id block identifier
+     * @return the serialized block index (null if not existing)
+     */
+    @Override
+    public byte[] getBytes(int id) {
+        Segment s = segmentOf(id);
+        if (s != null) return readSealed(s, id);
+        byte[] data = hot.getBytes(id);
+        if (data == null && (s = segmentOf(id)) != null) data = readSealed(s, id);
+        return data;
+    }
+
+    @Override
+    public void setChecksums(boolean checksums) {
+        hot.setChecksums(checksums);
+    }
+
+    @Override
+    public void setSparse(boolean sparse) {
+        hot.setSparse(sparse);
+    }
+
+    @Override
+    public void setDedup(boolean dedup) {
+        hot.setDedup(dedup);
+    }
+
+    @Override
+    public void setPrefilter(int prefilterSize) {
+        hot.setPrefilter(prefilterSize);
+    }
+
+    @Override
+    public Scanner scan(int upper, int lower) {
+        return new TieredScanner(upper, lower);
+    }
+
+    /**
+     * Scan of both tiers in decreasing order of identifier: the blocks of the database are returned first,
+     * followed by the sealed ones.
+     */
+    private class TieredScanner extends ChainIndex.Scanner {
+        /**
+         * Scanner of the database.
+         */
+        private ChainIndex.Scanner hotScan;
+
+        /**
+         * Last sealed block when the scan started (blocks up to it are read from the segments).
+         */
+        private final int sealedTip;
+
+        /**
+         * Lowest block identifier of the scan.
+         */
+        private final int lower;
+
+        /**
+         * Identifier of the current block.
+         */
+        private int id;
+
+        /**
+         * Serialized index of the current block.
+         */
+        private byte[] value;
+
+        /**
+         * Constructs a new scanner.
+         * @param upper highest block identifier
+         * @param lower lowest block identifier
+         */
+        private TieredScanner(int upper, int lower) {
+            // The database iterator is created first, so it still includes the blocks sealed afterwards.
+            this.hotScan = hot.scan(upper, lower);
+            this.sealedTip = getSealedTip();
+            this.lower = lower;
+            this.id = (int) Math.min((long) upper, (long) sealedTip) + 1;
+        }
+
+        @Override
+        public boolean next() {
+            if (hotScan != null) {
+                if (hotScan.next() && hotScan.id() > sealedTip) {
+                    value = hotScan.bytes();
+                    return true;
+                }
+                closeHot();
+            }
+            while (--id >= lower) {
+                Segment s = segmentOf(id);
+                value = (s != null) ? readSealed(s, id) : null;
+                if (value != null) return true;
+            }
+            id = lower;
+            value = null;
+            return false;
+        }
+
+        @Override
+        public int id() {
+            return (hotScan != null) ? hotScan.id() : id;
+        }
+
+        @Override
+        public BlockIndex value() {
+            return (value != null) ? decode(value) : null;
+        }
+
+        @Override
+        public byte[] bytes() {
+            return value;
+        }
+
+        /**
+         * Closes the scanner of the database.
+         */
+        private void closeHot() {
+            try {
+                hotScan.close();
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            hotScan = null;
+        }
+
+        @Override
+        public void close() {
+            if (hotScan != null) closeHot();
+        }
+    }
+
+    @Override
+    public void enablePrefetching(int numThreads) {
+        if (prefetcher != null) prefetcher.close();
+        prefetcher = new Prefetcher<>(this::load, numThreads, PREFETCH_CAPACITY);
+    }
+
+    @Override
+    public void prefetch(int id) {
+        if (prefetcher != null) prefetcher.prefetch(id);
+    }
+
+    /**
+     * Checks that a range of blocks does not include sealed blocks or blocks being sealed.
+     * @param lower lowest block identifier
+     */
+    private void checkHot(int lower) {
+        int sealedTip = Math.max(getSealedTip(), sealing);
+        if (lower <= sealedTip)
+            throw new IllegalArgumentException(String.format("Block %d is sealed (sealed up to %d)", lower, sealedTip));
+    }
+
+    @Override
+    public void put(int id, BlockIndex index) {
+        synchronized (writeLock) {
+            checkHot(id);
+            hot.put(id, index);
+            invalidate(id, id);
+        }
+    }
+
+    @Override
+    public int append(int id, BlockIndex index) {
+        synchronized (writeLock) {
+            int size = hot.append(id, index);
+            invalidate(id, id);
+            return size;
+        }
+    }
+
+    @Override
+    public void truncate(int tip) {
+        synchronized (writeLock) {
+            checkHot(tip + 1);
+            hot.truncate(tip);
+            invalidate(tip + 1, Integer.MAX_VALUE);
+        }
+    }
+
+    @Override
+    public void remove(int lower, int upper) {
+        synchronized (writeLock) {
+            checkHot(lower);
+            hot.remove(lower, upper);
+            invalidate(lower, upper);
+        }
+    }
+
+    /**
+     * Removes the records of both tiers: the segment files are deleted, and the database is cleared.
+     * Segments cannot be cleared while another thread is reading them.
+     */
+    @Override
+    public synchronized void clear() {
+        if (!owner) throw new UnsupportedOperationException("Snapshot views are read-only");
+        synchronized (writeLock) {
+            try {
+                while (!segments.isEmpty()) {
+                    Segment s = segments.pollLastEntry().getValue();
+                    s.channel.close();
+                    Files.delete(s.file.toPath());
+                }
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            chunkCache.clear();
+            hot.clear();
+            if (prefetcher != null) prefetcher.clear();
+        }
+    }
+
+    /**
+     * Discards the prefetched records of a range of blocks after they have been written.
+     * @param lower lowest block identifier
+     * @param upper highest block identifier
+     */
+    private void invalidate(int lower, int upper) {
+        if (prefetcher != null) prefetcher.invalidate(lower, upper);
+    }
+
+    @Override
+    public void compact(int lower, int upper) {
+        hot.compact(lower, upper);
+    }
+
+    @Override
+    public int getTip() {
+        return hot.getTip();
+    }
+
+    @Override
+    public int getFirst() {
+        return hot.getFirst();
+    }
+
+    @Override
+    public byte[] getMeta(String name) {
+        return hot.getMeta(name);
+    }
+
+    @Override
+    public void putMeta(String name, byte[] value, boolean sync) {
+        hot.putMeta(name, value, sync);
+    }
+
+    /**
+     * Seals the next segment, if the tip is far enough from its end.
+     * The records are copied (resolving the filters stored separately) into a temporary file, which is flushed
+     * to disk and renamed; then the segment is published and its records are removed from the database.
+     * The range of the segment is chosen and reserved under the write lock: until the segment is published,
+     * puts, truncations and removals of its blocks are rejected as if they were already sealed,
+     * so the segment always matches the records it replaces.
+     * @return true if a segment has been sealed, false if the hot tier is not large enough yet
+     * @throws IOException if something goes wrong while writing the segment
+     */
+    public synchronized boolean seal() throws IOException {
+        if (!owner) throw new UnsupportedOperationException("Snapshot views are read-only");
+        int lower, upper;
+        ChainIndex view;
+        synchronized (writeLock) {
+            int first = hot.getFirst(), tip = hot.getTip(), sealedTip = getSealedTip();
+            if (first < 0) return false;
+            lower = (sealedTip >= 0) ? sealedTip + 1 : first;
+            if ((long) lower + segmentBlocks - 1 > (long) tip - hotBlocks) return false;
+            upper = lower + segmentBlocks - 1;
+            sealing = upper;
+            view = hot.snapshot();
+        }
+        File file = segmentFile(lower), tmp = new File(file.getPath() + ".tmp");
+        try {
+            try {
+                writeSegment(view, tmp, lower, upper, chunkBytes);
+            }
+            finally {
+                closeQuietly(view);
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            try (FileChannel dir = FileChannel.open(segmentsDir.toPath(), StandardOpenOption.READ)) {
+                dir.force(true);
+            }
+            catch (IOException e) {
+                // Some platforms do not allow to flush directories: the rename is made durable later.
+            }
+            segments.put(lower, new Segment(file));
+            synchronized (writeLock) {
+                hot.remove(lower, upper);
+            }
+        }
+        finally {
+            sealing = -1;
+            Files.deleteIfExists(tmp.toPath());
+        }
+        hot.compact(lower, upper);
+        return true;
+    }
+
+    /**
+     * Writes a segment file. Records are added to the current chunk until their total size
+     * reaches <code>chunkBytes</code> (a larger record fills a chunk by itself).
+     * @param view snapshot of the database
+     * @param file the output file
+     * @param lower first block of the segment
+     * @param upper last block of the segment
+     * @param chunkBytes uncompressed size of the chunks (in bytes)
+     * @throws IOException if something goes wrong while writing
+     */
+    private static void writeSegment(ChainIndex view, File file, int lower, int upper, int chunkBytes) throws IOException {
+        List<Long> offsets = new ArrayList<>();
+        List<Integer> firsts = new ArrayList<>();
+        Deflater deflater = new Deflater();
+        try (FileOutputStream fileOut = new FileOutputStream(file);
+        DataOutputStream out = new DataOutputStream(fileOut)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(lower);
+            out.writeInt(upper);
+            out.writeInt(chunkBytes);
+            List<byte[]> records = new ArrayList<>();
+            long size = 0;
+            for (int id = lower; id <= upper; id++) {
+                byte[] r = sealedRecord(view, view.getBytes(id));
+                records.add(r);
+                size += (r != null) ? r.length : 0;
+                if (size < chunkBytes && id < upper) continue;
+                offsets.add((long) out.size());
+                firsts.add(id - lower - records.size() + 1);
+                deflater.reset();
+                DeflaterOutputStream chunk = new DeflaterOutputStream(out, deflater, 1 << 16);
+                DataOutputStream chunkOut = new DataOutputStream(chunk);
+                chunkOut.writeInt(records.size());
+                for (byte[] c : records) chunkOut.writeInt((c != null) ? c.length : 0);
+                for (byte[] c : records) if (c != null) chunkOut.write(c);
+                chunk.finish();
+                records.clear();
+                size = 0;
+            }
+            long tableOffset = out.size();
+            offsets.add(tableOffset);
+            for (long offset : offsets) out.writeLong(offset);
+            for (int first : firsts) out.writeInt(first);
+            out.writeLong(tableOffset);
+            out.writeInt(MAGIC);
+            out.flush();
+            fileOut.getFD().sync();
+        }
+        finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Returns the version of a record stored in a segment, i.e., with the filters stored separately
+     * written in the record itself.
+     * @param view database of the record
+     * @param data the record (may be null)
+     * @return the record to be stored (null if missing)
+     */
+    private static byte[] sealedRecord(ChainIndex view, byte[] data) {
+        if (data == null || !BlockIndex.isDedup(data)) return data;
+        return BlockIndex.serialize(view.decode(data), BlockIndex.hasChecksum(data), true);
+    }
+
+    /**
+     * Starts sealing segments in the background: every <code>periodSeconds</code> seconds,
+     * all segments that can be sealed (see {@link #seal()}) are sealed by a daemon thread.
+     * @param periodSeconds interval between two checks (in seconds)
+     */
+    public synchronized void startSealing(long periodSeconds) {
+        if (!owner) throw new UnsupportedOperationException("Snapshot views are read-only");
+        if (sealer != null) return;
+        sealer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "segment-sealer");
+            t.setDaemon(true);
+            return t;
+        });
+        sealer.scheduleWithFixedDelay(() -> {
+            try {
+                while (seal());
+            }
+            catch (Exception e) {
+                e.printStackTrace();
+            }
+        }, 0, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops the background sealing, waiting for the current segment (if any) to be completed.
+     */
+    public void stopSealing() {
+        ScheduledExecutorService s;
+        synchronized (this) {
+            s = sealer;
+            sealer = null;
+        }
+        if (s == null) return;
+        s.shutdown();
+        try {
+            s.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Closes the index (or releases the database snapshot, for snapshot views).
+     * Snapshot views must be closed before the index.
+     */
+    @Override
+    public void close() throws Exception {
+        if (owner) stopSealing();
+        if (prefetcher != null) prefetcher.close();
+        if (owner) {
+            for (Segment s : segments.values()) s.channel.close();
+            segments.clear();
+        }
+        hot.close();
+    }
+
+    /**
+     * Seals all the segments of an existing index that can be sealed and prints the size of both tiers.
+     * @param args the database of the hot tier, the directory of the segments and (optionally)
+     * the number of hot blocks, the number of blocks of each segment and the uncompressed size of the chunks (in bytes)
+     */
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.err.println("Usage: TieredChainIndex <indexDb> <segmentsDir> [hotBlocks] [segmentBlocks] [chunkBytes]");
+            System.exit(1);
+        }
+        final String indexDb = args[0];
+        final String segmentsDir = args[1];
+        final int hotBlocks = (args.length > 2) ? Integer.parseInt(args[2]) : DEFAULT_HOT_BLOCKS;
+        final int segmentBlocks = (args.length > 3) ? Integer.parseInt(args[3]) : DEFAULT_SEGMENT_BLOCKS;
+        final int chunkBytes = (args.length > 4) ? Integer.parseInt(args[4]) : DEFAULT_CHUNK_BYTES;
+        long start = System.nanoTime();
+        try (TieredChainIndex index = new TieredChainIndex(indexDb, segmentsDir, false, DbOptions.DEFAULT,
+        hotBlocks, segmentBlocks, chunkBytes, DEFAULT_CACHE_BYTES)) {
+            long before = directorySize(new File(indexDb)) + index.getColdBytes();
+            int sealed = 0;
+            while (index.seal()) sealed++;
+            long elapsed = System.nanoTime() - start;
+            long hotBytes = directorySize(new File(indexDb)), coldBytes = index.getColdBytes();
+            System.out.printf("Segments sealed:\t%d\nTotal segments:\t%d\nSealed up to:\t%d\n", sealed,
+            index.getNumSegments(), index.getSealedTip());
+            System.out.printf("Size before:\t%d bytes\nHot size:\t%d bytes\nCold size:\t%d bytes\nElapsed time:\t%d ns\n",
+            before, hotBytes, coldBytes, elapsed);
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Closes a database, ignoring errors (e.g., a snapshot view or a database that is being abandoned).
+     * @param index the database
+     */
+    private static void closeQuietly(ChainIndex index) {
+        try {
+            index.close();
+        }
+        catch (Exception e) {
+            // Nothing else can be released.
+        }
+    }
+
+    /**
+     * Returns the total size of the files of a directory.
+     * @param dir the directory
+     * @return the size (in bytes)
+     */
+    private static long directorySize(File dir) {
+        File[] files = dir.listFiles();
+        long total = 0;
+        if (files != null) for (File f : files) total += f.isFile() ? f.length() : 0;
+        return total;
+    }
+}
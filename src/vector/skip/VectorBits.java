@@ -0,0 +1,64 @@
+package skip;
+
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * SIMD implementations of the bit manipulation routines of {@link Bits},
+ * based on the incubating Vector API (<code>jdk.incubator.vector</code>).
+ * This class is kept in a separate source tree (<code>src/vector</code>), so that the rest of the code compiles
+ * without the module. It is only loaded by {@link Bits} when the module is available at run time:
+ * all callers go through {@link Bits}, which falls back to scalar code otherwise.
+ *
+ * @author Matteo Loporchio
+ */
+final class VectorBits implements Bits.Kernel {
+    /**
+     * Preferred species for long lanes (e.g., 8 lanes on AVX-512).
+     */
+    private static final VectorSpecies<Long> LONGS = LongVector.SPECIES_PREFERRED;
+
+    /**
+     * Constructs the SIMD kernel (see {@link Bits}).
+     */
+    VectorBits() {}
+
+    /**
+     * In-place bitwise OR of two arrays of the same length.
+     * @param dst destination array
+     * @param src source array
+     */
+    @Override
+    public void or(long[] dst, long[] src) {
+        int i = 0, bound = LONGS.loopBound(dst.length);
+        for (; i < bound; i += LONGS.length()) {
+            LongVector a = LongVector.fromArray(LONGS, dst, i);
+            LongVector b = LongVector.fromArray(LONGS, src, i);
+            a.or(b).intoArray(dst, i);
+        }
+        for (; i < dst.length; i++) dst[i] |= src[i];
+    }
+
+    @Override
+    public int lanes() {
+        return LONGS.length();
+    }
+
+    /**
+     * Checks whether the given bits are all set in a bit array, gathering the words
+     * of a vector of positions at once and comparing them with their masks.
+     * @param bits the bit array
+     * @param words indexes of the words including each bit (a multiple of the number of lanes)
+     * @param masks masks selecting each bit within its word (zero for padding lanes)
+     * @return true if and only if all bits are set
+     */
+    @Override
+    public boolean test(long[] bits, int[] words, long[] masks) {
+        for (int i = 0; i < words.length; i += LONGS.length()) {
+            LongVector w = LongVector.fromArray(LONGS, bits, 0, words, i);
+            LongVector m = LongVector.fromArray(LONGS, masks, i);
+            if (!w.and(m).eq(m).allTrue()) return false;
+        }
+        return true;
+    }
+}
@@ -11,6 +11,7 @@
 #
 
 CLASS="skip.TestFindFirst"
+JAVA_OPTS="--add-modules jdk.incubator.vector"
 INDEX_PATH="data/index_8K_7"
 INDEX_MOD_PATH="data/index_8K_7_m"
 STORAGE_PATH="data/storage"
@@ -21,13 +22,13 @@ SIGNATURE_BIRTH="0x0a5311bd2a6608f08a180df2ee7c5946819a649b204b554bb8e39825b2c50
 SIGNATURE_TRANSFER="0xddf252ad1be2c89b69c2b068fc378daa952ba7f163c4a11628f55a4df523b3ef"
 
 # Birth
-java -cp "bin:lib/*" ${CLASS} ${INDEX_PATH} ${STORAGE_PATH} ${QUERY_BIRTH_PATH} data/queries_birth_res.csv ${ADDRESS} ${SIGNATURE_BIRTH} default 
+java ${JAVA_OPTS} -cp "bin:lib/*" ${CLASS} ${INDEX_PATH} ${STORAGE_PATH} ${QUERY_BIRTH_PATH} data/queries_birth_res.csv ${ADDRESS} ${SIGNATURE_BIRTH} default 
 
 # Transfer
-java -cp "bin:lib/*" ${CLASS} ${INDEX_PATH} ${STORAGE_PATH} ${QUERY_TRANSFER_PATH} data/queries_transfer_res.csv ${ADDRESS} ${SIGNATURE_TRANSFER} default
+java ${JAVA_OPTS} -cp "bin:lib/*" ${CLASS} ${INDEX_PATH} ${STORAGE_PATH} ${QUERY_TRANSFER_PATH} data/queries_transfer_res.csv ${ADDRESS} ${SIGNATURE_TRANSFER} default
 
 # Birth (MOD)
-java -cp "bin:lib/*" ${CLASS} ${INDEX_MOD_PATH} ${STORAGE_PATH} ${QUERY_BIRTH_PATH} data/queries_birth_res_m.csv ${ADDRESS} ${SIGNATURE_BIRTH} extended 
+java ${JAVA_OPTS} -cp "bin:lib/*" ${CLASS} ${INDEX_MOD_PATH} ${STORAGE_PATH} ${QUERY_BIRTH_PATH} data/queries_birth_res_m.csv ${ADDRESS} ${SIGNATURE_BIRTH} extended 
 
 # Transfer (MOD)
-java -cp "bin:lib/*" ${CLASS} ${INDEX_MOD_PATH} ${STORAGE_PATH} ${QUERY_TRANSFER_PATH} data/queries_transfer_res_m.csv ${ADDRESS} ${SIGNATURE_TRANSFER} extended
+java ${JAVA_OPTS} -cp "bin:lib/*" ${CLASS} ${INDEX_MOD_PATH} ${STORAGE_PATH} ${QUERY_TRANSFER_PATH} data/queries_transfer_res_m.csv ${ADDRESS} ${SIGNATURE_TRANSFER} extended
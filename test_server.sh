@@ -0,0 +1,20 @@
+#!/bin/bash
+#
+#   File:   test_server.sh
+#   Author: Matteo Loporchio
+#
+#   Bash script for testing the query service locally: the service is
+#   started on a free port of the loopback interface and its responses
+#   are compared with the results of the same queries run directly
+#   on the BF skip index of the CryptoKitties Core smart contract.
+#
+
+CLASS="skip.TestQueryServer"
+JAVA_OPTS="--add-modules jdk.incubator.vector"
+INDEX_PATH="data/index_8K_7"
+STORAGE_PATH="data/storage"
+QUERY_BIRTH_PATH="data/queries_birth.csv"
+ADDRESS="0x06012c8cf97bead5deae237070f9587f8e7a266d"
+SIGNATURE_BIRTH="0x0a5311bd2a6608f08a180df2ee7c5946819a649b204b554bb8e39825b2c50ad5"
+
+java ${JAVA_OPTS} -cp "bin:lib/*" ${CLASS} ${INDEX_PATH} ${STORAGE_PATH} ${QUERY_BIRTH_PATH} ${ADDRESS} ${SIGNATURE_BIRTH} default